@@ -0,0 +1,111 @@
+package saml2webssotest.idp.bindings;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import saml2webssotest.common.SAMLUtil;
+
+/**
+ * Compares decoding HTTP-Redirect messages with the {@link RedirectBindingCodec} to decoding them with new objects for
+ * each message, as {@link SAMLUtil} does.
+ *
+ * Build with the jmh profile and run with e.g.
+ * <code>java -cp target/SAML2WebSSOTest-SP-1.0.7-jar-with-dependencies.jar org.openjdk.jmh.Main RedirectBindingCodec</code>
+ *
+ * @author RiaasM
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class RedirectBindingCodecBenchmark {
+	/**
+	 * The amount of attributes in the SAML Response, which determines its size
+	 */
+	@Param({"1", "20", "200"})
+	private int attributes;
+	/**
+	 * The SAML Response as it is received in the SAMLResponse parameter
+	 */
+	private String encoded;
+	private String response;
+
+	@Setup
+	public void setup() {
+		StringBuilder xml = new StringBuilder();
+		xml.append("<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\" ID=\"_8e8dc5f69a98cc4c1ff3427e5ce34606fd672f91e6\" Version=\"2.0\" IssueInstant=\"2014-07-17T01:01:48Z\" Destination=\"http://localhost:8080/sso\">");
+		xml.append("<saml:Issuer>https://idp.example.org/metadata</saml:Issuer>");
+		xml.append("<samlp:Status><samlp:StatusCode Value=\"urn:oasis:names:tc:SAML:2.0:status:Success\"/></samlp:Status>");
+		xml.append("<saml:Assertion ID=\"_d71a3a8e9fcc45c9e9d248ef7049393fc8f04e5f75\" Version=\"2.0\" IssueInstant=\"2014-07-17T01:01:48Z\">");
+		xml.append("<saml:Issuer>https://idp.example.org/metadata</saml:Issuer>");
+		xml.append("<saml:Subject><saml:NameID Format=\"urn:oasis:names:tc:SAML:2.0:nameid-format:transient\">_ce3d2948b4cf20146dee0a0b3dd6f69b6cf86f62d7</saml:NameID></saml:Subject>");
+		xml.append("<saml:AttributeStatement>");
+		for (int i = 0; i < attributes; i++) {
+			xml.append("<saml:Attribute Name=\"urn:oid:1.3.6.1.4.1.5923.1.1.1.").append(i).append("\" NameFormat=\"urn:oasis:names:tc:SAML:2.0:attrname-format:uri\">");
+			xml.append("<saml:AttributeValue>value-").append(i).append("-").append(Integer.toHexString(i * 2654435 + 17)).append("</saml:AttributeValue>");
+			xml.append("</saml:Attribute>");
+		}
+		xml.append("</saml:AttributeStatement></saml:Assertion></samlp:Response>");
+		response = xml.toString();
+		encoded = RedirectBindingCodec.encode(response);
+	}
+
+	@Benchmark
+	public String pooledDecode() {
+		return RedirectBindingCodec.decode(encoded);
+	}
+
+	@Benchmark
+	public String samlUtilDecode() {
+		return SAMLUtil.decodeSamlMessageForRedirect(encoded);
+	}
+
+	/**
+	 * Decodes the message with new objects, without anything else that {@link SAMLUtil} may do
+	 */
+	@Benchmark
+	public String freshDecode() throws DataFormatException {
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(Base64.getDecoder().decode(encoded));
+			ByteArrayOutputStream message = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			while (!inflater.finished()) {
+				int inflated = inflater.inflate(buffer);
+				if (inflated == 0 && inflater.needsInput()) {
+					break;
+				}
+				message.write(buffer, 0, inflated);
+			}
+			return new String(message.toByteArray(), StandardCharsets.UTF_8);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	@Benchmark
+	public String pooledEncode() {
+		return RedirectBindingCodec.encodeForURL(response);
+	}
+}
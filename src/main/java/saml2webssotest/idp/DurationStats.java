@@ -0,0 +1,192 @@
+package saml2webssotest.idp;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import saml2webssotest.common.standardNames.MD;
+import saml2webssotest.idp.registry.TestCaseEntry;
+
+/**
+ * The durations of the test cases in previous runs against a single target IdP, used to predict how long each test
+ * case will take.
+ *
+ * The statistics are stored in a file for each target IdP, named after a hash of its entityID (or of the location
+ * of its metadata if it is referenced by its location, or of its login page if it has no metadata), since the
+ * durations mostly depend on the IdP's network location and login flow. For each test case, the amount of runs, the
+ * longest duration and a moving average of the durations are stored. The average gives more weight to recent runs,
+ * so it follows changes in the IdP's performance.
+ *
+ * Test cases that were never run against the IdP are expected to take a default duration for their kind, since
+ * response test cases need a complete login while the other test cases only read the configuration.
+ *
+ * @author RiaasM
+ *
+ */
+public class DurationStats {
+	/**
+	 * Logger for this class
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(DurationStats.class);
+	/**
+	 * The amount of runs after which the most recent duration always has the same weight (1/averageWindow) in the
+	 * moving average
+	 */
+	private static final int averageWindow = 5;
+	private static final long defaultResponseMillis = 5000;
+	private static final long defaultOtherMillis = 50;
+	/**
+	 * The file in which the statistics are stored, or null if they are not stored
+	 */
+	private final Path file;
+	private final Map<String, Stat> stats = new HashMap<String, Stat>();
+
+	/**
+	 * @param file is the file in which the statistics are stored, or null if they should only be kept in memory
+	 */
+	private DurationStats(Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * Load the statistics for the target IdP
+	 *
+	 * @param directory is the directory containing the statistics for each IdP, or null to start without statistics
+	 * 			and not store them
+	 * @param config is the configuration of the target IdP
+	 * @return the statistics, which are empty if the IdP was not tested before or the file could not be read
+	 */
+	public static DurationStats load(Path directory, IdPConfiguration config) {
+		if (directory == null) {
+			return new DurationStats(null);
+		}
+		DurationStats durations = new DurationStats(directory.resolve(ResultCache.sha256(keyFor(config)) + ".json"));
+		try (Reader reader = Files.newBufferedReader(durations.file, StandardCharsets.UTF_8)) {
+			JsonObject testcases = new JsonParser().parse(reader).getAsJsonObject().getAsJsonObject("testcases");
+			for (Map.Entry<String, JsonElement> testcase : testcases.entrySet()) {
+				JsonObject stat = testcase.getValue().getAsJsonObject();
+				durations.stats.put(testcase.getKey(), new Stat(stat.get("runs").getAsInt(), stat.get("averageMillis").getAsDouble(), stat.get("maxMillis").getAsLong()));
+			}
+		} catch (NoSuchFileException e) {
+			logger.debug("No durations were recorded for this IdP yet");
+		} catch (IOException | JsonParseException | IllegalStateException | NullPointerException | UnsupportedOperationException e) {
+			logger.warn("Could not read the durations from " + durations.file + ", starting without them", e);
+		}
+		return durations;
+	}
+
+	/**
+	 * Identify the target IdP, so its statistics are kept separate from other IdPs
+	 *
+	 * @param config is the configuration of the target IdP
+	 * @return the location of its metadata if the metadata is referenced by its location (so it is not read just for
+	 * 			this), otherwise the entityID of the first entity in its metadata, or its login page if there is none
+	 */
+	static String keyFor(IdPConfiguration config) {
+		if (config.getMetadataLocation() != null) {
+			return config.getMetadataLocation();
+		}
+		if (config.getMetadata() != null) {
+			NodeList mdEDs = config.getMetadata().getElementsByTagNameNS(MD.NAMESPACE, MD.ENTITYDESCRIPTOR);
+			if (mdEDs.getLength() > 0) {
+				return ((Element) mdEDs.item(0)).getAttribute(MD.ENTITYID);
+			}
+		}
+		return String.valueOf(config.getIdPInitURL());
+	}
+
+	/**
+	 * Predict how long the test case will take
+	 *
+	 * @param testcase is the test case
+	 * @return the average duration in previous runs, or the default duration for its kind if it was not run before
+	 */
+	public synchronized Duration getExpected(TestCaseEntry testcase) {
+		Stat stat = stats.get(testcase.getName());
+		if (stat == null) {
+			return Duration.ofMillis(testcase.getKind() == TestCaseEntry.Kind.RESPONSE ? defaultResponseMillis : defaultOtherMillis);
+		}
+		return Duration.ofMillis(Math.round(stat.averageMillis));
+	}
+
+	/**
+	 * Record how long the test case took
+	 *
+	 * @param testcase is the name of the test case
+	 * @param duration is how long it took
+	 */
+	public synchronized void record(String testcase, Duration duration) {
+		long millis = duration.toMillis();
+		Stat stat = stats.get(testcase);
+		if (stat == null) {
+			stats.put(testcase, new Stat(1, millis, millis));
+		}
+		else {
+			int runs = stat.runs + 1;
+			double average = stat.averageMillis + (millis - stat.averageMillis) / Math.min(runs, averageWindow);
+			stats.put(testcase, new Stat(runs, average, Math.max(stat.maxMillis, millis)));
+		}
+	}
+
+	/**
+	 * Store the statistics in their file. Failing to store them is logged, but does not affect the test run.
+	 */
+	public synchronized void save() {
+		if (file == null) {
+			return;
+		}
+		JsonObject testcases = new JsonObject();
+		for (Map.Entry<String, Stat> entry : stats.entrySet()) {
+			JsonObject stat = new JsonObject();
+			stat.addProperty("runs", entry.getValue().runs);
+			stat.addProperty("averageMillis", entry.getValue().averageMillis);
+			stat.addProperty("maxMillis", entry.getValue().maxMillis);
+			testcases.add(entry.getKey(), stat);
+		}
+		JsonObject durations = new JsonObject();
+		durations.add("testcases", testcases);
+		try {
+			Files.createDirectories(file.getParent());
+			Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+			try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+				writer.write(durations.toString());
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.warn("Could not store the durations of the test cases in " + file, e);
+		}
+	}
+
+	/**
+	 * The statistics for a single test case
+	 */
+	private static class Stat {
+		private final int runs;
+		private final double averageMillis;
+		private final long maxMillis;
+
+		private Stat(int runs, double averageMillis, long maxMillis) {
+			this.runs = runs;
+			this.averageMillis = averageMillis;
+			this.maxMillis = maxMillis;
+		}
+	}
+}
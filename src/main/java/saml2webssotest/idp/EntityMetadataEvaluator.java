@@ -0,0 +1,333 @@
+package saml2webssotest.idp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import saml2webssotest.common.TestResult;
+import saml2webssotest.common.TestStatus;
+import saml2webssotest.common.TestSuite.MetadataTestCase;
+import saml2webssotest.common.standardNames.MD;
+import saml2webssotest.idp.metadataModel.MetadataElement;
+import saml2webssotest.idp.metadataModel.MetadataModel;
+import saml2webssotest.idp.metadataRules.MetadataRuleEngine;
+import saml2webssotest.idp.registry.TestCaseEntry;
+import saml2webssotest.idp.testsuites.IdPTestSuite;
+import saml2webssotest.idp.testsuites.IdPTestSuite.StatelessMetadataTestCase;
+import saml2webssotest.idp.testsuites.IdPTestSuite.StreamingMetadataTestCase;
+
+/**
+ * Evaluates the metadata test cases separately for each EntityDescriptor in the metadata.
+ *
+ * This allows metadata aggregates (an EntitiesDescriptor containing the metadata for many entities, like a
+ * federation's metadata feed) to be tested. The metadata is held in the compact metadata model, which takes a fraction
+ * of the memory of a DOM document and can be read from multiple threads, so the entities do not have to be copied. Each
+ * EntityDescriptor is tested as if it was the only entity in the metadata. Streaming test cases are evaluated directly
+ * on the model, while a DOM document of a single entity is only created for the other test cases, for as long as
+ * that entity is evaluated. The entities are evaluated in parallel in a fork/join pool, so the evaluation scales
+ * across all available processors.
+ *
+ * The results contain an {@link EntityTestResult} for each test case for each entity, as well as a summary for each
+ * test case across all entities.
+ *
+ * @author RiaasM
+ *
+ */
+public class EntityMetadataEvaluator {
+	/**
+	 * Logger for this class
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(EntityMetadataEvaluator.class);
+	/**
+	 * The maximum amount of entities that are evaluated in a single task, before the task is split up further
+	 */
+	private static final int entitiesPerTask = 4;
+	/**
+	 * The test suite containing the test cases
+	 */
+	private final IdPTestSuite testsuite;
+	/**
+	 * The metadata test cases that should be evaluated
+	 */
+	private final List<TestCaseEntry> testcases;
+	/**
+	 * The pool in which the entities are evaluated
+	 */
+	private final ForkJoinPool pool;
+	/**
+	 * The instances of the stateless test cases, which are shared by all entities
+	 */
+	private final Map<String, StatelessMetadataTestCase> sharedTestcases = new HashMap<String, StatelessMetadataTestCase>();
+	/**
+	 * The cache for the outcomes of the test cases for each entity, or null if no cache should be used
+	 */
+	private final ResultCache resultCache;
+	/**
+	 * Evaluates the streaming test cases in a single pass over the metadata of each entity
+	 */
+	private MetadataRuleEngine ruleEngine;
+	/**
+	 * The shard of the entities that is evaluated, and the amount of shards
+	 */
+	private int shard = 0;
+	private int shards = 1;
+
+	/**
+	 * @param testsuite is the test suite containing the test cases
+	 * @param testcases are the metadata test cases that should be evaluated
+	 */
+	public EntityMetadataEvaluator(IdPTestSuite testsuite, List<TestCaseEntry> testcases) {
+		this(testsuite, testcases, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param testsuite is the test suite containing the test cases
+	 * @param testcases are the metadata test cases that should be evaluated
+	 * @param pool is the pool in which the entities are evaluated
+	 */
+	public EntityMetadataEvaluator(IdPTestSuite testsuite, List<TestCaseEntry> testcases, ForkJoinPool pool) {
+		this(testsuite, testcases, pool, null);
+	}
+
+	/**
+	 * @param testsuite is the test suite containing the test cases
+	 * @param testcases are the metadata test cases that should be evaluated
+	 * @param pool is the pool in which the entities are evaluated
+	 * @param resultCache is the cache for the outcomes of the test cases, so only entities whose metadata changed are
+	 * 			evaluated again. Can be null, in which case all entities are evaluated.
+	 */
+	public EntityMetadataEvaluator(IdPTestSuite testsuite, List<TestCaseEntry> testcases, ForkJoinPool pool, ResultCache resultCache) {
+		this.testsuite = testsuite;
+		this.testcases = testcases;
+		this.pool = pool;
+		this.resultCache = resultCache;
+	}
+
+	/**
+	 * Only evaluate a shard of the entities, e.g. because the other shards are evaluated by other test runners. The
+	 * entity at position i in the metadata belongs to shard i modulo the amount of shards.
+	 *
+	 * @param shard is the shard that should be evaluated, starting at 0
+	 * @param shards is the amount of shards
+	 */
+	public void setShard(int shard, int shards) {
+		this.shard = shard;
+		this.shards = shards;
+	}
+
+	/**
+	 * Evaluate the metadata test cases for each entity in the metadata
+	 *
+	 * @param metadata is the metadata, which can contain any amount of EntityDescriptor elements
+	 * @return the results for each test case for each entity, followed by the summary for each test case
+	 */
+	public List<TestResult> evaluate(Document metadata) {
+		MetadataElement root;
+		try {
+			root = MetadataModel.fromDocument(metadata);
+		} catch (IllegalStateException e) {
+			logger.error("Could not convert the metadata to the compact metadata model", e);
+			List<TestResult> results = new ArrayList<TestResult>();
+			results.add(new TestResult(TestStatus.CRITICAL, "The metadata could not be read for each entity"));
+			return results;
+		}
+		return evaluate(root);
+	}
+
+	/**
+	 * Evaluate the metadata test cases for each entity in the serialized metadata, without ever holding the metadata
+	 * as a DOM document
+	 *
+	 * @param metadata is the serialized metadata, which can contain any amount of EntityDescriptor elements
+	 * @return the results for each test case for each entity, followed by the summary for each test case
+	 * @throws IOException if the metadata could not be read
+	 * @throws SAXException if the metadata is not well-formed XML
+	 */
+	public List<TestResult> evaluate(InputStream metadata) throws IOException, SAXException {
+		return evaluate(MetadataModel.parse(metadata));
+	}
+
+	/**
+	 * Evaluate the metadata test cases for each entity in the compact metadata model
+	 *
+	 * @param metadata is the root element of the metadata, may be null
+	 * @return the results for each test case for each entity, followed by the summary for each test case
+	 */
+	public List<TestResult> evaluate(MetadataElement metadata) {
+		List<MetadataElement> entities = (metadata != null) ? metadata.getDescendants(MD.NAMESPACE, MD.ENTITYDESCRIPTOR) : new ArrayList<MetadataElement>();
+		if (shards > 1) {
+			List<MetadataElement> sharded = new ArrayList<MetadataElement>();
+			for (int i = shard; i < entities.size(); i += shards) {
+				sharded.add(entities.get(i));
+			}
+			entities = sharded;
+		}
+		logger.info("Evaluating " + testcases.size() + " metadata test cases for " + entities.size() + " entities");
+		createSharedTestcases();
+
+		List<TestResult> results = pool.invoke(new EvaluateEntities(entities, 0, entities.size()));
+		results.addAll(summarize(testcases, results, entities.size()));
+		return results;
+	}
+
+	/**
+	 * Create a single instance of each stateless test case, before the evaluation starts.
+	 *
+	 * Test cases that could not be instantiated here are instantiated for each entity instead, so the error is
+	 * reported in the results for each entity.
+	 */
+	private void createSharedTestcases() {
+		sharedTestcases.clear();
+		List<StreamingMetadataTestCase> streamingTestcases = new ArrayList<StreamingMetadataTestCase>();
+		for (TestCaseEntry testcase : testcases) {
+			if (StatelessMetadataTestCase.class.isAssignableFrom(testcase.getType())) {
+				try {
+					StatelessMetadataTestCase shared = (StatelessMetadataTestCase) testcase.newTestCase(testsuite);
+					sharedTestcases.put(testcase.getName(), shared);
+					if (shared instanceof StreamingMetadataTestCase) {
+						streamingTestcases.add((StreamingMetadataTestCase) shared);
+					}
+				} catch (IllegalStateException e) {
+					logger.error("Could not create a shared instance of the test case", e);
+				}
+			}
+		}
+		ruleEngine = new MetadataRuleEngine(streamingTestcases);
+	}
+
+	/**
+	 * Evaluate the test cases for a single entity.
+	 *
+	 * Stateless test cases are shared by all entities. For other test cases, a new instance is created, since they
+	 * keep their messages in their fields. Streaming test cases are evaluated together, in a single pass over the
+	 * metadata of the entity. The other test cases share a DOM document of the entity, which is created when the
+	 * first of them is evaluated. When a result cache is used, the outcomes are retrieved from the cache if the
+	 * metadata of the entity has not changed.
+	 *
+	 * @param entity is the EntityDescriptor element of the entity
+	 * @return the result for each test case
+	 */
+	private List<TestResult> evaluateEntity(MetadataElement entity) {
+		String entityID = entity.getAttribute(MD.ENTITYID);
+		List<TestResult> results = new ArrayList<TestResult>();
+		String inputHash = (resultCache != null) ? ResultCache.hash(entity) : null;
+		// the outcomes of the streaming test cases, evaluated when the first one is not found in the cache
+		Map<Class<?>, TestOutcome> streamed = null;
+		// the DOM document of the entity, created when the first test case needs it
+		Document document = null;
+		for (TestCaseEntry testcaseEntry : testcases) {
+			EntityTestResult result;
+			try {
+				StatelessMetadataTestCase shared = sharedTestcases.get(testcaseEntry.getName());
+				MetadataTestCase testcase = (shared != null) ? shared : (MetadataTestCase) testcaseEntry.newTestCase(testsuite);
+				boolean cacheable = inputHash != null && ResultCache.isCacheable(testcaseEntry.getType());
+				TestOutcome outcome = cacheable ? resultCache.get(testsuite, testcaseEntry.getType(), inputHash) : null;
+				if (outcome == null) {
+					if (shared instanceof StreamingMetadataTestCase) {
+						if (streamed == null) {
+							streamed = ruleEngine.evaluate(entity);
+						}
+						outcome = streamed.get(shared.getClass());
+					}
+					else {
+						if (document == null) {
+							document = MetadataModel.toDocument(entity);
+						}
+						outcome = (shared != null) ? shared.evaluateMetadata(document) : IdPTestRunner.toOutcome(testcase, testcase.checkMetadata(document));
+					}
+					if (cacheable) {
+						resultCache.put(testsuite, testcaseEntry.getType(), inputHash, outcome);
+					}
+				}
+				result = new EntityTestResult(outcome.getStatus(), IdPTestRunner.toMessage(outcome), testcaseEntry.getName(), entityID);
+				result.setDescription(testcase.getDescription());
+			} catch (IllegalStateException e) {
+				logger.error("Could not create a new instance of the test case", e);
+				result = new EntityTestResult(TestStatus.CRITICAL, "The test case could not be instantiated", testcaseEntry.getName(), entityID);
+			} catch (RuntimeException e) {
+				logger.error("The test case could not be run for entity " + entityID, e);
+				result = new EntityTestResult(TestStatus.CRITICAL, "The test case could not be run: " + e.getMessage(), testcaseEntry.getName(), entityID);
+			}
+			results.add(result);
+		}
+		return results;
+	}
+
+	/**
+	 * Summarize the results for each test case across all entities
+	 *
+	 * @param testcases are the test cases that were evaluated
+	 * @param results are the results for each test case for each entity, of which only the {@link EntityTestResult}s
+	 * 			are used
+	 * @param entityCount is the amount of entities that were evaluated
+	 * @return a result for each test case, with the most severe status found for any of the entities
+	 */
+	static List<TestResult> summarize(List<TestCaseEntry> testcases, List<TestResult> results, int entityCount) {
+		List<TestResult> summaries = new ArrayList<TestResult>();
+		for (TestCaseEntry testcase : testcases) {
+			Map<TestStatus, Integer> counts = new EnumMap<TestStatus, Integer>(TestStatus.class);
+			TestStatus worstStatus = null;
+			String description = null;
+			for (TestResult result : results) {
+				if (result instanceof EntityTestResult && ((EntityTestResult) result).getTestcase().equals(testcase.getName())) {
+					TestStatus status = result.getStatus();
+					Integer count = counts.get(status);
+					counts.put(status, count == null ? 1 : count + 1);
+					if (worstStatus == null || status.compareTo(worstStatus) > 0) {
+						worstStatus = status;
+					}
+					description = result.getDescription();
+				}
+			}
+			TestResult summary = new TestResult(worstStatus != null ? worstStatus : TestStatus.UNKNOWN, "Evaluated for " + entityCount + " entities: " + counts);
+			summary.setName(testcase.getName());
+			summary.setDescription(description);
+			summaries.add(summary);
+		}
+		return summaries;
+	}
+
+	/**
+	 * Evaluates a range of entities, splitting the range in half until it is small enough
+	 */
+	private class EvaluateEntities extends RecursiveTask<List<TestResult>> {
+		private static final long serialVersionUID = 1L;
+		private final List<MetadataElement> entities;
+		private final int start;
+		private final int end;
+
+		EvaluateEntities(List<MetadataElement> entities, int start, int end) {
+			this.entities = entities;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected List<TestResult> compute() {
+			if (end - start <= entitiesPerTask) {
+				List<TestResult> results = new ArrayList<TestResult>();
+				for (int i = start; i < end; i++) {
+					results.addAll(evaluateEntity(entities.get(i)));
+				}
+				return results;
+			}
+			int middle = (start + end) / 2;
+			EvaluateEntities first = new EvaluateEntities(entities, start, middle);
+			first.fork();
+			List<TestResult> results = new ArrayList<TestResult>(new EvaluateEntities(entities, middle, end).compute());
+			results.addAll(0, first.join());
+			return results;
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package saml2webssotest.idp;
+
+import saml2webssotest.common.TestResult;
+import saml2webssotest.common.TestStatus;
+
+/**
+ * The result of a metadata test case for a single entity in the metadata, see {@link EntityMetadataEvaluator}.
+ *
+ * The result is named after the test case and the entityID, as in "MetadataNameIDFormat (https://idp.example.org)",
+ * but the test case and the entityID are also kept in fields of their own. Those fields are serialized along with the
+ * result, so the results that a test runner streams to the coordinator (see {@link TestDaemon}) can be attributed to
+ * their test case and entity without taking the name apart.
+ *
+ * @author RiaasM
+ *
+ */
+public class EntityTestResult extends TestResult {
+	/**
+	 * The name of the test case
+	 */
+	private String testcase;
+	/**
+	 * The entityID of the entity for which the test case was evaluated
+	 */
+	private String entity;
+
+	/**
+	 * @param status is the status of the test
+	 * @param message describes why the test has this status
+	 * @param testcase is the name of the test case
+	 * @param entity is the entityID of the entity
+	 */
+	public EntityTestResult(TestStatus status, String message, String testcase, String entity) {
+		super(status, message);
+		this.testcase = testcase;
+		this.entity = entity;
+		setName(testcase + " (" + entity + ")");
+	}
+
+	public String getTestcase() {
+		return testcase;
+	}
+
+	public String getEntity() {
+		return entity;
+	}
+}
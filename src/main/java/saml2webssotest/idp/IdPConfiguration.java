@@ -1,17 +1,47 @@
 package saml2webssotest.idp;
 
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
 
 import saml2webssotest.common.Interaction;
 import saml2webssotest.common.standardNames.MD;
+import saml2webssotest.idp.mockSPHandlers.MockSPTenant;
 
 public class IdPConfiguration {
+	/**
+	 * Logger for this class
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(IdPConfiguration.class);
+	/**
+	 * The size from which local metadata files are memory-mapped instead of read into the heap through a buffer
+	 */
+	private static final long mapThreshold = 1024 * 1024;
+	/**
+	 * The time after which retrieving the metadata from a URL is aborted, in milliseconds
+	 */
+	private static final int urlTimeout = 30000;
 	/**
 	 * Contains the URL to the page where IdP-initiated authentication should start (on the target IdP)
 	 */
@@ -19,11 +49,38 @@ public class IdPConfiguration {
 	/**
 	 * Contains the metadata from the target IdP. This is used for metadata test cases and to access the target IdP in order to receive its responses
 	 */
-	private Document metadata;
+	private volatile Document metadata;
+	/**
+	 * Contains the file path or URL of the metadata from the target IdP, which is used when the metadata is not 
+	 * provided inline. The metadata is only read when it is first needed.
+	 */
+	private String metadataLocation;
+	/**
+	 * The directory against which a relative metadata file path is resolved, usually the directory of the
+	 * configuration file
+	 */
+	private transient Path baseDirectory;
+	/**
+	 * Whether the metadata was read from its location, or could not be read
+	 */
+	private transient volatile boolean metadataLoaded;
 	/**
 	 * Contains the interactions to be used before logging in
 	 */
 	private ArrayList<Interaction> preResponseInteractions = new ArrayList<Interaction>();
+	/**
+	 * Contains the SP entities that the mock SP should host for the target IdP, each registered with the target IdP 
+	 * separately. When there are none, the test suite's mock SP is used.
+	 */
+	private ArrayList<MockSPTenant> mockSPs = new ArrayList<MockSPTenant>();
+	/**
+	 * The maximum amount of seconds that retrieving the login page and executing the interactions on it may take
+	 */
+	private int loginTimeout = 60;
+	/**
+	 * The maximum amount of seconds to wait for the SAML Response to arrive on the mock SP after logging in
+	 */
+	private int responseTimeout = 30;
 	
 	public URL getIdPInitURL() {
 		return idpInitURL;
@@ -33,13 +90,123 @@ public class IdPConfiguration {
 		this.idpInitURL = startPage;
 	}
 
+	/**
+	 * Retrieve the metadata of the target IdP. When the metadata is referenced by its location, it is read and parsed
+	 * the first time this is called.
+	 * 
+	 * @return the metadata, or null if it was not provided or could not be read
+	 */
 	public Document getMetadata() {
+		if (metadata == null && metadataLocation != null && !metadataLoaded) {
+			synchronized (this) {
+				if (!metadataLoaded) {
+					metadata = loadMetadata();
+					metadataLoaded = true;
+				}
+			}
+		}
 		return metadata;
 	}
 	
 	public void setMetadata(Document md) {
 		metadata = md;
 	}
+
+	/**
+	 * @return the file path or URL of the metadata, or null if the metadata is not referenced by its location
+	 */
+	public String getMetadataLocation() {
+		return metadataLocation;
+	}
+
+	public void setMetadataLocation(String metadataLocation) {
+		this.metadataLocation = metadataLocation;
+	}
+
+	/**
+	 * @return true if the metadata is available as a document, so retrieving it does not read or parse anything
+	 */
+	public boolean isMetadataLoaded() {
+		return metadata != null || metadataLocation == null || metadataLoaded;
+	}
+
+	/**
+	 * @param baseDirectory is the directory against which a relative metadata file path is resolved
+	 */
+	public void setBaseDirectory(Path baseDirectory) {
+		this.baseDirectory = baseDirectory;
+	}
+
+	/**
+	 * Open the metadata from its location, so it can be streamed instead of parsed into a document. Local files from
+	 * a certain size are memory-mapped, so they are not copied into the heap.
+	 * 
+	 * @return the serialized metadata, which must be closed by the caller
+	 * @throws IOException if the metadata has no location or could not be opened
+	 */
+	public InputStream openMetadata() throws IOException {
+		if (metadataLocation == null) {
+			throw new IOException("The metadata is not referenced by a file path or URL");
+		}
+		URL url = toURL(metadataLocation);
+		if (url != null && !url.getProtocol().equalsIgnoreCase("file")) {
+			URLConnection connection = url.openConnection();
+			connection.setConnectTimeout(urlTimeout);
+			connection.setReadTimeout(urlTimeout);
+			return new BufferedInputStream(connection.getInputStream());
+		}
+		Path file;
+		try {
+			file = (url != null) ? Paths.get(url.toURI()) : Paths.get(metadataLocation);
+		} catch (URISyntaxException | InvalidPathException e) {
+			throw new IOException("The metadata location " + metadataLocation + " is not a valid file path or URL", e);
+		}
+		if (!file.isAbsolute() && baseDirectory != null) {
+			file = baseDirectory.resolve(file);
+		}
+		long size = Files.size(file);
+		if (size < mapThreshold || size > Integer.MAX_VALUE) {
+			return new BufferedInputStream(Files.newInputStream(file));
+		}
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			// the mapping stays valid after the channel is closed
+			return new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+		}
+	}
+
+	/**
+	 * Parse the metadata from its location
+	 * 
+	 * @return the metadata, or null if it could not be read
+	 */
+	private Document loadMetadata() {
+		long startNanos = System.nanoTime();
+		try (InputStream in = openMetadata()) {
+			// the nodes are built right away, so the test cases can read the metadata concurrently
+			Document md = XMLParsers.newDocumentBuilder().parse(in);
+			logger.debug("Reading the metadata from " + metadataLocation + " took " + (System.nanoTime() - startNanos) / 1000000 + " ms");
+			return md;
+		} catch (IOException | SAXException e) {
+			logger.error("Could not read the metadata from " + metadataLocation, e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return the location as a URL, or null if it is not a URL (and should be a file path)
+	 */
+	private static URL toURL(String location) {
+		// a single letter before the colon is a Windows drive letter, not a protocol
+		int colon = location.indexOf(':');
+		if (colon <= 1) {
+			return null;
+		}
+		try {
+			return new URL(location);
+		} catch (MalformedURLException e) {
+			return null;
+		}
+	}
 	/**
 	 * Retrieve all nodes with the requested tag name from the metadata
 	 * 
@@ -48,6 +215,7 @@ public class IdPConfiguration {
 	 */
 	public List<Node> getMDNodes(String tagName) {
 		// make sure the metadata is available
+		Document metadata = getMetadata();
 		if (metadata == null)
 			return null;
 		
@@ -70,6 +238,7 @@ public class IdPConfiguration {
 	 */
 	public List<String> getMDAttributes(String tagName, String attrName) {
 		//make sure the metadata is available
+		Document metadata = getMetadata();
 		if (metadata == null)
 			return null;
 		
@@ -123,6 +292,35 @@ public class IdPConfiguration {
 		// the requested binding could not be found
 		return null;
 	}
+	/**
+	 * @return the SP entities that the mock SP should host for the target IdP, which can be empty
+	 */
+	public List<MockSPTenant> getMockSPs() {
+		return mockSPs != null ? mockSPs : new ArrayList<MockSPTenant>();
+	}
+
+	/**
+	 * @return the maximum amount of seconds that logging in may take, after which the login is cancelled
+	 */
+	public int getLoginTimeout() {
+		return loginTimeout;
+	}
+
+	public void setLoginTimeout(int loginTimeout) {
+		this.loginTimeout = loginTimeout;
+	}
+
+	/**
+	 * @return the maximum amount of seconds to wait for the SAML Response after logging in
+	 */
+	public int getResponseTimeout() {
+		return responseTimeout;
+	}
+
+	public void setResponseTimeout(int responseTimeout) {
+		this.responseTimeout = responseTimeout;
+	}
+
 	/**
 	 * @return the preloginInteractions
 	 */
@@ -135,4 +333,38 @@ public class IdPConfiguration {
 	public void setPreResponseInteractions(ArrayList<Interaction> preLoginInteractions) {
 		this.preResponseInteractions = preLoginInteractions;
 	}
+
+	/**
+	 * Reads a memory-mapped file
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		private ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			int count = Math.min(len, buffer.remaining());
+			buffer.get(b, off, count);
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
 }
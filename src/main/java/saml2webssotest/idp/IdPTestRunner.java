@@ -1,15 +1,48 @@
 package saml2webssotest.idp;
 
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-import java.net.InetSocketAddress;
+import java.io.InputStream;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLEncoder;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -18,17 +51,26 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.PropertyConfigurator;
+import org.eclipse.jetty.alpn.server.ALPNServerConnectionFactory;
+import org.eclipse.jetty.http2.HTTP2Cipher;
+import org.eclipse.jetty.http2.server.HTTP2ServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.SecureRequestCustomizer;
 import org.eclipse.jetty.server.Server;
-import org.eclipse.jetty.server.handler.ContextHandler;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.opensaml.xml.security.x509.X509Credential;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
 
 import com.gargoylesoftware.htmlunit.ElementNotFoundException;
 import com.gargoylesoftware.htmlunit.FailingHttpStatusCodeException;
 import com.gargoylesoftware.htmlunit.Page;
-import com.gargoylesoftware.htmlunit.WebClient;
 import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonSyntaxException;
 
@@ -42,10 +84,34 @@ import saml2webssotest.common.TestRunnerUtil;
 import saml2webssotest.common.TestStatus;
 import saml2webssotest.common.TestSuite.TestCase;
 import saml2webssotest.common.TestSuite.MetadataTestCase;
+import saml2webssotest.idp.fakeIdP.FakeIdP;
+import saml2webssotest.idp.fakeIdP.FakeIdPConfiguration;
+import saml2webssotest.idp.faultProxy.FaultProxy;
+import saml2webssotest.idp.faultProxy.FaultProxyConfiguration;
+import saml2webssotest.idp.faultProxy.FaultProxyStats;
+import saml2webssotest.idp.history.RegressionDetector;
+import saml2webssotest.idp.history.ResultStore;
+import saml2webssotest.idp.history.StoredResult;
+import saml2webssotest.idp.history.TrendPoint;
+import saml2webssotest.idp.loginDrivers.HttpLoginDriver;
+import saml2webssotest.idp.metadataRules.MetadataRuleEngine;
+import saml2webssotest.idp.mockSPHandlers.AsyncSamlWebSSOHandler;
+import saml2webssotest.idp.mockSPHandlers.MeasuredSslConnectionFactory;
+import saml2webssotest.idp.mockSPHandlers.MockSPTenant;
+import saml2webssotest.idp.mockSPHandlers.ReplayDetector;
 import saml2webssotest.idp.mockSPHandlers.SamlWebSSOHandler;
+import saml2webssotest.idp.mockSPHandlers.TenantRoutingHandler;
+import saml2webssotest.idp.mockSPHandlers.TlsHandshakeStats;
+import saml2webssotest.idp.registry.TestCaseEntry;
+import saml2webssotest.idp.registry.TestCaseRegistry;
+import saml2webssotest.idp.registry.TestSuiteEntry;
 import saml2webssotest.idp.testsuites.IdPTestSuite;
 import saml2webssotest.idp.testsuites.IdPTestSuite.ConfigTestCase;
 import saml2webssotest.idp.testsuites.IdPTestSuite.ResponseTestCase;
+import saml2webssotest.idp.testsuites.IdPTestSuite.StatelessConfigTestCase;
+import saml2webssotest.idp.testsuites.IdPTestSuite.StatelessMetadataTestCase;
+import saml2webssotest.idp.testsuites.IdPTestSuite.StatelessResponseTestCase;
+import saml2webssotest.idp.testsuites.IdPTestSuite.StreamingMetadataTestCase;
 
 /**
  * TODO: rewrite for IdP
@@ -66,6 +132,38 @@ public class IdPTestRunner {
 	 * The package where all test suites can be found, relative to the package containing this class.
 	 */
 	private static String testSuitesPackage = "testsuites";
+	/**
+	 * The maximum amount of received SAML Responses that can wait to be decoded when the mock SP handles them asynchronously
+	 */
+	private static final int asyncQueueCapacity = 1000;
+	/**
+	 * The maximum time in seconds to wait for a received SAML Response to be decoded
+	 */
+	private static final long responseDecodeTimeout = 30;
+	/**
+	 * The alias of the mock SP's certificate and private key in the key store of the HTTPS connectors
+	 */
+	private static final String tlsKeyAlias = "mocksp";
+	/**
+	 * The maximum amount of TLS sessions that the HTTPS connectors keep for resumption
+	 */
+	private static final int tlsSessionCacheSize = 10000;
+	/**
+	 * The amount of seconds that a TLS session can be resumed
+	 */
+	private static final int tlsSessionTimeout = 3600;
+	/**
+	 * Cancels the logins that take longer than the target IdP's login timeout
+	 */
+	private static final ScheduledThreadPoolExecutor loginWatchdog = createLoginWatchdog();
+	/**
+	 * The statistics of the TLS handshakes on the mock SP's HTTPS connectors
+	 */
+	private static final TlsHandshakeStats handshakeStats = new TlsHandshakeStats();
+	/**
+	 * Detects the IDs that the mock SP received more than once, created for the first test run
+	 */
+	private static volatile ReplayDetector replayDetector;
 	/**
 	 * The test suite that is being run
 	 */
@@ -75,21 +173,86 @@ public class IdPTestRunner {
 	 */
 	private static IdPConfiguration idpConfig;
 	/**
-	 * Contains the SAML Request that was retrieved by the mock IdP
+	 * Contains the mock IdP server
 	 */
-	private static String samlResponse;
+	private static Server mockSP;
 	/**
-	 * Contains the SAML binding that was recognized by the mock IdP
+	 * Contains the embedded fake IdP that the test cases are run against, if requested
 	 */
-	private static String samlResponseBinding;
+	private static FakeIdP fakeIdP;
 	/**
-	 * Contains the mock IdP server
+	 * Contains the proxy that injects latency and faults into the requests of the browsers, if requested
 	 */
-	private static Server mockSP;
+	private static FaultProxy faultProxy;
+	/**
+	 * Contains the coordinator that distributes the test cases over the workers, if requested
+	 */
+	private static TestCoordinator coordinator;
+	/**
+	 * Contains the sessions that are currently logging in on the target IdP, by their session ID
+	 */
+	private static final ConcurrentHashMap<String, SSOSession> sessions = new ConcurrentHashMap<String, SSOSession>();
+	/**
+	 * Contains the SP entities that are hosted by the mock SP, by their entityID
+	 */
+	private static final ConcurrentHashMap<String, MockSPTenant> tenants = new ConcurrentHashMap<String, MockSPTenant>();
+	/**
+	 * Contains the SP entities that the sessions of the current run log in for, which are used in turn
+	 */
+	private static List<MockSPTenant> runTenants;
+	/**
+	 * The amount of sessions that were opened in the current run, used to select their SP entity
+	 */
+	private static final AtomicInteger openedSessions = new AtomicInteger();
+	/**
+	 * The lightweight driver that is used to log in instead of a browser, if requested
+	 */
+	private static HttpLoginDriver httpDriver;
+	/**
+	 * The cache for the outcomes of config and metadata test cases, or null if no cache should be used
+	 */
+	private static ResultCache resultCache;
+	/**
+	 * The hashes of the target IdP's metadata and configuration, which are the inputs for the cached test cases
+	 */
+	private static String metadataHash;
+	private static String configHash;
+	/**
+	 * The durations of the test cases in previous runs against the target IdP
+	 */
+	private static DurationStats durations;
+	/**
+	 * Contains the history of the results of all test runs, if it should be kept
+	 */
+	private static ResultStore history;
+	/**
+	 * Identifies the current test run and its target IdP in the history
+	 */
+	private static String historyRun;
+	private static String historyIdP;
+	/**
+	 * Receives the results that are stored in the history, also when no history is kept, e.g. so the daemon can send
+	 * them to the coordinator. Null if there is no such listener.
+	 */
+	private static volatile Consumer<StoredResult> historyListener;
+	/**
+	 * Set when the current run should stop, after the test cases that are running now
+	 */
+	private static volatile boolean runCancelled;
+	/**
+	 * The streaming metadata test cases in the current run, which are evaluated in a single pass over the metadata
+	 */
+	private static List<TestCaseEntry> streamingTCs;
+	/**
+	 * The outcomes of the streaming metadata test cases, or null if they have not been evaluated yet
+	 */
+	private static Map<Class<?>, TestOutcome> streamedOutcomes;
 	/**
-	 * The browser which will be used to connect to the SP
+	 * The shard of the entities in the metadata that the metadata test cases are evaluated for, and the amount of 
+	 * shards, or 0 if all entities are evaluated
 	 */
-	private static final WebClient browser = new WebClient();
+	private static int entityShard;
+	private static int entityShards;
 	
 	/**
 	 * Contains the command-line options
@@ -107,16 +270,36 @@ public class IdPTestRunner {
 		
 		// define the command-line options
 		Options options = new Options();
+		options.addOption("C", "coordinate", true, "Distribute the test cases over the given amount of worker JVMs on this machine, or over the test runners (started with -D) at the given comma-separated URLs");
+		options.addOption("d", "durations", true, "Record how long each test case takes for each target IdP in the given directory and use it to schedule and predict the test runs");
+		options.addOption("F", "fakeidp", true, "Start an embedded fake IdP with the settings in the given JSON file, to run the test cases against it instead of a real IdP");
+		options.addOption("e", "entities", false, "Evaluate the metadata test cases separately for each EntityDescriptor in the metadata, in parallel");
 		options.addOption("h", "help", false, "Print this help message");
+		options.addOption("H", "httpdriver", false, "Log in with a lightweight HTTP-only driver instead of a browser (only for IdPs with plain HTML login pages)");
+		options.addOption("a", "async", false, "Acknowledge the IdP's responses on the mock SP immediately and decode them on a separate thread");
 		options.addOption("i", "insecure", false,"Do not verify HTTPS server certificates");
+		options.addOption("P", "http2", false,"Offer HTTP/2 through ALPN on the HTTPS connectors of the mock SP");
 		options.addOption("c", "idpconfig", true,"The name of the properties file containing the configuration of the target SP");
+		options.addOption("D", "daemon", true,"Keep running and accept test runs over a local HTTP API on the given port");
+		options.addOption("k", "replaycapacity", true,"The amount of Response and Assertion IDs that the mock SP remembers to detect IDs that the IdP reuses (default: 500000)");
+		options.addOption("K", "replaywindow", true,"The amount of minutes that the mock SP remembers the Response and Assertion IDs (default: 60)");
 		options.addOption("l", "listTestcases", false,"List all the test cases");
 		options.addOption("L", "listTestsuites", false,"List all the test suites");
 		options.addOption("m", "metadata", false,"Display the mock IdP metadata");
+		options.addOption("O", "portoffset", true,"Add the given amount to the ports of the mock SP, so several test runners can run on the same machine");
+		options.addOption("p", "loginplan", false,"Learn the requests of the first successful login and replay them for subsequent logins (requires -H)");
+		options.addOption("r", "resultcache", true,"Reuse the results of config and metadata test cases whose input has not changed, stored in the given directory");
+		options.addOption("s", "history", true,"Store the status and timings of every test case in the given directory and report the test cases that became significantly slower on the target IdP");
+		options.addOption("y", "trend", false,"Print the daily trend of the stored results of the test cases on the target IdP (requires -s)");
+		options.addOption("R", "refresh", false,"Run all test cases again and replace their results in the result cache (requires -r)");
 		options.addOption("T", "testsuite", true,"Specifies the test suite from which you wish to run a test case");
 		options.addOption("t","testcase",true,"The name of the test case you wish to run. If omitted, all test cases from the test suite are run");
+		options.addOption("x","faultproxy",true,"Send the requests of the browsers through a proxy that injects the latency and faults in the given JSON file");
+		options.addOption("u","users",true,"The amount of simulated users that should concurrently log in for each response test case (default: 1)");
+		options.addOption("V","virtualthreads",false,"Run each simulated user and each request on the mock SP on its own virtual thread");
+		options.addOption("w","workers",true,"The amount of test cases that are run at the same time, longest expected first (default: 1)");
 
-		LinkedList<TestResult> testresults = new LinkedList<TestResult>();
+		final LinkedList<TestResult> testresults = new LinkedList<TestResult>();
 		try {
 			// parse the command-line arguments
 			CommandLineParser parser = new BasicParser();
@@ -130,111 +313,136 @@ public class IdPTestRunner {
 				System.exit(0);
 			}
 
+			// check the numeric options before anything is started, so invalid values do not fail the run halfway
+			validateNumericOptions();
+
+			if (command.hasOption("resultcache")) {
+				resultCache = new ResultCache(Paths.get(command.getOptionValue("resultcache")), command.hasOption("refresh"));
+			}
+
+			if (command.hasOption("history")) {
+				history = ResultStore.open(Paths.get(command.getOptionValue("history")));
+			}
+
 			// list the test suites, if necessary
 			if (command.hasOption("listTestsuites")) {
-				TestRunnerUtil.listTestSuites(IdPTestRunner.class.getPackage().getName() + "." + testSuitesPackage);
+				List<TestSuiteEntry> indexedSuites = TestCaseRegistry.getIndexedTestSuites();
+				if (indexedSuites.isEmpty()) {
+					// no test case index was generated, so scan the package for test suites
+					TestRunnerUtil.listTestSuites(IdPTestRunner.class.getPackage().getName() + "." + testSuitesPackage);
+				}
+				else {
+					for (TestSuiteEntry suite : indexedSuites) {
+						System.out.println(suite.getName());
+					}
+				}
+				System.exit(0);
+			}
+
+			// start the proxy that the browsers send their requests through, if requested
+			if (command.hasOption("faultproxy")) {
+				FaultProxyConfiguration proxyConfig = FaultProxy.loadConfig(Paths.get(command.getOptionValue("faultproxy")));
+				if (proxyConfig.getPort() != 0) {
+					// the proxy is moved along with the mock SP, so several test runners can use it on the same machine
+					proxyConfig.setPort(proxyConfig.getPort() + getPortOffset());
+				}
+				faultProxy = new FaultProxy(proxyConfig);
+				faultProxy.start();
+			}
+
+			// keep the mock SP running and accept test runs over a local HTTP API, if requested
+			if (command.hasOption("daemon")) {
+				final TestDaemon daemon = new TestDaemon(getIntOption("daemon", 0));
+				Runtime.getRuntime().addShutdownHook(new Thread() {
+					@Override
+					public void run() {
+						daemon.stop();
+					}
+				});
+				daemon.start();
+				daemon.join();
 				System.exit(0);
 			}
 
 			if (command.hasOption("testsuite")) {
 				// load the test suite
 				String ts_string = command.getOptionValue("testsuite");
-				Class<?> ts_class = Class.forName(IdPTestRunner.class.getPackage().getName() +"."+ testSuitesPackage +"."+ ts_string);
-				Object testsuiteObj = ts_class.newInstance();
-				if (testsuiteObj instanceof IdPTestSuite) {
-					testsuite = (IdPTestSuite) testsuiteObj;
-
+				TestSuiteEntry suiteEntry = findTestSuite(ts_string);
+				testsuite = suiteEntry.newTestSuite();
+				if (testsuite != null) {
 					// list the test cases, if necessary
 					if (command.hasOption("listTestcases")) {
-						TestRunnerUtil.listTestCases(testsuite);
+						for (TestCaseEntry tcEntry : suiteEntry.getTestCases()) {
+							System.out.println(tcEntry.getName() + " (" + tcEntry.getKind() + "): " + tcEntry.newTestCase(testsuite).getDescription());
+						}
 						System.exit(0);
 					}
 
-					// show mock IdP metadata
+					// show mock IdP metadata, for each SP entity in the target IdP's configuration if it defines any
 					if (command.hasOption("metadata")) {
-						TestRunnerUtil.outputMockedMetadata(testsuite);
+						List<MockSPTenant> configTenants = command.hasOption("idpconfig") ? loadConfig(Paths.get(command.getOptionValue("idpconfig"))).getMockSPs() : Collections.<MockSPTenant>emptyList();
+						if (configTenants.isEmpty()) {
+							TestRunnerUtil.outputMockedMetadata(testsuite);
+						}
+						else {
+							for (MockSPTenant tenant : configTenants) {
+								String metadata = testsuite.getMockedMetadata(tenant);
+								if (metadata != null) {
+									System.out.println(metadata);
+								}
+							}
+						}
 						System.exit(0);
 					}
 
 					// load target SP config
 					if (command.hasOption("idpconfig")) {
-						idpConfig = new GsonBuilder()
-											.registerTypeAdapter(Document.class, new MetadataDeserializer())
-											.registerTypeAdapter(Interaction.class, new InteractionDeserializer())
-											.create()
-											.fromJson(Files.newBufferedReader(Paths.get(command.getOptionValue("idpconfig")),Charset.defaultCharset()), IdPConfiguration.class); 
+						idpConfig = loadConfig(Paths.get(command.getOptionValue("idpconfig")));
 					} else {
 						logger.error("No IdP configuration was found, this is required in order to run any test");
 						System.exit(-1);
 					}
 
-					// create the mock IdP and add all required handlers
-					mockSP = new Server(
-							new InetSocketAddress(
-										testsuite.getMockSPURL().getHost(),
-										testsuite.getMockSPURL().getPort()));
-					
-					// add a context handler to properly handle the sso path
-					ContextHandler context = new ContextHandler();
-					context.setContextPath(testsuite.getMockSPURL().getPath());
-					mockSP.setHandler(context);
-
-					// add the SAML Request handler for all services
-					mockSP.setHandler(new SamlWebSSOHandler());
-					// add the SAML Response handler
+					// print the trend of the stored results, if necessary
+					if (command.hasOption("trend")) {
+						if (history == null) {
+							logger.error("The trend can only be printed from the stored results, which requires -s");
+							System.exit(-1);
+						}
+						printTrend(suiteEntry, command.getOptionValue("testcase"));
+						System.exit(0);
+					}
 
-					// start the mock IdP
-					mockSP.start();
+					if (command.hasOption("fakeidp")) {
+						fakeIdP = startFakeIdP(FakeIdP.loadConfig(Paths.get(command.getOptionValue("fakeidp"))), testsuite, idpConfig);
+					}
 
-					// TODO: possibly use Reflections for easier access to test cases
-					
-					// load the requested test case(s)
+					// load the requested test case(s), or all test cases from the test suite
 					String tc_string = command.getOptionValue("testcase");
-					if (tc_string != null && !tc_string.isEmpty()) {
-						Class<?> tc_class = Class.forName(testsuite.getClass().getName() + "$" + tc_string);
-						Object testcaseObj = tc_class.getConstructor(testsuite.getClass()).newInstance(testsuite);
-						// run test
-						if (testcaseObj instanceof TestCase) {
-							TestCase testcase = (TestCase) testcaseObj;
-							TestStatus status = runTest(testcase);
-							String message = "";
-							if (status == TestStatus.OK){
-								message = testcase.getSuccessMessage();
-							}
-							else{
-								message = testcase.getFailedMessage();
-							}
-							TestResult result = new TestResult(status, message);
-							result.setName(testcase.getClass().getSimpleName());
-							result.setDescription(testcase.getDescription());
-							testresults.add(result);
-						} else {
-							logger.error("Provided class was not a subclass of interface TestCase");
-						}
-					} else {
-						// run all test cases from the test suite, ignore
-						// classes that are not subclasses of TestCase
-						Class<?>[] allTCs = ts_class.getDeclaredClasses();
-						for (Class<?> testcaseClass : allTCs) {
-							TestCase curTestcase = (TestCase) testcaseClass.getConstructor(testsuite.getClass()).newInstance(testsuite);
-							TestStatus status = runTest(curTestcase);
-							String message = "";
-							if (status == TestStatus.OK){
-								message = curTestcase.getSuccessMessage();
-							}
-							else{
-								message = curTestcase.getFailedMessage();
-							}
-							TestResult result = new TestResult(status, message);
-							result.setName(curTestcase.getClass().getSimpleName());
-							result.setDescription(curTestcase.getDescription());
-							//outputTestResult(result);
+					List<String> tcNames = (tc_string != null && !tc_string.isEmpty()) ? Collections.singletonList(tc_string) : Collections.<String>emptyList();
+					Consumer<TestResult> output = new Consumer<TestResult>() {
+						@Override
+						public void accept(TestResult result) {
 							testresults.add(result);
 						}
+					};
+
+					// distribute the test cases over the workers, which each host their own mock SP, if requested
+					if (command.hasOption("coordinate")) {
+						coordinator = TestCoordinator.start(command.getOptionValue("coordinate"), testsuite, idpConfig);
+						coordinator.run(suiteEntry.getName(), Paths.get(command.getOptionValue("idpconfig")), idpConfig, selectTestCases(suiteEntry, tcNames), output);
+					}
+					else {
+						// create and start the mock SP, listening on the ports of all SP entities it should host
+						mockSP = createMockSP(getMockSPURLs(testsuite, idpConfig), testsuite.getX509Credentials(null));
+						mockSP.start();
+						initLoginDriver();
+
+						runTestCases(testsuite, idpConfig, selectTestCases(suiteEntry, tcNames), output);
 					}
 					TestRunnerUtil.outputTestResults(testresults);
 				} else {
-					logger.error("Provided class was not a TestSuite");
+					logger.error("The test suite could not be created");
 				}
 			}
 		} catch (ClassNotFoundException e) {
@@ -246,22 +454,14 @@ public class IdPTestRunner {
 			testresults.add(new TestResult(TestStatus.CRITICAL, ""));
 		} catch (ClassCastException e) {
 			logger.error("The test suite or case was not an instance of TestSuite", e);
-		} catch (InstantiationException e) {
+		} catch (IllegalStateException e) {
 			logger.error("Could not instantiate an instance of the test suite or case", e);
-		} catch (IllegalAccessException e) {
-			logger.error("Could not access the test suite class or test case class", e);
 		} catch (IOException e) {
 			logger.error("I/O error occurred when creating HTTP server", e);
 		} catch (ParseException e) {
-			logger.error("Parsing of the command-line arguments has failed", e);
+			logger.error("Parsing of the command-line arguments has failed: " + e.getMessage());
 		} catch (IllegalArgumentException e) {
 			logger.error("Could not create a new instance of the test case", e);
-		} catch (InvocationTargetException e) {
-			logger.error("Could not create a new instance of the test case", e);
-		} catch (NoSuchMethodException e) {
-			logger.error("Could not retrieve the constructor of the test case class", e);
-		} catch (SecurityException e) {
-			logger.error("Could not retrieve the constructor of the test case class", e);
 		} catch (JsonSyntaxException jsonExc) {
 			logger.error("The JSON configuration file did not have the correct syntax", jsonExc);
 		} catch (Exception e) {
@@ -275,6 +475,811 @@ public class IdPTestRunner {
 			} catch (Exception e) {
 				logger.error("The mock SP could not be stopped", e);
 			}
+			try {
+				if (fakeIdP != null && fakeIdP.isStarted()) {
+					fakeIdP.stop();
+				}
+			} catch (Exception e) {
+				logger.error("The fake IdP could not be stopped", e);
+			}
+			if (faultProxy != null) {
+				faultProxy.stop();
+			}
+			if (coordinator != null) {
+				coordinator.stop();
+			}
+			try {
+				if (history != null) {
+					history.close();
+				}
+			} catch (IOException e) {
+				logger.error("The result store could not be closed", e);
+			}
+		}
+	}
+
+	/**
+	 * Find a test suite by its name
+	 * 
+	 * @param name is the simple name of the test suite
+	 * @return the test suite
+	 * @throws ClassNotFoundException if the test suite could not be found
+	 */
+	static TestSuiteEntry findTestSuite(String name) throws ClassNotFoundException {
+		return TestCaseRegistry.findTestSuite(IdPTestRunner.class.getPackage().getName() +"."+ testSuitesPackage, name);
+	}
+
+	/**
+	 * Select the test cases that should be run from a test suite, including the test cases they require
+	 * 
+	 * @param suiteEntry is the test suite
+	 * @param names are the names of the test cases, or an empty list to select all test cases
+	 * @return the selected test cases, followed by the test cases they require that were not selected
+	 * @throws ClassNotFoundException if one of the test cases could not be found
+	 */
+	static List<TestCaseEntry> selectTestCases(TestSuiteEntry suiteEntry, List<String> names) throws ClassNotFoundException {
+		if (names == null || names.isEmpty()) {
+			return suiteEntry.getTestCases();
+		}
+		List<TestCaseEntry> testcases = new ArrayList<TestCaseEntry>();
+		for (String name : names) {
+			TestCaseEntry tcEntry = suiteEntry.getTestCase(name);
+			if (tcEntry == null) {
+				throw new ClassNotFoundException(suiteEntry.getType().getName() + "$" + name);
+			}
+			testcases.add(tcEntry);
+		}
+		return TestScheduler.withPrerequisites(suiteEntry.getTestCases(), testcases);
+	}
+
+	/**
+	 * Read the target IdP's configuration from a file
+	 * 
+	 * @param configFile is the configuration file
+	 * @return the configuration, in which relative file paths are resolved against the directory of the file
+	 * @throws IOException if the file could not be read
+	 */
+	static IdPConfiguration loadConfig(Path configFile) throws IOException {
+		IdPConfiguration config = createConfigGson().fromJson(Files.newBufferedReader(configFile, Charset.defaultCharset()), IdPConfiguration.class);
+		config.setBaseDirectory(configFile.toAbsolutePath().getParent());
+		return config;
+	}
+
+	/**
+	 * Retrieve the SP entities that the mock SP should host for the target IdP
+	 * 
+	 * @param suite is the test suite, whose mock SP is used when the configuration does not define any SP entities
+	 * @param config is the configuration of the target IdP
+	 * @return the SP entities, of which there is at least one, moved by the port offset
+	 */
+	static List<MockSPTenant> getTenants(IdPTestSuite suite, IdPConfiguration config) {
+		List<MockSPTenant> configTenants = config.getMockSPs();
+		if (configTenants.isEmpty()) {
+			return Collections.singletonList(suite.getDefaultTenant().withPortOffset(getPortOffset()));
+		}
+		List<MockSPTenant> tenants = new ArrayList<MockSPTenant>();
+		for (MockSPTenant tenant : configTenants) {
+			tenants.add(tenant.withPortOffset(getPortOffset()));
+		}
+		return tenants;
+	}
+
+	/**
+	 * Retrieve the URLs on which the mock SP should listen
+	 * 
+	 * @param suite is the test suite
+	 * @param config is the configuration of the target IdP
+	 * @return the URL of the test suite's mock SP, followed by the URLs of the SP entities in the configuration, all 
+	 * 			moved by the port offset
+	 */
+	static List<URL> getMockSPURLs(IdPTestSuite suite, IdPConfiguration config) {
+		List<URL> urls = new ArrayList<URL>();
+		urls.add(suite.getDefaultTenant().withPortOffset(getPortOffset()).getURL());
+		for (MockSPTenant tenant : config.getMockSPs()) {
+			urls.add(tenant.withPortOffset(getPortOffset()).getURL());
+		}
+		return urls;
+	}
+
+	/**
+	 * @return the amount that is added to the ports of the mock SP, so several test runners can run on the same 
+	 * 			machine
+	 */
+	static int getPortOffset() {
+		return command != null ? getIntOption("portoffset", 0) : 0;
+	}
+
+	/**
+	 * Register an SP entity, so the mock SP routes the requests for it. An SP entity with the same entityID that was
+	 * registered before is replaced.
+	 * 
+	 * @param tenant is the SP entity
+	 */
+	public static void registerTenant(MockSPTenant tenant) {
+		tenants.put(tenant.getEntityID(), tenant);
+	}
+
+	/**
+	 * Find the SP entity that a request to the mock SP was sent to
+	 * 
+	 * This is used by the Handler that routes the requests on the mock SP. Of the SP entities on the port of the 
+	 * request whose path contains the path of the request, the one with the longest path is used. When there are 
+	 * multiple, the one whose host name matches the request is preferred.
+	 * 
+	 * @param host is the host name the request was sent to
+	 * @param port is the port the request was received on
+	 * @param path is the path of the request
+	 * @return the SP entity, or null if no SP entity is hosted at the URL of the request
+	 */
+	public static MockSPTenant findTenant(String host, int port, String path) {
+		MockSPTenant found = null;
+		boolean foundHost = false;
+		for (MockSPTenant tenant : tenants.values()) {
+			if (!tenant.accepts(port, path)) {
+				continue;
+			}
+			boolean matchesHost = tenant.getURL().getHost().equalsIgnoreCase(host);
+			int pathLength = tenant.getPath().length();
+			if (found == null || pathLength > found.getPath().length() || (pathLength == found.getPath().length() && matchesHost && !foundHost)) {
+				found = tenant;
+				foundHost = matchesHost;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return the Gson instance that reads the target IdP's configuration
+	 */
+	static Gson createConfigGson() {
+		return new GsonBuilder()
+				.registerTypeAdapter(Document.class, new MetadataDeserializer())
+				.registerTypeAdapter(Interaction.class, new InteractionDeserializer())
+				.create();
+	}
+
+	/**
+	 * Create a single mock SP for all the given URLs, which listens on each distinct port among them. The requests are
+	 * routed to the SP entity they were sent to, so many SP entities can be hosted on the same server, distinguished by
+	 * their path or host name. Ports of https URLs get an HTTPS connector, which presents the given credentials.
+	 * 
+	 * @param mockSPURLs are the URLs on which the mock SP should listen
+	 * @param credentials are the certificate and private key for the HTTPS connectors, only needed if there are 
+	 * 			https URLs
+	 * @return the mock SP, which still needs to be started
+	 */
+	static Server createMockSP(List<URL> mockSPURLs, X509Credential credentials) {
+		// create the mock SP, handling each request on a virtual thread if requested
+		Server server;
+		if (command.hasOption("virtualthreads")) {
+			server = new Server(new VirtualThreadPool());
+		}
+		else {
+			server = new Server();
+		}
+		Map<Integer, String> ports = new HashMap<Integer, String>();
+		for (URL mockSPURL : mockSPURLs) {
+			int port = mockSPURL.getPort() != -1 ? mockSPURL.getPort() : mockSPURL.getDefaultPort();
+			String protocol = mockSPURL.getProtocol().toLowerCase();
+			if (ports.containsKey(port)) {
+				if (!ports.get(port).equals(protocol)) {
+					logger.warn("The mock SP can not use both " + ports.get(port) + " and " + protocol + " on port " + port + ", so " + mockSPURL + " uses " + ports.get(port));
+				}
+			}
+			else {
+				ports.put(port, protocol);
+				ServerConnector connector = protocol.equals("https") ? createTlsConnector(server, port, credentials) : new ServerConnector(server);
+				// SP entities on the same port can only differ in their host name if the connector listens on all of them
+				connector.setHost(mockSPURLs.size() == 1 ? mockSPURL.getHost() : null);
+				connector.setPort(port);
+				server.addConnector(connector);
+			}
+		}
+
+		// add the SAML Request handler for all services, behind the routing to the SP entities
+		TenantRoutingHandler router = new TenantRoutingHandler();
+		if (command.hasOption("async")) {
+			router.setHandler(new AsyncSamlWebSSOHandler(asyncQueueCapacity));
+		}
+		else {
+			router.setHandler(new SamlWebSSOHandler());
+		}
+		server.setHandler(router);
+		return server;
+	}
+
+	/**
+	 * Create an HTTPS connector for the mock SP, so the target IdP's responses are sent over TLS like they would be to
+	 * a real SP. 
+	 * 
+	 * TLS sessions are cached, so clients that connect again can resume their session instead of doing a full 
+	 * handshake. HTTP/2 is offered through ALPN if requested, with HTTP/1.1 for clients that do not support it. The 
+	 * handshakes are recorded in the handshake statistics.
+	 * 
+	 * @param server is the mock SP
+	 * @param port is the port on which the connector should listen
+	 * @param credentials are the certificate and private key that the connector presents
+	 * @return the connector
+	 */
+	private static ServerConnector createTlsConnector(Server server, int port, X509Credential credentials) {
+		if (credentials == null || credentials.getPrivateKey() == null) {
+			throw new IllegalStateException("The mock SP has no certificate and private key to use for HTTPS");
+		}
+		SslContextFactory.Server sslContextFactory = new SslContextFactory.Server();
+		try {
+			// the key store only exists in memory, so its password only needs to be known here
+			String password = UUID.randomUUID().toString();
+			KeyStore keyStore = KeyStore.getInstance("PKCS12");
+			keyStore.load(null, null);
+			keyStore.setKeyEntry(tlsKeyAlias, credentials.getPrivateKey(), password.toCharArray(), new Certificate[] {credentials.getEntityCertificate()});
+			sslContextFactory.setKeyStore(keyStore);
+			sslContextFactory.setKeyStorePassword(password);
+			sslContextFactory.setCertAlias(tlsKeyAlias);
+		} catch (GeneralSecurityException | IOException e) {
+			throw new IllegalStateException("Could not use the mock SP's certificate and private key for HTTPS", e);
+		}
+		sslContextFactory.setSessionCachingEnabled(true);
+		sslContextFactory.setSslSessionCacheSize(tlsSessionCacheSize);
+		sslContextFactory.setSslSessionTimeout(tlsSessionTimeout);
+
+		HttpConfiguration httpsConfig = new HttpConfiguration();
+		httpsConfig.setSecureScheme("https");
+		httpsConfig.setSecurePort(port);
+		// the mock SP's certificate is not issued for the host names it is reached on
+		httpsConfig.addCustomizer(new SecureRequestCustomizer(false));
+		HttpConnectionFactory http1 = new HttpConnectionFactory(httpsConfig);
+
+		ServerConnector connector;
+		if (command.hasOption("http2")) {
+			// HTTP/2 requires the cipher suites that it allows to be preferred
+			sslContextFactory.setCipherComparator(HTTP2Cipher.COMPARATOR);
+			sslContextFactory.setUseCipherSuitesOrder(true);
+			HTTP2ServerConnectionFactory http2 = new HTTP2ServerConnectionFactory(httpsConfig);
+			ALPNServerConnectionFactory alpn = new ALPNServerConnectionFactory();
+			alpn.setDefaultProtocol(http1.getProtocol());
+			connector = new ServerConnector(server, new MeasuredSslConnectionFactory(sslContextFactory, alpn.getProtocol(), handshakeStats), alpn, http2, http1);
+		}
+		else {
+			connector = new ServerConnector(server, new MeasuredSslConnectionFactory(sslContextFactory, http1.getProtocol(), handshakeStats), http1);
+		}
+		return connector;
+	}
+
+	/**
+	 * Create and start the embedded fake IdP. 
+	 * 
+	 * IdP-initiated logins on the fake IdP are for the first SP entity of the run, unless its settings name another SP. 
+	 * When the target IdP's configuration has no login URL or metadata, those of the fake IdP are used, so the 
+	 * configuration only needs the interactions for its login form.
+	 * 
+	 * @param fakeConfig contains the settings of the fake IdP
+	 * @param suite is the test suite, which provides the mock SP's entities and default credentials
+	 * @param config is the configuration of the target IdP
+	 * @return the started fake IdP
+	 * @throws Exception if the fake IdP could not be started
+	 */
+	private static FakeIdP startFakeIdP(FakeIdPConfiguration fakeConfig, IdPTestSuite suite, IdPConfiguration config) throws Exception {
+		MockSPTenant tenant = getTenants(suite, config).get(0);
+		if (fakeConfig.getSpEntityID() == null) {
+			fakeConfig.setSpEntityID(tenant.getEntityID());
+		}
+		if (fakeConfig.getAcsURL() == null) {
+			fakeConfig.setAcsURL(tenant.getURL());
+		}
+		X509Credential credentials = suite.getX509Credentials(fakeConfig.getCertificate(), fakeConfig.getPrivateKey());
+		FakeIdP idp = new FakeIdP(fakeConfig, credentials.getEntityCertificate(), credentials.getPrivateKey(), command.hasOption("virtualthreads"));
+		idp.start();
+		if (config.getIdPInitURL() == null) {
+			// let the fake IdP send the response to the SP entity that each session logs in for
+			config.setStartPage(new URL(idp.getSSOURL() + "?providerId=${spEntityID}&shire=${acsURL}&RelayState=${relayState}"));
+		}
+		if (config.getMetadataLocation() == null && config.getMetadata() == null) {
+			config.setMetadataLocation(idp.getMetadataURL().toString());
+		}
+		return idp;
+	}
+
+	/**
+	 * @return the executor that cancels the logins that take too long, whose thread does not keep the JVM running
+	 */
+	private static ScheduledThreadPoolExecutor createLoginWatchdog() {
+		ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "login-watchdog");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		// most logins complete in time, so their deadlines should not pile up in the queue
+		watchdog.setRemoveOnCancelPolicy(true);
+		return watchdog;
+	}
+
+	/**
+	 * @return the statistics of the TLS handshakes on the mock SP's HTTPS connectors
+	 */
+	public static TlsHandshakeStats getHandshakeStats() {
+		return handshakeStats;
+	}
+
+	/**
+	 * @return the detector for the IDs that the mock SP received more than once, or null if no test run was started yet
+	 */
+	public static ReplayDetector getReplayDetector() {
+		return replayDetector;
+	}
+
+	/**
+	 * Create the lightweight login driver, if it was requested and has not been created yet
+	 */
+	static void initLoginDriver() {
+		if (command.hasOption("httpdriver") && httpDriver == null) {
+			httpDriver = new HttpLoginDriver(command.hasOption("insecure"), command.hasOption("loginplan"), faultProxy != null ? faultProxy.getAddress() : null);
+		}
+	}
+
+	/**
+	 * @return the amount of sessions that were opened in the current or last test run
+	 */
+	static int getOpenedSessions() {
+		return openedSessions.get();
+	}
+
+	/**
+	 * @return true if the runner was started with the given command-line option
+	 */
+	static boolean hasOption(String option) {
+		return command.hasOption(option);
+	}
+
+	/**
+	 * @return the value of the given command-line option, or null if the runner was not started with it
+	 */
+	static String getOptionValue(String option) {
+		return command.getOptionValue(option);
+	}
+
+	/**
+	 * Retrieve the value of a numeric command-line option, which has been checked by {@link #validateNumericOptions()}
+	 * 
+	 * @param option is the name of the option
+	 * @param defaultValue is the value if the runner was not started with the option
+	 * @return the value of the option
+	 */
+	static int getIntOption(String option, int defaultValue) {
+		return command.hasOption(option) ? Integer.parseInt(command.getOptionValue(option).trim()) : defaultValue;
+	}
+
+	/**
+	 * Check that the numeric command-line options are whole numbers within their range
+	 * 
+	 * @throws ParseException if an option is not a whole number or is out of range
+	 */
+	private static void validateNumericOptions() throws ParseException {
+		validateIntOption("daemon", 1, 65535);
+		validateIntOption("portoffset", 0, 65535);
+		validateIntOption("replaycapacity", 1, Integer.MAX_VALUE);
+		validateIntOption("replaywindow", 1, Integer.MAX_VALUE);
+		validateIntOption("users", 1, Integer.MAX_VALUE);
+		validateIntOption("workers", 1, Integer.MAX_VALUE);
+		// the coordinator takes either an amount of workers or the URLs of the workers
+		if (command.hasOption("coordinate") && command.getOptionValue("coordinate").trim().matches("-?\\d+")) {
+			validateIntOption("coordinate", 1, Integer.MAX_VALUE);
+		}
+	}
+
+	private static void validateIntOption(String option, int minimum, int maximum) throws ParseException {
+		if (!command.hasOption(option)) {
+			return;
+		}
+		String value = command.getOptionValue(option);
+		int number;
+		try {
+			number = Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new ParseException("The value of --" + option + " must be a whole number, but was '" + value + "'");
+		}
+		if (number < minimum || number > maximum) {
+			throw new ParseException("The value of --" + option + " must be " + (maximum == Integer.MAX_VALUE ? "at least " + minimum : "between " + minimum + " and " + maximum) + ", but was " + number);
+		}
+	}
+
+	/**
+	 * Run the given test cases against the target IdP. The mock SP must already be running.
+	 * 
+	 * The test cases are run after the test cases they require. When one of the prerequisites of a test case fails,
+	 * the test case is not run and reported as skipped instead. When multiple workers are used, the test cases with
+	 * the longest expected durations (including the test cases that require them) are started first. The expected 
+	 * duration of the run is logged, along with the actual duration.
+	 * 
+	 * The results are passed to the output as soon as they are available. When the metadata test cases are evaluated 
+	 * for each entity, their results are passed to the output after all other test cases have been run.
+	 * 
+	 * @param suite is the test suite containing the test cases
+	 * @param config is the configuration of the target IdP
+	 * @param testcases are the test cases that should be run
+	 * @param output receives the result of each test case
+	 */
+	static void runTestCases(IdPTestSuite suite, IdPConfiguration config, List<TestCaseEntry> testcases, Consumer<TestResult> output) {
+		runTestCases(suite, config, testcases, 0, 0, output);
+	}
+
+	/**
+	 * Run the given test cases against the target IdP, evaluating the metadata test cases only for a shard of the 
+	 * entities in the metadata, e.g. because the other shards are evaluated by other test runners. The entities are 
+	 * divided over the shards by their position in the metadata.
+	 * 
+	 * @param suite is the test suite containing the test cases
+	 * @param config is the configuration of the target IdP
+	 * @param testcases are the test cases that should be run
+	 * @param shard is the shard of the entities for which the metadata test cases are evaluated, starting at 0
+	 * @param shards is the amount of shards, or 0 to evaluate the metadata test cases for each entity only if requested
+	 * @param output receives the result of each test case
+	 * @see #runTestCases(IdPTestSuite, IdPConfiguration, List, Consumer)
+	 */
+	static void runTestCases(IdPTestSuite suite, IdPConfiguration config, List<TestCaseEntry> testcases, int shard, int shards, Consumer<TestResult> output) {
+		entityShard = shard;
+		entityShards = shards;
+		testsuite = suite;
+		idpConfig = config;
+		// the test suite's mock SP stays available for responses sent to it, e.g. from IdP-initiated logins
+		MockSPTenant defaultTenant = testsuite.getDefaultTenant().withPortOffset(getPortOffset());
+		registerTenant(defaultTenant);
+		runTenants = getTenants(testsuite, idpConfig);
+		for (MockSPTenant tenant : runTenants) {
+			registerTenant(tenant);
+		}
+		// the SP entities of an earlier run of a daemon are removed only now, so the SP entities that this run shares
+		// with it stay reachable
+		Set<String> entityIDs = new HashSet<String>();
+		entityIDs.add(defaultTenant.getEntityID());
+		for (MockSPTenant tenant : runTenants) {
+			entityIDs.add(tenant.getEntityID());
+		}
+		tenants.keySet().retainAll(entityIDs);
+		openedSessions.set(0);
+		handshakeStats.reset();
+		if (replayDetector == null) {
+			// the IDs are kept across the runs of a daemon, so an IdP that replays messages from an earlier run is noticed
+			int capacity = getIntOption("replaycapacity", 500000);
+			int window = getIntOption("replaywindow", 60);
+			replayDetector = new ReplayDetector(capacity, Duration.ofMinutes(window));
+		}
+		replayDetector.reset();
+		if (fakeIdP != null) {
+			fakeIdP.getStats().reset();
+		}
+		if (faultProxy != null) {
+			faultProxy.getStats().clear();
+		}
+		// the hashes are computed when they are first needed, so metadata that is referenced by its location is only
+		// read when a test case needs it
+		metadataHash = null;
+		configHash = null;
+		int cacheHits = resultCache != null ? resultCache.getHits() : 0;
+
+		startHistoryRun();
+		durations = DurationStats.load(command.hasOption("durations") ? Paths.get(command.getOptionValue("durations")) : null, idpConfig);
+		int workers = getIntOption("workers", 1);
+
+		streamingTCs = new ArrayList<TestCaseEntry>();
+		for (TestCaseEntry tcEntry : testcases) {
+			if (StreamingMetadataTestCase.class.isAssignableFrom(tcEntry.getType())) {
+				streamingTCs.add(tcEntry);
+			}
+		}
+		streamedOutcomes = null;
+
+		TestScheduler scheduler = new TestScheduler(idpConfig, testcases, command.hasOption("insecure"));
+		if (workers > 1) {
+			scheduler.prioritize(durations);
+		}
+		Duration predicted = scheduler.predict(durations, workers);
+		logger.info("Running " + testcases.size() + " test cases is expected to take " + predicted.toMillis() + " ms");
+		long startNanos = System.nanoTime();
+		// the metadata test cases that should be evaluated for each entity separately
+		List<TestCaseEntry> entityTCs = Collections.synchronizedList(new ArrayList<TestCaseEntry>());
+		if (workers > 1) {
+			runInParallel(scheduler, workers, entityTCs, output);
+		}
+		else {
+			List<TestCaseEntry> order = scheduler.getOrder();
+			for (int i = 0; i < order.size(); i++) {
+				if (runCancelled) {
+					logger.info("The run was cancelled, so the last " + (order.size() - i) + " test cases are not run");
+					break;
+				}
+				runScheduled(order.get(i), scheduler, entityTCs, output);
+			}
+		}
+		if (!entityTCs.isEmpty() && !runCancelled) {
+			for (TestResult result : evaluateEntities(entityTCs)) {
+				output.accept(result);
+			}
+		}
+		if (resultCache != null) {
+			logger.info((resultCache.getHits() - cacheHits) + " test results were retrieved from the result cache");
+		}
+		logger.info("Running the test cases took " + Duration.ofNanos(System.nanoTime() - startNanos).toMillis() + " ms, " + predicted.toMillis() + " ms was expected");
+		if (handshakeStats.getFullCount() + handshakeStats.getResumedCount() + handshakeStats.getFailedCount() > 0) {
+			logger.info("TLS handshakes on the mock SP: " + handshakeStats);
+		}
+		if (replayDetector.getMessageCount() > 0) {
+			if (replayDetector.getDuplicateCount() > 0) {
+				logger.warn("The mock SP received IDs that were used before: " + replayDetector);
+			}
+			else {
+				logger.info("Replay detection on the mock SP: " + replayDetector);
+			}
+		}
+		if (fakeIdP != null) {
+			logger.info("Requests on the fake IdP: " + fakeIdP.getStats());
+		}
+		if (faultProxy != null) {
+			logger.info("Requests through the fault injection proxy: " + faultProxy.getStats());
+		}
+		durations.save();
+		if (history != null) {
+			reportRegressions(testcases);
+		}
+	}
+
+	/**
+	 * Run a single test case, or skip it if one of its prerequisites failed
+	 * 
+	 * @param tcEntry is the test case
+	 * @param scheduler keeps track of the prerequisites that failed
+	 * @param entityTCs receives the test case instead, if it should be evaluated for each entity separately
+	 * @param output receives the result of the test case
+	 */
+	private static void runScheduled(TestCaseEntry tcEntry, TestScheduler scheduler, List<TestCaseEntry> entityTCs, Consumer<TestResult> output) {
+		TestOutcome skipped = scheduler.checkPrerequisites(tcEntry);
+		if (skipped != null) {
+			scheduler.completed(tcEntry, skipped);
+			recordHistory(tcEntry.getName(), skipped.withTiming(Instant.now(), Duration.ZERO), false);
+			output.accept(toTestResult(tcEntry.newTestCase(testsuite), skipped));
+			return;
+		}
+		if ((command.hasOption("entities") || entityShards > 0) && tcEntry.getKind() == TestCaseEntry.Kind.METADATA) {
+			entityTCs.add(tcEntry);
+			return;
+		}
+		Duration expected = durations.getExpected(tcEntry);
+		TestCase curTestcase = tcEntry.newTestCase(testsuite);
+		TestOutcome outcome = runTest(curTestcase);
+		logger.debug("Testcase " + tcEntry.getName() + " took " + outcome.getDuration().toMillis() + " ms, " + expected.toMillis() + " ms was expected");
+		scheduler.completed(tcEntry, outcome);
+		output.accept(toTestResult(curTestcase, outcome));
+	}
+
+	/**
+	 * Run the test cases on multiple workers. Whenever a worker is free, it starts the first test case in the 
+	 * scheduled order whose prerequisites have been run.
+	 * 
+	 * @param scheduler determines the order of the test cases
+	 * @param workers is the amount of test cases that are run at the same time
+	 * @param entityTCs receives the test cases that should be evaluated for each entity separately
+	 * @param output receives the result of each test case, one at a time
+	 */
+	private static void runInParallel(final TestScheduler scheduler, int workers, final List<TestCaseEntry> entityTCs, final Consumer<TestResult> output) {
+		ExecutorService executor;
+		if (command.hasOption("virtualthreads")) {
+			executor = Executors.newVirtualThreadPerTaskExecutor();
+		}
+		else {
+			executor = Executors.newFixedThreadPool(workers);
+		}
+		final Consumer<TestResult> serialOutput = new Consumer<TestResult>() {
+			@Override
+			public synchronized void accept(TestResult result) {
+				output.accept(result);
+			}
+		};
+		try {
+			runWhenReady(scheduler, workers, executor, new Consumer<TestCaseEntry>() {
+				@Override
+				public void accept(TestCaseEntry tcEntry) {
+					try {
+						runScheduled(tcEntry, scheduler, entityTCs, serialOutput);
+					} catch (RuntimeException e) {
+						logger.error("Testcase " + tcEntry.getName() + " could not be run", e);
+						TestOutcome failure = new TestOutcome(TestStatus.CRITICAL, "The test case could not be run: " + e.getMessage());
+						scheduler.completed(tcEntry, failure);
+						TestResult result = new TestResult(failure.getStatus(), failure.getMessage());
+						result.setName(tcEntry.getName());
+						serialOutput.accept(result);
+					}
+				}
+			});
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Run the test cases on an executor, starting the first test case in the scheduled order whose prerequisites have
+	 * been run whenever fewer than the given amount of test cases are running. When the run is cancelled, the test 
+	 * cases that were not started yet are dropped and this returns once the running test cases have completed.
+	 * 
+	 * @param scheduler determines the order of the test cases
+	 * @param workers is the amount of test cases that are run at the same time
+	 * @param executor runs the test cases, and is not shut down
+	 * @param run runs a single test case, and must not throw an exception
+	 */
+	static void runWhenReady(final TestScheduler scheduler, int workers, ExecutorService executor, final Consumer<TestCaseEntry> run) {
+		CompletionService<TestCaseEntry> completion = new ExecutorCompletionService<TestCaseEntry>(executor);
+		List<TestCaseEntry> pending = new ArrayList<TestCaseEntry>(scheduler.getOrder());
+		Set<String> completed = new HashSet<String>();
+		int running = 0;
+		try {
+			while (!pending.isEmpty() || running > 0) {
+				if (runCancelled && !pending.isEmpty()) {
+					logger.info("The run was cancelled, so the last " + pending.size() + " test cases are not run");
+					pending.clear();
+				}
+				for (Iterator<TestCaseEntry> it = pending.iterator(); it.hasNext() && running < workers;) {
+					final TestCaseEntry tcEntry = it.next();
+					if (scheduler.isReady(tcEntry, completed)) {
+						it.remove();
+						completion.submit(new Callable<TestCaseEntry>() {
+							@Override
+							public TestCaseEntry call() {
+								run.accept(tcEntry);
+								return tcEntry;
+							}
+						});
+						running++;
+					}
+				}
+				if (running == 0) {
+					// nothing can complete anymore, so waiting for a test case would block forever
+					if (!pending.isEmpty()) {
+						logger.error("The last " + pending.size() + " test cases are not run, because their prerequisites can not be run");
+					}
+					break;
+				}
+				completed.add(completion.take().get().getName());
+				running--;
+			}
+		} catch (InterruptedException e) {
+			logger.error("The test run was interrupted", e);
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("A worker failed while running the test cases", e.getCause());
+		}
+	}
+
+	/**
+	 * Evaluate the metadata test cases for each entity. When the metadata is referenced by its location and was not
+	 * needed as a document yet, it is streamed from its location into the compact metadata model, so it is never
+	 * held in memory as a document.
+	 * 
+	 * @param entityTCs are the metadata test cases that should be evaluated for each entity
+	 * @return the results for each test case for each entity, followed by the summary for each test case
+	 */
+	private static List<TestResult> evaluateEntities(List<TestCaseEntry> entityTCs) {
+		EntityMetadataEvaluator evaluator = new EntityMetadataEvaluator(testsuite, entityTCs, ForkJoinPool.commonPool(), resultCache);
+		if (entityShards > 0) {
+			evaluator.setShard(entityShard, entityShards);
+		}
+		if (!idpConfig.isMetadataLoaded()) {
+			try (InputStream metadata = idpConfig.openMetadata()) {
+				return evaluator.evaluate(metadata);
+			} catch (IOException | SAXException e) {
+				logger.error("Could not stream the metadata from " + idpConfig.getMetadataLocation() + ", reading it as a document instead", e);
+			}
+		}
+		return evaluator.evaluate(idpConfig.getMetadata());
+	}
+
+	/**
+	 * Store the outcome of a test case in the history, if it is kept
+	 * 
+	 * @param testcase is the name of the test case
+	 * @param outcome is the outcome of the test case, including its timing
+	 * @param cached specifies whether the outcome was taken from the result cache
+	 */
+	private static void recordHistory(String testcase, TestOutcome outcome, boolean cached) {
+		Consumer<StoredResult> listener = historyListener;
+		if (history != null || listener != null) {
+			StoredResult result = StoredResult.of(historyRun, historyIdP, testsuite.getClass().getSimpleName(), testcase, outcome, cached);
+			if (history != null) {
+				history.append(result);
+			}
+			if (listener != null) {
+				listener.accept(result);
+			}
+		}
+	}
+
+	/**
+	 * Store a result that was recorded by another test runner, e.g. a worker of the coordinator, in the history of the 
+	 * current run, if the history is kept
+	 * 
+	 * @param result is the result, which is moved to the current run and target IdP
+	 */
+	static void recordHistory(StoredResult result) {
+		if (history != null) {
+			history.append(result.inRun(historyRun, historyIdP));
+		}
+	}
+
+	/**
+	 * Start a new run in the history, for the current test suite and target IdP
+	 */
+	static void startHistoryRun() {
+		historyRun = UUID.randomUUID().toString();
+		historyIdP = history != null ? DurationStats.keyFor(idpConfig) : null;
+	}
+
+	/**
+	 * Set the listener that receives each result that is stored in the history, also when no history is kept
+	 * 
+	 * @param listener receives the results, or null to remove the listener
+	 */
+	static void setHistoryListener(Consumer<StoredResult> listener) {
+		historyListener = listener;
+	}
+
+	/**
+	 * Stop the current run after the test cases that are running now. The test cases that were not started yet are 
+	 * not run and have no result.
+	 */
+	static void cancelRun() {
+		runCancelled = true;
+	}
+
+	/**
+	 * Allow the next run to be executed completely, e.g. after an earlier run was cancelled
+	 */
+	static void resetCancellation() {
+		runCancelled = false;
+	}
+
+	/**
+	 * Report the test cases of the run that became significantly slower on the target IdP, according to the history,
+	 * if it is kept
+	 * 
+	 * @param testcases are the test cases of the run
+	 */
+	static void reportRegressions(List<TestCaseEntry> testcases) {
+		if (history == null) {
+			return;
+		}
+		RegressionDetector detector = new RegressionDetector();
+		for (TestCaseEntry tcEntry : testcases) {
+			try {
+				List<StoredResult> results = history.latest(historyIdP, testsuite.getClass().getSimpleName(), tcEntry.getName(), detector.getHistorySize(), true);
+				for (RegressionDetector.Regression regression : detector.detect(results)) {
+					logger.warn("Testcase " + regression);
+				}
+			} catch (IOException e) {
+				logger.warn("Could not read the history of testcase " + tcEntry.getName(), e);
+			}
+		}
+	}
+
+	/**
+	 * Print the daily trend of the stored results of the test cases on the target IdP
+	 * 
+	 * @param suiteEntry is the test suite
+	 * @param testcase is the name of the test case whose trend should be printed, or null for all test cases
+	 * @throws IOException if the stored results could not be read
+	 */
+	private static void printTrend(TestSuiteEntry suiteEntry, String testcase) throws IOException {
+		String idp = DurationStats.keyFor(idpConfig);
+		List<String> names = (testcase != null && !testcase.isEmpty()) ? Collections.singletonList(testcase) : history.getTestcases(idp, suiteEntry.getName());
+		RegressionDetector detector = new RegressionDetector();
+		for (String name : names) {
+			List<StoredResult> results = history.query(idp, suiteEntry.getName(), name, null, null);
+			System.out.println(name + " on " + idp + ":");
+			for (TrendPoint point : TrendPoint.of(results, Duration.ofDays(1))) {
+				System.out.println("  " + point);
+			}
+			for (RegressionDetector.Regression regression : detector.detect(results)) {
+				System.out.println("  " + regression);
+			}
 		}
 	}
 
@@ -283,26 +1288,92 @@ public class IdPTestRunner {
 	 * 
 	 * @param testcase
 	 *            represents the test case that needs to be run
-	 * @param spconfig
-	 *            contains the configuration required to run the test for the
-	 *            target SP
-	 * @return a string representing the test result in JSON format.
+	 * @return the outcome of the test, including when it started and how long it took. How long it took is also 
+	 * 			recorded in the durations, unless the outcome was retrieved from the result cache.
 	 */
-	private static TestStatus runTest(TestCase testcase) {
+	private static TestOutcome runTest(TestCase testcase) {
 		logger.info("Running testcase: "+ testcase.getClass().getSimpleName());
-		
-		browser.getOptions().setRedirectEnabled(true);
-		if (command.hasOption("insecure")) {
-			browser.getOptions().setUseInsecureSSL(true);
+		Instant started = Instant.now();
+		long startNanos = System.nanoTime();
+		// the proxy is shared by all sessions, so its effects are attributed to the test cases that ran at the same time
+		FaultProxyStats proxyStats = faultProxy != null ? faultProxy.getStats().copy() : null;
+		String inputHash = getInputHash(testcase);
+		TestOutcome outcome = (inputHash != null) ? resultCache.get(testsuite, testcase.getClass(), inputHash) : null;
+		boolean fromCache = outcome != null;
+		if (fromCache) {
+			logger.debug("Using the cached result for testcase " + testcase.getClass().getSimpleName());
+		}
+		else {
+			outcome = evaluateTest(testcase);
+			if (inputHash != null) {
+				resultCache.put(testsuite, testcase.getClass(), inputHash, outcome);
+			}
+		}
+		Duration duration = Duration.ofNanos(System.nanoTime() - startNanos);
+		if (!fromCache) {
+			durations.record(testcase.getClass().getSimpleName(), duration);
+		}
+		logger.debug("Testcase " + testcase.getClass().getSimpleName() + " took " + duration.toMillis() + " ms");
+		if (proxyStats != null) {
+			FaultProxyStats injected = faultProxy.getStats().since(proxyStats);
+			if (!injected.isEmpty()) {
+				logger.debug("Testcase " + testcase.getClass().getSimpleName() + " went through the fault injection proxy with " + injected);
+				outcome = outcome.withInjected(injected.toMap());
+			}
+		}
+		outcome = outcome.withTiming(started, duration);
+		recordHistory(testcase.getClass().getSimpleName(), outcome, fromCache);
+		return outcome;
+	}
+
+	/**
+	 * Retrieve the hash of the input of the test case, for looking up its result in the result cache
+	 * 
+	 * @param testcase is the test case
+	 * @return the hash of the input, or null if the result of the test case should not be cached
+	 */
+	private static synchronized String getInputHash(TestCase testcase) {
+		if (resultCache == null || !ResultCache.isCacheable(testcase.getClass())) {
+			return null;
 		}
-		// run the test case according to what type of test case it is
 		if (testcase instanceof ConfigTestCase) {
+			if (configHash == null) {
+				configHash = ResultCache.hash(idpConfig);
+			}
+			return configHash;
+		}
+		if (metadataHash == null) {
+			metadataHash = ResultCache.hash(idpConfig.getMetadata());
+		}
+		return metadataHash;
+	}
+
+	/**
+	 * Evaluate the test case according to what type of test case it is.
+	 * 
+	 * Stateless test cases return their outcome directly. For other test cases, the outcome is created from the 
+	 * returned status and the message the test case stored.
+	 * 
+	 * @param testcase is the test case that needs to be run
+	 * @return the outcome of the test
+	 */
+	private static TestOutcome evaluateTest(TestCase testcase) {
+		if (testcase instanceof StatelessConfigTestCase) {
+			return ((StatelessConfigTestCase) testcase).evaluateConfig(idpConfig);
+		}
+		else if (testcase instanceof ConfigTestCase) {
 			ConfigTestCase cfTestcase = (ConfigTestCase) testcase;
 			/**
 			 * Check the SP's metadata according to the specifications of the
 			 * test case and return the status of the test
 			 */
-			return cfTestcase.checkConfig(idpConfig);
+			return toOutcome(cfTestcase, cfTestcase.checkConfig(idpConfig));
+		}
+		else if (testcase instanceof StreamingMetadataTestCase) {
+			return getStreamedOutcome((StreamingMetadataTestCase) testcase);
+		}
+		else if (testcase instanceof StatelessMetadataTestCase) {
+			return ((StatelessMetadataTestCase) testcase).evaluateMetadata(idpConfig.getMetadata());
 		}
 		else if (testcase instanceof MetadataTestCase) {
 			// Retrieve the SP Metadata from target SP configuration
@@ -312,29 +1383,284 @@ public class IdPTestRunner {
 			 * Check the SP's metadata according to the specifications of the
 			 * test case and return the status of the test
 			 */
-			return mdTestcase.checkMetadata(metadata);
+			return toOutcome(mdTestcase, mdTestcase.checkMetadata(metadata));
 		} else if (testcase instanceof ResponseTestCase) {
-			ResponseTestCase reqTC = (ResponseTestCase) testcase;
-			// make the SP send the AuthnRequest by starting an SP-initiated login attempt
-			retrieveLoginPage(true); 
-
-			// the SAML Request should have been retrieved by the mock IdP and
-			// set here during the execute() method
-			if (samlResponse != null && !samlResponse.isEmpty()) {
-				logger.trace(samlResponse);
+			ResponseTestCase respTC = (ResponseTestCase) testcase;
+			int users = getIntOption("users", 1);
+			if (users > 1) {
+				return runConcurrentResponseTest(respTC, users);
+			}
+			else {
+				return runResponseTest(respTC);
+			}
+		} else {
+			logger.error("Trying to run an unknown type of test case");
+			return new TestOutcome(TestStatus.UNKNOWN, "The test case is of an unknown type");
+		}
+	}
+
+	/**
+	 * Retrieve the outcome of a streaming metadata test case. The first time this is called in a run, all streaming 
+	 * metadata test cases in the run are evaluated in a single pass over the metadata.
+	 * 
+	 * @param testcase is the streaming metadata test case
+	 * @return the outcome of the test
+	 */
+	private static synchronized TestOutcome getStreamedOutcome(StreamingMetadataTestCase testcase) {
+		if (streamedOutcomes == null) {
+			List<StreamingMetadataTestCase> testcases = new ArrayList<StreamingMetadataTestCase>();
+			for (TestCaseEntry tcEntry : streamingTCs) {
+				testcases.add((StreamingMetadataTestCase) tcEntry.newTestCase(testsuite));
+			}
+			logger.debug("Evaluating " + testcases.size() + " streaming metadata test cases in a single pass");
+			MetadataRuleEngine ruleEngine = new MetadataRuleEngine(testcases);
+			if (!idpConfig.isMetadataLoaded()) {
+				// parse the metadata from its location while evaluating, instead of reading it as a document first
+				try (InputStream metadata = idpConfig.openMetadata()) {
+					streamedOutcomes = ruleEngine.evaluate(metadata);
+				} catch (IOException | SAXException e) {
+					logger.error("Could not stream the metadata from " + idpConfig.getMetadataLocation() + ", reading it as a document instead", e);
+				}
+			}
+			if (streamedOutcomes == null) {
+				streamedOutcomes = ruleEngine.evaluate(idpConfig.getMetadata());
+			}
+		}
+		TestOutcome outcome = streamedOutcomes.get(testcase.getClass());
+		if (outcome == null) {
+			// the test case is not part of the run, so it was not evaluated in the pass
+			return testcase.evaluateMetadata(idpConfig.getMetadata());
+		}
+		return outcome;
+	}
+
+	/**
+	 * Create the outcome for a test case that stores its message instead of returning it
+	 * 
+	 * @param testcase is the test case that was run
+	 * @param status is the status the test case returned
+	 * @return the outcome of the test
+	 */
+	static TestOutcome toOutcome(TestCase testcase, TestStatus status) {
+		return new TestOutcome(status, status == TestStatus.OK ? testcase.getSuccessMessage() : testcase.getFailedMessage());
+	}
+
+	/**
+	 * Create the test result that is reported for the outcome of a test case
+	 * 
+	 * @param testcase is the test case that was run
+	 * @param outcome is the outcome of the test
+	 * @return the test result
+	 */
+	static TestResult toTestResult(TestCase testcase, TestOutcome outcome) {
+		TestResult result = new TestResult(outcome.getStatus(), toMessage(outcome));
+		result.setName(testcase.getClass().getSimpleName());
+		result.setDescription(testcase.getDescription());
+		return result;
+	}
+
+	/**
+	 * Create the message that is reported for the outcome of a test case
+	 * 
+	 * @param outcome is the outcome of the test
+	 * @return the message of the outcome, followed by its evidence
+	 */
+	static String toMessage(TestOutcome outcome) {
+		String message = outcome.getMessage();
+		if (!outcome.getEvidence().isEmpty()) {
+			message += " " + outcome.getEvidence();
+		}
+		return message;
+	}
+
+	/**
+	 * Run the response test case for a single simulated user.
+	 * 
+	 * The outcome records how long the phases of the test took: logging in on the target IdP ("login"), waiting for
+	 * the SAML Response to arrive and be decoded ("response") and checking it ("check"). Phases that were not reached
+	 * are left out.
+	 * 
+	 * @param testcase is the response test case that needs to be run
+	 * @return the outcome of the test
+	 */
+	private static TestOutcome runResponseTest(ResponseTestCase testcase) {
+		SSOSession session = openSession();
+		int loginTimeout = idpConfig.getLoginTimeout();
+		session.setTimeout((int) TimeUnit.SECONDS.toMillis(loginTimeout));
+		Map<String, Duration> phases = new LinkedHashMap<String, Duration>();
+		TestOutcome outcome;
+		try {
+			// make the IdP send its Response by logging in on the target IdP
+			long phaseStart = System.nanoTime();
+			boolean loggedIn = login(session, loginTimeout);
+			phases.put("login", Duration.ofNanos(System.nanoTime() - phaseStart));
+			if (!loggedIn) {
+				logger.error("The login on the target IdP did not complete within " + loginTimeout + " seconds");
+				return new TestOutcome(TestStatus.CRITICAL, "The login on the target IdP did not complete within " + loginTimeout + " seconds").withPhases(phases);
+			}
+
+			// the SAML Response may still be on its way to the mock SP (e.g. when it is posted by JavaScript) or be decoding
+			phaseStart = System.nanoTime();
+			String response = session.awaitSamlResponse(idpConfig.getResponseTimeout(), responseDecodeTimeout, TimeUnit.SECONDS);
+			phases.put("response", Duration.ofNanos(System.nanoTime() - phaseStart));
+			String binding = session.getSamlResponseBinding();
+			if (response != null && !response.isEmpty()) {
+				logger.trace(response);
 				/**
-				 * Check the SAML Request according to the specifications of the
+				 * Check the SAML Response according to the specifications of the
 				 * test case and return the status of the test
 				 */
-				return reqTC.checkResponse(samlResponse,samlResponseBinding);
+				phaseStart = System.nanoTime();
+				if (testcase instanceof StatelessResponseTestCase) {
+					outcome = ((StatelessResponseTestCase) testcase).evaluateResponse(response, binding);
+				}
+				else {
+					// the message is stored in the test case, so it must be read before another user runs it
+					synchronized (testcase) {
+						outcome = toOutcome(testcase, testcase.checkResponse(response, binding));
+					}
+				}
+				phases.put("check", Duration.ofNanos(System.nanoTime() - phaseStart));
+				return outcome.withPhases(phases);
+			} else if (!session.isResponseReceived() && session.hasUnmatchedResponse()) {
+				logger.error("The mock SP received a SAML Response that could not be matched to this simulated user, since neither the session cookie nor the RelayState identified it");
+				return new TestOutcome(TestStatus.CRITICAL, "The mock SP received a SAML Response that could not be matched to this simulated user, since neither the session cookie nor the RelayState identified it. "
+						+ "Add RelayState=${relayState} to the idpInitURL if the browser does not keep the cookie").withPhases(phases);
+			} else if (!session.isResponseReceived()) {
+				logger.error("The target IdP did not send a SAML Response within " + idpConfig.getResponseTimeout() + " seconds after logging in");
+				return new TestOutcome(TestStatus.CRITICAL, "The target IdP did not send a SAML Response within " + idpConfig.getResponseTimeout() + " seconds after logging in").withPhases(phases);
 			} else {
-				logger.error("Could not retrieve the SAML Request that was sent by the target SP");
-				return TestStatus.CRITICAL;
+				logger.error("Could not retrieve the SAML Response that was sent by the target IdP");
+				return new TestOutcome(TestStatus.CRITICAL, "Could not retrieve the SAML Response that was sent by the target IdP").withPhases(phases);
 			}
-		} else {
-			logger.error("Trying to run an unknown type of test case");
-			return null;
+		} catch (InterruptedException e) {
+			logger.error("The test case was interrupted while waiting for the SAML Response to be decoded", e);
+			Thread.currentThread().interrupt();
+			return new TestOutcome(TestStatus.CRITICAL, "The test case was interrupted while waiting for the SAML Response");
+		} finally {
+			closeSession(session);
+		}
+	}
+
+	/**
+	 * Log in on the target IdP for a session, which makes the target IdP send its response to the mock SP. 
+	 * 
+	 * The login is cancelled when it has not completed before the deadline, which closes the session's browser and 
+	 * interrupts the current thread, so a target IdP that does not respond can not block the test run.
+	 * 
+	 * @param session is the session of the simulated user that should log in
+	 * @param timeout is the maximum amount of seconds that the login may take
+	 * @return true if the login completed, false if it was cancelled
+	 * @throws InterruptedException if the thread was interrupted while logging in, other than by the cancellation
+	 */
+	private static boolean login(final SSOSession session, final int timeout) throws InterruptedException {
+		ScheduledFuture<?> deadline = loginWatchdog.schedule(new Runnable() {
+			@Override
+			public void run() {
+				logger.warn("Cancelling the login of a simulated user, because it took longer than " + timeout + " seconds");
+				session.cancel();
+			}
+		}, timeout, TimeUnit.SECONDS);
+		session.startLogin();
+		try {
+			if (httpDriver != null) {
+				loginWithHttpDriver(session);
+			}
+			else {
+				retrieveLoginPage(session, true); 
+			}
+		} catch (InterruptedException e) {
+			if (!session.isCancelled()) {
+				throw e;
+			}
+		} catch (RuntimeException e) {
+			// closing the browser makes its pending requests fail in ways that depend on what it was doing
+			if (!session.isCancelled()) {
+				throw e;
+			}
+		} finally {
+			deadline.cancel(false);
+			session.endLogin();
+		}
+		return !session.isCancelled();
+	}
+
+	/**
+	 * Run the response test case for multiple simulated users at the same time. 
+	 * 
+	 * Each user logs in with its own session. When virtual threads are enabled, each user runs on its own 
+	 * virtual thread, otherwise a platform thread is created for each user.
+	 * 
+	 * @param testcase is the response test case that needs to be run
+	 * @param users is the amount of users that should log in concurrently
+	 * @return the outcome with the most severe status that was found for any of the users
+	 */
+	private static TestOutcome runConcurrentResponseTest(final ResponseTestCase testcase, int users) {
+		ExecutorService executor;
+		if (command.hasOption("virtualthreads")) {
+			executor = Executors.newVirtualThreadPerTaskExecutor();
+		}
+		else {
+			executor = Executors.newFixedThreadPool(users);
+		}
+		List<Callable<TestOutcome>> logins = new ArrayList<Callable<TestOutcome>>();
+		for (int i = 0; i < users; i++) {
+			logins.add(new Callable<TestOutcome>() {
+				@Override
+				public TestOutcome call() {
+					return runResponseTest(testcase);
+				}
+			});
+		}
+		TestOutcome worstOutcome = null;
+		try {
+			for (Future<TestOutcome> login : executor.invokeAll(logins)) {
+				TestOutcome outcome;
+				try {
+					outcome = login.get();
+				} catch (ExecutionException e) {
+					logger.error("A simulated user could not complete the test case", e.getCause());
+					outcome = new TestOutcome(TestStatus.CRITICAL, "A simulated user could not complete the test case: " + e.getCause());
+				}
+				if (worstOutcome == null || (outcome.getStatus() != null && outcome.getStatus().compareTo(worstOutcome.getStatus()) > 0)) {
+					worstOutcome = outcome;
+				}
+			}
+		} catch (InterruptedException e) {
+			logger.error("The test case was interrupted while the simulated users were logging in", e);
+			Thread.currentThread().interrupt();
+			worstOutcome = new TestOutcome(TestStatus.CRITICAL, "The test case was interrupted while the simulated users were logging in");
+		} finally {
+			executor.shutdownNow();
 		}
+		logger.info(users + " simulated users completed testcase " + testcase.getClass().getSimpleName() + " with status " + worstOutcome.getStatus());
+		return worstOutcome;
+	}
+
+	/**
+	 * Create a new session for a simulated user and register it, so the mock SP can recognize it. When the mock SP 
+	 * hosts multiple SP entities for the target IdP, the sessions log in for each of them in turn.
+	 * 
+	 * @return the new session
+	 */
+	private static SSOSession openSession() {
+		MockSPTenant tenant = runTenants.get(Math.floorMod(openedSessions.getAndIncrement(), runTenants.size()));
+		SSOSession session = new SSOSession(tenant, command.hasOption("insecure"));
+		if (faultProxy != null) {
+			session.setProxy(faultProxy.getAddress());
+		}
+		sessions.put(session.getId(), session);
+		return session;
+	}
+
+	/**
+	 * Unregister the session and close its browser
+	 * 
+	 * @param session is the session that should be closed
+	 */
+	private static void closeSession(SSOSession session) {
+		sessions.remove(session.getId());
+		session.close();
 	}
 
 	/**
@@ -343,23 +1669,27 @@ public class IdPTestRunner {
 	 * Retrieves the login page from the SP, thereby sending the SP's AuthnRequest to
 	 * the mock IdP. 
 	 * 
+	 * @param session is the session of the simulated user that should log in
 	 * @return the login page, or null if the login page could not be retrieved
 	 */
-	private static Page retrieveLoginPage(boolean spInitiated) {
+	private static Page retrieveLoginPage(SSOSession session, boolean spInitiated) {
 		// start login attempt with target SP
 		try {
 			// create a URI of the start page (which also checks the validity of the string as URI)
 			URL loginURL;
 			if (spInitiated) {
 				// login from the SP's start page
-				loginURL = idpConfig.getIdPInitURL();
+				loginURL = getLoginURL(session);
 			
-				Page retrievedPage = browser.getPage(loginURL);
+				Page retrievedPage = session.getBrowser().getPage(loginURL);
 	
 				// interact with the login page in order to get logged in
 				ArrayList<Interaction> interactions = idpConfig.getPreResponseInteractions();
 				// execute all interactions
 				for(Interaction interaction : interactions){
+					if (session.isCancelled()) {
+						break;
+					}
 					if(retrievedPage instanceof HtmlPage){
 						// cast the Page to an HtmlPage so we can interact with it
 						HtmlPage loginPage = (HtmlPage) retrievedPage;
@@ -399,13 +1729,13 @@ public class IdPTestRunner {
 			} 
 			else {
 				// login from the IdP's page
-				return browser.getPage(testsuite.getMockSPURL());
+				return session.getBrowser().getPage(session.getTenant().getURL());
 			}
 			// return the retrieved page
 		} catch (FailingHttpStatusCodeException e) {
 			logger.error("The login page did not return a valid HTTP status code");
 		} catch (MalformedURLException e) {
-			logger.error("THe login page's URL is not valid");
+			logger.error("The login page's URL is not valid");
 		} catch (IOException e) {
 			logger.error("The login page could not be accessed due to an I/O error");
 		} catch (ElementNotFoundException e){
@@ -415,25 +1745,93 @@ public class IdPTestRunner {
 	}
 
 	/**
-	 * Set the SAML Response that was received from the IdP
+	 * Retrieve the URL on which the login of a session starts. The placeholders ${spEntityID} and ${acsURL} in the 
+	 * idpInitURL are replaced by the URL-encoded entityID and URL of the SP entity that the session logs in for, so the
+	 * target IdP can be told where to send its response. The placeholder ${relayState} is replaced by the ID of the 
+	 * session, so the mock SP can match the response to the session when the browser does not send its cookie.
 	 * 
-	 * This is set from the Handler that processes the IdP's response on the mock SP.
+	 * @param session is the session of the simulated user that should log in
+	 * @return the URL of the login page
+	 * @throws MalformedURLException if the URL is not valid after replacing the placeholders
+	 */
+	static URL getLoginURL(SSOSession session) throws MalformedURLException {
+		String loginURL = idpConfig.getIdPInitURL().toString();
+		if (!loginURL.contains("${")) {
+			return idpConfig.getIdPInitURL();
+		}
+		MockSPTenant tenant = session.getTenant();
+		return new URL(loginURL.replace("${spEntityID}", URLEncoder.encode(tenant.getEntityID(), StandardCharsets.UTF_8))
+				.replace("${acsURL}", URLEncoder.encode(tenant.getURL().toString(), StandardCharsets.UTF_8))
+				.replace("${relayState}", URLEncoder.encode(session.getId(), StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Log in on the target IdP with the lightweight HTTP driver instead of a browser, which sends the IdP's
+	 * response to the mock SP.
 	 * 
-	 * @param response is the SAML Response
+	 * @param session is the session of the simulated user that should log in
+	 * @throws InterruptedException if the thread was interrupted while logging in
 	 */
-	public static void setSamlResponse(String response) {
-		samlResponse = response;
+	private static void loginWithHttpDriver(SSOSession session) throws InterruptedException {
+		try {
+			httpDriver.login(session, getLoginURL(session).toURI(), idpConfig.getPreResponseInteractions());
+		} catch (URISyntaxException e) {
+			logger.error("The login page's URL is not valid");
+		} catch (IOException e) {
+			logger.error("The login page could not be accessed due to an I/O error", e);
+		} catch (IllegalStateException e) {
+			logger.error("The interactions could not be executed on the login page", e);
+		}
 	}
 
 	/**
-	 * Set the SAML Binding that the IdP has used to send its Response
+	 * Retrieve the session with the given session ID
 	 * 
-	 * This is set from the Handler that processes the IdP's response on the mock IdP.
+	 * This is used by the Handler that processes the IdP's response on the mock SP to find the session that the 
+	 * response belongs to.
 	 * 
-	 * @param binding is the name of the SAML Binding
+	 * @param sessionID is the ID of the session, as found in the session cookie
+	 * @return the session, or null if no session with this ID is currently logging in
 	 */
-	public static void setSamlResponseBinding(String binding) {
-		samlResponseBinding = binding;
+	public static SSOSession getSession(String sessionID) {
+		if (sessionID == null) {
+			return null;
+		}
+		return sessions.get(sessionID);
+	}
+
+	/**
+	 * Hand over a SAML Response that was received from the IdP without a session cookie or RelayState that identifies
+	 * its session
+	 * 
+	 * This is called from the Handler that processes the IdP's response on the mock SP. The response can only belong to
+	 * a session if exactly one session is still waiting for its response. Otherwise the waiting sessions are only
+	 * marked, so they fail with a clear message instead of checking a response that may belong to another simulated
+	 * user.
+	 * 
+	 * @param response is the SAML Response, or null if it is not available yet (e.g. an unresolved artifact)
+	 * @param binding is the name of the SAML Binding that the IdP has used to send its Response
+	 */
+	public static void setUnmatchedResponse(String response, String binding) {
+		// the sessions are taken from a snapshot, since they are closed concurrently
+		List<SSOSession> loggingIn = new ArrayList<SSOSession>();
+		for (SSOSession session : sessions.values()) {
+			if (!session.isResponseReceived()) {
+				loggingIn.add(session);
+			}
+		}
+		if (loggingIn.size() == 1) {
+			SSOSession session = loggingIn.get(0);
+			session.setSamlResponseBinding(binding);
+			if (response != null) {
+				session.setSamlResponse(response);
+			}
+			return;
+		}
+		logger.warn("A SAML Response could not be matched to one of the " + loggingIn.size() + " sessions that are logging in");
+		for (SSOSession session : loggingIn) {
+			session.setUnmatchedResponse();
+		}
 	}
 
 	/**
@@ -0,0 +1,373 @@
+package saml2webssotest.idp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import saml2webssotest.common.TestStatus;
+import saml2webssotest.common.TestSuite.MetadataTestCase;
+import saml2webssotest.idp.metadataModel.MetadataElement;
+import saml2webssotest.idp.testsuites.IdPTestSuite;
+import saml2webssotest.idp.testsuites.IdPTestSuite.ConfigTestCase;
+import saml2webssotest.idp.testsuites.IdPTestSuite.Uncacheable;
+
+/**
+ * A persistent cache for the outcomes of config and metadata test cases.
+ *
+ * These test cases only depend on the configuration or metadata of the target IdP, so their outcome can be reused as
+ * long as that input has not changed. Each outcome is stored in its own file in the cache directory, named after a
+ * hash of the version of the test suite, the test case (including a hash of its compiled class), the build of the
+ * test runner and test suite and a hash of the input. Changing the test case, the code it uses or the input therefore
+ * results in a different key, so outdated outcomes are never used.
+ *
+ * Response test cases and test cases annotated with {@link Uncacheable} are never cached.
+ *
+ * @author RiaasM
+ *
+ */
+public class ResultCache {
+	/**
+	 * Logger for this class
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(ResultCache.class);
+	private static final Gson gson = new Gson();
+	/**
+	 * The hashes of the compiled classes, by their class
+	 */
+	private static final ConcurrentHashMap<Class<?>, String> classHashes = new ConcurrentHashMap<Class<?>, String>();
+	/**
+	 * The identities of the builds that the classes were loaded from, by the location of the jar or class directory
+	 */
+	private static final ConcurrentHashMap<String, String> buildIdentities = new ConcurrentHashMap<String, String>();
+	/**
+	 * Serializes the metadata in order to hash it. A Transformer is not thread-safe, so each thread has its own.
+	 */
+	private static final ThreadLocal<Transformer> serializers = new ThreadLocal<Transformer>() {
+		@Override
+		protected Transformer initialValue() {
+			try {
+				return TransformerFactory.newInstance().newTransformer();
+			} catch (TransformerConfigurationException e) {
+				throw new IllegalStateException("Could not create a transformer for hashing the metadata", e);
+			}
+		}
+	};
+	private final Path directory;
+	/**
+	 * Whether the cached outcomes should be ignored, so all test cases are run again and their outcomes are replaced
+	 */
+	private final boolean refresh;
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger misses = new AtomicInteger();
+
+	/**
+	 * @param directory is the directory in which the outcomes are stored
+	 * @param refresh is true if the cached outcomes should be ignored and replaced
+	 */
+	public ResultCache(Path directory, boolean refresh) {
+		this.directory = directory;
+		this.refresh = refresh;
+	}
+
+	/**
+	 * Check if the outcome of a test case can be cached
+	 *
+	 * @param testcaseClass is the class of the test case
+	 * @return true if it is a config or metadata test case that is not annotated with {@link Uncacheable}
+	 */
+	public static boolean isCacheable(Class<?> testcaseClass) {
+		return (ConfigTestCase.class.isAssignableFrom(testcaseClass) || MetadataTestCase.class.isAssignableFrom(testcaseClass))
+				&& !testcaseClass.isAnnotationPresent(Uncacheable.class);
+	}
+
+	/**
+	 * Retrieve the cached outcome of a test case
+	 *
+	 * @param testsuite is the test suite containing the test case
+	 * @param testcaseClass is the class of the test case
+	 * @param inputHash is the hash of the input of the test case
+	 * @return the cached outcome, or null if there is none or the cache should be refreshed
+	 */
+	public TestOutcome get(IdPTestSuite testsuite, Class<?> testcaseClass, String inputHash) {
+		if (refresh) {
+			misses.incrementAndGet();
+			return null;
+		}
+		Path file = fileFor(testsuite, testcaseClass, inputHash);
+		try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			JsonObject cached = new JsonParser().parse(reader).getAsJsonObject();
+			TestOutcome outcome = new TestOutcome(TestStatus.valueOf(cached.get("status").getAsString()), cached.get("message").getAsString());
+			List<String> evidence = new ArrayList<String>();
+			for (JsonElement item : cached.getAsJsonArray("evidence")) {
+				evidence.add(item.getAsString());
+			}
+			hits.incrementAndGet();
+			return evidence.isEmpty() ? outcome : outcome.withEvidence(evidence.toArray(new String[0]));
+		} catch (NoSuchFileException e) {
+			misses.incrementAndGet();
+			return null;
+		} catch (IOException | JsonParseException | IllegalStateException | IllegalArgumentException | NullPointerException e) {
+			logger.warn("Could not read the cached outcome from " + file + ", running the test case instead", e);
+			misses.incrementAndGet();
+			return null;
+		}
+	}
+
+	/**
+	 * Store the outcome of a test case. Failing to store it is logged, but does not affect the test run.
+	 *
+	 * @param testsuite is the test suite containing the test case
+	 * @param testcaseClass is the class of the test case
+	 * @param inputHash is the hash of the input of the test case
+	 * @param outcome is the outcome of the test case
+	 */
+	public void put(IdPTestSuite testsuite, Class<?> testcaseClass, String inputHash, TestOutcome outcome) {
+		if (outcome == null || outcome.getStatus() == null || outcome.getMessage() == null) {
+			return;
+		}
+		JsonObject cached = new JsonObject();
+		cached.addProperty("testcase", testcaseClass.getName());
+		cached.addProperty("status", outcome.getStatus().name());
+		cached.addProperty("message", outcome.getMessage());
+		JsonArray evidence = new JsonArray();
+		for (String item : outcome.getEvidence()) {
+			evidence.add(gson.toJsonTree(item));
+		}
+		cached.add("evidence", evidence);
+
+		Path file = fileFor(testsuite, testcaseClass, inputHash);
+		try {
+			Files.createDirectories(file.getParent());
+			// write to a temporary file first, so a concurrent run never reads a partially written outcome
+			Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+			try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+				writer.write(gson.toJson(cached));
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.warn("Could not store the outcome of " + testcaseClass.getSimpleName() + " in the result cache", e);
+		}
+	}
+
+	/**
+	 * @return the amount of outcomes that were retrieved from the cache
+	 */
+	public int getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the amount of outcomes that were not found in the cache
+	 */
+	public int getMisses() {
+		return misses.get();
+	}
+
+	private Path fileFor(IdPTestSuite testsuite, Class<?> testcaseClass, String inputHash) {
+		String key = sha256(testsuite.getVersion() + "\n" + testcaseClass.getName() + "\n" + hashClass(testcaseClass) + "\n" 
+				+ buildIdentity(testsuite.getClass()) + "\n" + buildIdentity(ResultCache.class) + "\n" + buildIdentity(TestStatus.class) + "\n" + inputHash);
+		return directory.resolve(key.substring(0, 2)).resolve(key + ".json");
+	}
+
+	/**
+	 * Hash the metadata, which is the input for metadata test cases
+	 *
+	 * @param metadata is the metadata, may be null
+	 * @return the hash of the metadata
+	 */
+	public static String hash(Document metadata) {
+		MessageDigest digest = newDigest();
+		if (metadata != null) {
+			OutputStream out = new DigestOutputStream(OutputStream.nullOutputStream(), digest);
+			try {
+				serializers.get().transform(new DOMSource(metadata), new StreamResult(out));
+			} catch (TransformerException e) {
+				throw new IllegalStateException("Could not serialize the metadata for hashing", e);
+			}
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Hash the metadata in the compact metadata model, which is the input for metadata test cases that are evaluated
+	 * for each entity
+	 *
+	 * @param metadata is the element at which the metadata starts, may be null
+	 * @return the hash of the metadata
+	 */
+	public static String hash(MetadataElement metadata) {
+		MessageDigest digest = newDigest();
+		if (metadata != null) {
+			update(digest, metadata);
+		}
+		return toHex(digest.digest());
+	}
+
+	private static void update(MessageDigest digest, MetadataElement element) {
+		// each part ends with a byte that can not occur in the UTF-8 encoding of a string, so the parts can not run together
+		updateString(digest, element.getNamespace());
+		updateString(digest, element.getLocalName());
+		for (int i = 0; i < element.getAttributeCount(); i++) {
+			updateString(digest, element.getAttributeNamespace(i));
+			updateString(digest, element.getAttributeQualifiedName(i));
+			updateString(digest, element.getAttributeValue(i));
+		}
+		if (element.getText() != null) {
+			updateString(digest, element.getText());
+		}
+		else {
+			digest.update((byte) 0xFD);
+		}
+		for (MetadataElement child : element.getChildren()) {
+			update(digest, child);
+		}
+		// the end of the element, so the same elements nested differently have a different hash
+		digest.update((byte) 0xFE);
+	}
+
+	private static void updateString(MessageDigest digest, String value) {
+		digest.update(value.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0xFF);
+	}
+
+	/**
+	 * Hash the configuration of the target IdP, which is the input for config test cases
+	 *
+	 * @param config is the configuration of the target IdP
+	 * @return the hash of the configuration
+	 */
+	public static String hash(IdPConfiguration config) {
+		return sha256(hash(config.getMetadata()) + "\n" + config.getIdPInitURL() + "\n" + gson.toJson(config.getPreResponseInteractions()));
+	}
+
+	/**
+	 * Hash the compiled class, so the cached outcomes are no longer used when the class changes
+	 *
+	 * @param type is the class
+	 * @return the hash of the class file, or the name of the class if the class file could not be read
+	 */
+	public static String hashClass(Class<?> type) {
+		String classHash = classHashes.get(type);
+		if (classHash == null) {
+			String classFile = type.getName().substring(type.getName().lastIndexOf('.') + 1) + ".class";
+			try (InputStream in = type.getResourceAsStream(classFile)) {
+				if (in != null) {
+					MessageDigest digest = newDigest();
+					digest.update(in.readAllBytes());
+					classHash = toHex(digest.digest());
+				}
+			} catch (IOException e) {
+				logger.warn("Could not read the class file of " + type.getName(), e);
+			}
+			if (classHash == null) {
+				classHash = type.getName();
+			}
+			classHashes.put(type, classHash);
+		}
+		return classHash;
+	}
+
+	/**
+	 * Identify the build that a class was loaded from, so the cached outcomes are no longer used when the code that the
+	 * test cases use changes, even if the test case classes themselves did not
+	 *
+	 * The identity of a jar is the hash of its content. For a directory of classes (e.g. when running from an IDE) it is
+	 * the hash of the names, sizes and modification times of its files. The identity is only determined once for each
+	 * location.
+	 *
+	 * @param type is a class from the build
+	 * @return the identity of the build, or its implementation version if its location could not be read
+	 */
+	public static String buildIdentity(Class<?> type) {
+		CodeSource source = type.getProtectionDomain().getCodeSource();
+		if (source == null || source.getLocation() == null) {
+			return String.valueOf(type.getPackage() != null ? type.getPackage().getImplementationVersion() : null);
+		}
+		String location = source.getLocation().toString();
+		String identity = buildIdentities.get(location);
+		if (identity == null) {
+			try {
+				Path path = Paths.get(source.getLocation().toURI());
+				MessageDigest digest = newDigest();
+				if (Files.isDirectory(path)) {
+					List<Path> files;
+					try (Stream<Path> walk = Files.walk(path)) {
+						files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+					}
+					for (Path file : files) {
+						updateString(digest, path.relativize(file).toString());
+						updateString(digest, Files.size(file) + " " + Files.getLastModifiedTime(file).toMillis());
+					}
+				}
+				else {
+					try (InputStream in = Files.newInputStream(path)) {
+						in.transferTo(new DigestOutputStream(OutputStream.nullOutputStream(), digest));
+					}
+				}
+				identity = toHex(digest.digest());
+			} catch (IOException | URISyntaxException | IllegalArgumentException e) {
+				logger.warn("Could not read the build at " + location + ", so its implementation version identifies it", e);
+				identity = String.valueOf(type.getPackage() != null ? type.getPackage().getImplementationVersion() : null);
+			}
+			buildIdentities.put(location, identity);
+		}
+		return identity;
+	}
+
+	static String sha256(String value) {
+		return toHex(newDigest().digest(value.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+}
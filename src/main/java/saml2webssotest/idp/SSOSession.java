@@ -0,0 +1,334 @@
+package saml2webssotest.idp;
+
+import java.net.CookieManager;
+import java.net.HttpCookie;
+import java.net.InetSocketAddress;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.gargoylesoftware.htmlunit.ProxyConfig;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.util.Cookie;
+
+import saml2webssotest.idp.mockSPHandlers.MockSPTenant;
+
+/**
+ * Represents a single simulated user that logs in on the target IdP.
+ *
+ * Each session has its own browser and cookies, so login state is never shared between sessions. The browser is only
+ * created when it is used, so sessions that log in with the lightweight HTTP driver do not carry its weight. The session is
+ * identified by a cookie on the mock SP's domain, which the browser sends along with the SAML Response when the IdP
+ * makes it post or redirect to the mock SP. This allows the mock SP to hand the SAML Response to the session that
+ * caused it, even when many sessions are logging in at the same time. Each session logs in for a single SP entity
+ * (tenant) of the mock SP, so sessions for different SP entities can log in at the same time.
+ *
+ * A session that takes too long to log in can be cancelled from another thread. This closes its browser and interrupts
+ * the thread that is logging in, so the login fails instead of going on with a target IdP that does not respond.
+ *
+ * @author RiaasM
+ *
+ */
+public class SSOSession {
+	/**
+	 * The name of the cookie that identifies the session on the mock SP
+	 */
+	public static final String SESSION_COOKIE = "SAML2WebSSOTestSession";
+	/**
+	 * The unique identifier for this session
+	 */
+	private final String id = UUID.randomUUID().toString();
+	/**
+	 * The SP entity of the mock SP that this session logs in for
+	 */
+	private final MockSPTenant tenant;
+	/**
+	 * The URL of the mock SP, on whose domain the session cookie is set
+	 */
+	private final URL mockSPURL;
+	/**
+	 * Specifies whether HTTPS server certificates should not be verified
+	 */
+	private final boolean insecure;
+	/**
+	 * The maximum amount of milliseconds that the browser waits for a connection or for data, or 0 to wait as long as 
+	 * the browser does by default
+	 */
+	private int timeoutMillis;
+	/**
+	 * The proxy through which the browser sends its requests, or null to connect directly
+	 */
+	private InetSocketAddress proxy;
+	/**
+	 * The browser that is used by this session, if it has been created
+	 */
+	private WebClient browser;
+	/**
+	 * The cookies that are used by this session when it logs in without a browser, if they have been created
+	 */
+	private CookieManager cookies;
+	/**
+	 * Contains the SAML Response that was received by the mock SP for this session
+	 */
+	private volatile String samlResponse;
+	/**
+	 * Contains the SAML binding that was recognized by the mock SP for this session
+	 */
+	private volatile String samlResponseBinding;
+	/**
+	 * The SP entity of the mock SP that received the SAML Response for this session
+	 */
+	private volatile MockSPTenant receivedBy;
+	/**
+	 * Specifies whether the mock SP has received a SAML Response for this session that may still be in the process of
+	 * being decoded
+	 */
+	private volatile boolean responseReceived;
+	/**
+	 * Specifies whether the mock SP has received a SAML Response that did not belong to any session while this session
+	 * was logging in
+	 */
+	private volatile boolean unmatchedResponse;
+	/**
+	 * Is released when the mock SP has received a SAML Response for this session
+	 */
+	private final CountDownLatch responseArrived = new CountDownLatch(1);
+	/**
+	 * Is released when the SAML Response for this session has been decoded and set
+	 */
+	private final CountDownLatch responseDecoded = new CountDownLatch(1);
+	/**
+	 * The thread that is logging in for this session, or null if it is not logging in
+	 */
+	private Thread loginThread;
+	/**
+	 * Specifies whether the login of this session was cancelled
+	 */
+	private volatile boolean cancelled;
+
+	/**
+	 * Create a new session
+	 *
+	 * @param tenant is the SP entity of the mock SP that the session logs in for, whose URL is used to set the
+	 * 			session cookie
+	 * @param insecure specifies whether HTTPS server certificates should not be verified
+	 */
+	public SSOSession(MockSPTenant tenant, boolean insecure) {
+		this.tenant = tenant;
+		this.mockSPURL = tenant.getURL();
+		this.insecure = insecure;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Set how long the browser waits for a connection to the target IdP or for data from it, before the request fails.
+	 * Must be called before the browser is created.
+	 * 
+	 * @param timeoutMillis is the timeout in milliseconds
+	 */
+	public void setTimeout(int timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Send the requests of the browser through a proxy. Must be called before the browser is created.
+	 * 
+	 * @param proxy is the address of the proxy, or null to connect directly
+	 */
+	public void setProxy(InetSocketAddress proxy) {
+		this.proxy = proxy;
+	}
+
+	public MockSPTenant getTenant() {
+		return tenant;
+	}
+
+	/**
+	 * Retrieve the browser for this session, creating it if necessary
+	 * 
+	 * @return the browser, which already contains the session cookie for the mock SP
+	 */
+	public synchronized WebClient getBrowser() {
+		if (browser == null) {
+			browser = new WebClient();
+			browser.getOptions().setRedirectEnabled(true);
+			if (insecure) {
+				browser.getOptions().setUseInsecureSSL(true);
+			}
+			if (timeoutMillis > 0) {
+				browser.getOptions().setTimeout(timeoutMillis);
+			}
+			if (proxy != null) {
+				browser.getOptions().setProxyConfig(new ProxyConfig(proxy.getHostString(), proxy.getPort()));
+			}
+			browser.getCookieManager().addCookie(new Cookie(mockSPURL.getHost(), SESSION_COOKIE, id));
+		}
+		return browser;
+	}
+
+	/**
+	 * Retrieve the cookies for this session when it logs in without a browser, creating them if necessary
+	 * 
+	 * @return the cookies, which already contain the session cookie for the mock SP
+	 */
+	public synchronized CookieManager getCookies() {
+		if (cookies == null) {
+			cookies = new CookieManager();
+			HttpCookie sessionCookie = new HttpCookie(SESSION_COOKIE, id);
+			sessionCookie.setPath("/");
+			sessionCookie.setVersion(0);
+			try {
+				cookies.getCookieStore().add(mockSPURL.toURI(), sessionCookie);
+			} catch (URISyntaxException e) {
+				throw new IllegalStateException("The URL of the mock SP is not a valid URI", e);
+			}
+		}
+		return cookies;
+	}
+
+	public String getSamlResponse() {
+		return samlResponse;
+	}
+
+	/**
+	 * Set the decoded SAML Response for this session. 
+	 * 
+	 * This releases anyone waiting for the response, so it should also be called with null if the received response 
+	 * could not be decoded.
+	 * 
+	 * @param response is the decoded SAML Response
+	 */
+	public void setSamlResponse(String response) {
+		samlResponse = response;
+		responseReceived = true;
+		responseArrived.countDown();
+		responseDecoded.countDown();
+	}
+
+	/**
+	 * Mark that the mock SP has received a SAML Response for this session, which will be set once it has been decoded
+	 */
+	public void setResponseReceived() {
+		responseReceived = true;
+		responseArrived.countDown();
+	}
+
+	/**
+	 * Mark that the mock SP has received a SAML Response that did not belong to any session, e.g. because the browser
+	 * did not send the session cookie. This does not release anyone waiting for a response for this session, since the 
+	 * response may have been meant for another session, but explains why none arrived if the wait times out.
+	 */
+	public void setUnmatchedResponse() {
+		unmatchedResponse = true;
+	}
+
+	/**
+	 * @return true if the mock SP has received a SAML Response that did not belong to any session while this session
+	 * 			was logging in
+	 */
+	public boolean hasUnmatchedResponse() {
+		return unmatchedResponse;
+	}
+
+	/**
+	 * @return true if the mock SP has received a SAML Response for this session, even if it has not been decoded yet
+	 */
+	public boolean isResponseReceived() {
+		return responseReceived;
+	}
+
+	/**
+	 * Wait until the mock SP has received a SAML Response for this session and it has been decoded.
+	 * 
+	 * This returns as soon as the response has been decoded, so a response that arrives late is still found without
+	 * waiting longer than needed. Whether a SAML Response arrived that did not belong to any session while waiting can
+	 * be checked with {@link #hasUnmatchedResponse()}.
+	 * 
+	 * @param arrivalTimeout is the maximum time to wait for the SAML Response to arrive
+	 * @param decodeTimeout is the maximum time to wait for the SAML Response to be decoded once it has arrived
+	 * @param unit is the unit of the timeouts
+	 * @return the decoded SAML Response, or null if none was received or it could not be decoded in time
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	public String awaitSamlResponse(long arrivalTimeout, long decodeTimeout, TimeUnit unit) throws InterruptedException {
+		responseArrived.await(arrivalTimeout, unit);
+		if (responseReceived) {
+			responseDecoded.await(decodeTimeout, unit);
+		}
+		return samlResponse;
+	}
+
+	public String getSamlResponseBinding() {
+		return samlResponseBinding;
+	}
+
+	public void setSamlResponseBinding(String binding) {
+		samlResponseBinding = binding;
+	}
+
+	/**
+	 * @return the SP entity of the mock SP that received the SAML Response for this session, or null if it is not known
+	 */
+	public MockSPTenant getReceivedBy() {
+		return receivedBy;
+	}
+
+	public void setReceivedBy(MockSPTenant tenant) {
+		receivedBy = tenant;
+	}
+
+	/**
+	 * Mark that the current thread starts logging in for this session, so it can be interrupted if the login is 
+	 * cancelled
+	 */
+	public synchronized void startLogin() {
+		loginThread = Thread.currentThread();
+	}
+
+	/**
+	 * Mark that the current thread has stopped logging in for this session. If the login was cancelled, the interrupt
+	 * that was meant for the login is cleared, so it does not affect what the thread does next.
+	 */
+	public synchronized void endLogin() {
+		loginThread = null;
+		if (cancelled) {
+			Thread.interrupted();
+		}
+	}
+
+	/**
+	 * Cancel the login of this session. The windows of the browser are closed, which stops its JavaScript, and the
+	 * thread that is logging in is interrupted. The HTTP login driver aborts the request it is waiting for when it is
+	 * interrupted. A request of the browser that is already being sent is not aborted, so a thread that waits for it
+	 * only notices the cancellation once it completes or exceeds the timeout of the browser. In both cases, the login
+	 * fails.
+	 */
+	public synchronized void cancel() {
+		cancelled = true;
+		if (loginThread != null) {
+			loginThread.interrupt();
+		}
+		close();
+	}
+
+	/**
+	 * @return true if the login of this session was cancelled
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Close the browser for this session, if it was created
+	 */
+	public synchronized void close() {
+		if (browser != null) {
+			browser.closeAllWindows();
+		}
+	}
+}
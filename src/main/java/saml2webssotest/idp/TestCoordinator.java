@@ -0,0 +1,1020 @@
+package saml2webssotest.idp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import saml2webssotest.common.TestResult;
+import saml2webssotest.common.TestStatus;
+import saml2webssotest.idp.faultProxy.FaultProxy;
+import saml2webssotest.idp.history.StoredResult;
+import saml2webssotest.idp.registry.TestCaseEntry;
+import saml2webssotest.idp.testsuites.IdPTestSuite;
+
+/**
+ * Distributes a test run over several test runners (the workers), so a run is not limited to a single mock SP and a
+ * single JVM.
+ *
+ * Each worker is a test runner that accepts test runs over its local HTTP API (see {@link TestDaemon}) and hosts its
+ * own mock SP. The coordinator can start the workers itself as JVMs on this machine, each with its mock SP moved to
+ * its own ports, or use workers that were started on other nodes (e.g. reached through an SSH tunnel, since the API
+ * only listens on the loopback interface).
+ *
+ * The run is divided into units of work. A test case is kept in the same unit as a prerequisite that only it
+ * requires, so such chains run on one worker. A prerequisite that several test cases require (e.g. the availability
+ * of the metadata) is a unit of its own instead, and the worker of each dependent unit runs it again to check it, so
+ * the dependents can still be spread over the workers. Only the results of the test cases of the unit itself are
+ * used. When the metadata test cases are evaluated for each
+ * entity, the entities are divided into several shards per worker, each of which is a unit. The units are kept in a
+ * single queue, with the units that are expected to take the longest first, and each worker takes the next unit as
+ * soon as it is idle, so faster workers run more units. When the queue is empty, idle workers steal the units of the
+ * stragglers: a unit that has been running far longer than the units that completed so far is run again on an idle
+ * worker, and the result of whichever attempt completes first is used, while the other attempt is cancelled.
+ *
+ * The workers stream the results of each unit back as they are produced, followed by the metrics of the unit. Since
+ * a unit can be attempted more than once, its results are only passed to the output once one of its attempts has
+ * completed. A unit whose attempt failed (e.g. because its worker stopped) is run again on another worker. An attempt
+ * that is cancelled or failed is also cancelled on its worker (see {@link TestDaemon}), and the worker only runs
+ * another unit once it has confirmed that the attempt stopped.
+ *
+ * The workers also send the timings of each test case they ran. The coordinator merges those into its own durations
+ * (see {@link DurationStats}) and records them in its history, if it keeps one, so a distributed run is predicted
+ * and checked for regressions like a run on a single test runner. Local workers each keep their own durations and
+ * result cache, in a subdirectory of the coordinator's, and move the port of the fault injection proxy along with
+ * their mock SP.
+ *
+ * @author RiaasM
+ *
+ */
+public class TestCoordinator {
+	/**
+	 * Logger for this class
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(TestCoordinator.class);
+	private static final Gson gson = new Gson();
+	/**
+	 * The command-line options of the coordinator that are passed on to the workers it starts
+	 */
+	private static final String[] forwardedOptions = {"async", "durations", "faultproxy", "http2", "httpdriver", "insecure", "loginplan", "replaycapacity", "replaywindow", "resultcache", "users", "virtualthreads", "workers"};
+	/**
+	 * The forwarded options whose directory is replaced by a subdirectory for each local worker
+	 */
+	private static final Set<String> ownDirectoryOptions = Set.of("durations", "resultcache");
+	/**
+	 * The amount of shards of the entities for each worker, so the shards of slower workers can be taken over
+	 */
+	private static final int shardsPerWorker = 4;
+	/**
+	 * The maximum amount of times a unit is attempted before its test cases are reported as failed
+	 */
+	private static final int maxAttempts = 3;
+	/**
+	 * The maximum amount of seconds to wait for a local worker to accept test runs
+	 */
+	private static final int workerStartTimeout = 120;
+	/**
+	 * A unit is a straggler when it has been running longer than this factor times the median duration of the units
+	 * that completed before (or times its expected duration, if none completed yet)
+	 */
+	private static final double stragglerFactor = 2;
+	/**
+	 * The minimum amount of milliseconds that a unit must have been running before it is considered a straggler
+	 */
+	private static final long minStragglerMillis = 1000;
+	/**
+	 * How often the coordinator checks for stragglers while it waits for the workers, in milliseconds
+	 */
+	private static final long stragglerCheckMillis = 250;
+	/**
+	 * The maximum amount of seconds to wait for the workers to confirm that the attempts of a run stopped, once the run
+	 * is over
+	 */
+	private static final int stopTimeout = 120;
+	private final List<Worker> workers;
+	private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+
+	private TestCoordinator(List<Worker> workers) {
+		this.workers = workers;
+	}
+
+	/**
+	 * Start the workers, or connect to them
+	 *
+	 * @param workerSpec is either the amount of workers that should be started on this machine, or a comma-separated
+	 * 			list of the URLs of the HTTP APIs of workers that were already started
+	 * @param suite is the test suite, whose mock SP must not use the same ports on different local workers
+	 * @param config is the configuration of the target IdP
+	 * @return the coordinator
+	 * @throws IOException if a worker could not be started or could not be reached
+	 */
+	public static TestCoordinator start(String workerSpec, IdPTestSuite suite, IdPConfiguration config) throws IOException {
+		List<Worker> workers = new ArrayList<Worker>();
+		if (workerSpec.matches("\\d+")) {
+			int count = Integer.parseInt(workerSpec);
+			int portStep = getPortRange(IdPTestRunner.getMockSPURLs(suite, config), getFaultProxyPort());
+			try {
+				for (int i = 0; i < count; i++) {
+					workers.add(startLocalWorker(i, i * portStep));
+				}
+				for (Worker worker : workers) {
+					awaitWorker(worker);
+				}
+			} catch (IOException e) {
+				new TestCoordinator(workers).stop();
+				throw e;
+			}
+		}
+		else {
+			for (String url : workerSpec.split(",")) {
+				String base = url.trim().replaceAll("/+$", "");
+				Worker worker = new Worker(base, URI.create(base + "/"), null, null);
+				if (!isAvailable(worker)) {
+					throw new IOException("The worker on " + worker.name + " does not accept test runs");
+				}
+				workers.add(worker);
+			}
+		}
+		if (workers.isEmpty()) {
+			throw new IOException("No workers were given");
+		}
+		logger.info("Distributing the test run over " + workers.size() + " workers");
+		return new TestCoordinator(workers);
+	}
+
+	/**
+	 * @param proxyPort is the port of the fault injection proxy, or 0 if it does not use a fixed port
+	 * @return the amount of ports from the lowest to the highest port of the given URLs and the proxy, so the mock SPs
+	 * 			and proxies of local workers can be moved by that amount without overlapping
+	 */
+	private static int getPortRange(List<URL> urls, int proxyPort) {
+		int lowest = proxyPort != 0 ? proxyPort : Integer.MAX_VALUE;
+		int highest = proxyPort != 0 ? proxyPort : Integer.MIN_VALUE;
+		for (URL url : urls) {
+			int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+			lowest = Math.min(lowest, port);
+			highest = Math.max(highest, port);
+		}
+		return highest - lowest + 1;
+	}
+
+	/**
+	 * @return the port of the fault injection proxy that the workers start, or 0 if they start none or it uses any free
+	 * 			port
+	 * @throws IOException if the settings of the proxy could not be read
+	 */
+	private static int getFaultProxyPort() throws IOException {
+		if (!IdPTestRunner.hasOption("faultproxy")) {
+			return 0;
+		}
+		return FaultProxy.loadConfig(Path.of(IdPTestRunner.getOptionValue("faultproxy"))).getPort();
+	}
+
+	/**
+	 * Start a worker in a new JVM on this machine, with the same class path, JVM options and test run options as this
+	 * JVM. Its output is written to a log file in the temporary directory.
+	 *
+	 * @param index is the number of the worker
+	 * @param portOffset is the amount that is added to the ports of its mock SP and its fault injection proxy
+	 * @return the worker, which may not accept test runs yet
+	 * @throws IOException if the JVM could not be started
+	 */
+	private static Worker startLocalWorker(int index, int portOffset) throws IOException {
+		int apiPort;
+		try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			apiPort = socket.getLocalPort();
+		}
+		List<String> command = new ArrayList<String>();
+		command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+		for (String jvmOption : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+			// a debugger can only listen on its port in one JVM
+			if (!jvmOption.startsWith("-agentlib:jdwp")) {
+				command.add(jvmOption);
+			}
+		}
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(IdPTestRunner.class.getName());
+		command.add("--daemon");
+		command.add(String.valueOf(apiPort));
+		command.add("--portoffset");
+		command.add(String.valueOf(portOffset));
+		for (String option : forwardedOptions) {
+			if (IdPTestRunner.hasOption(option)) {
+				command.add("--" + option);
+				if (ownDirectoryOptions.contains(option)) {
+					// the workers would overwrite each other's files, so each has a directory of its own
+					command.add(getWorkerDirectory(option, index).toString());
+				}
+				else if (IdPTestRunner.getOptionValue(option) != null) {
+					command.add(IdPTestRunner.getOptionValue(option));
+				}
+			}
+		}
+		File log = Files.createTempFile("saml2webssotest-worker-" + index + "-", ".log").toFile();
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.appendTo(log)).start();
+		logger.info("Started worker " + index + " on port " + apiPort + " with its mock SP ports moved by " + portOffset + ", logging to " + log);
+		return new Worker("worker " + index, URI.create("http://127.0.0.1:" + apiPort + "/"), process, log);
+	}
+
+	/**
+	 * @param option is an option whose value is a directory
+	 * @param index is the number of the local worker
+	 * @return the subdirectory of the directory in the option that the worker uses instead
+	 */
+	private static Path getWorkerDirectory(String option, int index) {
+		return Path.of(IdPTestRunner.getOptionValue(option)).resolve("worker-" + index);
+	}
+
+	/**
+	 * Wait until a local worker accepts test runs
+	 *
+	 * @param worker is the worker
+	 * @throws IOException if the worker stopped or did not accept test runs in time
+	 */
+	private static void awaitWorker(Worker worker) throws IOException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(workerStartTimeout);
+		while (!isAvailable(worker)) {
+			if (!worker.process.isAlive()) {
+				throw new IOException(worker.name + " stopped while starting, see " + worker.log);
+			}
+			if (System.nanoTime() > deadline) {
+				throw new IOException(worker.name + " did not accept test runs within " + workerStartTimeout + " seconds, see " + worker.log);
+			}
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for " + worker.name, e);
+			}
+		}
+	}
+
+	/**
+	 * @return true if the worker accepts test runs
+	 */
+	private static boolean isAvailable(Worker worker) {
+		HttpClient probe = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2)).build();
+		try {
+			HttpRequest request = HttpRequest.newBuilder(worker.api.resolve("testsuites")).timeout(Duration.ofSeconds(10)).GET().build();
+			return probe.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200;
+		} catch (IOException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Run the test cases on the workers
+	 *
+	 * @param suiteName is the name of the test suite
+	 * @param configFile is the configuration file of the target IdP, which is sent to the workers. Relative file paths
+	 * 			in it are resolved against its directory, which must exist on each worker.
+	 * @param config is the configuration of the target IdP, whose login URL and metadata location are sent to the
+	 * 			workers as well if the file does not contain them, e.g. because they are those of the fake IdP
+	 * @param testcases are the test cases that should be run, including the test cases they require
+	 * @param output receives the result of each test case, one at a time
+	 * @throws IOException if the configuration file could not be read
+	 */
+	public void run(String suiteName, Path configFile, IdPConfiguration config, List<TestCaseEntry> testcases, Consumer<TestResult> output) throws IOException {
+		JsonObject runRequest = new JsonObject();
+		runRequest.addProperty("testsuite", suiteName);
+		JsonObject configJson;
+		try (Reader reader = Files.newBufferedReader(configFile, Charset.defaultCharset())) {
+			configJson = new JsonParser().parse(reader).getAsJsonObject();
+		} catch (JsonParseException | IllegalStateException e) {
+			throw new IOException("The configuration file " + configFile + " could not be read", e);
+		}
+		if (!configJson.has("idpInitURL") && config.getIdPInitURL() != null) {
+			configJson.addProperty("idpInitURL", config.getIdPInitURL().toString());
+		}
+		if (!configJson.has("metadata") && !configJson.has("metadataLocation") && config.getMetadataLocation() != null) {
+			configJson.addProperty("metadataLocation", config.getMetadataLocation());
+		}
+		runRequest.add("idpconfig", configJson);
+		runRequest.addProperty("baseDirectory", configFile.toAbsolutePath().getParent().toString());
+		runRequest.addProperty("metrics", true);
+		runRequest.addProperty("history", true);
+
+		DurationStats durations = DurationStats.load(IdPTestRunner.hasOption("durations") ? Path.of(IdPTestRunner.getOptionValue("durations")) : null, config);
+		List<WorkUnit> units = divide(testcases, durations, IdPTestRunner.hasOption("entities"), workers.size() * shardsPerWorker);
+		IdPTestRunner.startHistoryRun();
+		new Run(runRequest, units, durations, output).execute();
+		durations.save();
+		IdPTestRunner.reportRegressions(testcases);
+	}
+
+	/**
+	 * Divide the test cases into units of work
+	 *
+	 * @param testcases are the test cases that should be run, including the test cases they require
+	 * @param durations are the durations of the test cases in previous runs against the target IdP
+	 * @param perEntity is true if the metadata test cases are evaluated for each entity
+	 * @param shards is the amount of shards into which the entities are divided
+	 * @return the units, with the units that are expected to take the longest first
+	 */
+	static List<WorkUnit> divide(List<TestCaseEntry> testcases, DurationStats durations, boolean perEntity, int shards) {
+		List<TestCaseEntry> entityTCs = new ArrayList<TestCaseEntry>();
+		// group the other test cases with the prerequisites that only they require, using the test case that
+		// represents each group
+		Map<String, String> groupOf = new HashMap<String, String>();
+		Map<String, TestCaseEntry> byName = new LinkedHashMap<String, TestCaseEntry>();
+		for (TestCaseEntry tcEntry : testcases) {
+			if (perEntity && tcEntry.getKind() == TestCaseEntry.Kind.METADATA) {
+				entityTCs.add(tcEntry);
+			}
+			else {
+				byName.put(tcEntry.getName(), tcEntry);
+				groupOf.put(tcEntry.getName(), tcEntry.getName());
+			}
+		}
+		Map<String, Integer> dependents = new HashMap<String, Integer>();
+		for (TestCaseEntry tcEntry : byName.values()) {
+			for (String prerequisite : TestScheduler.getPrerequisites(tcEntry)) {
+				Integer count = dependents.get(prerequisite);
+				dependents.put(prerequisite, count == null ? 1 : count + 1);
+			}
+		}
+		for (TestCaseEntry tcEntry : byName.values()) {
+			for (String prerequisite : TestScheduler.getPrerequisites(tcEntry)) {
+				// a shared prerequisite would put all of its dependents in one unit, so it is run again for each unit
+				if (byName.containsKey(prerequisite) && dependents.get(prerequisite) == 1) {
+					groupOf.put(findGroup(groupOf, prerequisite), findGroup(groupOf, tcEntry.getName()));
+				}
+			}
+		}
+		Map<String, WorkUnit> groups = new LinkedHashMap<String, WorkUnit>();
+		for (TestCaseEntry tcEntry : byName.values()) {
+			String group = findGroup(groupOf, tcEntry.getName());
+			WorkUnit unit = groups.get(group);
+			if (unit == null) {
+				unit = new WorkUnit(groups.size(), 0, 0);
+				groups.put(group, unit);
+			}
+			unit.testcases.add(tcEntry);
+			unit.expectedMillis += durations.getExpected(tcEntry).toMillis();
+		}
+		List<WorkUnit> units = new ArrayList<WorkUnit>(groups.values());
+		Collections.sort(units, new Comparator<WorkUnit>() {
+			@Override
+			public int compare(WorkUnit first, WorkUnit second) {
+				return Long.compare(second.expectedMillis, first.expectedMillis);
+			}
+		});
+		// the shards of the entities are small and can not be predicted, so they fill up the workers at the end
+		if (!entityTCs.isEmpty()) {
+			for (int shard = 0; shard < shards; shard++) {
+				WorkUnit unit = new WorkUnit(groups.size() + shard, shard, shards);
+				unit.testcases.addAll(entityTCs);
+				units.add(unit);
+			}
+		}
+		logger.info("Divided " + testcases.size() + " test cases into " + units.size() + " units" + (entityTCs.isEmpty() ? "" : ", of which " + shards + " are shards of the entities"));
+		return units;
+	}
+
+	private static String findGroup(Map<String, String> groupOf, String name) {
+		String group = name;
+		while (!groupOf.get(group).equals(group)) {
+			group = groupOf.get(group);
+		}
+		groupOf.put(name, group);
+		return group;
+	}
+
+	/**
+	 * Stop the workers that were started by the coordinator
+	 */
+	public void stop() {
+		for (Worker worker : workers) {
+			if (worker.process != null) {
+				// the worker stops its mock SP in its shutdown hook
+				worker.process.destroy();
+			}
+		}
+		for (Worker worker : workers) {
+			if (worker.process != null) {
+				try {
+					if (!worker.process.waitFor(10, TimeUnit.SECONDS)) {
+						worker.process.destroyForcibly();
+					}
+				} catch (InterruptedException e) {
+					worker.process.destroyForcibly();
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A single distributed test run, which hands out the units to the workers
+	 */
+	private class Run {
+		private final JsonObject runRequest;
+		private final List<WorkUnit> units;
+		private final Consumer<TestResult> output;
+		private final ArrayDeque<WorkUnit> pending;
+		private final List<Attempt> running = new ArrayList<Attempt>();
+		private final LinkedBlockingQueue<Attempt> finished = new LinkedBlockingQueue<Attempt>();
+		/**
+		 * Runs the attempts, of which each worker runs at most one at a time
+		 */
+		private final ExecutorService executor = Executors.newFixedThreadPool(workers.size());
+		/**
+		 * The durations of the test cases, to which the durations measured by the workers are added
+		 */
+		private final DurationStats durations;
+		/**
+		 * How long the units that completed took, in milliseconds
+		 */
+		private final List<Long> completedMillis = new ArrayList<Long>();
+		/**
+		 * The results for each entity and the other results of the metadata test cases that were evaluated for each
+		 * entity, by the name of the test case
+		 */
+		private final List<TestResult> entityResults = new ArrayList<TestResult>();
+		private final Map<String, TestResult> entityFallbacks = new HashMap<String, TestResult>();
+		private int backups;
+		private int backupsWon;
+
+		private Run(JsonObject runRequest, List<WorkUnit> units, DurationStats durations, Consumer<TestResult> output) {
+			this.runRequest = runRequest;
+			this.units = units;
+			this.durations = durations;
+			this.output = output;
+			this.pending = new ArrayDeque<WorkUnit>(units);
+		}
+
+		private void execute() {
+			long startNanos = System.nanoTime();
+			for (Worker worker : workers) {
+				worker.resetMetrics();
+			}
+			int remaining = units.size();
+			try {
+				while (remaining > 0) {
+					assignUnits();
+					if (running.isEmpty()) {
+						// all workers stopped, so the remaining units can not be run
+						for (WorkUnit unit : pending) {
+							fail(unit, "No worker was available to run the test case");
+						}
+						break;
+					}
+					Attempt attempt = finished.poll(stragglerCheckMillis, TimeUnit.MILLISECONDS);
+					if (attempt != null && completed(attempt)) {
+						remaining--;
+					}
+				}
+			} catch (InterruptedException e) {
+				logger.error("The distributed test run was interrupted", e);
+				Thread.currentThread().interrupt();
+			} finally {
+				for (Attempt attempt : running) {
+					attempt.cancel();
+				}
+				executor.shutdown();
+				try {
+					// the cancelled attempts wait until their worker confirms that they stopped
+					if (!executor.awaitTermination(stopTimeout, TimeUnit.SECONDS)) {
+						logger.warn("Not all workers confirmed within " + stopTimeout + " seconds that their units stopped");
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			reportEntitySummaries();
+			logger.info("Running the test cases on " + workers.size() + " workers took " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " ms, " + backups + " stragglers were run again of which " + backupsWon + " completed first");
+			for (Worker worker : workers) {
+				logger.info(worker.toString());
+			}
+		}
+
+		/**
+		 * Hand out the pending units to the idle workers, or let them take over the units of stragglers
+		 */
+		private void assignUnits() {
+			for (Worker worker : workers) {
+				if (!worker.alive || worker.busy) {
+					continue;
+				}
+				WorkUnit unit = nextPending(worker);
+				boolean backup = false;
+				if (unit == null) {
+					unit = findStraggler(worker);
+					if (unit == null) {
+						continue;
+					}
+					backup = true;
+					backups++;
+					logger.info("Unit " + unit + " is taking long, so it is also run on " + worker.name);
+				}
+				Attempt attempt = new Attempt(unit, worker, backup);
+				unit.attempts++;
+				unit.running.add(attempt);
+				running.add(attempt);
+				worker.busy = true;
+				executor.execute(attempt);
+			}
+		}
+
+		/**
+		 * Take the next pending unit for a worker, skipping the units that failed on the worker while another worker
+		 * could still run them
+		 *
+		 * @param worker is the idle worker
+		 * @return the unit, or null if there is none for the worker
+		 */
+		private WorkUnit nextPending(Worker worker) {
+			for (Iterator<WorkUnit> iterator = pending.iterator(); iterator.hasNext();) {
+				WorkUnit unit = iterator.next();
+				boolean otherWorker = false;
+				if (unit.failedOn.contains(worker)) {
+					for (Worker other : workers) {
+						otherWorker |= other.alive && !unit.failedOn.contains(other);
+					}
+				}
+				if (!otherWorker) {
+					iterator.remove();
+					return unit;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Find a straggler that an idle worker can take over
+		 *
+		 * @param worker is the idle worker
+		 * @return the unit that has been running the longest, if it is a straggler that is only run on one worker and
+		 * 			did not fail on the idle worker before
+		 */
+		private WorkUnit findStraggler(Worker worker) {
+			long median = -1;
+			if (!completedMillis.isEmpty()) {
+				List<Long> sorted = new ArrayList<Long>(completedMillis);
+				Collections.sort(sorted);
+				median = sorted.get(sorted.size() / 2);
+			}
+			Attempt longest = null;
+			long now = System.nanoTime();
+			for (Attempt attempt : running) {
+				if (attempt.unit.running.size() > 1 || attempt.unit.done || attempt.unit.failedOn.contains(worker)) {
+					continue;
+				}
+				long runningMillis = TimeUnit.NANOSECONDS.toMillis(now - attempt.startNanos);
+				long threshold = Math.max(minStragglerMillis, (long) (stragglerFactor * (median >= 0 ? median : attempt.unit.expectedMillis)));
+				if (runningMillis > threshold && (longest == null || attempt.startNanos < longest.startNanos)) {
+					longest = attempt;
+				}
+			}
+			return longest != null ? longest.unit : null;
+		}
+
+		/**
+		 * Handle an attempt that finished
+		 *
+		 * @param attempt is the attempt
+		 * @return true if its unit is now completed, false if it was completed before or should be attempted again
+		 */
+		private boolean completed(Attempt attempt) {
+			running.remove(attempt);
+			WorkUnit unit = attempt.unit;
+			unit.running.remove(attempt);
+			Worker worker = attempt.worker;
+			worker.busy = false;
+			worker.addMetrics(attempt.metrics);
+			if (unit.done) {
+				return false;
+			}
+			if (attempt.failure == null) {
+				unit.done = true;
+				completedMillis.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - attempt.startNanos));
+				worker.units++;
+				if (attempt.backup) {
+					backupsWon++;
+				}
+				for (Attempt other : unit.running) {
+					other.cancel();
+				}
+				report(unit, attempt.results);
+				for (StoredResult result : attempt.stored) {
+					if (!unit.owns(result.getTestcase())) {
+						// a shared prerequisite that is stored by its own unit
+						continue;
+					}
+					if (result.isTimed()) {
+						durations.record(result.getTestcase(), Duration.ofMillis(result.getDurationMillis()));
+					}
+					IdPTestRunner.recordHistory(result);
+				}
+				return true;
+			}
+			logger.warn("Unit " + unit + " failed on " + worker.name + ": " + attempt.failure);
+			unit.failedOn.add(worker);
+			if (worker.process != null ? !worker.process.isAlive() : !isAvailable(worker)) {
+				logger.error(worker.name + " stopped, so it is not used for the rest of the run" + (worker.log != null ? ", see " + worker.log : ""));
+				worker.alive = false;
+			}
+			if (!unit.running.isEmpty()) {
+				// another attempt may still complete the unit
+				return false;
+			}
+			if (unit.attempts < maxAttempts) {
+				pending.addFirst(unit);
+				return false;
+			}
+			fail(unit, "The test case could not be run on any worker: " + attempt.failure);
+			return true;
+		}
+
+		/**
+		 * Pass the results of a completed unit to the output
+		 */
+		private void report(WorkUnit unit, List<TestResult> results) {
+			if (unit.shards == 0) {
+				for (TestResult result : results) {
+					// the worker also sends the results of the shared prerequisites it ran again
+					if (unit.owns(result.getName())) {
+						output.accept(result);
+					}
+				}
+				return;
+			}
+			// the worker also runs the prerequisites of the metadata test cases and summarizes its own shard, so only
+			// the results for each entity are used, and the others in case the test case was not evaluated at all
+			for (TestResult result : results) {
+				if (result instanceof EntityTestResult) {
+					entityResults.add(result);
+					output.accept(result);
+				}
+				else if (result.getName() != null && !entityFallbacks.containsKey(result.getName())) {
+					entityFallbacks.put(result.getName(), result);
+				}
+			}
+		}
+
+		/**
+		 * Summarize the results for each entity across all shards, like a single test runner does
+		 */
+		private void reportEntitySummaries() {
+			List<TestCaseEntry> entityTCs = null;
+			for (WorkUnit unit : units) {
+				if (unit.shards > 0) {
+					entityTCs = unit.testcases;
+				}
+			}
+			if (entityTCs == null) {
+				return;
+			}
+			List<TestCaseEntry> evaluated = new ArrayList<TestCaseEntry>();
+			int entityCount = 0;
+			for (TestCaseEntry tcEntry : entityTCs) {
+				int count = 0;
+				for (TestResult result : entityResults) {
+					if (((EntityTestResult) result).getTestcase().equals(tcEntry.getName())) {
+						count++;
+					}
+				}
+				if (count > 0) {
+					evaluated.add(tcEntry);
+					entityCount = Math.max(entityCount, count);
+				}
+				else if (entityFallbacks.containsKey(tcEntry.getName())) {
+					// e.g. the test case was skipped, because one of its prerequisites failed
+					output.accept(entityFallbacks.get(tcEntry.getName()));
+				}
+			}
+			for (TestResult summary : EntityMetadataEvaluator.summarize(evaluated, entityResults, entityCount)) {
+				output.accept(summary);
+			}
+		}
+
+		/**
+		 * Report the test cases of a unit that could not be run
+		 */
+		private void fail(WorkUnit unit, String message) {
+			unit.done = true;
+			for (TestCaseEntry tcEntry : unit.testcases) {
+				TestResult result = new TestResult(TestStatus.CRITICAL, message);
+				result.setName(tcEntry.getName() + (unit.shards > 0 ? " (shard " + unit.shard + " of " + unit.shards + ")" : ""));
+				output.accept(result);
+			}
+		}
+
+		/**
+		 * Runs a unit on a worker, collecting its results and metrics
+		 */
+		private class Attempt implements Runnable {
+			private final WorkUnit unit;
+			private final Worker worker;
+			private final boolean backup;
+			private final long startNanos = System.nanoTime();
+			/**
+			 * Identifies the attempt on its worker, so it can be cancelled there
+			 */
+			private final String runId = UUID.randomUUID().toString();
+			private final List<TestResult> results = new ArrayList<TestResult>();
+			/**
+			 * The results that the worker would have stored in the history
+			 */
+			private final List<StoredResult> stored = new ArrayList<StoredResult>();
+			private JsonObject metrics;
+			/**
+			 * Describes why the attempt failed, or null if it completed
+			 */
+			private String failure;
+			private volatile boolean cancelled;
+			private volatile InputStream stream;
+
+			private Attempt(WorkUnit unit, Worker worker, boolean backup) {
+				this.unit = unit;
+				this.worker = worker;
+				this.backup = backup;
+			}
+
+			@Override
+			public void run() {
+				try {
+					JsonObject request = new JsonObject();
+					for (Map.Entry<String, JsonElement> property : runRequest.entrySet()) {
+						request.add(property.getKey(), property.getValue());
+					}
+					JsonArray names = new JsonArray();
+					for (TestCaseEntry tcEntry : unit.testcases) {
+						names.add(new JsonPrimitive(tcEntry.getName()));
+					}
+					request.add("testcases", names);
+					request.addProperty("runId", runId);
+					if (unit.shards > 0) {
+						request.addProperty("entityShard", unit.shard);
+						request.addProperty("entityShards", unit.shards);
+					}
+					HttpRequest httpRequest = HttpRequest.newBuilder(worker.api.resolve("runs"))
+							.header("Content-Type", "application/json")
+							.POST(HttpRequest.BodyPublishers.ofString(gson.toJson(request), StandardCharsets.UTF_8))
+							.build();
+					HttpResponse<InputStream> response = client.send(httpRequest, HttpResponse.BodyHandlers.ofInputStream());
+					stream = response.body();
+					if (cancelled) {
+						stream.close();
+					}
+					try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+						if (response.statusCode() != 200) {
+							failure = "HTTP " + response.statusCode() + " " + reader.readLine();
+							return;
+						}
+						String line;
+						while ((line = reader.readLine()) != null) {
+							JsonObject json = new JsonParser().parse(line).getAsJsonObject();
+							if (json.has("metrics")) {
+								metrics = json.getAsJsonObject("metrics");
+								continue;
+							}
+							if (json.has("history")) {
+								stored.add(gson.fromJson(json.get("history"), StoredResult.class));
+								continue;
+							}
+							TestResult result = gson.fromJson(json, json.has("entity") ? EntityTestResult.class : TestResult.class);
+							if (result.getName() == null) {
+								// the worker could not run the test cases at all, e.g. because its mock SP could not start
+								failure = gson.toJson(json);
+								return;
+							}
+							results.add(result);
+						}
+					}
+					if (metrics == null) {
+						failure = "The worker stopped sending results before the unit was completed";
+					}
+				} catch (IOException | JsonParseException | IllegalStateException e) {
+					failure = cancelled ? "Cancelled" : e.toString();
+				} catch (InterruptedException e) {
+					failure = "Interrupted";
+					Thread.currentThread().interrupt();
+				} finally {
+					if (failure != null) {
+						// the worker may still be running the unit, so it is only idle once it confirmed that it stopped
+						stopOnWorker();
+					}
+					finished.add(this);
+				}
+			}
+
+			/**
+			 * Cancel the attempt on its worker and wait until the worker confirms that it stopped, or is not reachable
+			 */
+			private void stopOnWorker() {
+				HttpRequest request = HttpRequest.newBuilder(worker.api.resolve("runs/" + runId)).DELETE().build();
+				long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(stopTimeout);
+				try {
+					while (true) {
+						int status = client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+						if (status == 204 || status == 404) {
+							return;
+						}
+						if (status != 202) {
+							logger.warn(worker.name + " could not cancel unit " + unit + ": HTTP " + status);
+							return;
+						}
+						if (System.nanoTime() - deadline > 0) {
+							// the worker would never become idle again, so it is not used for the rest of the run
+							logger.error(worker.name + " did not stop unit " + unit + " within " + stopTimeout + " seconds, so it is not used for the rest of the run");
+							worker.alive = false;
+							return;
+						}
+						logger.info("Waiting for " + worker.name + " to stop unit " + unit);
+					}
+				} catch (IOException e) {
+					// the worker is not reachable, which is noticed when the attempt is handled
+					logger.debug("Could not cancel unit " + unit + " on " + worker.name, e);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			/**
+			 * Stop waiting for the results. The attempt then also cancels the unit on its worker before it finishes.
+			 */
+			private void cancel() {
+				cancelled = true;
+				InputStream current = stream;
+				if (current != null) {
+					try {
+						current.close();
+					} catch (IOException e) {
+						logger.debug("Could not close the results of a cancelled unit", e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * A group of test cases that is run on a single worker
+	 */
+	static class WorkUnit {
+		private final int id;
+		private final List<TestCaseEntry> testcases = new ArrayList<TestCaseEntry>();
+		/**
+		 * The shard of the entities for which the metadata test cases are evaluated, and the amount of shards, or 0 if
+		 * the unit does not evaluate them for each entity
+		 */
+		private final int shard;
+		private final int shards;
+		private long expectedMillis;
+		private int attempts;
+		private boolean done;
+		/**
+		 * The workers on which an attempt of the unit failed
+		 */
+		private final Set<Worker> failedOn = new HashSet<Worker>();
+		/**
+		 * The attempts that are still running
+		 */
+		private final List<Run.Attempt> running = new ArrayList<Run.Attempt>();
+
+		private WorkUnit(int id, int shard, int shards) {
+			this.id = id;
+			this.shard = shard;
+			this.shards = shards;
+		}
+
+		/**
+		 * @return the test cases of the unit, without the shared prerequisites that the worker runs again
+		 */
+		List<TestCaseEntry> getTestCases() {
+			return testcases;
+		}
+
+		/**
+		 * Check if a result belongs to the unit, instead of to a shared prerequisite that the worker ran again
+		 *
+		 * @param name is the name of the test case of the result
+		 * @return true if the unit reports the result
+		 */
+		private boolean owns(String name) {
+			if (shards > 0) {
+				return true;
+			}
+			for (TestCaseEntry tcEntry : testcases) {
+				if (tcEntry.getName().equals(name)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public String toString() {
+			List<String> names = new ArrayList<String>();
+			for (TestCaseEntry tcEntry : testcases) {
+				names.add(tcEntry.getName());
+			}
+			return id + " " + names + (shards > 0 ? " for shard " + shard + " of " + shards + " of the entities" : "");
+		}
+	}
+
+	/**
+	 * A test runner that runs units of work
+	 */
+	private static class Worker {
+		private final String name;
+		/**
+		 * The base URL of the HTTP API of the worker
+		 */
+		private final URI api;
+		/**
+		 * The JVM of the worker, or null if it was not started by the coordinator
+		 */
+		private final Process process;
+		private final File log;
+		private boolean alive = true;
+		private boolean busy;
+		private int units;
+		private int results;
+		private int sessions;
+		private long duplicateIDs;
+		private long runMillis;
+
+		private Worker(String name, URI api, Process process, File log) {
+			this.name = name;
+			this.api = api;
+			this.process = process;
+			this.log = log;
+		}
+
+		private void resetMetrics() {
+			units = 0;
+			results = 0;
+			sessions = 0;
+			duplicateIDs = 0;
+			runMillis = 0;
+		}
+
+		/**
+		 * Add the metrics that the worker sent for a unit, if any
+		 */
+		private void addMetrics(JsonObject metrics) {
+			if (metrics == null) {
+				return;
+			}
+			results += metrics.get("results").getAsInt();
+			sessions += metrics.get("sessions").getAsInt();
+			if (metrics.has("duplicateIDs")) {
+				duplicateIDs += metrics.get("duplicateIDs").getAsLong();
+			}
+			runMillis += metrics.get("durationMillis").getAsLong();
+		}
+
+		@Override
+		public String toString() {
+			return name + (process != null ? " (" + api + ")" : "") + ": completed " + units + " units, sent " + results + " results, opened " + sessions + " sessions, received " + duplicateIDs + " duplicate IDs, was running units for " + runMillis + " ms" + (alive ? "" : ", stopped");
+		}
+	}
+}
@@ -0,0 +1,481 @@
+package saml2webssotest.idp;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.xml.ConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import saml2webssotest.common.TestResult;
+import saml2webssotest.common.TestStatus;
+import saml2webssotest.idp.history.StoredResult;
+import saml2webssotest.idp.mockSPHandlers.ReplayDetector;
+import saml2webssotest.idp.registry.TestCaseEntry;
+import saml2webssotest.idp.registry.TestCaseRegistry;
+import saml2webssotest.idp.registry.TestSuiteEntry;
+import saml2webssotest.idp.testsuites.IdPTestSuite;
+
+/**
+ * Keeps the test runner running and accepts test runs over a local HTTP API.
+ *
+ * This avoids the cost of starting a new JVM, bootstrapping OpenSAML and starting the mock SP for every test run. The
+ * mock SPs, the test suites (with their credentials) and the HTTP login driver (with its login plans) are kept for
+ * all subsequent runs. The API only listens on the loopback interface and provides the following endpoints:
+ *
+ * - GET /testsuites: lists the test suites in the test case index and their test cases, as JSON
+ * - POST /runs: runs test cases. The request body is a JSON object containing the "testsuite", optionally the
+ *   "testcases" that should be run (all test cases are run if omitted) and either the "idpconfig" object (in the same
+ *   format as targetIdP.json) or the path of that file in "idpconfigFile". The results are streamed back as
+ *   newline-delimited JSON, one test result per line, as soon as each test case has been run. Relative file paths in
+ *   an "idpconfig" object are resolved against its "baseDirectory", if provided. When "entityShards" is provided,
+ *   the metadata test cases are only evaluated for each entity in the shard "entityShard" of the metadata (see
+ *   {@link EntityMetadataEvaluator#setShard(int, int)}). When "metrics" is true, the results are followed by a line
+ *   containing a "metrics" object that describes the run. When "history" is true, the result that would be stored in
+ *   the history (see {@link StoredResult}) is sent as well for each test case that was run, on a line containing a
+ *   "history" object. A run is identified by its "runId", which is generated if the request does not contain one
+ *   and is returned in the Run-Id header.
+ * - DELETE /runs/{runId}: cancels a run. A run that is being executed stops after the test cases that are running
+ *   at that moment, and a run that is waiting for an earlier run is not started at all. The response is only sent
+ *   once the run has stopped (204), or after {@value #cancelTimeout} seconds if it is still stopping (202), so the
+ *   request can be repeated until the run has stopped. A run that is unknown or was completed already gives 404.
+ * - GET /metrics: describes the IDs that the mock SP received so far (see {@link ReplayDetector}), as JSON. This can
+ *   be polled during a run, e.g. to notice an IdP that reuses IDs while it is under load.
+ *
+ * Since the test runner can only run a single test suite against a single IdP at the same time, the runs are
+ * executed one after the other.
+ *
+ * @author RiaasM
+ *
+ */
+public class TestDaemon {
+	/**
+	 * Logger for this class
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(TestDaemon.class);
+	private static final String apiHost = "127.0.0.1";
+	/**
+	 * The maximum amount of seconds that a request to cancel a run waits until the run has stopped
+	 */
+	private static final int cancelTimeout = 30;
+	private final int port;
+	private final Gson gson = new Gson();
+	/**
+	 * The server providing the HTTP API
+	 */
+	private Server apiServer;
+	/**
+	 * The mock SPs that are running, by the port they listen on
+	 */
+	private final Map<Integer, Server> mockSPs = new HashMap<Integer, Server>();
+	/**
+	 * The test suites that were used before, by their name
+	 */
+	private final Map<String, IdPTestSuite> testsuites = new HashMap<String, IdPTestSuite>();
+	/**
+	 * Ensures that only one run is executed at the same time
+	 */
+	private final Object runLock = new Object();
+	/**
+	 * The runs that are being executed or are waiting to be executed, by their ID. Each run releases its latch once it
+	 * has stopped.
+	 */
+	private final Map<String, CountDownLatch> activeRuns = new ConcurrentHashMap<String, CountDownLatch>();
+	/**
+	 * The runs that were cancelled and have not stopped yet, by their ID
+	 */
+	private final Set<String> cancelledRuns = ConcurrentHashMap.newKeySet();
+	/**
+	 * The ID of the run that is being executed, or null. Guarded by the cancel lock, so a run that is cancelled just
+	 * as it starts is not missed.
+	 */
+	private String currentRun;
+	private final Object cancelLock = new Object();
+
+	/**
+	 * @param port is the port on which the HTTP API should listen
+	 */
+	public TestDaemon(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * Start the HTTP API
+	 *
+	 * @throws Exception if the HTTP API could not be started
+	 */
+	public void start() throws Exception {
+		try {
+			// bootstrap OpenSAML once, instead of for each run
+			DefaultBootstrap.bootstrap();
+		} catch (ConfigurationException e) {
+			logger.error("Could not bootstrap OpenSAML", e);
+		}
+		IdPTestRunner.initLoginDriver();
+
+		if (IdPTestRunner.hasOption("virtualthreads")) {
+			apiServer = new Server(new VirtualThreadPool());
+		}
+		else {
+			apiServer = new Server();
+		}
+		ServerConnector connector = new ServerConnector(apiServer);
+		connector.setHost(apiHost);
+		connector.setPort(port);
+		apiServer.addConnector(connector);
+		apiServer.setHandler(new ApiHandler());
+		apiServer.start();
+		logger.info("Accepting test runs on http://" + apiHost + ":" + port + "/runs");
+	}
+
+	/**
+	 * Wait until the HTTP API has stopped
+	 *
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	public void join() throws InterruptedException {
+		apiServer.join();
+	}
+
+	/**
+	 * Stop the HTTP API and all mock SPs
+	 */
+	public void stop() {
+		try {
+			if (apiServer != null && apiServer.isStarted()) {
+				apiServer.stop();
+			}
+		} catch (Exception e) {
+			logger.error("The HTTP API could not be stopped", e);
+		}
+		synchronized (runLock) {
+			for (Server mockSP : mockSPs.values()) {
+				try {
+					mockSP.stop();
+				} catch (Exception e) {
+					logger.error("The mock SP could not be stopped", e);
+				}
+			}
+			mockSPs.clear();
+		}
+	}
+
+	/**
+	 * Run the test cases, making sure the mock SP for the test suite and its SP entities is running. Must be called while holding the
+	 * run lock.
+	 *
+	 * @param suiteEntry is the test suite containing the test cases
+	 * @param config is the configuration of the target IdP
+	 * @param testcases are the test cases that should be run
+	 * @param shard is the shard of the entities for which the metadata test cases are evaluated
+	 * @param shards is the amount of shards, or 0 if the entities are not divided in shards
+	 * @param output receives the result of each test case
+	 * @throws Exception if the mock SP could not be started
+	 */
+	private void run(TestSuiteEntry suiteEntry, IdPConfiguration config, List<TestCaseEntry> testcases, int shard, int shards, Consumer<TestResult> output) throws Exception {
+		IdPTestSuite testsuite = testsuites.get(suiteEntry.getName());
+		if (testsuite == null) {
+			testsuite = suiteEntry.newTestSuite();
+			testsuites.put(suiteEntry.getName(), testsuite);
+		}
+		// the SP entities in the configuration may be hosted on other ports than the test suite's mock SP, and the SP 
+		// entities on the same port must share its server
+		Map<Integer, List<URL>> missing = new HashMap<Integer, List<URL>>();
+		for (URL mockSPURL : IdPTestRunner.getMockSPURLs(testsuite, config)) {
+			int port = mockSPURL.getPort() != -1 ? mockSPURL.getPort() : mockSPURL.getDefaultPort();
+			if (!mockSPs.containsKey(port)) {
+				if (!missing.containsKey(port)) {
+					missing.put(port, new ArrayList<URL>());
+				}
+				missing.get(port).add(mockSPURL);
+			}
+		}
+		for (Map.Entry<Integer, List<URL>> portURLs : missing.entrySet()) {
+			Server mockSP = IdPTestRunner.createMockSP(portURLs.getValue(), testsuite.getX509Credentials(null));
+			mockSP.start();
+			mockSPs.put(portURLs.getKey(), mockSP);
+			logger.info("Started the mock SP on port " + portURLs.getKey());
+		}
+		IdPTestRunner.runTestCases(testsuite, config, testcases, shard, shards, output);
+	}
+
+	/**
+	 * Handles the requests to the HTTP API
+	 */
+	private class ApiHandler extends AbstractHandler {
+
+		@Override
+		public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+			baseRequest.setHandled(true);
+			if (target.equals("/testsuites") && request.getMethod().equals("GET")) {
+				listTestSuites(response);
+			}
+			else if (target.equals("/runs") && request.getMethod().equals("POST")) {
+				handleRun(request, response);
+			}
+			else if (target.startsWith("/runs/") && request.getMethod().equals("DELETE")) {
+				cancelRun(target.substring("/runs/".length()), response);
+			}
+			else if (target.equals("/metrics") && request.getMethod().equals("GET")) {
+				sendMetrics(response);
+			}
+			else {
+				sendError(response, HttpServletResponse.SC_NOT_FOUND, "Unknown endpoint: " + request.getMethod() + " " + target);
+			}
+		}
+
+		private void listTestSuites(HttpServletResponse response) throws IOException {
+			JsonArray suites = new JsonArray();
+			for (TestSuiteEntry suiteEntry : TestCaseRegistry.getIndexedTestSuites()) {
+				JsonArray testcases = new JsonArray();
+				for (TestCaseEntry tcEntry : suiteEntry.getTestCases()) {
+					JsonObject testcase = new JsonObject();
+					testcase.addProperty("name", tcEntry.getName());
+					testcase.addProperty("kind", tcEntry.getKind().toString());
+					testcases.add(testcase);
+				}
+				JsonObject suite = new JsonObject();
+				suite.addProperty("name", suiteEntry.getName());
+				suite.add("testcases", testcases);
+				suites.add(suite);
+			}
+			response.setContentType("application/json");
+			response.getWriter().print(gson.toJson(suites));
+		}
+
+		private void sendMetrics(HttpServletResponse response) throws IOException {
+			JsonObject metrics = new JsonObject();
+			ReplayDetector detector = IdPTestRunner.getReplayDetector();
+			if (detector != null) {
+				JsonObject replay = new JsonObject();
+				replay.addProperty("messages", detector.getMessageCount());
+				replay.addProperty("ids", detector.getIDCount());
+				replay.addProperty("duplicateIDs", detector.getDuplicateCount());
+				replay.addProperty("bloomHits", detector.getBloomHitCount());
+				replay.addProperty("falsePositives", detector.getFalsePositiveCount());
+				replay.addProperty("rememberedIDs", detector.getRememberedIDs());
+				replay.addProperty("rememberedMillis", detector.getRememberedMillis());
+				replay.addProperty("windowMillis", detector.getWindowMillis());
+				replay.addProperty("earlyRotations", detector.getEarlyRotationCount());
+				replay.addProperty("offHeapBytes", detector.getMemoryBytes());
+				metrics.add("replay", replay);
+			}
+			metrics.addProperty("sessions", IdPTestRunner.getOpenedSessions());
+			response.setContentType("application/json");
+			response.getWriter().print(gson.toJson(metrics));
+		}
+
+		private void handleRun(HttpServletRequest request, HttpServletResponse response) throws IOException {
+			TestSuiteEntry suiteEntry;
+			List<TestCaseEntry> testcases;
+			IdPConfiguration config;
+			int shard = 0;
+			int shards = 0;
+			boolean metrics;
+			boolean sendHistory;
+			String runId;
+			try {
+				JsonObject runRequest = new JsonParser().parse(request.getReader()).getAsJsonObject();
+				if (!runRequest.has("testsuite")) {
+					sendError(response, HttpServletResponse.SC_BAD_REQUEST, "The run request must contain a testsuite");
+					return;
+				}
+				suiteEntry = IdPTestRunner.findTestSuite(runRequest.get("testsuite").getAsString());
+				List<String> tcNames = new ArrayList<String>();
+				if (runRequest.has("testcases")) {
+					for (JsonElement tcName : runRequest.getAsJsonArray("testcases")) {
+						tcNames.add(tcName.getAsString());
+					}
+				}
+				testcases = IdPTestRunner.selectTestCases(suiteEntry, tcNames);
+				if (runRequest.has("idpconfig")) {
+					config = IdPTestRunner.createConfigGson().fromJson(runRequest.get("idpconfig"), IdPConfiguration.class);
+					if (runRequest.has("baseDirectory")) {
+						config.setBaseDirectory(Paths.get(runRequest.get("baseDirectory").getAsString()));
+					}
+				}
+				else if (runRequest.has("idpconfigFile")) {
+					Path configFile = Paths.get(runRequest.get("idpconfigFile").getAsString());
+					config = IdPTestRunner.createConfigGson().fromJson(Files.newBufferedReader(configFile, Charset.defaultCharset()), IdPConfiguration.class);
+					config.setBaseDirectory(configFile.toAbsolutePath().getParent());
+				}
+				else {
+					sendError(response, HttpServletResponse.SC_BAD_REQUEST, "The run request must contain an idpconfig or idpconfigFile");
+					return;
+				}
+				if (runRequest.has("entityShards")) {
+					shards = runRequest.get("entityShards").getAsInt();
+					shard = runRequest.has("entityShard") ? runRequest.get("entityShard").getAsInt() : 0;
+					if (shards < 1 || shard < 0 || shard >= shards) {
+						sendError(response, HttpServletResponse.SC_BAD_REQUEST, "The entityShard must be between 0 and the entityShards");
+						return;
+					}
+				}
+				metrics = runRequest.has("metrics") && runRequest.get("metrics").getAsBoolean();
+				sendHistory = runRequest.has("history") && runRequest.get("history").getAsBoolean();
+				runId = runRequest.has("runId") ? runRequest.get("runId").getAsString() : UUID.randomUUID().toString();
+			} catch (ClassNotFoundException e) {
+				sendError(response, HttpServletResponse.SC_NOT_FOUND, "Could not find " + e.getMessage());
+				return;
+			} catch (JsonParseException | IllegalStateException | ClassCastException e) {
+				sendError(response, HttpServletResponse.SC_BAD_REQUEST, "The run request is not valid: " + e.getMessage());
+				return;
+			}
+
+			final CountDownLatch stopped = new CountDownLatch(1);
+			if (activeRuns.putIfAbsent(runId, stopped) != null) {
+				sendError(response, HttpServletResponse.SC_CONFLICT, "A run with the ID " + runId + " is already active");
+				return;
+			}
+			try {
+				executeRun(runId, suiteEntry, config, testcases, shard, shards, metrics, sendHistory, response);
+			} finally {
+				activeRuns.remove(runId);
+				cancelledRuns.remove(runId);
+				stopped.countDown();
+			}
+		}
+
+		/**
+		 * Execute a run once the runs before it have stopped, streaming its results to the client
+		 */
+		private void executeRun(String runId, TestSuiteEntry suiteEntry, IdPConfiguration config, List<TestCaseEntry> testcases, int shard, int shards, boolean metrics, boolean sendHistory, HttpServletResponse response) throws IOException {
+			// stream each result to the client as soon as it is available
+			response.setHeader("Run-Id", runId);
+			response.setContentType("application/x-ndjson");
+			response.setCharacterEncoding("UTF-8");
+			final PrintWriter writer = response.getWriter();
+			final AtomicInteger results = new AtomicInteger();
+			Consumer<TestResult> output = new Consumer<TestResult>() {
+				@Override
+				public void accept(TestResult result) {
+					results.incrementAndGet();
+					writer.println(gson.toJson(result));
+					writer.flush();
+					if (writer.checkError()) {
+						throw new UncheckedIOException(new IOException("The client closed the connection"));
+					}
+				}
+			};
+			synchronized (runLock) {
+				synchronized (cancelLock) {
+					if (cancelledRuns.contains(runId)) {
+						logger.info("The run " + runId + " was cancelled before it started");
+						return;
+					}
+					currentRun = runId;
+					IdPTestRunner.resetCancellation();
+				}
+				if (sendHistory) {
+					IdPTestRunner.setHistoryListener(new Consumer<StoredResult>() {
+						@Override
+						public void accept(StoredResult result) {
+							JsonObject line = new JsonObject();
+							line.add("history", gson.toJsonTree(result));
+							writer.println(gson.toJson(line));
+							writer.flush();
+						}
+					});
+				}
+				logger.info("Running " + testcases.size() + " test cases from " + suiteEntry.getName() + " as run " + runId);
+				long startNanos = System.nanoTime();
+				try {
+					run(suiteEntry, config, testcases, shard, shards, output);
+					if (metrics) {
+						JsonObject runMetrics = new JsonObject();
+						runMetrics.addProperty("durationMillis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+						runMetrics.addProperty("results", results.get());
+						runMetrics.addProperty("sessions", IdPTestRunner.getOpenedSessions());
+						runMetrics.addProperty("duplicateIDs", IdPTestRunner.getReplayDetector().getDuplicateCount());
+						JsonObject line = new JsonObject();
+						line.add("metrics", runMetrics);
+						writer.println(gson.toJson(line));
+						writer.flush();
+					}
+				} catch (UncheckedIOException e) {
+					logger.warn("The test run was aborted because its results could not be sent", e);
+				} catch (Exception e) {
+					logger.error("The test run failed", e);
+					TestResult failure = new TestResult(TestStatus.CRITICAL, "The test run failed: " + e.getMessage());
+					writer.println(gson.toJson(failure));
+					writer.flush();
+				} finally {
+					IdPTestRunner.setHistoryListener(null);
+					synchronized (cancelLock) {
+						currentRun = null;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Cancel a run and wait until it has stopped
+		 */
+		private void cancelRun(String runId, HttpServletResponse response) throws IOException {
+			CountDownLatch stopped = activeRuns.get(runId);
+			if (stopped == null) {
+				sendError(response, HttpServletResponse.SC_NOT_FOUND, "The run " + runId + " is not active");
+				return;
+			}
+			synchronized (cancelLock) {
+				cancelledRuns.add(runId);
+				if (runId.equals(currentRun)) {
+					IdPTestRunner.cancelRun();
+				}
+			}
+			logger.info("Cancelling the run " + runId);
+			try {
+				if (stopped.await(cancelTimeout, TimeUnit.SECONDS)) {
+					response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+				}
+				else {
+					sendError(response, HttpServletResponse.SC_ACCEPTED, "The run " + runId + " is still stopping");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				sendError(response, HttpServletResponse.SC_ACCEPTED, "The run " + runId + " is still stopping");
+			}
+		}
+
+		private void sendError(HttpServletResponse response, int status, String message) throws IOException {
+			JsonObject error = new JsonObject();
+			error.addProperty("error", message);
+			response.setStatus(status);
+			response.setContentType("application/json");
+			response.getWriter().print(gson.toJson(error));
+		}
+	}
+}
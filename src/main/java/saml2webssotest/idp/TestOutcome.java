@@ -0,0 +1,183 @@
+package saml2webssotest.idp;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import saml2webssotest.common.TestStatus;
+
+/**
+ * The immutable outcome of running a test case once.
+ *
+ * It contains the status and message of the test, the evidence that led to that status (e.g. the offending values
+ * from the metadata) and, once the test runner has run the test, when it started and how long it took. Since the
+ * outcome is returned instead of being stored in the test case, a single test case instance can be run concurrently
+ * for many messages or entities. Response test cases also record how long each phase of the login took, e.g. logging
+ * in and waiting for the response, and the latency and faults that the fault injection proxy injected while the test
+ * ran.
+ *
+ * An outcome can also record that the test case was skipped because one of its prerequisites failed. Since the test
+ * statuses are defined in the common library, a skipped test case is reported with the INFORMATION status and a
+ * message that starts with "Skipped".
+ *
+ * @author RiaasM
+ *
+ */
+public final class TestOutcome {
+	private final TestStatus status;
+	private final String message;
+	private final List<String> evidence;
+	/**
+	 * When the test started, or null if it was not timed
+	 */
+	private final Instant started;
+	/**
+	 * How long the test took, or null if it was not timed
+	 */
+	private final Duration duration;
+	/**
+	 * How long each phase of the test took, in the order in which they were run
+	 */
+	private final Map<String, Duration> phases;
+	/**
+	 * What the fault injection proxy injected while the test ran, by the name of the statistic
+	 */
+	private final Map<String, Long> injected;
+	/**
+	 * Whether the test case was skipped instead of run
+	 */
+	private final boolean skipped;
+
+	/**
+	 * @param status is the status of the test
+	 * @param message describes why the test has this status
+	 */
+	public TestOutcome(TestStatus status, String message) {
+		this(status, message, Collections.<String>emptyList(), null, null, Collections.<String, Duration>emptyMap(), Collections.<String, Long>emptyMap(), false);
+	}
+
+	private TestOutcome(TestStatus status, String message, List<String> evidence, Instant started, Duration duration, Map<String, Duration> phases, Map<String, Long> injected, boolean skipped) {
+		this.status = status;
+		this.message = message;
+		this.evidence = evidence;
+		this.started = started;
+		this.duration = duration;
+		this.phases = phases;
+		this.injected = injected;
+		this.skipped = skipped;
+	}
+
+	/**
+	 * Create the outcome for a test case that was not run because one of its prerequisites failed
+	 *
+	 * @param prerequisite is the prerequisite that failed
+	 * @param reason describes why the prerequisite failed
+	 * @return the new outcome
+	 */
+	public static TestOutcome skipped(String prerequisite, String reason) {
+		return new TestOutcome(TestStatus.INFORMATION, "Skipped, because the prerequisite " + prerequisite + " failed: " + reason,
+				Collections.<String>emptyList(), null, null, Collections.<String, Duration>emptyMap(), Collections.<String, Long>emptyMap(), true);
+	}
+
+	/**
+	 * Create a copy of this outcome with additional evidence
+	 *
+	 * @param items are descriptions of what was found, e.g. the offending values
+	 * @return the new outcome
+	 */
+	public TestOutcome withEvidence(String... items) {
+		List<String> combined = new ArrayList<String>(evidence);
+		combined.addAll(Arrays.asList(items));
+		return new TestOutcome(status, message, Collections.unmodifiableList(combined), started, duration, phases, injected, skipped);
+	}
+
+	/**
+	 * Create a copy of this outcome with the time it took to run the test
+	 *
+	 * @param started is when the test started
+	 * @param duration is how long the test took
+	 * @return the new outcome
+	 */
+	public TestOutcome withTiming(Instant started, Duration duration) {
+		return new TestOutcome(status, message, evidence, started, duration, phases, injected, skipped);
+	}
+
+	/**
+	 * Create a copy of this outcome with the time that each phase of the test took
+	 *
+	 * @param phases contains how long each phase took, by the name of the phase
+	 * @return the new outcome
+	 */
+	public TestOutcome withPhases(Map<String, Duration> phases) {
+		return new TestOutcome(status, message, evidence, started, duration, Collections.unmodifiableMap(new LinkedHashMap<String, Duration>(phases)), injected, skipped);
+	}
+
+	/**
+	 * Create a copy of this outcome with what the fault injection proxy injected while the test ran
+	 *
+	 * @param injected contains the statistics of the proxy, by their name
+	 * @return the new outcome
+	 */
+	public TestOutcome withInjected(Map<String, Long> injected) {
+		return new TestOutcome(status, message, evidence, started, duration, phases, Collections.unmodifiableMap(new LinkedHashMap<String, Long>(injected)), skipped);
+	}
+
+	public TestStatus getStatus() {
+		return status;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public List<String> getEvidence() {
+		return evidence;
+	}
+
+	/**
+	 * @return when the test started, or null if it was not timed
+	 */
+	public Instant getStarted() {
+		return started;
+	}
+
+	/**
+	 * @return how long the test took, or null if it was not timed
+	 */
+	public Duration getDuration() {
+		return duration;
+	}
+
+	/**
+	 * @return how long each phase of the test took, by the name of the phase, which is empty if the phases were not
+	 * 			timed
+	 */
+	public Map<String, Duration> getPhases() {
+		return phases;
+	}
+
+	/**
+	 * @return what the fault injection proxy injected while the test ran, by the name of the statistic, which is empty
+	 * 			if nothing went through the proxy
+	 */
+	public Map<String, Long> getInjected() {
+		return injected;
+	}
+
+	/**
+	 * @return true if the test case was skipped because one of its prerequisites failed
+	 */
+	public boolean isSkipped() {
+		return skipped;
+	}
+
+	@Override
+	public String toString() {
+		return status + ": " + message + (evidence.isEmpty() ? "" : " " + evidence);
+	}
+}
@@ -0,0 +1,435 @@
+package saml2webssotest.idp;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import javax.net.ssl.SSLException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+
+import saml2webssotest.common.TestStatus;
+import saml2webssotest.common.standardNames.MD;
+import saml2webssotest.idp.registry.TestCaseEntry;
+import saml2webssotest.idp.testsuites.IdPTestSuite.Requires;
+
+/**
+ * Determines the order in which test cases are run, based on the prerequisites they declare with {@link Requires}.
+ *
+ * The test cases form a directed acyclic graph, in which each test case comes after the test cases it requires.
+ * Otherwise, the test cases keep the order in which they were declared. Before a test case is run, the test runner
+ * asks the scheduler which of its prerequisites failed, so the test case can be skipped. A prerequisite fails when:
+ *
+ * - it is a test case that failed (with ERROR or CRITICAL status) or was skipped itself
+ * - it is a condition on the target IdP that does not hold. Each condition is only checked once per run.
+ * - it is unknown, i.e. neither a condition nor a test case that is run
+ * - it is part of a cycle of prerequisites
+ *
+ * A response test case that requires {@link Requires#LOGIN_REACHABLE} and could not be completed (CRITICAL status)
+ * also fails that condition, so the remaining response test cases do not go through the same failing login.
+ *
+ * When the test cases are run by multiple workers, they can be prioritized by their expected durations. Each test case
+ * is then started as early as its prerequisites allow, longest critical path first (i.e. its own expected duration plus
+ * that of the longest chain of test cases that require it). This way, slow test cases, like those that log in or
+ * retrieve something from the network, do not end up at the tail of the run while the other workers are idle.
+ *
+ * @author RiaasM
+ *
+ */
+public class TestScheduler {
+	/**
+	 * Logger for this class
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(TestScheduler.class);
+	/**
+	 * How long the login page may take to respond when checking if it can be reached, in milliseconds
+	 */
+	private static final int loginProbeTimeout = 10000;
+	private final IdPConfiguration config;
+	/**
+	 * Whether invalid certificates on the login page are accepted
+	 */
+	private final boolean insecure;
+	/**
+	 * The test cases, in the order in which they should be run
+	 */
+	private final List<TestCaseEntry> order = new ArrayList<TestCaseEntry>();
+	/**
+	 * The names of the test cases that are run
+	 */
+	private final Set<String> scheduled = new HashSet<String>();
+	/**
+	 * The names of the test cases whose prerequisites form a cycle
+	 */
+	private final Set<String> cyclic = new HashSet<String>();
+	/**
+	 * The reason each prerequisite failed, by the name of the prerequisite
+	 */
+	private final Map<String, String> failed = new HashMap<String, String>();
+	/**
+	 * The conditions that were checked and hold
+	 */
+	private final Set<String> passed = new HashSet<String>();
+
+	/**
+	 * @param config is the configuration of the target IdP
+	 * @param testcases are the test cases that should be run
+	 * @param insecure is true if invalid certificates on the login page should be accepted
+	 */
+	public TestScheduler(IdPConfiguration config, List<TestCaseEntry> testcases, boolean insecure) {
+		this.config = config;
+		this.insecure = insecure;
+		for (TestCaseEntry testcase : testcases) {
+			scheduled.add(testcase.getName());
+		}
+		sort(testcases);
+	}
+
+	/**
+	 * Retrieve the prerequisites that the test case declares
+	 *
+	 * @param testcase is the test case
+	 * @return the names of the prerequisites, which is empty if the test case has none
+	 */
+	public static List<String> getPrerequisites(TestCaseEntry testcase) {
+		Requires requires = testcase.getType().getAnnotation(Requires.class);
+		if (requires == null) {
+			return Collections.emptyList();
+		}
+		return Arrays.asList(requires.value());
+	}
+
+	/**
+	 * Add the test cases that the selected test cases require, but that were not selected themselves
+	 *
+	 * @param available are all test cases in the test suite
+	 * @param selected are the selected test cases
+	 * @return the selected test cases, followed by the test cases they require
+	 */
+	public static List<TestCaseEntry> withPrerequisites(List<TestCaseEntry> available, List<TestCaseEntry> selected) {
+		Map<String, TestCaseEntry> byName = new HashMap<String, TestCaseEntry>();
+		for (TestCaseEntry testcase : available) {
+			byName.put(testcase.getName(), testcase);
+		}
+		Set<TestCaseEntry> testcases = new LinkedHashSet<TestCaseEntry>(selected);
+		List<TestCaseEntry> unresolved = new ArrayList<TestCaseEntry>(selected);
+		while (!unresolved.isEmpty()) {
+			for (String prerequisite : getPrerequisites(unresolved.remove(0))) {
+				TestCaseEntry required = byName.get(prerequisite);
+				if (required != null && testcases.add(required)) {
+					logger.info("Also running test case " + prerequisite + ", since it is required by the selected test cases");
+					unresolved.add(required);
+				}
+			}
+		}
+		return new ArrayList<TestCaseEntry>(testcases);
+	}
+
+	/**
+	 * Order the test cases so each test case comes after the test cases it requires
+	 *
+	 * @param testcases are the test cases in the order in which they were declared
+	 */
+	private void sort(List<TestCaseEntry> testcases) {
+		Set<String> ordered = new HashSet<String>();
+		List<TestCaseEntry> remaining = new ArrayList<TestCaseEntry>(testcases);
+		while (!remaining.isEmpty()) {
+			boolean progress = false;
+			for (Iterator<TestCaseEntry> it = remaining.iterator(); it.hasNext();) {
+				TestCaseEntry testcase = it.next();
+				boolean ready = true;
+				for (String prerequisite : getPrerequisites(testcase)) {
+					if (scheduled.contains(prerequisite) && !ordered.contains(prerequisite)) {
+						ready = false;
+						break;
+					}
+				}
+				if (ready) {
+					order.add(testcase);
+					ordered.add(testcase.getName());
+					it.remove();
+					progress = true;
+				}
+			}
+			if (!progress) {
+				// the remaining test cases (indirectly) require themselves, so they can never be run
+				for (TestCaseEntry testcase : remaining) {
+					logger.error("The prerequisites of test case " + testcase.getName() + " form a cycle");
+					cyclic.add(testcase.getName());
+					order.add(testcase);
+				}
+				remaining.clear();
+			}
+		}
+	}
+
+	/**
+	 * Order the test cases by the length of their critical path, longest first, while still running each test case
+	 * after the test cases it requires
+	 *
+	 * @param durations are the expected durations of the test cases
+	 */
+	public void prioritize(DurationStats durations) {
+		Map<String, List<TestCaseEntry>> dependents = new HashMap<String, List<TestCaseEntry>>();
+		for (TestCaseEntry testcase : order) {
+			for (String prerequisite : getPrerequisites(testcase)) {
+				if (scheduled.contains(prerequisite)) {
+					if (!dependents.containsKey(prerequisite)) {
+						dependents.put(prerequisite, new ArrayList<TestCaseEntry>());
+					}
+					dependents.get(prerequisite).add(testcase);
+				}
+			}
+		}
+		Map<String, Long> criticalPaths = new HashMap<String, Long>();
+		for (TestCaseEntry testcase : order) {
+			criticalPath(testcase, durations, dependents, criticalPaths);
+		}
+
+		List<TestCaseEntry> remaining = new ArrayList<TestCaseEntry>(order);
+		Set<String> ordered = new HashSet<String>();
+		order.clear();
+		while (!remaining.isEmpty()) {
+			// the ready test case with the longest critical path, or the first declared one if they are equally long
+			TestCaseEntry next = null;
+			for (TestCaseEntry testcase : remaining) {
+				if (isReady(testcase, ordered) && (next == null || criticalPaths.get(testcase.getName()) > criticalPaths.get(next.getName()))) {
+					next = testcase;
+				}
+			}
+			remaining.remove(next);
+			ordered.add(next.getName());
+			order.add(next);
+		}
+	}
+
+	/**
+	 * Calculate how long it is expected to take until the test case and all test cases that (indirectly) require it
+	 * have been run
+	 *
+	 * @return the expected duration of the critical path in milliseconds
+	 */
+	private long criticalPath(TestCaseEntry testcase, DurationStats durations, Map<String, List<TestCaseEntry>> dependents, Map<String, Long> criticalPaths) {
+		Long known = criticalPaths.get(testcase.getName());
+		if (known != null) {
+			return known;
+		}
+		long longestDependent = 0;
+		if (!cyclic.contains(testcase.getName()) && dependents.containsKey(testcase.getName())) {
+			for (TestCaseEntry dependent : dependents.get(testcase.getName())) {
+				longestDependent = Math.max(longestDependent, criticalPath(dependent, durations, dependents, criticalPaths));
+			}
+		}
+		long criticalPath = durations.getExpected(testcase).toMillis() + longestDependent;
+		criticalPaths.put(testcase.getName(), criticalPath);
+		return criticalPath;
+	}
+
+	/**
+	 * Predict how long it takes to run all test cases in the scheduled order. Whenever a worker is free, it starts the
+	 * first test case whose prerequisites have been run.
+	 *
+	 * @param durations are the expected durations of the test cases
+	 * @param workers is the amount of test cases that are run at the same time
+	 * @return the expected duration of the entire run
+	 */
+	public Duration predict(DurationStats durations, int workers) {
+		List<TestCaseEntry> pending = new ArrayList<TestCaseEntry>(order);
+		Set<String> completed = new HashSet<String>();
+		PriorityQueue<RunningTestCase> running = new PriorityQueue<RunningTestCase>();
+		long now = 0;
+		while (!pending.isEmpty() || !running.isEmpty()) {
+			for (Iterator<TestCaseEntry> it = pending.iterator(); it.hasNext() && running.size() < workers;) {
+				TestCaseEntry testcase = it.next();
+				if (isReady(testcase, completed)) {
+					it.remove();
+					running.add(new RunningTestCase(testcase.getName(), now + durations.getExpected(testcase).toMillis()));
+				}
+			}
+			RunningTestCase first = running.poll();
+			now = first.finish;
+			completed.add(first.name);
+		}
+		return Duration.ofMillis(now);
+	}
+
+	/**
+	 * @return the test cases, in the order in which they should be run
+	 */
+	public List<TestCaseEntry> getOrder() {
+		return order;
+	}
+
+	/**
+	 * Check if a test case can be started, because all test cases it requires have been run
+	 *
+	 * @param testcase is the test case
+	 * @param completed are the names of the test cases that have been run (or skipped)
+	 * @return true if the test case can be started
+	 */
+	public boolean isReady(TestCaseEntry testcase, Set<String> completed) {
+		if (cyclic.contains(testcase.getName())) {
+			// it will be skipped, so it does not need to wait
+			return true;
+		}
+		for (String prerequisite : getPrerequisites(testcase)) {
+			if (scheduled.contains(prerequisite) && !completed.contains(prerequisite)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check the prerequisites of a test case, in the order in which they were declared
+	 *
+	 * @param testcase is the test case that should be run next
+	 * @return the outcome for skipping the test case if one of its prerequisites failed, or null if it can be run
+	 */
+	public synchronized TestOutcome checkPrerequisites(TestCaseEntry testcase) {
+		if (cyclic.contains(testcase.getName())) {
+			return TestOutcome.skipped(testcase.getName(), "its prerequisites form a cycle");
+		}
+		for (String prerequisite : getPrerequisites(testcase)) {
+			String reason = check(prerequisite);
+			if (reason != null) {
+				logger.info("Skipping test case " + testcase.getName() + ", since the prerequisite " + prerequisite + " failed");
+				return TestOutcome.skipped(prerequisite, reason);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Record the outcome of a test case, so the test cases that require it can be skipped if it failed
+	 *
+	 * @param testcase is the test case that was run or skipped
+	 * @param outcome is its outcome
+	 */
+	public synchronized void completed(TestCaseEntry testcase, TestOutcome outcome) {
+		if (outcome.isSkipped()) {
+			failed.put(testcase.getName(), "it was skipped");
+		}
+		else if (outcome.getStatus() != null && outcome.getStatus().compareTo(TestStatus.ERROR) >= 0) {
+			failed.put(testcase.getName(), "it reported " + outcome.getStatus() + ": " + outcome.getMessage());
+			if (outcome.getStatus() == TestStatus.CRITICAL && testcase.getKind() == TestCaseEntry.Kind.RESPONSE
+					&& getPrerequisites(testcase).contains(Requires.LOGIN_REACHABLE) && !failed.containsKey(Requires.LOGIN_REACHABLE)) {
+				failed.put(Requires.LOGIN_REACHABLE, "logging in for test case " + testcase.getName() + " failed: " + outcome.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Check a single prerequisite
+	 *
+	 * @param prerequisite is the name of the prerequisite
+	 * @return the reason the prerequisite failed, or null if it did not fail
+	 */
+	private String check(String prerequisite) {
+		String reason = failed.get(prerequisite);
+		if (reason != null || passed.contains(prerequisite) || scheduled.contains(prerequisite)) {
+			// test cases that have not failed (yet) do not block the test cases that require them
+			return reason;
+		}
+		if (prerequisite.equals(Requires.METADATA_PARSED)) {
+			reason = checkMetadataParsed();
+		}
+		else if (prerequisite.equals(Requires.LOGIN_REACHABLE)) {
+			reason = checkLoginReachable();
+		}
+		else if (prerequisite.startsWith(Requires.BINDING_SUPPORTED)) {
+			reason = checkMetadataParsed();
+			String binding = prerequisite.substring(Requires.BINDING_SUPPORTED.length());
+			if (reason == null && config.getMDSSOLocation(binding) == null) {
+				reason = "the metadata contains no SingleSignOnService for " + binding;
+			}
+		}
+		else {
+			logger.warn("Unknown prerequisite: " + prerequisite);
+			reason = "it is neither a known condition nor a test case that is run";
+		}
+		if (reason == null) {
+			passed.add(prerequisite);
+		}
+		else {
+			failed.put(prerequisite, reason);
+		}
+		return reason;
+	}
+
+	private String checkMetadataParsed() {
+		Document metadata = config.getMetadata();
+		if (metadata == null) {
+			return "no metadata was provided";
+		}
+		if (metadata.getElementsByTagNameNS(MD.NAMESPACE, MD.ENTITYDESCRIPTOR).getLength() == 0) {
+			return "the metadata contains no EntityDescriptor";
+		}
+		return null;
+	}
+
+	private String checkLoginReachable() {
+		URL loginURL = config.getIdPInitURL();
+		if (loginURL == null) {
+			return "no login page was configured";
+		}
+		try {
+			URLConnection connection = loginURL.openConnection();
+			connection.setConnectTimeout(loginProbeTimeout);
+			connection.setReadTimeout(loginProbeTimeout);
+			if (connection instanceof HttpURLConnection) {
+				HttpURLConnection httpConnection = (HttpURLConnection) connection;
+				int status = httpConnection.getResponseCode();
+				httpConnection.disconnect();
+				if (status >= 500) {
+					return "the login page at " + loginURL + " returned HTTP status " + status;
+				}
+			}
+			else {
+				connection.connect();
+			}
+			return null;
+		} catch (SSLException e) {
+			if (insecure) {
+				// the browser accepts this certificate, so the login page can still be reached
+				return null;
+			}
+			return "the login page at " + loginURL + " could not be accessed securely: " + e.getMessage();
+		} catch (IOException e) {
+			return "the login page at " + loginURL + " could not be accessed: " + e.getMessage();
+		}
+	}
+
+	/**
+	 * A test case that is running while predicting the duration of the run, ordered by when it finishes
+	 */
+	private static class RunningTestCase implements Comparable<RunningTestCase> {
+		private final String name;
+		private final long finish;
+
+		private RunningTestCase(String name, long finish) {
+			this.name = name;
+			this.finish = finish;
+		}
+
+		@Override
+		public int compareTo(RunningTestCase other) {
+			return Long.compare(finish, other.finish);
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package saml2webssotest.idp;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * A Jetty thread pool that runs every job on its own virtual thread.
+ *
+ * This allows the mock SP to handle as many concurrent requests as the IdP sends, without having to size a pool of
+ * platform threads up front. The pool is managed by the Jetty server it is used in, so it is started and stopped
+ * together with the mock SP.
+ *
+ * @author RiaasM
+ *
+ */
+public class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool {
+	/**
+	 * The executor that creates a new virtual thread for each job
+	 */
+	private ExecutorService executor;
+	/**
+	 * The amount of jobs that are currently running
+	 */
+	private final AtomicInteger running = new AtomicInteger();
+
+	@Override
+	protected void doStart() throws Exception {
+		executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("mockSP-", 0).factory());
+		super.doStart();
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		executor.shutdownNow();
+		super.doStop();
+	}
+
+	@Override
+	public void execute(final Runnable job) {
+		if (executor == null || executor.isShutdown()) {
+			throw new RejectedExecutionException("The virtual thread pool is not running");
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				running.incrementAndGet();
+				try {
+					job.run();
+				} finally {
+					running.decrementAndGet();
+				}
+			}
+		});
+	}
+
+	@Override
+	public void join() throws InterruptedException {
+		if (executor != null) {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * @return the amount of virtual threads that are currently running a job
+	 */
+	@Override
+	public int getThreads() {
+		return running.get();
+	}
+
+	/**
+	 * Virtual threads are created when needed, so there are never any idle threads
+	 */
+	@Override
+	public int getIdleThreads() {
+		return 0;
+	}
+
+	/**
+	 * Virtual threads are created when needed, so the pool can never run low on threads
+	 */
+	@Override
+	public boolean isLowOnThreads() {
+		return false;
+	}
+}
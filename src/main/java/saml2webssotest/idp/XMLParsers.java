@@ -0,0 +1,110 @@
+package saml2webssotest.idp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Creates the parsers for all XML that the test runner reads, e.g. metadata, AuthnRequests and SAML Responses.
+ *
+ * That XML comes from the IdP or SP under test, so it can not be trusted. None of it has any need for a DTD, and
+ * allowing one enables external entity and entity expansion attacks, so the parsers reject any DOCTYPE declaration.
+ * They are also namespace-aware. The DOM parsers build all nodes right away instead of when they are first read, so a
+ * parsed document can be read by several threads at once, e.g. the metadata that all metadata test cases share. This
+ * only holds for reads that do not use the NodeList of getChildNodes(), because the document caches the last position
+ * that was read from such a list for all of its nodes. The children are read with getFirstChild() and getNextSibling()
+ * instead, like XPath and the transformers do. Lists from getElementsByTagNameNS() have a cache of their own.
+ *
+ * The factories are shared, but a factory is not thread-safe, so they are only used while holding their lock. A
+ * parser can only be used by one thread at a time, so each parse either uses a new parser or borrows one from a small
+ * pool of idle SAX parsers and returns it afterwards. Unlike a parser for each thread, the pool does not grow with the
+ * amount of threads, which matters when the mock SP handles each request on its own virtual thread.
+ *
+ * @author RiaasM
+ *
+ */
+public final class XMLParsers {
+	/**
+	 * The Xerces feature that rejects DOCTYPE declarations, which is supported by the parser in the JDK
+	 */
+	private static final String disallowDoctype = "http://apache.org/xml/features/disallow-doctype-decl";
+	/**
+	 * The Xerces feature that defers building the nodes of a DOM document until they are read
+	 */
+	private static final String deferNodeExpansion = "http://apache.org/xml/features/dom/defer-node-expansion";
+	/**
+	 * The maximum amount of idle SAX parsers that are kept
+	 */
+	private static final int maxIdleParsers = Math.max(4, Runtime.getRuntime().availableProcessors());
+	private static final SAXParserFactory saxFactory = SAXParserFactory.newInstance();
+	private static final DocumentBuilderFactory documentFactory = DocumentBuilderFactory.newInstance();
+	private static final ArrayBlockingQueue<SAXParser> idleParsers = new ArrayBlockingQueue<SAXParser>(maxIdleParsers);
+
+	static {
+		saxFactory.setNamespaceAware(true);
+		documentFactory.setNamespaceAware(true);
+		try {
+			saxFactory.setFeature(disallowDoctype, true);
+			documentFactory.setFeature(disallowDoctype, true);
+			documentFactory.setFeature(deferNodeExpansion, false);
+		} catch (ParserConfigurationException | SAXException e) {
+			throw new IllegalStateException("The XML parser does not support disallowing DOCTYPE declarations", e);
+		}
+	}
+
+	private XMLParsers() {
+	}
+
+	/**
+	 * @return a new SAX parser
+	 */
+	public static SAXParser newSAXParser() {
+		try {
+			synchronized (saxFactory) {
+				return saxFactory.newSAXParser();
+			}
+		} catch (ParserConfigurationException | SAXException e) {
+			throw new IllegalStateException("Could not create an XML parser", e);
+		}
+	}
+
+	/**
+	 * @return a new DOM parser, which can also create empty documents
+	 */
+	public static DocumentBuilder newDocumentBuilder() {
+		try {
+			synchronized (documentFactory) {
+				return documentFactory.newDocumentBuilder();
+			}
+		} catch (ParserConfigurationException e) {
+			throw new IllegalStateException("Could not create an XML parser", e);
+		}
+	}
+
+	/**
+	 * Take an idle SAX parser from the pool, or create one if there is none. It must be returned with
+	 * {@link #returnSAXParser(SAXParser)} once it is no longer used.
+	 *
+	 * @return the parser
+	 */
+	public static SAXParser borrowSAXParser() {
+		SAXParser parser = idleParsers.poll();
+		return parser != null ? parser : newSAXParser();
+	}
+
+	/**
+	 * Return a parser that was borrowed, so it can be used by the next parse. It is discarded if the pool is full.
+	 *
+	 * @param parser is the parser
+	 */
+	public static void returnSAXParser(SAXParser parser) {
+		parser.reset();
+		idleParsers.offer(parser);
+	}
+}
@@ -0,0 +1,324 @@
+package saml2webssotest.idp.bindings;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes and encodes SAML messages for the HTTP-Redirect binding, which are DEFLATE compressed and base64 encoded.
+ *
+ * The mock SP decodes every SAML Response it receives through the HTTP-Redirect binding, so this avoids creating new
+ * objects for each message where it can. The Inflaters, Deflaters and byte buffers are pooled and reused, and base64
+ * is decoded and encoded directly from and to the strings without intermediate copies. The pool is shared by all
+ * threads instead of kept per thread, since each request on the mock SP may run on its own virtual thread.
+ *
+ * The size of a decoded message is bounded, so a small compressed message can not make the mock SP inflate it to an
+ * amount of data that exhausts its memory (a decompression bomb).
+ *
+ * @author RiaasM
+ *
+ */
+public final class RedirectBindingCodec {
+	/**
+	 * The maximum size of a decoded message in bytes, unless a different maximum is provided
+	 */
+	public static final int DEFAULT_MAX_MESSAGE_SIZE = 4 * 1024 * 1024;
+	/**
+	 * The maximum amount of unused workspaces that are kept in the pool
+	 */
+	private static final int poolSize = 64;
+	/**
+	 * The size of the byte buffers of a new workspace, which fits most messages
+	 */
+	private static final int initialBufferSize = 16 * 1024;
+	/**
+	 * The maximum size of the byte buffers of a workspace that is returned to the pool. Larger buffers were only needed
+	 * for an unusually large message, so they are not kept.
+	 */
+	private static final int retainedBufferSize = 256 * 1024;
+	private static final ArrayBlockingQueue<Workspace> pool = new ArrayBlockingQueue<Workspace>(poolSize);
+	private static final char[] base64Chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+	/**
+	 * The value of each base64 character, or -1 for characters that are not base64
+	 */
+	private static final byte[] base64Values = new byte[128];
+
+	static {
+		Arrays.fill(base64Values, (byte) -1);
+		for (int i = 0; i < base64Chars.length; i++) {
+			base64Values[base64Chars[i]] = (byte) i;
+		}
+		// the URL-safe alphabet is not allowed by the binding, but is accepted since it can not be mistaken for anything else
+		base64Values['-'] = 62;
+		base64Values['_'] = 63;
+	}
+
+	private RedirectBindingCodec() {
+	}
+
+	/**
+	 * Decode a SAML message that was received through the HTTP-Redirect binding, with the default maximum size
+	 *
+	 * @param encoded is the value of the SAMLRequest or SAMLResponse parameter, which has already been URL-decoded
+	 * @return the SAML message
+	 * @throws IllegalArgumentException if the message is not valid base64 encoded DEFLATE data, or it is larger than the
+	 * 			maximum size when decoded
+	 */
+	public static String decode(String encoded) {
+		return decode(encoded, DEFAULT_MAX_MESSAGE_SIZE);
+	}
+
+	/**
+	 * Decode a SAML message that was received through the HTTP-Redirect binding
+	 *
+	 * @param encoded is the value of the SAMLRequest or SAMLResponse parameter, which has already been URL-decoded
+	 * @param maxSize is the maximum size of the decoded message in bytes
+	 * @return the SAML message
+	 * @throws IllegalArgumentException if the message is not valid base64 encoded DEFLATE data, or it is larger than the
+	 * 			maximum size when decoded
+	 */
+	public static String decode(String encoded, int maxSize) {
+		Workspace workspace = borrow();
+		try {
+			int length = workspace.base64Decode(encoded, maxSize);
+			return workspace.inflate(length, maxSize);
+		} finally {
+			release(workspace);
+		}
+	}
+
+	/**
+	 * Encode a SAML message for the HTTP-Redirect binding
+	 *
+	 * @param message is the SAML message
+	 * @return the base64 encoded DEFLATE data, which still needs to be URL-encoded
+	 */
+	public static String encode(String message) {
+		return encode(message, false);
+	}
+
+	/**
+	 * Encode a SAML message for the HTTP-Redirect binding, so it can be used as the value of the SAMLRequest or
+	 * SAMLResponse parameter in a URL
+	 *
+	 * @param message is the SAML message
+	 * @return the URL-encoded base64 encoded DEFLATE data
+	 */
+	public static String encodeForURL(String message) {
+		return encode(message, true);
+	}
+
+	private static String encode(String message, boolean forURL) {
+		Workspace workspace = borrow();
+		try {
+			int length = workspace.deflate(message.getBytes(StandardCharsets.UTF_8));
+			return workspace.base64Encode(length, forURL);
+		} finally {
+			release(workspace);
+		}
+	}
+
+	private static Workspace borrow() {
+		Workspace workspace = pool.poll();
+		return workspace != null ? workspace : new Workspace();
+	}
+
+	private static void release(Workspace workspace) {
+		workspace.shrink();
+		if (!pool.offer(workspace)) {
+			// the pool is full, so free the native memory of the Inflaters and Deflater right away
+			workspace.end();
+		}
+	}
+
+	/**
+	 * The Inflaters, Deflater and byte buffers that are needed to decode or encode a single message. A workspace is
+	 * only used by one thread at a time.
+	 */
+	private static final class Workspace {
+		/**
+		 * Inflates the raw DEFLATE data that the binding requires
+		 */
+		private final Inflater inflater = new Inflater(true);
+		/**
+		 * Inflates DEFLATE data with a zlib header, which is created lazily since only few implementations send it
+		 */
+		private Inflater zlibInflater;
+		private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		/**
+		 * Contains the compressed message
+		 */
+		private byte[] compressed = new byte[initialBufferSize];
+		/**
+		 * Contains the decompressed message
+		 */
+		private byte[] message = new byte[initialBufferSize];
+
+		/**
+		 * Decode base64 into the compressed buffer
+		 *
+		 * @return the amount of decoded bytes
+		 */
+		private int base64Decode(String encoded, int maxSize) {
+			// room for the decoded bytes and the extra byte that the Inflater needs
+			int maxLength = encoded.length() / 4 * 3 + 4;
+			if (maxLength > compressed.length) {
+				// DEFLATE data is at most slightly larger than the data it contains
+				if (maxLength > maxSize + initialBufferSize) {
+					throw new IllegalArgumentException("The message is larger than " + maxSize + " bytes");
+				}
+				compressed = new byte[maxLength];
+			}
+			int bits = 0;
+			int bitCount = 0;
+			int length = 0;
+			for (int i = 0; i < encoded.length(); i++) {
+				char c = encoded.charAt(i);
+				if (c == '=') {
+					break;
+				}
+				if (c == '\r' || c == '\n' || c == '\t') {
+					continue;
+				}
+				if (c == ' ') {
+					// a "+" that was URL-decoded once too often
+					c = '+';
+				}
+				int value = c < base64Values.length ? base64Values[c] : -1;
+				if (value < 0) {
+					throw new IllegalArgumentException("The message is not valid base64, it contains '" + c + "' at position " + i);
+				}
+				bits = (bits << 6) | value;
+				bitCount += 6;
+				if (bitCount >= 8) {
+					bitCount -= 8;
+					compressed[length++] = (byte) (bits >> bitCount);
+					bits &= (1 << bitCount) - 1;
+				}
+			}
+			return length;
+		}
+
+		/**
+		 * Inflate the compressed buffer into a string
+		 */
+		private String inflate(int length, int maxSize) {
+			try {
+				// without the zlib header, the Inflater needs an extra byte after the data to recognize its end
+				compressed[length] = 0;
+				return inflate(inflater, length + 1, maxSize);
+			} catch (DataFormatException e) {
+				// the binding does not allow a zlib header, but some implementations send one anyway
+				if (zlibInflater == null) {
+					zlibInflater = new Inflater();
+				}
+				try {
+					return inflate(zlibInflater, length, maxSize);
+				} catch (DataFormatException zlibException) {
+					throw new IllegalArgumentException("The message is not valid DEFLATE data", e);
+				}
+			}
+		}
+
+		private String inflate(Inflater decompressor, int length, int maxSize) throws DataFormatException {
+			decompressor.reset();
+			decompressor.setInput(compressed, 0, length);
+			int size = 0;
+			while (!decompressor.finished()) {
+				int limit = Math.min(message.length, maxSize);
+				if (size == limit) {
+					if (limit == maxSize) {
+						throw new IllegalArgumentException("The message is larger than " + maxSize + " bytes when it is decompressed");
+					}
+					message = Arrays.copyOf(message, Math.min(message.length * 2, maxSize));
+					continue;
+				}
+				int inflated = decompressor.inflate(message, size, limit - size);
+				if (inflated == 0 && !decompressor.finished() && (decompressor.needsInput() || decompressor.needsDictionary())) {
+					throw new DataFormatException("The DEFLATE data ends before the message is complete");
+				}
+				size += inflated;
+			}
+			return new String(message, 0, size, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Deflate a message into the compressed buffer
+		 *
+		 * @return the amount of compressed bytes
+		 */
+		private int deflate(byte[] data) {
+			deflater.reset();
+			deflater.setInput(data);
+			deflater.finish();
+			int length = 0;
+			while (!deflater.finished()) {
+				if (length == compressed.length) {
+					compressed = Arrays.copyOf(compressed, compressed.length * 2);
+				}
+				length += deflater.deflate(compressed, length, compressed.length - length);
+			}
+			return length;
+		}
+
+		/**
+		 * Encode the compressed buffer as base64
+		 */
+		private String base64Encode(int length, boolean forURL) {
+			StringBuilder encoded = new StringBuilder((length + 2) / 3 * 4 + (forURL ? length / 8 : 0));
+			for (int i = 0; i < length; i += 3) {
+				int remaining = length - i;
+				int bits = (compressed[i] & 0xFF) << 16;
+				if (remaining > 1) {
+					bits |= (compressed[i + 1] & 0xFF) << 8;
+				}
+				if (remaining > 2) {
+					bits |= compressed[i + 2] & 0xFF;
+				}
+				append(encoded, base64Chars[(bits >> 18) & 0x3F], forURL);
+				append(encoded, base64Chars[(bits >> 12) & 0x3F], forURL);
+				append(encoded, remaining > 1 ? base64Chars[(bits >> 6) & 0x3F] : '=', forURL);
+				append(encoded, remaining > 2 ? base64Chars[bits & 0x3F] : '=', forURL);
+			}
+			return encoded.toString();
+		}
+
+		private static void append(StringBuilder encoded, char c, boolean forURL) {
+			if (forURL && c == '+') {
+				encoded.append("%2B");
+			}
+			else if (forURL && c == '/') {
+				encoded.append("%2F");
+			}
+			else if (forURL && c == '=') {
+				encoded.append("%3D");
+			}
+			else {
+				encoded.append(c);
+			}
+		}
+
+		/**
+		 * Replace buffers that grew for an unusually large message, so the pool does not keep them
+		 */
+		private void shrink() {
+			if (compressed.length > retainedBufferSize) {
+				compressed = new byte[initialBufferSize];
+			}
+			if (message.length > retainedBufferSize) {
+				message = new byte[initialBufferSize];
+			}
+		}
+
+		private void end() {
+			inflater.end();
+			deflater.end();
+			if (zlibInflater != null) {
+				zlibInflater.end();
+			}
+		}
+	}
+}
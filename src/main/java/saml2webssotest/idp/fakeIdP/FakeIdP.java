@@ -0,0 +1,186 @@
+package saml2webssotest.idp.fakeIdP;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.PrivateKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+
+import saml2webssotest.common.standardNames.MD;
+import saml2webssotest.common.standardNames.SAMLmisc;
+import saml2webssotest.idp.VirtualThreadPool;
+
+/**
+ * A stand-in IdP that runs embedded in the test runner, so the whole login loop (retrieving the login page, executing
+ * the preResponseInteractions, receiving the response on the mock SP and checking it) can be run and profiled without
+ * a real IdP or a network.
+ *
+ * It publishes its metadata, shows a plain login form and sends signed SAML Responses through the HTTP-POST or
+ * HTTP-Redirect binding. Latency and errors can be injected as configured in its {@link FakeIdPConfiguration}, and
+ * its {@link FakeIdPStats} tell the time it spent on its requests apart from the time the test runner spent.
+ *
+ * @author RiaasM
+ *
+ */
+public class FakeIdP {
+	/**
+	 * Logger for this class
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(FakeIdP.class);
+	private static final String dsNamespace = "http://www.w3.org/2000/09/xmldsig#";
+	private final FakeIdPConfiguration config;
+	private final FakeIdPStats stats = new FakeIdPStats();
+	private final URL url;
+	private final String entityID;
+	private final String metadata;
+	private final Server server;
+
+	/**
+	 * @param config contains the settings of the fake IdP
+	 * @param certificate is the certificate of the fake IdP, which is published in its metadata
+	 * @param privateKey is the private key that signs the responses
+	 * @param virtualThreads is true if each request should be handled on its own virtual thread
+	 */
+	public FakeIdP(FakeIdPConfiguration config, X509Certificate certificate, PrivateKey privateKey, boolean virtualThreads) {
+		this.config = config;
+		try {
+			url = new URL("http", config.getHost(), config.getPort(), "");
+		} catch (MalformedURLException e) {
+			throw new IllegalArgumentException("The host name of the fake IdP is not valid: " + config.getHost(), e);
+		}
+		entityID = config.getEntityID() != null ? config.getEntityID() : getMetadataURL().toString();
+		metadata = createMetadata(certificate);
+
+		server = virtualThreads ? new Server(new VirtualThreadPool()) : new Server();
+		ServerConnector connector = new ServerConnector(server);
+		connector.setHost(config.getHost());
+		connector.setPort(config.getPort());
+		server.addConnector(connector);
+		server.setHandler(new FakeIdPHandler(config, new ResponseIssuer(entityID, certificate, privateKey, config), metadata, stats));
+	}
+
+	/**
+	 * Read the settings of a fake IdP from a JSON file
+	 *
+	 * @param file is the JSON file
+	 * @return the settings
+	 * @throws IOException if the file could not be read
+	 */
+	public static FakeIdPConfiguration loadConfig(Path file) throws IOException {
+		try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			FakeIdPConfiguration config = new Gson().fromJson(reader, FakeIdPConfiguration.class);
+			return config != null ? config : new FakeIdPConfiguration();
+		}
+	}
+
+	public void start() throws Exception {
+		server.start();
+		logger.info("The fake IdP " + entityID + " is listening on " + url);
+	}
+
+	public void stop() throws Exception {
+		server.stop();
+	}
+
+	public boolean isStarted() {
+		return server.isStarted();
+	}
+
+	public FakeIdPConfiguration getConfig() {
+		return config;
+	}
+
+	public FakeIdPStats getStats() {
+		return stats;
+	}
+
+	public String getEntityID() {
+		return entityID;
+	}
+
+	public String getMetadata() {
+		return metadata;
+	}
+
+	/**
+	 * @return the URL of the SSO service, which starts an IdP-initiated login when it is opened without an AuthnRequest
+	 */
+	public URL getSSOURL() {
+		return resolve(FakeIdPHandler.SSO_PATH);
+	}
+
+	/**
+	 * @return the URL on which the metadata of the fake IdP is available
+	 */
+	public URL getMetadataURL() {
+		return resolve(FakeIdPHandler.METADATA_PATH);
+	}
+
+	private URL resolve(String path) {
+		try {
+			return new URL(url, path);
+		} catch (MalformedURLException e) {
+			throw new IllegalStateException("The URL of the fake IdP is not valid", e);
+		}
+	}
+
+	/**
+	 * Create the metadata of the fake IdP, with its signing certificate and its SSO service for both bindings
+	 */
+	private String createMetadata(X509Certificate certificate) {
+		try {
+			StringWriter out = new StringWriter();
+			XMLStreamWriter xml = XMLOutputFactory.newInstance().createXMLStreamWriter(out);
+			xml.setPrefix("md", MD.NAMESPACE);
+			xml.setPrefix("ds", dsNamespace);
+			xml.writeStartElement(MD.NAMESPACE, MD.ENTITYDESCRIPTOR);
+			xml.writeNamespace("md", MD.NAMESPACE);
+			xml.writeNamespace("ds", dsNamespace);
+			xml.writeAttribute(MD.ENTITYID, entityID);
+			xml.writeStartElement(MD.NAMESPACE, "IDPSSODescriptor");
+			xml.writeAttribute("protocolSupportEnumeration", SAMLmisc.SAML20_PROTOCOL);
+			xml.writeStartElement(MD.NAMESPACE, MD.KEYDESCRIPTOR);
+			xml.writeAttribute(MD.USE, "signing");
+			xml.writeStartElement(dsNamespace, "KeyInfo");
+			xml.writeStartElement(dsNamespace, "X509Data");
+			xml.writeStartElement(dsNamespace, "X509Certificate");
+			xml.writeCharacters(Base64.getEncoder().encodeToString(certificate.getEncoded()));
+			xml.writeEndElement();
+			xml.writeEndElement();
+			xml.writeEndElement();
+			xml.writeEndElement();
+			xml.writeStartElement(MD.NAMESPACE, MD.NAMEIDFORMAT);
+			xml.writeCharacters(config.getNameIDFormat());
+			xml.writeEndElement();
+			for (String binding : new String[] {SAMLmisc.BINDING_HTTP_REDIRECT, SAMLmisc.BINDING_HTTP_POST}) {
+				xml.writeEmptyElement(MD.NAMESPACE, MD.SINGLESIGNONSERVICE);
+				xml.writeAttribute(MD.BINDING, binding);
+				xml.writeAttribute(MD.LOCATION, getSSOURL().toString());
+			}
+			xml.writeEndElement();
+			xml.writeEndElement();
+			xml.close();
+			return out.toString();
+		} catch (XMLStreamException | CertificateEncodingException e) {
+			throw new IllegalStateException("Could not create the metadata of the fake IdP", e);
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package saml2webssotest.idp.fakeIdP;
+
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import saml2webssotest.common.standardNames.SAMLmisc;
+
+/**
+ * The settings of the {@link FakeIdP}, which are read from a JSON file.
+ *
+ * All settings are optional. Latencies are in milliseconds and rates are fractions of the requests (between 0 and 1).
+ *
+ * @author RiaasM
+ *
+ */
+public class FakeIdPConfiguration {
+	/**
+	 * The port on which the fake IdP listens
+	 */
+	private int port = 8088;
+	/**
+	 * The host name on which the fake IdP listens and that is used in its URLs
+	 */
+	private String host = "localhost";
+	/**
+	 * The entityID of the fake IdP, or null to use the URL of its metadata
+	 */
+	private String entityID;
+	/**
+	 * The credentials that are accepted by the login form
+	 */
+	private String username = "user";
+	private String password = "password";
+	/**
+	 * The binding that is used to send the responses of IdP-initiated logins, or of SP-initiated logins whose
+	 * AuthnRequest does not request one
+	 */
+	private String binding = SAMLmisc.BINDING_HTTP_POST;
+	/**
+	 * The entityID of the SP that IdP-initiated logins are for, or null to use the mock SP
+	 */
+	private String spEntityID;
+	/**
+	 * The URL to which the responses of IdP-initiated logins are sent, or null to use the mock SP
+	 */
+	private URL acsURL;
+	/**
+	 * The format of the NameID in the responses
+	 */
+	private String nameIDFormat = SAMLmisc.NAMEID_FORMAT_TRANSIENT;
+	/**
+	 * The attributes in the responses, by their name (which should be a URI). "${user}" in a value is replaced by
+	 * the username that logged in.
+	 */
+	private LinkedHashMap<String, String> attributes = new LinkedHashMap<String, String>();
+	/**
+	 * Whether the Response and the Assertion in the responses sent through the HTTP-POST binding are signed. Responses
+	 * sent through the HTTP-Redirect binding are always signed in the query string.
+	 */
+	private boolean signResponse = true;
+	private boolean signAssertion = true;
+	/**
+	 * The location of the certificate and private key that the fake IdP signs with, or null to use the mock SP's
+	 * default ones
+	 */
+	private String certificate;
+	private String privateKey;
+	/**
+	 * The time that the fake IdP waits before it shows the login page
+	 */
+	private int loginLatency = 0;
+	/**
+	 * The time that the fake IdP waits before it sends the response after the login form was submitted
+	 */
+	private int responseLatency = 0;
+	/**
+	 * The maximum random time that is added to each latency
+	 */
+	private int latencyJitter = 0;
+	/**
+	 * The fraction of the requests that are answered with an HTTP 500 error instead
+	 */
+	private double errorRate = 0;
+	/**
+	 * The fraction of the responses that have the Responder status and no Assertion, as if the login failed on the IdP
+	 */
+	private double statusErrorRate = 0;
+
+	public int getPort() {
+		return port;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public String getEntityID() {
+		return entityID;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
+	public String getBinding() {
+		return binding;
+	}
+
+	public String getSpEntityID() {
+		return spEntityID;
+	}
+
+	public void setSpEntityID(String spEntityID) {
+		this.spEntityID = spEntityID;
+	}
+
+	public URL getAcsURL() {
+		return acsURL;
+	}
+
+	public void setAcsURL(URL acsURL) {
+		this.acsURL = acsURL;
+	}
+
+	public String getNameIDFormat() {
+		return nameIDFormat;
+	}
+
+	public Map<String, String> getAttributes() {
+		return attributes;
+	}
+
+	public boolean isSignResponse() {
+		return signResponse;
+	}
+
+	public boolean isSignAssertion() {
+		return signAssertion;
+	}
+
+	public String getCertificate() {
+		return certificate;
+	}
+
+	public String getPrivateKey() {
+		return privateKey;
+	}
+
+	public int getLoginLatency() {
+		return loginLatency;
+	}
+
+	public int getResponseLatency() {
+		return responseLatency;
+	}
+
+	public int getLatencyJitter() {
+		return latencyJitter;
+	}
+
+	public double getErrorRate() {
+		return errorRate;
+	}
+
+	public double getStatusErrorRate() {
+		return statusErrorRate;
+	}
+}
@@ -0,0 +1,308 @@
+package saml2webssotest.idp.fakeIdP;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import saml2webssotest.common.standardNames.SAML;
+import saml2webssotest.common.standardNames.SAMLP;
+import saml2webssotest.common.standardNames.SAMLmisc;
+import saml2webssotest.idp.XMLParsers;
+import saml2webssotest.idp.bindings.RedirectBindingCodec;
+
+/**
+ * Handles the requests received by the {@link FakeIdP}.
+ *
+ * The SSO service accepts AuthnRequests through the HTTP-Redirect and HTTP-POST bindings, or starts an IdP-initiated
+ * login when it receives none (for the SP and ACS URL in the providerId and shire parameters, if provided), and shows
+ * a login form. When the form is submitted with the configured username and password, the SAML Response is sent to
+ * the SP through the binding that the AuthnRequest asked for, or through the configured binding. The details of the
+ * login (the SP, its ACS URL, the ID of the AuthnRequest and the RelayState) are carried in hidden fields of the login
+ * form, so the fake IdP keeps no state between requests.
+ *
+ * Latency is injected by suspending the request and resuming it after the delay, so waiting requests do not occupy
+ * the threads of the server.
+ *
+ * @author RiaasM
+ *
+ */
+public class FakeIdPHandler extends AbstractHandler {
+	/**
+	 * Logger for this class
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(FakeIdPHandler.class);
+	/**
+	 * The path of the SSO service, which also shows the login form
+	 */
+	public static final String SSO_PATH = "/sso";
+	/**
+	 * The path to which the login form is submitted
+	 */
+	public static final String LOGIN_PATH = "/login";
+	/**
+	 * The path on which the fake IdP's metadata is available
+	 */
+	public static final String METADATA_PATH = "/metadata";
+	/**
+	 * The request attribute that marks a request as resumed after its injected latency
+	 */
+	private static final String delayedAttribute = FakeIdPHandler.class.getName() + ".delayed";
+
+	private final FakeIdPConfiguration config;
+	private final ResponseIssuer issuer;
+	private final String metadata;
+	private final FakeIdPStats stats;
+	/**
+	 * Resumes the requests after their injected latency
+	 */
+	private ScheduledExecutorService delays;
+
+	/**
+	 * @param config contains the credentials of the login form and the latency and errors to inject
+	 * @param issuer creates the SAML Responses
+	 * @param metadata is the metadata of the fake IdP
+	 * @param stats receives the handled requests
+	 */
+	public FakeIdPHandler(FakeIdPConfiguration config, ResponseIssuer issuer, String metadata, FakeIdPStats stats) {
+		this.config = config;
+		this.issuer = issuer;
+		this.metadata = metadata;
+		this.stats = stats;
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		delays = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "fake-idp-latency");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		super.doStart();
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		super.doStop();
+		delays.shutdownNow();
+	}
+
+	/**
+	 * Handle a request received by the fake IdP, after injecting the configured latency and errors
+	 *
+	 * @param target is the path of the request
+	 * @param baseRequest is the original unwrapped request
+	 * @param request is the request that the handler received
+	 * @param response is the response that will be sent
+	 */
+	@Override
+	public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+		boolean sso = target.equals(SSO_PATH);
+		boolean login = target.equals(LOGIN_PATH);
+		if (target.equals(METADATA_PATH)) {
+			response.setContentType("application/samlmetadata+xml");
+			response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+			response.getWriter().print(metadata);
+			baseRequest.setHandled(true);
+			return;
+		}
+		if (!sso && !login) {
+			return;
+		}
+		if (request.getAttribute(delayedAttribute) == null) {
+			long delay = (sso ? config.getLoginLatency() : config.getResponseLatency()) + (config.getLatencyJitter() > 0 ? ThreadLocalRandom.current().nextInt(config.getLatencyJitter() + 1) : 0);
+			if (delay > 0) {
+				delay(request, delay);
+				baseRequest.setHandled(true);
+				return;
+			}
+		}
+		long startNanos = System.nanoTime();
+		try {
+			if (ThreadLocalRandom.current().nextDouble() < config.getErrorRate()) {
+				stats.injectedError();
+				response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Injected error");
+			}
+			else if (sso) {
+				handleSSO(request, response);
+			}
+			else {
+				handleLogin(request, response);
+			}
+		} finally {
+			stats.handled(System.nanoTime() - startNanos);
+		}
+		baseRequest.setHandled(true);
+	}
+
+	/**
+	 * Suspend the request and dispatch it to the handler again after the delay
+	 */
+	private void delay(HttpServletRequest request, long delay) {
+		request.setAttribute(delayedAttribute, Boolean.TRUE);
+		final AsyncContext async = request.startAsync();
+		async.setTimeout(0);
+		delays.schedule(new Runnable() {
+			@Override
+			public void run() {
+				async.dispatch();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+		stats.injected(TimeUnit.MILLISECONDS.toNanos(delay));
+	}
+
+	/**
+	 * Read the AuthnRequest, if any, and show the login form
+	 */
+	private void handleSSO(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String spEntityID = config.getSpEntityID();
+		String acsURL = config.getAcsURL() != null ? config.getAcsURL().toString() : null;
+		String requestID = null;
+		String binding = config.getBinding();
+
+		String samlRequest = request.getParameter("SAMLRequest");
+		if (samlRequest != null) {
+			String authnRequest;
+			try {
+				if (request.getMethod().equalsIgnoreCase("POST")) {
+					authnRequest = new String(Base64.getMimeDecoder().decode(samlRequest), StandardCharsets.UTF_8);
+				}
+				else {
+					authnRequest = RedirectBindingCodec.decode(samlRequest);
+				}
+				Element root = XMLParsers.newDocumentBuilder().parse(new InputSource(new StringReader(authnRequest))).getDocumentElement();
+				requestID = root.getAttribute("ID");
+				if (root.hasAttribute(SAMLP.ASSERTIONCONSUMERSERVICEURL)) {
+					acsURL = root.getAttribute(SAMLP.ASSERTIONCONSUMERSERVICEURL);
+				}
+				if (root.hasAttribute(SAMLP.PROTOCOLBINDING)) {
+					binding = root.getAttribute(SAMLP.PROTOCOLBINDING);
+				}
+				NodeList issuers = root.getElementsByTagNameNS(SAML.NAMESPACE, "Issuer");
+				if (issuers.getLength() > 0) {
+					spEntityID = issuers.item(0).getTextContent().trim();
+				}
+			} catch (IllegalArgumentException | SAXException e) {
+				logger.debug("The fake IdP received an AuthnRequest that could not be read", e);
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The AuthnRequest could not be read");
+				return;
+			}
+		}
+		else {
+			// an IdP-initiated login can name its SP and where to send the response, like Shibboleth's unsolicited SSO
+			if (request.getParameter("providerId") != null) {
+				spEntityID = request.getParameter("providerId");
+			}
+			if (request.getParameter("shire") != null) {
+				acsURL = request.getParameter("shire");
+			}
+		}
+		if (acsURL == null || spEntityID == null) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The SP to send the response to is not known");
+			return;
+		}
+		stats.loginPage();
+		writeLoginForm(response, spEntityID, acsURL, requestID, request.getParameter("RelayState"), binding, null);
+	}
+
+	/**
+	 * Check the submitted login form and send the SAML Response to the SP
+	 */
+	private void handleLogin(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String spEntityID = request.getParameter("sp");
+		String acsURL = request.getParameter("acs");
+		String requestID = emptyToNull(request.getParameter("requestID"));
+		String relayState = emptyToNull(request.getParameter("RelayState"));
+		String binding = request.getParameter("binding");
+		String username = request.getParameter("username");
+		if (spEntityID == null || acsURL == null || binding == null) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The login form is incomplete");
+			return;
+		}
+		if (!config.getUsername().equals(username) || !config.getPassword().equals(request.getParameter("password"))) {
+			stats.failedLogin();
+			writeLoginForm(response, spEntityID, acsURL, requestID, relayState, binding, "The username or password is incorrect");
+			return;
+		}
+
+		boolean success = ThreadLocalRandom.current().nextDouble() >= config.getStatusErrorRate();
+		stats.response(!success);
+		if (binding.equals(SAMLmisc.BINDING_HTTP_REDIRECT)) {
+			String samlResponse = issuer.createResponse(spEntityID, acsURL, requestID, username, success, false);
+			String query = issuer.createRedirectQuery(RedirectBindingCodec.encode(samlResponse), relayState);
+			response.sendRedirect(acsURL + (acsURL.contains("?") ? "&" : "?") + query);
+		}
+		else {
+			String samlResponse = issuer.createResponse(spEntityID, acsURL, requestID, username, success, true);
+			response.setContentType("text/html");
+			response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+			PrintWriter page = response.getWriter();
+			page.println("<!DOCTYPE html><html><head><title>SAML2Tester Fake IdP</title></head><body onload=\"document.forms[0].submit()\">");
+			page.println("<form method=\"post\" action=\"" + escape(acsURL) + "\">");
+			page.println(hidden(SAMLmisc.URLPARAM_SAMLRESPONSE_POST, Base64.getEncoder().encodeToString(samlResponse.getBytes(StandardCharsets.UTF_8))));
+			if (relayState != null) {
+				page.println(hidden("RelayState", relayState));
+			}
+			page.println("<noscript><input type=\"submit\" value=\"Continue\"/></noscript></form></body></html>");
+		}
+	}
+
+	/**
+	 * Show the login form, which carries the details of the login in hidden fields
+	 */
+	private void writeLoginForm(HttpServletResponse response, String spEntityID, String acsURL, String requestID, String relayState, String binding, String error) throws IOException {
+		response.setContentType("text/html");
+		response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		PrintWriter page = response.getWriter();
+		page.println("<!DOCTYPE html><html><head><title>SAML2Tester Fake IdP</title></head><body>");
+		page.println("<h1>Log in to " + escape(spEntityID) + "</h1>");
+		if (error != null) {
+			page.println("<p id=\"error\">" + escape(error) + "</p>");
+		}
+		page.println("<form id=\"login\" name=\"login\" method=\"post\" action=\"" + LOGIN_PATH + "\">");
+		page.println("<label>Username <input type=\"text\" id=\"username\" name=\"username\"/></label>");
+		page.println("<label>Password <input type=\"password\" id=\"password\" name=\"password\"/></label>");
+		page.println(hidden("sp", spEntityID));
+		page.println(hidden("acs", acsURL));
+		page.println(hidden("requestID", requestID != null ? requestID : ""));
+		page.println(hidden("RelayState", relayState != null ? relayState : ""));
+		page.println(hidden("binding", binding));
+		page.println("<input type=\"submit\" id=\"submit\" name=\"submit\" value=\"Log in\"/>");
+		page.println("</form></body></html>");
+	}
+
+	private static String hidden(String name, String value) {
+		return "<input type=\"hidden\" name=\"" + name + "\" value=\"" + escape(value) + "\"/>";
+	}
+
+	private static String escape(String value) {
+		return value.replace("&", "&amp;").replace("\"", "&quot;").replace("<", "&lt;").replace(">", "&gt;");
+	}
+
+	private static String emptyToNull(String value) {
+		return value == null || value.isEmpty() ? null : value;
+	}
+}
@@ -0,0 +1,127 @@
+package saml2webssotest.idp.fakeIdP;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the requests that the {@link FakeIdP} handled.
+ *
+ * The time that the fake IdP spent on its requests is split into the latency it injected and the time it actually
+ * needed to handle them, so a run against the fake IdP shows how much of its duration was spent in the test runner
+ * itself. The statistics can be updated from any thread.
+ *
+ * @author RiaasM
+ *
+ */
+public class FakeIdPStats {
+	private final AtomicLong loginPages = new AtomicLong();
+	private final AtomicLong responses = new AtomicLong();
+	private final AtomicLong failedLogins = new AtomicLong();
+	private final AtomicLong injectedErrors = new AtomicLong();
+	private final AtomicLong injectedStatusErrors = new AtomicLong();
+	private final AtomicLong injectedNanos = new AtomicLong();
+	private final AtomicLong handlingNanos = new AtomicLong();
+
+	/**
+	 * Record a login page that was shown
+	 */
+	public void loginPage() {
+		loginPages.incrementAndGet();
+	}
+
+	/**
+	 * Record a SAML Response that was sent
+	 *
+	 * @param statusError is true if the response reported that the login failed, because that error was injected
+	 */
+	public void response(boolean statusError) {
+		responses.incrementAndGet();
+		if (statusError) {
+			injectedStatusErrors.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Record a login with the wrong username or password
+	 */
+	public void failedLogin() {
+		failedLogins.incrementAndGet();
+	}
+
+	/**
+	 * Record a request that was answered with an HTTP error because that error was injected
+	 */
+	public void injectedError() {
+		injectedErrors.incrementAndGet();
+	}
+
+	/**
+	 * Record the latency that was injected into a request
+	 *
+	 * @param nanos is the injected latency in nanoseconds
+	 */
+	public void injected(long nanos) {
+		injectedNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Record the time that was needed to handle a request, without the injected latency
+	 *
+	 * @param nanos is the time in nanoseconds
+	 */
+	public void handled(long nanos) {
+		handlingNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Start counting from zero again, e.g. at the start of a test run
+	 */
+	public void reset() {
+		loginPages.set(0);
+		responses.set(0);
+		failedLogins.set(0);
+		injectedErrors.set(0);
+		injectedStatusErrors.set(0);
+		injectedNanos.set(0);
+		handlingNanos.set(0);
+	}
+
+	public long getLoginPages() {
+		return loginPages.get();
+	}
+
+	public long getResponses() {
+		return responses.get();
+	}
+
+	public long getFailedLogins() {
+		return failedLogins.get();
+	}
+
+	public long getInjectedErrors() {
+		return injectedErrors.get();
+	}
+
+	public long getInjectedStatusErrors() {
+		return injectedStatusErrors.get();
+	}
+
+	/**
+	 * @return the total latency that was injected, in milliseconds
+	 */
+	public double getInjectedMillis() {
+		return injectedNanos.get() / 1000000.0;
+	}
+
+	/**
+	 * @return the total time that was needed to handle the requests without the injected latency, in milliseconds
+	 */
+	public double getHandlingMillis() {
+		return handlingNanos.get() / 1000000.0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d login pages, %d responses (%d with an injected error status), %d failed logins, %d injected HTTP errors, %.1f ms injected latency, %.1f ms handling time",
+				getLoginPages(), getResponses(), getInjectedStatusErrors(), getFailedLogins(), getInjectedErrors(), getInjectedMillis(), getHandlingMillis());
+	}
+}
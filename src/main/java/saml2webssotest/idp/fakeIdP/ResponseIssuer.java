@@ -0,0 +1,259 @@
+package saml2webssotest.idp.fakeIdP;
+
+import java.io.StringWriter;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.xml.XMLConstants;
+import javax.xml.crypto.MarshalException;
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.SignatureMethod;
+import javax.xml.crypto.dsig.SignedInfo;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignatureException;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMSignContext;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
+import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
+import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
+import javax.xml.crypto.dsig.spec.TransformParameterSpec;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import saml2webssotest.common.standardNames.SAML;
+import saml2webssotest.common.standardNames.SAMLP;
+import saml2webssotest.common.standardNames.SAMLmisc;
+import saml2webssotest.idp.XMLParsers;
+
+/**
+ * Creates the signed SAML Responses of the {@link FakeIdP}.
+ *
+ * The Response and its Assertion are signed with an enveloped XML signature (RSA-SHA256 over the exclusive canonical
+ * form) when they are sent through the HTTP-POST binding. Responses sent through the HTTP-Redirect binding carry no
+ * XML signature, since the binding signs the query string instead.
+ *
+ * @author RiaasM
+ *
+ */
+public class ResponseIssuer {
+	/**
+	 * The status of a response for a login that failed on the IdP
+	 */
+	public static final String STATUS_RESPONDER = "urn:oasis:names:tc:SAML:2.0:status:Responder";
+	/**
+	 * The algorithm of the query string signature of the HTTP-Redirect binding, as it is sent in the SigAlg parameter
+	 */
+	private static final String redirectSigAlg = SignatureMethod.RSA_SHA256;
+	private static final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+	private static final XMLSignatureFactory signatureFactory = XMLSignatureFactory.getInstance("DOM");
+
+	private final String entityID;
+	private final X509Certificate certificate;
+	private final PrivateKey privateKey;
+	private final FakeIdPConfiguration config;
+
+	/**
+	 * @param entityID is the entityID of the fake IdP, which is the Issuer of the responses
+	 * @param certificate is the certificate that is included in the signatures
+	 * @param privateKey is the private key that signs the responses
+	 * @param config contains the NameID format, the attributes and which elements are signed
+	 */
+	public ResponseIssuer(String entityID, X509Certificate certificate, PrivateKey privateKey, FakeIdPConfiguration config) {
+		this.entityID = entityID;
+		this.certificate = certificate;
+		this.privateKey = privateKey;
+		this.config = config;
+	}
+
+	/**
+	 * Create a SAML Response
+	 *
+	 * @param spEntityID is the entityID of the SP, which is the audience of the Assertion
+	 * @param acsURL is the URL to which the response is sent
+	 * @param inResponseTo is the ID of the AuthnRequest, or null for an IdP-initiated login
+	 * @param user is the name of the user that logged in, which is only used in the attributes
+	 * @param success is false if the response should report that the login failed, without an Assertion
+	 * @param sign is true if the Response and Assertion should be signed with XML signatures, as configured
+	 * @return the SAML Response
+	 */
+	public String createResponse(String spEntityID, String acsURL, String inResponseTo, String user, boolean success, boolean sign) {
+		Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+		Document document = XMLParsers.newDocumentBuilder().newDocument();
+		Element response = document.createElementNS(SAMLP.NAMESPACE, "samlp:Response");
+		// the namespaces are declared explicitly, since the canonicalization for the signatures only sees declarations
+		response.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns:samlp", SAMLP.NAMESPACE);
+		response.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns:saml", SAML.NAMESPACE);
+		setID(response, newID());
+		response.setAttribute("Version", "2.0");
+		response.setAttribute("IssueInstant", now.toString());
+		response.setAttribute("Destination", acsURL);
+		if (inResponseTo != null) {
+			response.setAttribute("InResponseTo", inResponseTo);
+		}
+		document.appendChild(response);
+		Element responseIssuer = addText(response, SAML.NAMESPACE, "saml:Issuer", entityID);
+		Element status = addElement(response, SAMLP.NAMESPACE, "samlp:Status");
+		addElement(status, SAMLP.NAMESPACE, "samlp:StatusCode").setAttribute("Value", success ? SAMLmisc.STATUS_SUCCESS : STATUS_RESPONDER);
+		if (!success) {
+			addText(status, SAMLP.NAMESPACE, "samlp:StatusMessage", "The login failed");
+		}
+		else {
+			Element assertion = addElement(response, SAML.NAMESPACE, "saml:Assertion");
+			setID(assertion, newID());
+			assertion.setAttribute("Version", "2.0");
+			assertion.setAttribute("IssueInstant", now.toString());
+			Element assertionIssuer = addText(assertion, SAML.NAMESPACE, "saml:Issuer", entityID);
+			Element subject = addElement(assertion, SAML.NAMESPACE, "saml:" + SAML.SUBJECT);
+			addText(subject, SAML.NAMESPACE, "saml:NameID", newID()).setAttribute(SAMLmisc.FORMAT, config.getNameIDFormat());
+			Element confirmation = addElement(subject, SAML.NAMESPACE, "saml:SubjectConfirmation");
+			confirmation.setAttribute("Method", SAMLmisc.CONFIRMATION_METHOD_BEARER);
+			Element confirmationData = addElement(confirmation, SAML.NAMESPACE, "saml:SubjectConfirmationData");
+			confirmationData.setAttribute("NotOnOrAfter", now.plus(5, ChronoUnit.MINUTES).toString());
+			confirmationData.setAttribute("Recipient", acsURL);
+			if (inResponseTo != null) {
+				confirmationData.setAttribute("InResponseTo", inResponseTo);
+			}
+			Element conditions = addElement(assertion, SAML.NAMESPACE, "saml:Conditions");
+			conditions.setAttribute("NotBefore", now.minus(1, ChronoUnit.MINUTES).toString());
+			conditions.setAttribute("NotOnOrAfter", now.plus(5, ChronoUnit.MINUTES).toString());
+			addText(addElement(conditions, SAML.NAMESPACE, "saml:AudienceRestriction"), SAML.NAMESPACE, "saml:Audience", spEntityID);
+			Element authnStatement = addElement(assertion, SAML.NAMESPACE, "saml:AuthnStatement");
+			authnStatement.setAttribute("AuthnInstant", now.toString());
+			authnStatement.setAttribute("SessionIndex", newID());
+			addText(addElement(authnStatement, SAML.NAMESPACE, "saml:AuthnContext"), SAML.NAMESPACE, "saml:AuthnContextClassRef", SAMLmisc.AUTHNCONTEXT_PASSWORD);
+			Map<String, String> attributes = config.getAttributes();
+			if (!attributes.isEmpty()) {
+				Element statement = addElement(assertion, SAML.NAMESPACE, "saml:AttributeStatement");
+				for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+					Element attributeElement = addElement(statement, SAML.NAMESPACE, "saml:" + SAML.ATTRIBUTE);
+					attributeElement.setAttribute("Name", attribute.getKey());
+					attributeElement.setAttribute(SAML.NAMEFORMAT, SAMLmisc.NAMEFORMAT_URI);
+					addText(attributeElement, SAML.NAMESPACE, "saml:" + SAML.ATTRIBUTEVALUE, attribute.getValue().replace("${user}", user));
+				}
+			}
+			// the Assertion is signed first, so the signature of the Response covers it
+			if (sign && config.isSignAssertion()) {
+				sign(assertion, assertionIssuer);
+			}
+		}
+		if (sign && config.isSignResponse()) {
+			sign(response, responseIssuer);
+		}
+		return serialize(document);
+	}
+
+	/**
+	 * Create the signed query string of the HTTP-Redirect binding for a SAML Response
+	 *
+	 * @param encodedResponse is the DEFLATE compressed and base64 encoded SAML Response, which is not yet URL-encoded
+	 * @param relayState is the RelayState, or null if there is none
+	 * @return the query string containing the SAMLResponse, RelayState, SigAlg and Signature parameters
+	 */
+	public String createRedirectQuery(String encodedResponse, String relayState) {
+		StringBuilder query = new StringBuilder();
+		query.append(SAMLmisc.URLPARAM_SAMLRESPONSE_REDIRECT).append('=').append(urlEncode(encodedResponse));
+		if (relayState != null) {
+			query.append("&RelayState=").append(urlEncode(relayState));
+		}
+		query.append("&SigAlg=").append(urlEncode(redirectSigAlg));
+		try {
+			Signature signature = Signature.getInstance("SHA256withRSA");
+			signature.initSign(privateKey);
+			signature.update(query.toString().getBytes(StandardCharsets.UTF_8));
+			query.append("&Signature=").append(urlEncode(Base64.getEncoder().encodeToString(signature.sign())));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Could not sign the query string of the SAML Response", e);
+		}
+		return query.toString();
+	}
+
+	/**
+	 * Add an enveloped signature to an element, directly after its Issuer as the schema requires
+	 */
+	private void sign(Element element, Element issuer) {
+		try {
+			Reference reference = signatureFactory.newReference(
+					"#" + element.getAttribute("ID"),
+					signatureFactory.newDigestMethod(DigestMethod.SHA256, null),
+					Arrays.asList(
+							signatureFactory.newTransform(Transform.ENVELOPED, (TransformParameterSpec) null),
+							signatureFactory.newTransform(CanonicalizationMethod.EXCLUSIVE, (TransformParameterSpec) null)),
+					null,
+					null);
+			SignedInfo signedInfo = signatureFactory.newSignedInfo(
+					signatureFactory.newCanonicalizationMethod(CanonicalizationMethod.EXCLUSIVE, (C14NMethodParameterSpec) null),
+					signatureFactory.newSignatureMethod(SignatureMethod.RSA_SHA256, null),
+					Collections.singletonList(reference));
+			KeyInfoFactory keyInfoFactory = signatureFactory.getKeyInfoFactory();
+			KeyInfo keyInfo = keyInfoFactory.newKeyInfo(Collections.singletonList(keyInfoFactory.newX509Data(Collections.singletonList(certificate))));
+			DOMSignContext context = new DOMSignContext(privateKey, element, issuer.getNextSibling());
+			context.setDefaultNamespacePrefix("ds");
+			signatureFactory.newXMLSignature(signedInfo, keyInfo).sign(context);
+		} catch (GeneralSecurityException | MarshalException | XMLSignatureException e) {
+			throw new IllegalStateException("Could not sign the SAML Response", e);
+		}
+	}
+
+	private static String serialize(Document document) {
+		try {
+			Transformer transformer = transformerFactory.newTransformer();
+			transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+			StringWriter xml = new StringWriter();
+			transformer.transform(new DOMSource(document), new StreamResult(xml));
+			return xml.toString();
+		} catch (TransformerException e) {
+			throw new IllegalStateException("Could not serialize the SAML Response", e);
+		}
+	}
+
+	private static Element addElement(Element parent, String namespace, String qualifiedName) {
+		Element element = parent.getOwnerDocument().createElementNS(namespace, qualifiedName);
+		parent.appendChild(element);
+		return element;
+	}
+
+	private static Element addText(Element parent, String namespace, String qualifiedName, String text) {
+		Element element = addElement(parent, namespace, qualifiedName);
+		element.setTextContent(text);
+		return element;
+	}
+
+	/**
+	 * Set the ID attribute of an element and mark it as an ID, so the signature can reference it
+	 */
+	private static void setID(Element element, String id) {
+		element.setAttribute("ID", id);
+		element.setIdAttribute("ID", true);
+	}
+
+	/**
+	 * @return a random ID in the same format as the IDs of the mock SP's messages
+	 */
+	private static String newID() {
+		return "_" + UUID.randomUUID().toString();
+	}
+
+	private static String urlEncode(String value) {
+		return URLEncoder.encode(value, StandardCharsets.UTF_8);
+	}
+}
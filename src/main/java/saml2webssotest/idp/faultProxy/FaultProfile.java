@@ -0,0 +1,126 @@
+package saml2webssotest.idp.faultProxy;
+
+import java.util.Random;
+
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * The latency and faults that the {@link FaultProxy} injects into the connections to a host.
+ *
+ * Latency is added to each round trip, i.e. before the first bytes of each response that the host sends after the
+ * browser sent it something, so it also delays each round trip of a TLS handshake. Latencies are in milliseconds and
+ * rates are fractions of the round trips (between 0 and 1).
+ *
+ * @author RiaasM
+ *
+ */
+public class FaultProfile {
+	/**
+	 * The distributions from which the latency of a round trip can be drawn
+	 */
+	public enum Distribution {
+		/**
+		 * Always the base latency
+		 */
+		@SerializedName("fixed")
+		FIXED,
+		/**
+		 * The base latency plus a uniformly distributed time up to the jitter
+		 */
+		@SerializedName("uniform")
+		UNIFORM,
+		/**
+		 * Normally distributed around the base latency, with the jitter as its standard deviation
+		 */
+		@SerializedName("normal")
+		NORMAL,
+		/**
+		 * The base latency plus an exponentially distributed time, with the jitter as its mean
+		 */
+		@SerializedName("exponential")
+		EXPONENTIAL,
+		/**
+		 * The base latency plus a Pareto distributed time (shape 1.5) with the jitter as its scale, so a few round trips
+		 * take far longer than the others
+		 */
+		@SerializedName("pareto")
+		PARETO
+	}
+
+	/**
+	 * The shape of the Pareto distribution, which has a finite mean but an infinite variance
+	 */
+	private static final double paretoShape = 1.5;
+	private Distribution distribution = Distribution.FIXED;
+	/**
+	 * The base latency of each round trip
+	 */
+	private int latency = 0;
+	/**
+	 * The variation of the latency, whose meaning depends on the distribution
+	 */
+	private int jitter = 0;
+	/**
+	 * The maximum throughput of each connection in each direction, in kilobytes per second, or 0 for no limit
+	 */
+	private int bandwidth = 0;
+	/**
+	 * The fraction of the round trips in which the connection is reset instead of receiving the response
+	 */
+	private double resetRate = 0;
+	/**
+	 * The fraction of the round trips in which the response is dropped, so the browser waits for it until it times out
+	 */
+	private double dropRate = 0;
+
+	public Distribution getDistribution() {
+		return distribution;
+	}
+
+	public int getLatency() {
+		return latency;
+	}
+
+	public int getJitter() {
+		return jitter;
+	}
+
+	public int getBandwidth() {
+		return bandwidth;
+	}
+
+	public double getResetRate() {
+		return resetRate;
+	}
+
+	public double getDropRate() {
+		return dropRate;
+	}
+
+	/**
+	 * Draw the latency of a round trip from the distribution
+	 *
+	 * @param random provides the random values
+	 * @return the latency in milliseconds
+	 */
+	public long sampleLatency(Random random) {
+		double extra;
+		switch (distribution) {
+		case UNIFORM:
+			extra = random.nextDouble() * jitter;
+			break;
+		case NORMAL:
+			extra = random.nextGaussian() * jitter;
+			break;
+		case EXPONENTIAL:
+			extra = -Math.log(1 - random.nextDouble()) * jitter;
+			break;
+		case PARETO:
+			extra = jitter * (Math.pow(1 - random.nextDouble(), -1 / paretoShape) - 1);
+			break;
+		default:
+			extra = 0;
+		}
+		return Math.max(0, Math.round(latency + extra));
+	}
+}
@@ -0,0 +1,458 @@
+package saml2webssotest.idp.faultProxy;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+
+/**
+ * An HTTP proxy that runs inside the test runner and sits between the browser and the hosts it visits, injecting
+ * latency, bandwidth limits, connection resets and dropped responses as configured for each host.
+ *
+ * Plain HTTP requests are forwarded to their host, and HTTPS is tunneled through CONNECT, so the proxy never needs to
+ * decrypt anything. The faults are injected into the bytes that flow through each connection: a round trip starts
+ * when the browser has sent something and ends when the first bytes of the answer arrive, which is when its latency
+ * is added and when it may be reset or dropped. This makes the faults the same for HTTP and HTTPS, including the
+ * round trips of the TLS handshakes.
+ *
+ * Each connection is forwarded by its own virtual threads, so many slow connections do not need many platform
+ * threads. The proxy only listens on the loopback address.
+ *
+ * @author RiaasM
+ *
+ */
+public class FaultProxy {
+	/**
+	 * Logger for this class
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(FaultProxy.class);
+	/**
+	 * The maximum size of the request line and headers of a request to the proxy
+	 */
+	private static final int maxHeadSize = 64 * 1024;
+	/**
+	 * The size of the buffers that forward the data
+	 */
+	private static final int bufferSize = 8 * 1024;
+	/**
+	 * The amount of slices into which the bandwidth of a second is divided, so throttled data flows steadily
+	 */
+	private static final int throttleSlices = 20;
+	private final FaultProxyConfiguration config;
+	private final FaultProxyStats stats = new FaultProxyStats();
+	/**
+	 * The sockets that are currently open, so they can be closed when the proxy stops
+	 */
+	private final Set<Socket> openSockets = ConcurrentHashMap.newKeySet();
+	private ServerSocket serverSocket;
+	private ExecutorService connections;
+
+	/**
+	 * @param config contains the port of the proxy and the latency and faults for each host
+	 */
+	public FaultProxy(FaultProxyConfiguration config) {
+		this.config = config;
+	}
+
+	/**
+	 * Read the settings of a proxy from a JSON file
+	 *
+	 * @param file is the JSON file
+	 * @return the settings
+	 * @throws IOException if the file could not be read
+	 */
+	public static FaultProxyConfiguration loadConfig(Path file) throws IOException {
+		try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			FaultProxyConfiguration config = new Gson().fromJson(reader, FaultProxyConfiguration.class);
+			return config != null ? config : new FaultProxyConfiguration();
+		}
+	}
+
+	/**
+	 * Start accepting connections
+	 *
+	 * @throws IOException if the proxy could not listen on its port
+	 */
+	public void start() throws IOException {
+		serverSocket = new ServerSocket();
+		serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), config.getPort()));
+		connections = Executors.newVirtualThreadPerTaskExecutor();
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "fault-proxy");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		logger.info("The fault injection proxy is listening on " + getAddress());
+	}
+
+	/**
+	 * Stop accepting connections and close the connections that are still open
+	 */
+	public void stop() {
+		closeQuietly(serverSocket);
+		for (Socket socket : openSockets) {
+			closeQuietly(socket);
+		}
+		if (connections != null) {
+			connections.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return the address on which the proxy listens
+	 */
+	public InetSocketAddress getAddress() {
+		return new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+	}
+
+	public FaultProxyStats getStats() {
+		return stats;
+	}
+
+	private void accept() {
+		while (!serverSocket.isClosed()) {
+			try {
+				final Socket client = serverSocket.accept();
+				openSockets.add(client);
+				connections.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							handle(client);
+						} catch (IOException e) {
+							logger.debug("A connection through the fault injection proxy failed", e);
+						} finally {
+							closeQuietly(client);
+						}
+					}
+				});
+			} catch (IOException e) {
+				if (!serverSocket.isClosed()) {
+					logger.error("The fault injection proxy could not accept a connection", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read the first request of a connection, connect to its host and forward the connection in both directions
+	 */
+	private void handle(Socket client) throws IOException {
+		InputStream clientIn = new BufferedInputStream(client.getInputStream(), bufferSize);
+		OutputStream clientOut = client.getOutputStream();
+		String head = readHead(clientIn);
+		if (head == null) {
+			return;
+		}
+		int lineEnd = head.indexOf("\r\n");
+		String[] requestLine = head.substring(0, lineEnd).split(" ");
+		if (requestLine.length != 3) {
+			writeError(clientOut, "400 Bad Request");
+			return;
+		}
+		boolean tunnel = requestLine[0].equalsIgnoreCase("CONNECT");
+		String host;
+		int port;
+		String forwardedHead = null;
+		if (tunnel) {
+			int colon = requestLine[1].lastIndexOf(':');
+			host = colon > 0 ? requestLine[1].substring(0, colon) : requestLine[1];
+			try {
+				port = colon > 0 ? Integer.parseInt(requestLine[1].substring(colon + 1)) : 443;
+			} catch (NumberFormatException e) {
+				writeError(clientOut, "400 Bad Request");
+				return;
+			}
+			if (host.isEmpty() || port < 1 || port > 65535) {
+				writeError(clientOut, "400 Bad Request");
+				return;
+			}
+		}
+		else {
+			URI target;
+			try {
+				target = new URI(requestLine[1]);
+			} catch (URISyntaxException e) {
+				writeError(clientOut, "400 Bad Request");
+				return;
+			}
+			if (target.getHost() == null || !"http".equalsIgnoreCase(target.getScheme())) {
+				writeError(clientOut, "400 Bad Request");
+				return;
+			}
+			host = target.getHost();
+			port = target.getPort() != -1 ? target.getPort() : 80;
+			// the host expects the path instead of the full URL, and the headers for the proxy are not for the host. The
+			// connection is only used for this request, since the browser may send its next request for another host.
+			String path = target.getRawPath().isEmpty() ? "/" : target.getRawPath();
+			if (target.getRawQuery() != null) {
+				path += "?" + target.getRawQuery();
+			}
+			StringBuilder rewritten = new StringBuilder(requestLine[0]).append(' ').append(path).append(' ').append(requestLine[2]).append("\r\n");
+			for (String header : head.substring(lineEnd + 2).split("\r\n")) {
+				if (!header.isEmpty() && !header.regionMatches(true, 0, "Proxy-", 0, 6) && !header.regionMatches(true, 0, "Connection:", 0, 11)) {
+					rewritten.append(header).append("\r\n");
+				}
+			}
+			forwardedHead = rewritten.append("Connection: close\r\n\r\n").toString();
+		}
+
+		FaultProfile profile = config.getProfile(host);
+		Socket upstream = new Socket();
+		openSockets.add(upstream);
+		try {
+			try {
+				upstream.connect(new InetSocketAddress(host, port), config.getConnectTimeout());
+			} catch (IOException e) {
+				stats.connection(true);
+				logger.debug("The fault injection proxy could not connect to " + host + ":" + port, e);
+				writeError(clientOut, "502 Bad Gateway");
+				return;
+			}
+			stats.connection(false);
+			final Connection connection = new Connection(client, upstream, profile);
+			if (tunnel) {
+				clientOut.write("HTTP/1.1 200 Connection Established\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+				clientOut.flush();
+			}
+			else {
+				connection.awaitingResponse.set(true);
+				upstream.getOutputStream().write(forwardedHead.getBytes(StandardCharsets.ISO_8859_1));
+				upstream.getOutputStream().flush();
+			}
+			final InputStream requests = clientIn;
+			connections.execute(new Runnable() {
+				@Override
+				public void run() {
+					connection.forwardRequests(requests);
+				}
+			});
+			connection.forwardResponses();
+		} finally {
+			closeQuietly(upstream);
+		}
+	}
+
+	/**
+	 * Read the request line and headers of a request
+	 *
+	 * @return the request line and headers, or null if the connection was closed before they were complete
+	 */
+	private static String readHead(InputStream in) throws IOException {
+		ByteArrayOutputStream head = new ByteArrayOutputStream();
+		int matched = 0;
+		while (matched < 4) {
+			int b = in.read();
+			if (b == -1 || head.size() >= maxHeadSize) {
+				return null;
+			}
+			head.write(b);
+			matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+		}
+		return head.toString(StandardCharsets.ISO_8859_1.name());
+	}
+
+	private static void writeError(OutputStream out, String status) throws IOException {
+		out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+		out.flush();
+	}
+
+	private void closeQuietly(Closeable closeable) {
+		if (closeable == null) {
+			return;
+		}
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			// the connection is being discarded anyway
+		}
+		if (closeable instanceof Socket) {
+			openSockets.remove(closeable);
+		}
+	}
+
+	/**
+	 * A connection from the browser to a host, which is forwarded in both directions by separate threads
+	 */
+	private final class Connection {
+		private final Socket client;
+		private final Socket upstream;
+		private final FaultProfile profile;
+		/**
+		 * Whether the browser has sent something that the host has not answered yet
+		 */
+		private final AtomicBoolean awaitingResponse = new AtomicBoolean();
+		/**
+		 * Whether the responses on this connection are dropped instead of forwarded
+		 */
+		private volatile boolean dropping;
+		/**
+		 * Released when the browser closed the connection
+		 */
+		private final CountDownLatch requestsDone = new CountDownLatch(1);
+
+		private Connection(Socket client, Socket upstream, FaultProfile profile) {
+			this.client = client;
+			this.upstream = upstream;
+			this.profile = profile;
+		}
+
+		/**
+		 * Forward the data from the browser to the host, until the browser closes the connection
+		 */
+		private void forwardRequests(InputStream in) {
+			try {
+				OutputStream out = upstream.getOutputStream();
+				Throttle throttle = new Throttle();
+				byte[] buffer = new byte[bufferSize];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					// set before the request is written, so a response that arrives right after it is not missed
+					awaitingResponse.set(true);
+					throttle.write(out, buffer, read);
+				}
+			} catch (IOException e) {
+				// one of the sockets was closed, which ends the connection
+			} finally {
+				// the browser gave up, e.g. on a dropped response, so the connection is done
+				closeQuietly(upstream);
+				closeQuietly(client);
+				requestsDone.countDown();
+			}
+		}
+
+		/**
+		 * Forward the data from the host to the browser, injecting the latency and faults of each round trip
+		 */
+		private void forwardResponses() {
+			try {
+				InputStream in = upstream.getInputStream();
+				OutputStream out = client.getOutputStream();
+				Throttle throttle = new Throttle();
+				byte[] buffer = new byte[bufferSize];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					if (awaitingResponse.getAndSet(false) && !dropping && !startRoundTrip()) {
+						return;
+					}
+					if (!dropping) {
+						throttle.write(out, buffer, read);
+					}
+				}
+				if (!dropping) {
+					client.shutdownOutput();
+				}
+			} catch (IOException e) {
+				// one of the sockets was closed, which ends the connection
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (dropping) {
+				// a dropped response leaves the browser waiting until it gives up and closes the connection itself
+				try {
+					requestsDone.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			closeQuietly(client);
+		}
+
+		/**
+		 * Inject the latency and faults for the response of a round trip
+		 *
+		 * @return false if the connection was reset
+		 */
+		private boolean startRoundTrip() throws IOException, InterruptedException {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			double fault = random.nextDouble();
+			if (fault < profile.getResetRate()) {
+				stats.roundTrip(0);
+				stats.reset();
+				// closing with a zero linger time sends a TCP reset instead of a normal close
+				client.setSoLinger(true, 0);
+				closeQuietly(client);
+				closeQuietly(upstream);
+				return false;
+			}
+			long latency = profile.sampleLatency(random);
+			stats.roundTrip(TimeUnit.MILLISECONDS.toNanos(latency));
+			if (latency > 0) {
+				Thread.sleep(latency);
+			}
+			if (fault < profile.getResetRate() + profile.getDropRate()) {
+				stats.drop();
+				dropping = true;
+			}
+			return true;
+		}
+
+		/**
+		 * Limits the throughput of one direction of the connection to the bandwidth of the profile
+		 */
+		private final class Throttle {
+			/**
+			 * When the data that was written so far may have been sent at the limited bandwidth
+			 */
+			private long readyNanos = System.nanoTime();
+
+			private void write(OutputStream out, byte[] buffer, int length) throws IOException {
+				long bytesPerSecond = profile.getBandwidth() * 1024L;
+				if (bytesPerSecond <= 0) {
+					out.write(buffer, 0, length);
+					out.flush();
+					stats.transferred(length);
+					return;
+				}
+				int slice = (int) Math.max(1, bytesPerSecond / throttleSlices);
+				for (int offset = 0; offset < length; offset += slice) {
+					int amount = Math.min(slice, length - offset);
+					long now = System.nanoTime();
+					readyNanos = Math.max(readyNanos, now) + TimeUnit.SECONDS.toNanos(amount) / bytesPerSecond;
+					long wait = readyNanos - now;
+					if (wait > 0) {
+						try {
+							TimeUnit.NANOSECONDS.sleep(wait);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new SocketException("The connection was interrupted while it was throttled");
+						}
+						stats.throttled(wait);
+					}
+					out.write(buffer, offset, amount);
+					out.flush();
+					stats.transferred(amount);
+				}
+			}
+		}
+	}
+}
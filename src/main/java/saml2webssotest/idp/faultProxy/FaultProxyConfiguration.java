@@ -0,0 +1,53 @@
+package saml2webssotest.idp.faultProxy;
+
+import java.util.HashMap;
+
+/**
+ * The settings of the {@link FaultProxy}, which are read from a JSON file.
+ *
+ * The latency and faults of this profile apply to every host that has no profile of its own in the hosts.
+ *
+ * @author RiaasM
+ *
+ */
+public class FaultProxyConfiguration extends FaultProfile {
+	/**
+	 * The port on which the proxy listens on the loopback address, or 0 to use any free port
+	 */
+	private int port = 0;
+	/**
+	 * The maximum amount of milliseconds to wait for a connection to a host
+	 */
+	private int connectTimeout = 30000;
+	/**
+	 * The profiles of specific hosts, by their host name
+	 */
+	private HashMap<String, FaultProfile> hosts = new HashMap<String, FaultProfile>();
+
+	public int getPort() {
+		return port;
+	}
+
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * Retrieve the latency and faults for the connections to a host
+	 *
+	 * @param host is the host name, as the browser requested it
+	 * @return the profile of the host, or this profile if the host has none
+	 */
+	public FaultProfile getProfile(String host) {
+		for (String name : hosts.keySet()) {
+			if (name.equalsIgnoreCase(host)) {
+				return hosts.get(name);
+			}
+		}
+		return this;
+	}
+}
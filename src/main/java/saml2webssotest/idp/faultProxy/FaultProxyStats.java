@@ -0,0 +1,200 @@
+package saml2webssotest.idp.faultProxy;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the latency and faults that the {@link FaultProxy} injected.
+ *
+ * The statistics can be updated from any thread. A copy can be taken before something is run, so the effects on that
+ * run can be retrieved afterwards with {@link #since(FaultProxyStats)}.
+ *
+ * @author RiaasM
+ *
+ */
+public class FaultProxyStats {
+	private final AtomicLong connections = new AtomicLong();
+	private final AtomicLong failedConnections = new AtomicLong();
+	private final AtomicLong roundTrips = new AtomicLong();
+	private final AtomicLong delayedNanos = new AtomicLong();
+	private final AtomicLong maxDelayNanos = new AtomicLong();
+	private final AtomicLong throttledNanos = new AtomicLong();
+	private final AtomicLong resets = new AtomicLong();
+	private final AtomicLong drops = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+
+	/**
+	 * Record a connection through the proxy
+	 *
+	 * @param failed is true if the proxy could not connect to the host
+	 */
+	public void connection(boolean failed) {
+		connections.incrementAndGet();
+		if (failed) {
+			failedConnections.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Record a round trip and the latency that was injected into it
+	 *
+	 * @param nanos is the injected latency in nanoseconds
+	 */
+	public void roundTrip(long nanos) {
+		roundTrips.incrementAndGet();
+		delayedNanos.addAndGet(nanos);
+		long max = maxDelayNanos.get();
+		while (nanos > max && !maxDelayNanos.compareAndSet(max, nanos)) {
+			max = maxDelayNanos.get();
+		}
+	}
+
+	/**
+	 * Record the time that data waited because of the bandwidth limit
+	 *
+	 * @param nanos is the time in nanoseconds
+	 */
+	public void throttled(long nanos) {
+		throttledNanos.addAndGet(nanos);
+	}
+
+	public void reset() {
+		resets.incrementAndGet();
+	}
+
+	public void drop() {
+		drops.incrementAndGet();
+	}
+
+	/**
+	 * Record data that was forwarded
+	 *
+	 * @param amount is the amount of bytes
+	 */
+	public void transferred(long amount) {
+		bytes.addAndGet(amount);
+	}
+
+	/**
+	 * Start counting from zero again, e.g. at the start of a test run
+	 */
+	public void clear() {
+		for (AtomicLong counter : counters()) {
+			counter.set(0);
+		}
+	}
+
+	/**
+	 * @return a copy of the current statistics
+	 */
+	public FaultProxyStats copy() {
+		FaultProxyStats copy = new FaultProxyStats();
+		AtomicLong[] source = counters();
+		AtomicLong[] target = copy.counters();
+		for (int i = 0; i < source.length; i++) {
+			target[i].set(source[i].get());
+		}
+		return copy;
+	}
+
+	/**
+	 * Retrieve what was injected after an earlier copy was taken. The slowest round trip is the slowest one overall.
+	 *
+	 * @param earlier is a copy of these statistics
+	 * @return the difference between these statistics and the copy
+	 */
+	public FaultProxyStats since(FaultProxyStats earlier) {
+		FaultProxyStats difference = copy();
+		AtomicLong[] target = difference.counters();
+		AtomicLong[] source = earlier.counters();
+		for (int i = 0; i < target.length; i++) {
+			if (target[i] != difference.maxDelayNanos) {
+				target[i].addAndGet(-source[i].get());
+			}
+		}
+		return difference;
+	}
+
+	private AtomicLong[] counters() {
+		return new AtomicLong[] {connections, failedConnections, roundTrips, delayedNanos, maxDelayNanos, throttledNanos, resets, drops, bytes};
+	}
+
+	public long getConnections() {
+		return connections.get();
+	}
+
+	public long getFailedConnections() {
+		return failedConnections.get();
+	}
+
+	public long getRoundTrips() {
+		return roundTrips.get();
+	}
+
+	public long getResets() {
+		return resets.get();
+	}
+
+	public long getDrops() {
+		return drops.get();
+	}
+
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * @return the total latency that was injected into the round trips, in milliseconds
+	 */
+	public double getDelayedMillis() {
+		return delayedNanos.get() / 1000000.0;
+	}
+
+	/**
+	 * @return the largest latency that was injected into a single round trip, in milliseconds
+	 */
+	public double getMaxDelayMillis() {
+		return maxDelayNanos.get() / 1000000.0;
+	}
+
+	/**
+	 * @return the total time that data waited because of the bandwidth limit, in milliseconds
+	 */
+	public double getThrottledMillis() {
+		return throttledNanos.get() / 1000000.0;
+	}
+
+	/**
+	 * @return true if nothing went through the proxy
+	 */
+	public boolean isEmpty() {
+		return connections.get() == 0 && roundTrips.get() == 0;
+	}
+
+	/**
+	 * Retrieve the statistics by their name, e.g. to store them with the outcome of a test case. The latencies are
+	 * rounded to whole milliseconds.
+	 *
+	 * @return the statistics
+	 */
+	public Map<String, Long> toMap() {
+		Map<String, Long> map = new LinkedHashMap<String, Long>();
+		map.put("connections", getConnections());
+		map.put("failedConnections", getFailedConnections());
+		map.put("roundTrips", getRoundTrips());
+		map.put("delayedMillis", Math.round(getDelayedMillis()));
+		map.put("maxDelayMillis", Math.round(getMaxDelayMillis()));
+		map.put("throttledMillis", Math.round(getThrottledMillis()));
+		map.put("resets", getResets());
+		map.put("drops", getDrops());
+		map.put("bytes", getBytes());
+		return map;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d connections (%d failed), %d round trips with %.1f ms injected latency (slowest %.1f ms), %.1f ms throttled, %d resets, %d dropped responses, %d bytes",
+				getConnections(), getFailedConnections(), getRoundTrips(), getDelayedMillis(), getMaxDelayMillis(), getThrottledMillis(), getResets(), getDrops(), getBytes());
+	}
+}
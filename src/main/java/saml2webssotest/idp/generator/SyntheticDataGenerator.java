@@ -0,0 +1,487 @@
+package saml2webssotest.idp.generator;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Base64;
+import java.util.Random;
+import java.util.UUID;
+
+import javax.xml.XMLConstants;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import saml2webssotest.common.standardNames.MD;
+import saml2webssotest.common.standardNames.SAML;
+import saml2webssotest.common.standardNames.SAMLP;
+import saml2webssotest.common.standardNames.SAMLmisc;
+import saml2webssotest.idp.testsuites.IdPTestSuite;
+
+/**
+ * Generates large, synthetic metadata aggregates and SAML Responses, to find out how the test runner itself scales.
+ *
+ * The metadata aggregate contains any amount of entities, each with a configurable amount of endpoints, keys and
+ * contacts. The responses contain a configurable amount of attributes with values of a configurable size. Everything is
+ * written to disk as it is generated, so the amount of memory that is needed does not depend on the amount of data. The
+ * data is generated from a seed, so the same settings always produce the same data.
+ *
+ * The generated metadata is valid according to the structure of SAML 2.0 metadata and uses real certificates, so the
+ * metadata test cases check it like they would check real metadata. About one in ten endpoints does not use TLS and
+ * some entities lack contacts or an English name, so the test cases do not only find metadata that passes. The
+ * metadata can be tested by referencing it with the metadataLocation of a target IdP configuration.
+ *
+ * @author RiaasM
+ *
+ */
+public class SyntheticDataGenerator {
+	/**
+	 * Logger for this class
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(SyntheticDataGenerator.class);
+	private static final String mduiNamespace = "urn:oasis:names:tc:SAML:metadata:ui";
+	private static final String[] contactTypes = {"technical", "support", "administrative", "billing", "other"};
+	private static final char[] valueChars = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789".toCharArray();
+	private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+	/**
+	 * The amount of entities in the metadata aggregate
+	 */
+	private int entities = 1000;
+	/**
+	 * The amount of SSO or ACS endpoints of each entity
+	 */
+	private int endpoints = 4;
+	/**
+	 * The amount of keys of each entity
+	 */
+	private int keys = 2;
+	/**
+	 * The amount of contacts of each entity
+	 */
+	private int contacts = 2;
+	/**
+	 * The fraction of the entities that are SPs instead of IdPs
+	 */
+	private double spFraction = 0.5;
+	/**
+	 * The amount of SAML Responses
+	 */
+	private int responses = 100;
+	/**
+	 * The amount of attributes in each SAML Response
+	 */
+	private int attributes = 20;
+	/**
+	 * The amount of values of each attribute
+	 */
+	private int attributeValues = 1;
+	/**
+	 * The amount of characters in each attribute value
+	 */
+	private int valueSize = 32;
+	private long seed = 1;
+	/**
+	 * The base64 encoded certificate that is used for all keys
+	 */
+	private String certificate;
+
+	/**
+	 * Create a generator that uses the default certificate of the mock SP for all keys
+	 */
+	public SyntheticDataGenerator() {
+		setCertificate(IdPTestSuite.DEFAULT_CERTIFICATE);
+	}
+
+	public void setEntities(int entities) {
+		this.entities = entities;
+	}
+
+	public void setEndpoints(int endpoints) {
+		this.endpoints = endpoints;
+	}
+
+	public void setKeys(int keys) {
+		this.keys = keys;
+	}
+
+	public void setContacts(int contacts) {
+		this.contacts = contacts;
+	}
+
+	public void setSpFraction(double spFraction) {
+		this.spFraction = spFraction;
+	}
+
+	public void setResponses(int responses) {
+		this.responses = responses;
+	}
+
+	public void setAttributes(int attributes) {
+		this.attributes = attributes;
+	}
+
+	public void setAttributeValues(int attributeValues) {
+		this.attributeValues = attributeValues;
+	}
+
+	public void setValueSize(int valueSize) {
+		this.valueSize = valueSize;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Set the certificate that is used for all keys in the metadata
+	 *
+	 * @param pem is the certificate in PEM format
+	 * @throws IllegalArgumentException if the certificate could not be read
+	 */
+	public void setCertificate(String pem) {
+		try {
+			X509Certificate cert = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(pem.getBytes(StandardCharsets.US_ASCII)));
+			certificate = Base64.getMimeEncoder(64, new byte[] {'\n'}).encodeToString(cert.getEncoded());
+		} catch (CertificateEncodingException e) {
+			throw new IllegalArgumentException("The certificate could not be encoded", e);
+		} catch (CertificateException e) {
+			throw new IllegalArgumentException("The certificate could not be read", e);
+		}
+	}
+
+	/**
+	 * Write a metadata aggregate to a file
+	 *
+	 * @param file is the file, which is replaced if it exists
+	 * @throws IOException if the file could not be written
+	 */
+	public void writeMetadata(Path file) throws IOException {
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+			writeMetadata(out);
+		}
+	}
+
+	/**
+	 * Write a metadata aggregate
+	 *
+	 * @param out receives the metadata, and is not closed
+	 * @throws IOException if the metadata could not be written
+	 */
+	public void writeMetadata(OutputStream out) throws IOException {
+		Random random = new Random(seed);
+		try {
+			XMLStreamWriter xml = outputFactory.createXMLStreamWriter(out, StandardCharsets.UTF_8.name());
+			xml.writeStartDocument(StandardCharsets.UTF_8.name(), "1.0");
+			xml.setPrefix("md", MD.NAMESPACE);
+			xml.setPrefix("ds", XMLSignature.XMLNS);
+			xml.setPrefix("mdui", mduiNamespace);
+			xml.writeStartElement(MD.NAMESPACE, "EntitiesDescriptor");
+			xml.writeNamespace("md", MD.NAMESPACE);
+			xml.writeNamespace("ds", XMLSignature.XMLNS);
+			xml.writeNamespace("mdui", mduiNamespace);
+			xml.writeAttribute("Name", "urn:example:synthetic:" + entities);
+			xml.writeAttribute("validUntil", Instant.now().plus(7, ChronoUnit.DAYS).truncatedTo(ChronoUnit.SECONDS).toString());
+			for (int i = 0; i < entities; i++) {
+				writeEntity(xml, i, random.nextDouble() < spFraction, random);
+				if ((i + 1) % 10000 == 0) {
+					logger.info("Generated " + (i + 1) + " of " + entities + " entities");
+				}
+			}
+			xml.writeEndElement();
+			xml.writeEndDocument();
+			xml.close();
+		} catch (XMLStreamException e) {
+			throw new IOException("The metadata could not be written", e);
+		}
+	}
+
+	private void writeEntity(XMLStreamWriter xml, int index, boolean sp, Random random) throws XMLStreamException {
+		String host = (sp ? "sp" : "idp") + index + ".example.org";
+		xml.writeStartElement(MD.NAMESPACE, MD.ENTITYDESCRIPTOR);
+		xml.writeAttribute(MD.ENTITYID, "https://" + host + (sp ? "/shibboleth" : "/idp/shibboleth"));
+		xml.writeStartElement(MD.NAMESPACE, sp ? MD.SPSSODESCRIPTOR : "IDPSSODescriptor");
+		xml.writeAttribute("protocolSupportEnumeration", SAMLmisc.SAML20_PROTOCOL);
+
+		// most entities have a name and description in English, some only in another language
+		boolean english = random.nextInt(20) != 0;
+		xml.writeStartElement(MD.NAMESPACE, "Extensions");
+		xml.writeStartElement(mduiNamespace, "UIInfo");
+		writeLocalized(xml, mduiNamespace, "DisplayName", english ? "en" : "nl", "Synthetic entity " + index);
+		writeLocalized(xml, mduiNamespace, "Description", english ? "en" : "nl", randomValue(random, 60));
+		xml.writeEndElement();
+		xml.writeEndElement();
+
+		for (int k = 0; k < keys; k++) {
+			xml.writeStartElement(MD.NAMESPACE, MD.KEYDESCRIPTOR);
+			xml.writeAttribute(MD.USE, k % 2 == 0 ? "signing" : MD.KEYTYPE_ENCRYPTION);
+			xml.writeStartElement(XMLSignature.XMLNS, "KeyInfo");
+			xml.writeStartElement(XMLSignature.XMLNS, "X509Data");
+			xml.writeStartElement(XMLSignature.XMLNS, "X509Certificate");
+			xml.writeCharacters(certificate);
+			xml.writeEndElement();
+			xml.writeEndElement();
+			xml.writeEndElement();
+			xml.writeEndElement();
+		}
+		writeText(xml, MD.NAMESPACE, MD.NAMEIDFORMAT, SAMLmisc.NAMEID_FORMAT_TRANSIENT);
+		writeText(xml, MD.NAMESPACE, MD.NAMEIDFORMAT, SAMLmisc.NAMEID_FORMAT_PERSISTENT);
+		for (int e = 0; e < endpoints; e++) {
+			// about one in ten endpoints does not use TLS
+			String location = (random.nextInt(10) == 0 ? "http://" : "https://") + host + (sp ? "/Shibboleth.sso/SAML2/" : "/idp/profile/SAML2/") + e;
+			if (sp) {
+				xml.writeEmptyElement(MD.NAMESPACE, MD.ASSERTIONCONSUMERSERVICE);
+				xml.writeAttribute(MD.BINDING, e % 2 == 0 ? SAMLmisc.BINDING_HTTP_POST : SAMLmisc.BINDING_HTTP_ARTIFACT);
+				xml.writeAttribute(MD.LOCATION, location);
+				xml.writeAttribute("index", Integer.toString(e));
+			}
+			else {
+				xml.writeEmptyElement(MD.NAMESPACE, MD.SINGLESIGNONSERVICE);
+				xml.writeAttribute(MD.BINDING, e % 2 == 0 ? SAMLmisc.BINDING_HTTP_REDIRECT : SAMLmisc.BINDING_HTTP_POST);
+				xml.writeAttribute(MD.LOCATION, location);
+			}
+		}
+		if (sp) {
+			xml.writeStartElement(MD.NAMESPACE, MD.ATTRIBUTECONSUMINGSERVICE);
+			xml.writeAttribute("index", "0");
+			writeLocalized(xml, MD.NAMESPACE, MD.SERVICENAME, english ? "en" : "nl", "Synthetic service " + index);
+			xml.writeEmptyElement(MD.NAMESPACE, "RequestedAttribute");
+			xml.writeAttribute("Name", "urn:oid:0.9.2342.19200300.100.1.3");
+			xml.writeAttribute(SAML.NAMEFORMAT, SAMLmisc.NAMEFORMAT_URI);
+			xml.writeEndElement();
+		}
+		xml.writeEndElement();
+
+		xml.writeStartElement(MD.NAMESPACE, "Organization");
+		writeLocalized(xml, MD.NAMESPACE, "OrganizationName", "en", "Synthetic organization " + index);
+		writeLocalized(xml, MD.NAMESPACE, "OrganizationDisplayName", "en", "Synthetic organization " + index);
+		writeLocalized(xml, MD.NAMESPACE, "OrganizationURL", "en", "https://" + host + "/");
+		xml.writeEndElement();
+		// some entities have no contacts at all
+		int entityContacts = random.nextInt(20) == 0 ? 0 : contacts;
+		for (int c = 0; c < entityContacts; c++) {
+			xml.writeStartElement(MD.NAMESPACE, MD.CONTACTPERSON);
+			xml.writeAttribute("contactType", contactTypes[c % contactTypes.length]);
+			writeText(xml, MD.NAMESPACE, "GivenName", "Contact " + c);
+			writeText(xml, MD.NAMESPACE, MD.EMAILADDRESS, "mailto:contact" + c + "@" + host);
+			xml.writeEndElement();
+		}
+		xml.writeEndElement();
+	}
+
+	/**
+	 * Write SAML Responses to a directory, each in its own file
+	 *
+	 * @param directory is the directory, which is created if it does not exist
+	 * @throws IOException if the responses could not be written
+	 */
+	public void writeResponses(Path directory) throws IOException {
+		Files.createDirectories(directory);
+		Random random = new Random(seed);
+		int digits = Integer.toString(Math.max(responses, 1)).length();
+		for (int i = 0; i < responses; i++) {
+			Path file = directory.resolve(String.format("response-%0" + digits + "d.xml", i));
+			try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+				writeResponse(out, i, random);
+			}
+		}
+	}
+
+	/**
+	 * Write a single SAML Response, as it would be sent by an IdP
+	 *
+	 * @param out receives the SAML Response, and is not closed
+	 * @param index is the number of the response, which determines its IdP and SP
+	 * @param random provides the random values
+	 * @throws IOException if the response could not be written
+	 */
+	public void writeResponse(OutputStream out, int index, Random random) throws IOException {
+		String idp = "https://idp" + (index % Math.max(entities, 1)) + ".example.org/idp/shibboleth";
+		String sp = "https://sp" + (index % Math.max(entities, 1)) + ".example.org/shibboleth";
+		String acs = "https://sp" + (index % Math.max(entities, 1)) + ".example.org/Shibboleth.sso/SAML2/0";
+		Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+		try {
+			XMLStreamWriter xml = outputFactory.createXMLStreamWriter(out, StandardCharsets.UTF_8.name());
+			xml.writeStartDocument(StandardCharsets.UTF_8.name(), "1.0");
+			xml.setPrefix("samlp", SAMLP.NAMESPACE);
+			xml.setPrefix("saml", SAML.NAMESPACE);
+			xml.writeStartElement(SAMLP.NAMESPACE, "Response");
+			xml.writeNamespace("samlp", SAMLP.NAMESPACE);
+			xml.writeNamespace("saml", SAML.NAMESPACE);
+			xml.writeAttribute("ID", randomID(random));
+			xml.writeAttribute("Version", "2.0");
+			xml.writeAttribute("IssueInstant", now.toString());
+			xml.writeAttribute("Destination", acs);
+			writeText(xml, SAML.NAMESPACE, "Issuer", idp);
+			xml.writeStartElement(SAMLP.NAMESPACE, "Status");
+			xml.writeEmptyElement(SAMLP.NAMESPACE, "StatusCode");
+			xml.writeAttribute("Value", SAMLmisc.STATUS_SUCCESS);
+			xml.writeEndElement();
+
+			xml.writeStartElement(SAML.NAMESPACE, "Assertion");
+			xml.writeAttribute("ID", randomID(random));
+			xml.writeAttribute("Version", "2.0");
+			xml.writeAttribute("IssueInstant", now.toString());
+			writeText(xml, SAML.NAMESPACE, "Issuer", idp);
+			xml.writeStartElement(SAML.NAMESPACE, SAML.SUBJECT);
+			xml.writeStartElement(SAML.NAMESPACE, "NameID");
+			xml.writeAttribute(SAMLmisc.FORMAT, SAMLmisc.NAMEID_FORMAT_TRANSIENT);
+			xml.writeCharacters(randomID(random));
+			xml.writeEndElement();
+			xml.writeStartElement(SAML.NAMESPACE, "SubjectConfirmation");
+			xml.writeAttribute("Method", SAMLmisc.CONFIRMATION_METHOD_BEARER);
+			xml.writeEmptyElement(SAML.NAMESPACE, "SubjectConfirmationData");
+			xml.writeAttribute("NotOnOrAfter", now.plus(5, ChronoUnit.MINUTES).toString());
+			xml.writeAttribute("Recipient", acs);
+			xml.writeEndElement();
+			xml.writeEndElement();
+			xml.writeStartElement(SAML.NAMESPACE, "Conditions");
+			xml.writeAttribute("NotBefore", now.minus(1, ChronoUnit.MINUTES).toString());
+			xml.writeAttribute("NotOnOrAfter", now.plus(5, ChronoUnit.MINUTES).toString());
+			xml.writeStartElement(SAML.NAMESPACE, "AudienceRestriction");
+			writeText(xml, SAML.NAMESPACE, "Audience", sp);
+			xml.writeEndElement();
+			xml.writeEndElement();
+			xml.writeStartElement(SAML.NAMESPACE, "AuthnStatement");
+			xml.writeAttribute("AuthnInstant", now.toString());
+			xml.writeAttribute("SessionIndex", randomID(random));
+			xml.writeStartElement(SAML.NAMESPACE, "AuthnContext");
+			writeText(xml, SAML.NAMESPACE, "AuthnContextClassRef", SAMLmisc.AUTHNCONTEXT_PASSWORD);
+			xml.writeEndElement();
+			xml.writeEndElement();
+			if (attributes > 0) {
+				xml.writeStartElement(SAML.NAMESPACE, "AttributeStatement");
+				for (int a = 0; a < attributes; a++) {
+					xml.writeStartElement(SAML.NAMESPACE, SAML.ATTRIBUTE);
+					xml.writeAttribute("Name", "urn:oid:1.3.6.1.4.1.99999.1." + a);
+					xml.writeAttribute(SAML.NAMEFORMAT, SAMLmisc.NAMEFORMAT_URI);
+					for (int v = 0; v < attributeValues; v++) {
+						writeText(xml, SAML.NAMESPACE, SAML.ATTRIBUTEVALUE, randomValue(random, valueSize));
+					}
+					xml.writeEndElement();
+				}
+				xml.writeEndElement();
+			}
+			xml.writeEndElement();
+			xml.writeEndElement();
+			xml.writeEndDocument();
+			xml.close();
+		} catch (XMLStreamException e) {
+			throw new IOException("The SAML Response could not be written", e);
+		}
+	}
+
+	private static void writeText(XMLStreamWriter xml, String namespace, String localName, String text) throws XMLStreamException {
+		xml.writeStartElement(namespace, localName);
+		xml.writeCharacters(text);
+		xml.writeEndElement();
+	}
+
+	private static void writeLocalized(XMLStreamWriter xml, String namespace, String localName, String language, String text) throws XMLStreamException {
+		xml.writeStartElement(namespace, localName);
+		xml.writeAttribute(XMLConstants.XML_NS_PREFIX, XMLConstants.XML_NS_URI, "lang", language);
+		xml.writeCharacters(text);
+		xml.writeEndElement();
+	}
+
+	private static String randomValue(Random random, int length) {
+		char[] value = new char[length];
+		for (int i = 0; i < length; i++) {
+			value[i] = valueChars[random.nextInt(valueChars.length)];
+		}
+		return new String(value);
+	}
+
+	/**
+	 * @return a random ID in the same format as the IDs of the mock SP's messages
+	 */
+	private static String randomID(Random random) {
+		return "_" + new UUID(random.nextLong(), random.nextLong()).toString();
+	}
+
+	/**
+	 * Generate the synthetic data from the command line
+	 *
+	 * @param args are the command-line arguments
+	 */
+	public static void main(String[] args) {
+		Options options = new Options();
+		options.addOption("h", "help", false, "Print this help message");
+		options.addOption("o", "output", true, "The directory in which metadata.xml and the responses directory are written (default: the current directory)");
+		options.addOption("n", "entities", true, "The amount of entities in the metadata aggregate (default: 1000, 0 to skip the metadata)");
+		options.addOption("E", "endpoints", true, "The amount of SSO or ACS endpoints of each entity (default: 4)");
+		options.addOption("k", "keys", true, "The amount of keys of each entity (default: 2)");
+		options.addOption("C", "contacts", true, "The amount of contacts of each entity (default: 2)");
+		options.addOption("s", "spfraction", true, "The fraction of the entities that are SPs instead of IdPs (default: 0.5)");
+		options.addOption("r", "responses", true, "The amount of SAML Responses (default: 100, 0 to skip the responses)");
+		options.addOption("a", "attributes", true, "The amount of attributes in each SAML Response (default: 20)");
+		options.addOption("v", "values", true, "The amount of values of each attribute (default: 1)");
+		options.addOption("z", "valuesize", true, "The amount of characters in each attribute value (default: 32)");
+		options.addOption("S", "seed", true, "The seed for the random values, so the same data can be generated again (default: 1)");
+		options.addOption("c", "certificate", true, "The file containing the PEM certificate to use for all keys (default: the mock SP's default certificate)");
+		try {
+			CommandLine command = new BasicParser().parse(options, args);
+			if (command.hasOption("help")) {
+				new HelpFormatter().printHelp("SyntheticDataGenerator", options, true);
+				return;
+			}
+			SyntheticDataGenerator generator = new SyntheticDataGenerator();
+			int entities = Integer.parseInt(command.getOptionValue("entities", "1000"));
+			int responses = Integer.parseInt(command.getOptionValue("responses", "100"));
+			generator.setEntities(entities);
+			generator.setEndpoints(Integer.parseInt(command.getOptionValue("endpoints", "4")));
+			generator.setKeys(Integer.parseInt(command.getOptionValue("keys", "2")));
+			generator.setContacts(Integer.parseInt(command.getOptionValue("contacts", "2")));
+			generator.setSpFraction(Double.parseDouble(command.getOptionValue("spfraction", "0.5")));
+			generator.setResponses(responses);
+			generator.setAttributes(Integer.parseInt(command.getOptionValue("attributes", "20")));
+			generator.setAttributeValues(Integer.parseInt(command.getOptionValue("values", "1")));
+			generator.setValueSize(Integer.parseInt(command.getOptionValue("valuesize", "32")));
+			generator.setSeed(Long.parseLong(command.getOptionValue("seed", "1")));
+			if (command.hasOption("certificate")) {
+				generator.setCertificate(new String(Files.readAllBytes(Paths.get(command.getOptionValue("certificate"))), Charset.defaultCharset()));
+			}
+			Path output = Paths.get(command.getOptionValue("output", "."));
+			Files.createDirectories(output);
+
+			long start = System.nanoTime();
+			if (entities > 0) {
+				Path metadata = output.resolve("metadata.xml");
+				generator.writeMetadata(metadata);
+				logger.info("Wrote " + entities + " entities (" + Files.size(metadata) / 1024 + " KB) to " + metadata);
+			}
+			if (responses > 0) {
+				generator.writeResponses(output.resolve("responses"));
+				logger.info("Wrote " + responses + " SAML Responses to " + output.resolve("responses"));
+			}
+			logger.info("Generating the data took " + (System.nanoTime() - start) / 1000000 + " ms");
+		} catch (ParseException e) {
+			logger.error("Could not parse the command-line arguments", e);
+			new HelpFormatter().printHelp("SyntheticDataGenerator", options, true);
+		} catch (NumberFormatException e) {
+			logger.error("The amounts should be numbers", e);
+		} catch (IllegalArgumentException | IOException e) {
+			logger.error("Could not generate the data", e);
+		}
+	}
+}
@@ -0,0 +1,267 @@
+package saml2webssotest.idp.history;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Detects that a test case became significantly slower on a target IdP, e.g. after a deployment of the IdP.
+ *
+ * The timings of the most recent runs are compared with a rolling baseline of the runs before them, using a one-sided
+ * Mann-Whitney U test. The test compares the ranks of the timings instead of their values, so it does not assume that
+ * the timings are normally distributed and a single slow login in the baseline does not hide a regression. Since a
+ * single slow run is not significant, a regression is only reported once most of the recent runs were slower than
+ * the baseline. A significant increase is only reported when it is also large enough to matter, since a large
+ * baseline makes even tiny increases significant.
+ *
+ * The duration of the whole test and the time of each phase (e.g. logging in) are checked separately, so it is clear
+ * which part of the login became slower.
+ *
+ * @author RiaasM
+ *
+ */
+public class RegressionDetector {
+	/**
+	 * The amount of runs that are compared with the baseline
+	 */
+	private final int recentRuns;
+	/**
+	 * The maximum amount of runs before the recent runs that form the baseline
+	 */
+	private final int baselineRuns;
+	/**
+	 * The minimum amount of runs in the baseline, below which nothing is reported
+	 */
+	private final int minBaselineRuns;
+	/**
+	 * The p-value below which an increase is significant
+	 */
+	private final double significance;
+	/**
+	 * The minimum relative increase of the median that is reported
+	 */
+	private final double minIncrease;
+	/**
+	 * The minimum increase of the median in milliseconds that is reported, since the timings are only measured in
+	 * milliseconds
+	 */
+	private final long minIncreaseMillis;
+
+	/**
+	 * Create a detector that compares the last 3 runs with the 30 runs before them, and reports increases of the median
+	 * of at least 20% and 10 ms that are significant at the 1% level
+	 */
+	public RegressionDetector() {
+		this(3, 30, 10, 0.01, 0.2, 10);
+	}
+
+	/**
+	 * @param recentRuns is the amount of runs that are compared with the baseline
+	 * @param baselineRuns is the maximum amount of runs before the recent runs that form the baseline
+	 * @param minBaselineRuns is the minimum amount of runs in the baseline, below which nothing is reported
+	 * @param significance is the p-value below which an increase is significant
+	 * @param minIncrease is the minimum relative increase of the median that is reported
+	 * @param minIncreaseMillis is the minimum increase of the median in milliseconds that is reported
+	 */
+	public RegressionDetector(int recentRuns, int baselineRuns, int minBaselineRuns, double significance, double minIncrease, long minIncreaseMillis) {
+		this.recentRuns = recentRuns;
+		this.baselineRuns = baselineRuns;
+		this.minBaselineRuns = minBaselineRuns;
+		this.significance = significance;
+		this.minIncrease = minIncrease;
+		this.minIncreaseMillis = minIncreaseMillis;
+	}
+
+	/**
+	 * @return the amount of timed results that {@link #detect(List)} needs at most
+	 */
+	public int getHistorySize() {
+		return recentRuns + baselineRuns;
+	}
+
+	/**
+	 * Check the duration and the phases of a test case for regressions
+	 *
+	 * @param history are the results of the test case on a target IdP, sorted by their start time. Results that were
+	 * 			not run against the target IdP are ignored.
+	 * @return the regressions that were found, which is empty if the test case did not become slower
+	 */
+	public List<Regression> detect(List<StoredResult> history) {
+		List<StoredResult> timed = new ArrayList<StoredResult>();
+		for (StoredResult result : history) {
+			if (result.isTimed()) {
+				timed.add(result);
+			}
+		}
+		List<Regression> regressions = new ArrayList<Regression>();
+		if (timed.size() < recentRuns + minBaselineRuns) {
+			return regressions;
+		}
+		Set<String> metrics = new LinkedHashSet<String>();
+		metrics.add(null);
+		metrics.addAll(timed.get(timed.size() - 1).getPhaseMillis().keySet());
+		for (String metric : metrics) {
+			Regression regression = detect(timed, metric);
+			if (regression != null) {
+				regressions.add(regression);
+			}
+		}
+		return regressions;
+	}
+
+	/**
+	 * Check a single timing of a test case for a regression
+	 *
+	 * @param timed are the results that were run against the target IdP, sorted by their start time
+	 * @param metric is the name of a phase, or null for the duration of the whole test
+	 * @return the regression, or null if there is none
+	 */
+	private Regression detect(List<StoredResult> timed, String metric) {
+		int recentStart = timed.size() - recentRuns;
+		long[] recent = TrendPoint.millis(timed.subList(recentStart, timed.size()), metric);
+		long[] baseline = TrendPoint.millis(timed.subList(Math.max(0, recentStart - baselineRuns), recentStart), metric);
+		if (recent.length < recentRuns || baseline.length < minBaselineRuns) {
+			return null;
+		}
+		long recentMedian = median(recent);
+		long baselineMedian = median(baseline);
+		long increase = recentMedian - baselineMedian;
+		if (increase < minIncreaseMillis || increase < minIncrease * baselineMedian) {
+			return null;
+		}
+		double pValue = mannWhitneyGreater(recent, baseline);
+		if (pValue >= significance) {
+			return null;
+		}
+		StoredResult last = timed.get(timed.size() - 1);
+		return new Regression(last.getTestcase(), metric, recentMedian, baselineMedian, recent.length, baseline.length, pValue);
+	}
+
+	/**
+	 * Calculate the p-value of the one-sided Mann-Whitney U test that the first sample tends to be larger than the
+	 * second, using the normal approximation with a correction for ties and for continuity
+	 *
+	 * @param first is the first sample, sorted
+	 * @param second is the second sample, sorted
+	 * @return the p-value
+	 */
+	static double mannWhitneyGreater(long[] first, long[] second) {
+		int n1 = first.length;
+		int n2 = second.length;
+		int n = n1 + n2;
+		long[] all = new long[n];
+		System.arraycopy(first, 0, all, 0, n1);
+		System.arraycopy(second, 0, all, n1, n2);
+		Arrays.sort(all);
+		// sum the ranks of the first sample, giving tied values their average rank
+		double rankSum = 0;
+		double tieCorrection = 0;
+		int i = 0;
+		while (i < n) {
+			int j = i;
+			while (j < n && all[j] == all[i]) {
+				j++;
+			}
+			int ties = j - i;
+			double averageRank = (i + 1 + j) / 2.0;
+			rankSum += averageRank * count(first, all[i]);
+			tieCorrection += (double) ties * ties * ties - ties;
+			i = j;
+		}
+		double u = rankSum - n1 * (n1 + 1) / 2.0;
+		double mean = n1 * (double) n2 / 2;
+		double variance = n1 * (double) n2 / 12 * ((n + 1) - tieCorrection / ((double) n * (n - 1)));
+		if (variance <= 0) {
+			return 1;
+		}
+		double z = (u - mean - 0.5) / Math.sqrt(variance);
+		return 0.5 * erfc(z / Math.sqrt(2));
+	}
+
+	/**
+	 * @return how often the value occurs in the sorted values
+	 */
+	private static int count(long[] sorted, long value) {
+		int count = 0;
+		for (long element : sorted) {
+			if (element == value) {
+				count++;
+			}
+			else if (element > value) {
+				break;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Calculate the complementary error function with a fractional error below 1.2e-7 (Numerical Recipes' Chebyshev
+	 * approximation)
+	 */
+	private static double erfc(double x) {
+		double z = Math.abs(x);
+		double t = 1 / (1 + 0.5 * z);
+		double result = t * Math.exp(-z * z - 1.26551223 + t * (1.00002368 + t * (0.37409196 + t * (0.09678418
+				+ t * (-0.18628806 + t * (0.27886807 + t * (-1.13520398 + t * (1.48851587
+				+ t * (-0.82215223 + t * 0.17087277)))))))));
+		return x >= 0 ? result : 2 - result;
+	}
+
+	private static long median(long[] sorted) {
+		return TrendPoint.percentile(sorted, 0.5);
+	}
+
+	/**
+	 * A timing of a test case that became significantly slower
+	 */
+	public static class Regression {
+		private final String testcase;
+		private final String metric;
+		private final long recentMedianMillis;
+		private final long baselineMedianMillis;
+		private final int recentRuns;
+		private final int baselineRuns;
+		private final double pValue;
+
+		private Regression(String testcase, String metric, long recentMedianMillis, long baselineMedianMillis, int recentRuns, int baselineRuns, double pValue) {
+			this.testcase = testcase;
+			this.metric = metric;
+			this.recentMedianMillis = recentMedianMillis;
+			this.baselineMedianMillis = baselineMedianMillis;
+			this.recentRuns = recentRuns;
+			this.baselineRuns = baselineRuns;
+			this.pValue = pValue;
+		}
+
+		public String getTestcase() {
+			return testcase;
+		}
+
+		/**
+		 * @return the name of the phase that became slower, or null if it is the duration of the whole test
+		 */
+		public String getMetric() {
+			return metric;
+		}
+
+		public long getRecentMedianMillis() {
+			return recentMedianMillis;
+		}
+
+		public long getBaselineMedianMillis() {
+			return baselineMedianMillis;
+		}
+
+		public double getPValue() {
+			return pValue;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s%s became slower: median %d ms in the last %d runs, against %d ms in the %d runs before them (p = %.4f)",
+					testcase, metric != null ? " (" + metric + ")" : "", recentMedianMillis, recentRuns, baselineMedianMillis, baselineRuns, pValue);
+		}
+	}
+}
@@ -0,0 +1,457 @@
+package saml2webssotest.idp.history;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * An embedded, file-based store for the results of all test runs, so the statuses and timings of a test case on a
+ * target IdP can be followed over time.
+ *
+ * The results are appended as JSON lines to segment files in the store's directory. A segment is never changed after
+ * a result was written to it and a new segment is started when the current one reaches its maximum size, so old
+ * segments can be archived or removed as a whole. Next to each segment, an index file records for each result its
+ * target IdP, test suite, test case, start time and position in the segment. The index of all segments is held in
+ * memory, sorted by time for each test case on each IdP, so a query only reads the results it returns.
+ *
+ * The index files are only an aid: when a segment contains results that are missing from its index (e.g. because the
+ * process was killed while writing), they are indexed again when the store is opened, and an incomplete result at the
+ * end of the last segment is removed. Results are not forced to disk after each write, so the results of the last
+ * moments before a crash of the operating system may be lost.
+ *
+ * @author RiaasM
+ *
+ */
+public class ResultStore implements Closeable {
+	/**
+	 * Logger for this class
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(ResultStore.class);
+	private static final Gson gson = new Gson();
+	/**
+	 * The size in bytes after which a new segment is started
+	 */
+	private static final long maxSegmentBytes = 8 * 1024 * 1024;
+	private static final String segmentPrefix = "segment-";
+	private static final String segmentSuffix = ".jsonl";
+	private static final String indexSuffix = ".idx";
+	/**
+	 * The directory containing the segments and their indexes
+	 */
+	private final Path directory;
+	/**
+	 * The positions of the results in the segments, by the key of their IdP, test suite and test case, sorted by time
+	 */
+	private final HashMap<String, ArrayList<IndexEntry>> index = new HashMap<String, ArrayList<IndexEntry>>();
+	/**
+	 * The segment that results are appended to
+	 */
+	private int activeSegment;
+	private FileChannel activeChannel;
+	private Writer activeIndex;
+	private long activeSize;
+
+	private ResultStore(Path directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Open the store in a directory, creating it if necessary
+	 *
+	 * @param directory is the directory of the store
+	 * @return the store, whose results can be queried and which appends new results to its last segment
+	 * @throws IOException if the directory or its segments could not be read
+	 */
+	public static ResultStore open(Path directory) throws IOException {
+		Files.createDirectories(directory);
+		ResultStore store = new ResultStore(directory);
+		TreeSet<Integer> segments = new TreeSet<Integer>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, segmentPrefix + "*" + segmentSuffix)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				try {
+					segments.add(Integer.parseInt(name.substring(segmentPrefix.length(), name.length() - segmentSuffix.length())));
+				} catch (NumberFormatException e) {
+					logger.warn("Ignoring " + file + ", since it is not named like a segment of the result store");
+				}
+			}
+		}
+		for (int segment : segments) {
+			store.load(segment, segment == segments.last());
+		}
+		store.activate(segments.isEmpty() ? 1 : segments.last());
+		int results = 0;
+		for (List<IndexEntry> entries : store.index.values()) {
+			results += entries.size();
+		}
+		logger.debug("Opened the result store in " + directory + " with " + results + " results in " + segments.size() + " segments");
+		return store;
+	}
+
+	/**
+	 * Read the index of a segment, and index the results that are missing from it
+	 *
+	 * @param segment is the number of the segment
+	 * @param last specifies whether this is the last segment, whose incomplete result at the end should be removed
+	 * @throws IOException if the segment could not be read
+	 */
+	private void load(int segment, boolean last) throws IOException {
+		Path segmentFile = segmentFile(segment);
+		Path indexFile = indexFile(segment);
+		// the end of the last complete entry in the index and of the results it covers
+		long indexEnd = 0;
+		long covered = 0;
+		if (Files.exists(indexFile)) {
+			try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					IndexEntry entry;
+					String key;
+					try {
+						JsonArray fields = new JsonParser().parse(line).getAsJsonArray();
+						entry = new IndexEntry(fields.get(0).getAsLong(), segment, fields.get(1).getAsLong(), fields.get(2).getAsInt(), fields.get(3).getAsBoolean());
+						key = key(fields.get(4).getAsString(), fields.get(5).getAsString(), fields.get(6).getAsString());
+					} catch (JsonParseException | IllegalStateException | IndexOutOfBoundsException | UnsupportedOperationException e) {
+						logger.warn("The index of segment " + segment + " of the result store is incomplete, so the segment is indexed again from position " + covered);
+						break;
+					}
+					add(key, entry);
+					indexEnd += line.getBytes(StandardCharsets.UTF_8).length + 1;
+					covered = Math.max(covered, entry.offset + entry.length);
+				}
+			}
+			try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.WRITE)) {
+				channel.truncate(indexEnd);
+			}
+		}
+		long size = Files.size(segmentFile);
+		if (covered < size) {
+			long end = reindex(segment, covered);
+			if (end < size) {
+				if (last) {
+					logger.warn("Removing an incomplete result at the end of segment " + segment + " of the result store");
+					try (FileChannel channel = FileChannel.open(segmentFile, StandardOpenOption.WRITE)) {
+						channel.truncate(end);
+					}
+				}
+				else {
+					logger.warn("Segment " + segment + " of the result store ends with an incomplete result, which is ignored");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Index the results in a segment from the given position on, and add them to the index file of the segment
+	 *
+	 * @param segment is the number of the segment
+	 * @param from is the position of the first result that should be indexed
+	 * @return the position after the last complete result in the segment
+	 * @throws IOException if the segment could not be read or its index could not be written
+	 */
+	private long reindex(int segment, long from) throws IOException {
+		long position = from;
+		try (FileChannel channel = FileChannel.open(segmentFile(segment), StandardOpenOption.READ);
+				InputStream in = Channels.newInputStream(channel.position(from));
+				Writer indexWriter = Files.newBufferedWriter(indexFile(segment), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+			byte[] buffer = new byte[64 * 1024];
+			byte[] line = new byte[1024];
+			int lineLength = 0;
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				for (int i = 0; i < read; i++) {
+					if (buffer[i] != '\n') {
+						if (lineLength == line.length) {
+							byte[] larger = new byte[line.length * 2];
+							System.arraycopy(line, 0, larger, 0, lineLength);
+							line = larger;
+						}
+						line[lineLength++] = buffer[i];
+						continue;
+					}
+					String json = new String(line, 0, lineLength, StandardCharsets.UTF_8);
+					try {
+						StoredResult result = gson.fromJson(json, StoredResult.class);
+						IndexEntry entry = new IndexEntry(result.getStartedMillis(), segment, position, lineLength + 1, result.isTimed());
+						add(key(result.getIdP(), result.getTestsuite(), result.getTestcase()), entry);
+						writeIndexEntry(indexWriter, entry, result);
+					} catch (JsonParseException | NullPointerException e) {
+						logger.warn("Ignoring an unreadable result at position " + position + " of segment " + segment + " of the result store");
+					}
+					position += lineLength + 1;
+					lineLength = 0;
+				}
+			}
+		}
+		return position;
+	}
+
+	/**
+	 * Make a segment the one that results are appended to
+	 *
+	 * @param segment is the number of the segment
+	 * @throws IOException if the segment could not be opened
+	 */
+	private void activate(int segment) throws IOException {
+		activeChannel = FileChannel.open(segmentFile(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		activeIndex = Files.newBufferedWriter(indexFile(segment), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		activeSegment = segment;
+		activeSize = activeChannel.size();
+	}
+
+	/**
+	 * Append a result to the store. Failing to store it is logged, but does not affect the test run.
+	 *
+	 * @param result is the result that should be stored
+	 */
+	public synchronized void append(StoredResult result) {
+		byte[] line = (gson.toJson(result) + "\n").getBytes(StandardCharsets.UTF_8);
+		try {
+			if (activeSize > 0 && activeSize + line.length > maxSegmentBytes) {
+				closeActive();
+				activate(activeSegment + 1);
+			}
+			IndexEntry entry = new IndexEntry(result.getStartedMillis(), activeSegment, activeSize, line.length, result.isTimed());
+			ByteBuffer buffer = ByteBuffer.wrap(line);
+			while (buffer.hasRemaining()) {
+				activeChannel.write(buffer);
+			}
+			activeSize += line.length;
+			writeIndexEntry(activeIndex, entry, result);
+			activeIndex.flush();
+			add(key(result.getIdP(), result.getTestsuite(), result.getTestcase()), entry);
+		} catch (IOException e) {
+			logger.warn("Could not store the result of " + result.getTestcase() + " in the result store in " + directory, e);
+		}
+	}
+
+	/**
+	 * Retrieve the results of a test case on a target IdP
+	 *
+	 * @param idp identifies the target IdP
+	 * @param testsuite is the name of the test suite
+	 * @param testcase is the name of the test case
+	 * @param from is the earliest start time of the results, or null for the first result
+	 * @param to is the start time before which the results started, or null for the last result
+	 * @return the results, sorted by their start time
+	 * @throws IOException if the results could not be read
+	 */
+	public synchronized List<StoredResult> query(String idp, String testsuite, String testcase, Instant from, Instant to) throws IOException {
+		List<IndexEntry> entries = index.get(key(idp, testsuite, testcase));
+		if (entries == null) {
+			return Collections.emptyList();
+		}
+		int start = from != null ? search(entries, from.toEpochMilli()) : 0;
+		int end = to != null ? search(entries, to.toEpochMilli()) : entries.size();
+		return read(entries.subList(start, Math.max(start, end)));
+	}
+
+	/**
+	 * Retrieve the most recent results of a test case on a target IdP
+	 *
+	 * @param idp identifies the target IdP
+	 * @param testsuite is the name of the test suite
+	 * @param testcase is the name of the test case
+	 * @param count is the maximum amount of results
+	 * @param timedOnly specifies whether only the results whose timings describe the target IdP should be retrieved,
+	 * 			i.e. not those that were taken from the result cache or that were skipped
+	 * @return the results, sorted by their start time
+	 * @throws IOException if the results could not be read
+	 */
+	public synchronized List<StoredResult> latest(String idp, String testsuite, String testcase, int count, boolean timedOnly) throws IOException {
+		List<IndexEntry> entries = index.get(key(idp, testsuite, testcase));
+		if (entries == null) {
+			return Collections.emptyList();
+		}
+		ArrayList<IndexEntry> selected = new ArrayList<IndexEntry>();
+		for (int i = entries.size() - 1; i >= 0 && selected.size() < count; i--) {
+			if (!timedOnly || entries.get(i).timed) {
+				selected.add(entries.get(i));
+			}
+		}
+		Collections.reverse(selected);
+		return read(selected);
+	}
+
+	/**
+	 * Retrieve the test cases that have results on a target IdP
+	 *
+	 * @param idp identifies the target IdP
+	 * @param testsuite is the name of the test suite
+	 * @return the names of the test cases, sorted by name
+	 */
+	public synchronized List<String> getTestcases(String idp, String testsuite) {
+		String prefix = key(idp, testsuite, "");
+		List<String> testcases = new ArrayList<String>();
+		for (String key : index.keySet()) {
+			if (key.startsWith(prefix)) {
+				testcases.add(key.substring(prefix.length()));
+			}
+		}
+		Collections.sort(testcases);
+		return testcases;
+	}
+
+	/**
+	 * Read the results at the given positions
+	 *
+	 * @param entries are the positions of the results
+	 * @return the results, in the same order
+	 * @throws IOException if a segment could not be read
+	 */
+	private List<StoredResult> read(List<IndexEntry> entries) throws IOException {
+		List<StoredResult> results = new ArrayList<StoredResult>(entries.size());
+		// read each segment once, since the results of a test case are spread over the segments
+		TreeMap<Integer, List<Integer>> bySegment = new TreeMap<Integer, List<Integer>>();
+		for (int i = 0; i < entries.size(); i++) {
+			List<Integer> positions = bySegment.get(entries.get(i).segment);
+			if (positions == null) {
+				positions = new ArrayList<Integer>();
+				bySegment.put(entries.get(i).segment, positions);
+			}
+			positions.add(i);
+			results.add(null);
+		}
+		for (Map.Entry<Integer, List<Integer>> segment : bySegment.entrySet()) {
+			try (FileChannel channel = FileChannel.open(segmentFile(segment.getKey()), StandardOpenOption.READ)) {
+				for (int i : segment.getValue()) {
+					IndexEntry entry = entries.get(i);
+					ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+					while (buffer.hasRemaining() && channel.read(buffer, entry.offset + buffer.position()) > 0) {
+						// keep reading until the whole result was read
+					}
+					results.set(i, gson.fromJson(new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8).trim(), StoredResult.class));
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Add a result to the in-memory index, keeping its entries sorted by time
+	 */
+	private void add(String key, IndexEntry entry) {
+		ArrayList<IndexEntry> entries = index.get(key);
+		if (entries == null) {
+			entries = new ArrayList<IndexEntry>();
+			index.put(key, entries);
+		}
+		// results are mostly appended in the order in which they started, so search from the end
+		int position = entries.size();
+		while (position > 0 && entries.get(position - 1).started > entry.started) {
+			position--;
+		}
+		entries.add(position, entry);
+	}
+
+	/**
+	 * @return the position of the first entry that started at or after the given time
+	 */
+	private static int search(List<IndexEntry> entries, long started) {
+		int low = 0;
+		int high = entries.size();
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (entries.get(middle).started < started) {
+				low = middle + 1;
+			}
+			else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	private static void writeIndexEntry(Writer writer, IndexEntry entry, StoredResult result) throws IOException {
+		JsonArray fields = new JsonArray();
+		fields.add(new JsonPrimitive(entry.started));
+		fields.add(new JsonPrimitive(entry.offset));
+		fields.add(new JsonPrimitive(entry.length));
+		fields.add(new JsonPrimitive(entry.timed));
+		fields.add(new JsonPrimitive(result.getIdP()));
+		fields.add(new JsonPrimitive(result.getTestsuite()));
+		fields.add(new JsonPrimitive(result.getTestcase()));
+		writer.write(fields.toString());
+		writer.write('\n');
+	}
+
+	private static String key(String idp, String testsuite, String testcase) {
+		return idp + '\n' + testsuite + '\n' + testcase;
+	}
+
+	private Path segmentFile(int segment) {
+		return directory.resolve(String.format("%s%06d%s", segmentPrefix, segment, segmentSuffix));
+	}
+
+	private Path indexFile(int segment) {
+		return directory.resolve(String.format("%s%06d%s", segmentPrefix, segment, indexSuffix));
+	}
+
+	private void closeActive() throws IOException {
+		try {
+			activeIndex.close();
+		} finally {
+			activeChannel.close();
+		}
+	}
+
+	/**
+	 * Write the results that are still buffered to the disk and close the last segment
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (activeChannel != null && activeChannel.isOpen()) {
+			activeChannel.force(false);
+			closeActive();
+		}
+	}
+
+	/**
+	 * The position of a single result in the segments
+	 */
+	private static class IndexEntry {
+		private final long started;
+		private final int segment;
+		private final long offset;
+		private final int length;
+		/**
+		 * Whether the timings of the result describe the target IdP
+		 */
+		private final boolean timed;
+
+		private IndexEntry(long started, int segment, long offset, int length, boolean timed) {
+			this.started = started;
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.timed = timed;
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package saml2webssotest.idp.history;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import saml2webssotest.common.TestStatus;
+import saml2webssotest.idp.TestOutcome;
+
+/**
+ * The result of running a single test case against a target IdP, as it is stored in the {@link ResultStore}.
+ *
+ * Only the status and the timings are stored, not the message, so the history stays compact. Results that were taken
+ * from the result cache or that were skipped are stored as well, but their durations do not describe the target IdP.
+ * When the browsers went through the fault injection proxy, what it injected is stored as well, since it affects the
+ * durations.
+ *
+ * @author RiaasM
+ *
+ */
+public class StoredResult {
+	/**
+	 * Identifies the test run that the result belongs to
+	 */
+	private String run;
+	/**
+	 * When the test started, in milliseconds since the epoch
+	 */
+	private long started;
+	/**
+	 * Identifies the target IdP, e.g. by its entityID
+	 */
+	private String idp;
+	private String testsuite;
+	private String testcase;
+	private TestStatus status;
+	private long durationMillis;
+	/**
+	 * How long each phase of the test took, in milliseconds, by the name of the phase
+	 */
+	private LinkedHashMap<String, Long> phaseMillis = new LinkedHashMap<String, Long>();
+	/**
+	 * What the fault injection proxy injected while the test ran, by the name of the statistic, or null if nothing 
+	 * went through the proxy
+	 */
+	private LinkedHashMap<String, Long> injected;
+	private boolean cached;
+	private boolean skipped;
+
+	/**
+	 * Create the result that is stored for the outcome of a test case
+	 *
+	 * @param run identifies the test run
+	 * @param idp identifies the target IdP
+	 * @param testsuite is the name of the test suite
+	 * @param testcase is the name of the test case
+	 * @param outcome is the outcome of the test case, including its timing
+	 * @param cached specifies whether the outcome was taken from the result cache
+	 * @return the result
+	 */
+	public static StoredResult of(String run, String idp, String testsuite, String testcase, TestOutcome outcome, boolean cached) {
+		StoredResult result = new StoredResult();
+		result.run = run;
+		result.started = (outcome.getStarted() != null ? outcome.getStarted() : Instant.now()).toEpochMilli();
+		result.idp = idp;
+		result.testsuite = testsuite;
+		result.testcase = testcase;
+		result.status = outcome.getStatus();
+		result.durationMillis = outcome.getDuration() != null ? outcome.getDuration().toMillis() : 0;
+		for (Map.Entry<String, Duration> phase : outcome.getPhases().entrySet()) {
+			result.phaseMillis.put(phase.getKey(), phase.getValue().toMillis());
+		}
+		if (!outcome.getInjected().isEmpty()) {
+			result.injected = new LinkedHashMap<String, Long>(outcome.getInjected());
+		}
+		result.cached = cached;
+		result.skipped = outcome.isSkipped();
+		return result;
+	}
+
+	/**
+	 * Create a copy of this result for another test run, e.g. when a worker of a distributed run recorded the result
+	 * under a run of its own
+	 *
+	 * @param run identifies the test run
+	 * @param idp identifies the target IdP
+	 * @return the copy
+	 */
+	public StoredResult inRun(String run, String idp) {
+		StoredResult copy = new StoredResult();
+		copy.run = run;
+		copy.started = started;
+		copy.idp = idp;
+		copy.testsuite = testsuite;
+		copy.testcase = testcase;
+		copy.status = status;
+		copy.durationMillis = durationMillis;
+		copy.phaseMillis = new LinkedHashMap<String, Long>(phaseMillis);
+		copy.injected = injected != null ? new LinkedHashMap<String, Long>(injected) : null;
+		copy.cached = cached;
+		copy.skipped = skipped;
+		return copy;
+	}
+
+	public String getRun() {
+		return run;
+	}
+
+	public Instant getStarted() {
+		return Instant.ofEpochMilli(started);
+	}
+
+	long getStartedMillis() {
+		return started;
+	}
+
+	public String getIdP() {
+		return idp;
+	}
+
+	public String getTestsuite() {
+		return testsuite;
+	}
+
+	public String getTestcase() {
+		return testcase;
+	}
+
+	public TestStatus getStatus() {
+		return status;
+	}
+
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+
+	/**
+	 * @return how long each phase of the test took, in milliseconds, by the name of the phase
+	 */
+	public Map<String, Long> getPhaseMillis() {
+		return phaseMillis;
+	}
+
+	/**
+	 * @return what the fault injection proxy injected while the test ran, by the name of the statistic, which is empty
+	 * 			if nothing went through the proxy
+	 */
+	public Map<String, Long> getInjected() {
+		return injected != null ? injected : Collections.<String, Long>emptyMap();
+	}
+
+	public boolean isCached() {
+		return cached;
+	}
+
+	public boolean isSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * @return true if the timings of this result describe the target IdP, i.e. the test case was actually run
+	 */
+	public boolean isTimed() {
+		return !cached && !skipped;
+	}
+
+	/**
+	 * Retrieve a timing of the result
+	 *
+	 * @param metric is the name of a phase, or null for the duration of the whole test
+	 * @return the timing in milliseconds, or -1 if the result has no such phase
+	 */
+	public long getMillis(String metric) {
+		if (metric == null) {
+			return durationMillis;
+		}
+		Long millis = phaseMillis.get(metric);
+		return millis != null ? millis : -1;
+	}
+}
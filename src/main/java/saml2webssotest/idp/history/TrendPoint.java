@@ -0,0 +1,178 @@
+package saml2webssotest.idp.history;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import saml2webssotest.common.TestStatus;
+
+/**
+ * The results of a test case on a target IdP during a period of time, e.g. a day, summarized so the trend of its
+ * statuses and timings can be followed over many periods.
+ *
+ * The timings only include the results that were actually run against the target IdP, so results from the result
+ * cache and skipped results are only counted in the statuses.
+ *
+ * @author RiaasM
+ *
+ */
+public class TrendPoint {
+	private final Instant start;
+	private final int results;
+	private final int timedResults;
+	private final EnumMap<TestStatus, Integer> statuses = new EnumMap<TestStatus, Integer>(TestStatus.class);
+	private long medianMillis;
+	private long p90Millis;
+	private long maxMillis;
+	/**
+	 * The median time of each phase, in milliseconds, by the name of the phase
+	 */
+	private final LinkedHashMap<String, Long> phaseMedianMillis = new LinkedHashMap<String, Long>();
+
+	private TrendPoint(Instant start, List<StoredResult> period) {
+		this.start = start;
+		this.results = period.size();
+		List<StoredResult> timed = new ArrayList<StoredResult>();
+		for (StoredResult result : period) {
+			if (result.getStatus() != null) {
+				Integer count = statuses.get(result.getStatus());
+				statuses.put(result.getStatus(), count == null ? 1 : count + 1);
+			}
+			if (result.isTimed()) {
+				timed.add(result);
+			}
+		}
+		this.timedResults = timed.size();
+		long[] durations = millis(timed, null);
+		if (durations.length > 0) {
+			medianMillis = percentile(durations, 0.5);
+			p90Millis = percentile(durations, 0.9);
+			maxMillis = durations[durations.length - 1];
+		}
+		for (StoredResult result : timed) {
+			for (String phase : result.getPhaseMillis().keySet()) {
+				if (!phaseMedianMillis.containsKey(phase)) {
+					phaseMedianMillis.put(phase, percentile(millis(timed, phase), 0.5));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Summarize the results of a test case for each period
+	 *
+	 * @param results are the results, sorted by their start time
+	 * @param period is the length of each period, e.g. a day. The periods are aligned to the epoch, so days start at
+	 * 			midnight UTC.
+	 * @return the summary of each period that contains results, in the order of time
+	 */
+	public static List<TrendPoint> of(List<StoredResult> results, Duration period) {
+		long periodMillis = period.toMillis();
+		List<TrendPoint> trend = new ArrayList<TrendPoint>();
+		List<StoredResult> current = new ArrayList<StoredResult>();
+		long currentStart = 0;
+		for (StoredResult result : results) {
+			long start = Math.floorDiv(result.getStartedMillis(), periodMillis) * periodMillis;
+			if (!current.isEmpty() && start != currentStart) {
+				trend.add(new TrendPoint(Instant.ofEpochMilli(currentStart), current));
+				current = new ArrayList<StoredResult>();
+			}
+			currentStart = start;
+			current.add(result);
+		}
+		if (!current.isEmpty()) {
+			trend.add(new TrendPoint(Instant.ofEpochMilli(currentStart), current));
+		}
+		return trend;
+	}
+
+	/**
+	 * Retrieve the sorted timings of the results that have the given timing
+	 *
+	 * @param results are the results
+	 * @param metric is the name of a phase, or null for the duration of the whole test
+	 * @return the timings in milliseconds, sorted
+	 */
+	static long[] millis(List<StoredResult> results, String metric) {
+		long[] millis = new long[results.size()];
+		int count = 0;
+		for (StoredResult result : results) {
+			long value = result.getMillis(metric);
+			if (value >= 0) {
+				millis[count++] = value;
+			}
+		}
+		millis = Arrays.copyOf(millis, count);
+		Arrays.sort(millis);
+		return millis;
+	}
+
+	/**
+	 * @param sorted are sorted values, of which there is at least one
+	 * @param fraction is the fraction of the values that is at most the percentile
+	 * @return the percentile, using the nearest rank
+	 */
+	static long percentile(long[] sorted, double fraction) {
+		int rank = (int) Math.ceil(fraction * sorted.length);
+		return sorted[Math.max(0, rank - 1)];
+	}
+
+	public Instant getStart() {
+		return start;
+	}
+
+	public int getResults() {
+		return results;
+	}
+
+	/**
+	 * @return the amount of results that were actually run against the target IdP
+	 */
+	public int getTimedResults() {
+		return timedResults;
+	}
+
+	/**
+	 * @return the amount of results with each status
+	 */
+	public Map<TestStatus, Integer> getStatuses() {
+		return statuses;
+	}
+
+	public long getMedianMillis() {
+		return medianMillis;
+	}
+
+	public long getP90Millis() {
+		return p90Millis;
+	}
+
+	public long getMaxMillis() {
+		return maxMillis;
+	}
+
+	/**
+	 * @return the median time of each phase, in milliseconds, by the name of the phase
+	 */
+	public Map<String, Long> getPhaseMedianMillis() {
+		return phaseMedianMillis;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder summary = new StringBuilder();
+		summary.append(start).append(": ").append(results).append(" results ").append(statuses);
+		if (timedResults > 0) {
+			summary.append(", median ").append(medianMillis).append(" ms, p90 ").append(p90Millis).append(" ms, max ").append(maxMillis).append(" ms");
+			for (Map.Entry<String, Long> phase : phaseMedianMillis.entrySet()) {
+				summary.append(", ").append(phase.getKey()).append(" ").append(phase.getValue()).append(" ms");
+			}
+		}
+		return summary.toString();
+	}
+}
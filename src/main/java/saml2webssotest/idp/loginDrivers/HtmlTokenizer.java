@@ -0,0 +1,362 @@
+package saml2webssotest.idp.loginDrivers;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A streaming tokenizer for HTML pages.
+ *
+ * It reads the page as a sequence of start tags, end tags and text, without building a DOM. Comments, doctypes and
+ * processing instructions are skipped, as is the content of script and style elements. It is lenient, so it will not
+ * fail on malformed HTML but it also makes no attempt to correct it. This makes it only suitable for finding the
+ * forms and links on a page.
+ *
+ * @author RiaasM
+ *
+ */
+public class HtmlTokenizer {
+	/**
+	 * The types of tokens that can be read from the page
+	 */
+	public enum TokenType {
+		START_TAG, END_TAG, TEXT, EOF
+	}
+
+	private final PushbackReader reader;
+	/**
+	 * The name of the tag that was last read
+	 */
+	private String tagName;
+	/**
+	 * The attributes of the start tag that was last read
+	 */
+	private final Map<String, String> attributes = new LinkedHashMap<String, String>();
+	/**
+	 * The text that was last read
+	 */
+	private final StringBuilder text = new StringBuilder();
+	/**
+	 * The name of the element whose content should be read as raw text, or null if the content should be tokenized
+	 */
+	private String rawTextElement;
+
+	public HtmlTokenizer(Reader reader) {
+		this.reader = new PushbackReader(new BufferedReader(reader), 16);
+	}
+
+	/**
+	 * Read the next token from the page
+	 *
+	 * @return the type of the token that was read
+	 * @throws IOException if the page could not be read
+	 */
+	public TokenType next() throws IOException {
+		tagName = null;
+		attributes.clear();
+		text.setLength(0);
+
+		if (rawTextElement != null) {
+			String element = rawTextElement;
+			rawTextElement = null;
+			// only the content of a textarea is of interest, the content of scripts and styles is discarded
+			boolean keep = element.equals("textarea");
+			readRawText(element, keep);
+			if (keep && text.length() > 0) {
+				decodeText();
+				return TokenType.TEXT;
+			}
+		}
+
+		int c;
+		while ((c = reader.read()) != -1) {
+			if (c != '<') {
+				text.append((char) c);
+				readText();
+				decodeText();
+				return TokenType.TEXT;
+			}
+			int n = reader.read();
+			if (n == '!' || n == '?') {
+				skipMarkup(n);
+			}
+			else if (n == '/') {
+				tagName = readName();
+				skipUntil('>');
+				return TokenType.END_TAG;
+			}
+			else if (n != -1 && Character.isLetter(n)) {
+				reader.unread(n);
+				tagName = readName();
+				readAttributes();
+				if (tagName.equals("script") || tagName.equals("style") || tagName.equals("textarea")) {
+					rawTextElement = tagName;
+				}
+				return TokenType.START_TAG;
+			}
+			else {
+				// a lone '<' is just text
+				text.append('<');
+				if (n != -1) {
+					reader.unread(n);
+				}
+				readText();
+				decodeText();
+				return TokenType.TEXT;
+			}
+		}
+		return TokenType.EOF;
+	}
+
+	/**
+	 * @return the lower-case name of the tag that was last read
+	 */
+	public String getTagName() {
+		return tagName;
+	}
+
+	/**
+	 * @param name is the lower-case name of the attribute
+	 * @return the decoded value of the attribute on the start tag that was last read, an empty string if the
+	 * attribute has no value or null if it is not present
+	 */
+	public String getAttribute(String name) {
+		return attributes.get(name);
+	}
+
+	/**
+	 * @return the decoded text that was last read
+	 */
+	public String getText() {
+		return text.toString();
+	}
+
+	private void readText() throws IOException {
+		int c;
+		while ((c = reader.read()) != -1) {
+			if (c == '<') {
+				reader.unread(c);
+				return;
+			}
+			text.append((char) c);
+		}
+	}
+
+	private void readRawText(String element, boolean keep) throws IOException {
+		String endTag = "</" + element;
+		int matched = 0;
+		int c;
+		while ((c = reader.read()) != -1) {
+			if (Character.toLowerCase(c) == endTag.charAt(matched)) {
+				matched++;
+				if (matched == endTag.length()) {
+					int next = reader.read();
+					if (next != -1) {
+						reader.unread(next);
+					}
+					if (next == -1 || Character.isWhitespace(next) || next == '/' || next == '>') {
+						// leave the end tag to be read as a normal token
+						reader.unread(endTag.substring(2).toCharArray());
+						reader.unread("</".toCharArray());
+						if (keep) {
+							text.setLength(text.length() - (endTag.length() - 1));
+						}
+						return;
+					}
+					// the name goes on, e.g. </textareax, so this is not the end tag
+					matched = 0;
+				}
+			}
+			else {
+				matched = (c == '<') ? 1 : 0;
+			}
+			if (keep) {
+				text.append((char) c);
+			}
+		}
+	}
+
+	private String readName() throws IOException {
+		StringBuilder name = new StringBuilder();
+		int c;
+		while ((c = reader.read()) != -1) {
+			if (Character.isWhitespace(c) || c == '>' || c == '/' || c == '=') {
+				reader.unread(c);
+				break;
+			}
+			name.append((char) Character.toLowerCase(c));
+		}
+		return name.toString();
+	}
+
+	private void readAttributes() throws IOException {
+		int c;
+		while ((c = reader.read()) != -1) {
+			if (c == '>') {
+				return;
+			}
+			if (Character.isWhitespace(c) || c == '/') {
+				continue;
+			}
+			reader.unread(c);
+			String name = readName();
+			if (name.isEmpty()) {
+				// skip a stray '='
+				reader.read();
+				continue;
+			}
+			String value = "";
+			c = skipWhitespace();
+			if (c == '=') {
+				value = decode(readAttributeValue());
+			}
+			else if (c != -1) {
+				reader.unread(c);
+			}
+			if (!attributes.containsKey(name)) {
+				attributes.put(name, value);
+			}
+		}
+	}
+
+	private String readAttributeValue() throws IOException {
+		StringBuilder value = new StringBuilder();
+		int quote = skipWhitespace();
+		if (quote == '"' || quote == '\'') {
+			int c;
+			while ((c = reader.read()) != -1 && c != quote) {
+				value.append((char) c);
+			}
+		}
+		else if (quote != -1) {
+			reader.unread(quote);
+			int c;
+			while ((c = reader.read()) != -1) {
+				if (Character.isWhitespace(c) || c == '>') {
+					reader.unread(c);
+					break;
+				}
+				value.append((char) c);
+			}
+		}
+		return value.toString();
+	}
+
+	private int skipWhitespace() throws IOException {
+		int c;
+		while ((c = reader.read()) != -1 && Character.isWhitespace(c)) {
+			// skip
+		}
+		return c;
+	}
+
+	private void skipMarkup(int type) throws IOException {
+		if (type == '!') {
+			int first = reader.read();
+			int second = reader.read();
+			if (first == '-' && second == '-') {
+				// skip a comment, which ends with "-->"
+				int dashes = 0;
+				int c;
+				while ((c = reader.read()) != -1) {
+					if (c == '>' && dashes >= 2) {
+						return;
+					}
+					dashes = (c == '-') ? dashes + 1 : 0;
+				}
+				return;
+			}
+			if (second != -1) {
+				reader.unread(second);
+			}
+			if (first != -1) {
+				reader.unread(first);
+			}
+		}
+		skipUntil('>');
+	}
+
+	private void skipUntil(int end) throws IOException {
+		int c;
+		while ((c = reader.read()) != -1 && c != end) {
+			// skip
+		}
+	}
+
+	private void decodeText() {
+		String decoded = decode(text.toString());
+		text.setLength(0);
+		text.append(decoded);
+	}
+
+	/**
+	 * Decode the character references in the given text
+	 *
+	 * @param encoded is the text containing character references
+	 * @return the decoded text
+	 */
+	static String decode(String encoded) {
+		int amp = encoded.indexOf('&');
+		if (amp < 0) {
+			return encoded;
+		}
+		StringBuilder decoded = new StringBuilder(encoded.length());
+		int i = 0;
+		while (amp >= 0) {
+			decoded.append(encoded, i, amp);
+			int semicolon = encoded.indexOf(';', amp);
+			String replacement = null;
+			if (semicolon > amp + 1 && semicolon - amp <= 10) {
+				replacement = decodeReference(encoded.substring(amp + 1, semicolon));
+			}
+			if (replacement != null) {
+				decoded.append(replacement);
+				i = semicolon + 1;
+			}
+			else {
+				decoded.append('&');
+				i = amp + 1;
+			}
+			amp = encoded.indexOf('&', i);
+		}
+		decoded.append(encoded, i, encoded.length());
+		return decoded.toString();
+	}
+
+	private static String decodeReference(String reference) {
+		if (reference.charAt(0) == '#') {
+			try {
+				int codePoint;
+				if (reference.length() > 1 && (reference.charAt(1) == 'x' || reference.charAt(1) == 'X')) {
+					codePoint = Integer.parseInt(reference.substring(2), 16);
+				}
+				else {
+					codePoint = Integer.parseInt(reference.substring(1));
+				}
+				return new String(Character.toChars(codePoint));
+			} catch (IllegalArgumentException e) {
+				return null;
+			}
+		}
+		switch (reference.toLowerCase(Locale.ROOT)) {
+		case "amp":
+			return "&";
+		case "lt":
+			return "<";
+		case "gt":
+			return ">";
+		case "quot":
+			return "\"";
+		case "apos":
+			return "'";
+		case "nbsp":
+			return "\u00A0";
+		default:
+			return null;
+		}
+	}
+}
@@ -0,0 +1,446 @@
+package saml2webssotest.idp.loginDrivers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.CookieManager;
+import java.net.InetSocketAddress;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import saml2webssotest.common.FormInteraction;
+import saml2webssotest.common.Interaction;
+import saml2webssotest.common.LinkInteraction;
+import saml2webssotest.idp.SSOSession;
+import saml2webssotest.idp.loginDrivers.ParsedPage.Field;
+import saml2webssotest.idp.loginDrivers.ParsedPage.Form;
+import saml2webssotest.idp.loginDrivers.LoginPlan.Recorder;
+import saml2webssotest.idp.loginDrivers.LoginPlan.Step;
+import saml2webssotest.idp.loginDrivers.ParsedPage.Link;
+
+/**
+ * A lightweight alternative to the HtmlUnit browser for logging in on IdPs with plain HTML login pages.
+ *
+ * It executes the preResponseInteractions with plain HTTP requests, reading only the forms and links from each page
+ * while it is being received. Forms that carry a SAML message (as used by the HTTP-POST binding) are submitted
+ * automatically, since the driver does not run the JavaScript that would normally do this. The HTTP client and its
+ * connections are shared by all sessions, while the cookies are kept separately for each session.
+ * 
+ * When login plans are enabled, the requests that the interactions resolved to in the first successful login are 
+ * recorded as a {@link LoginPlan}. Subsequent logins replay that plan, and the interactions are only resolved again 
+ * when replaying the plan fails.
+ *
+ * @author RiaasM
+ *
+ */
+public class HttpLoginDriver {
+	/**
+	 * Logger for this class
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(HttpLoginDriver.class);
+	/**
+	 * The maximum amount of redirects that are followed for a single request
+	 */
+	private static final int maxRedirects = 20;
+	/**
+	 * The maximum amount of forms carrying a SAML message that are submitted automatically after an interaction
+	 */
+	private static final int maxAutoSubmits = 5;
+	private static final Gson gson = new Gson();
+	/**
+	 * The HTTP client, which pools the connections for all sessions
+	 */
+	private final HttpClient client;
+	/**
+	 * Specifies whether login plans should be learned and replayed
+	 */
+	private final boolean usePlans;
+	/**
+	 * The login plans that were learned, by the login URI and interactions they were learned from
+	 */
+	private final ConcurrentHashMap<String, LoginPlan> plans = new ConcurrentHashMap<String, LoginPlan>();
+
+	/**
+	 * @param insecure specifies whether HTTPS server certificates should not be verified
+	 * @param usePlans specifies whether login plans should be learned and replayed
+	 */
+	public HttpLoginDriver(boolean insecure, boolean usePlans) {
+		this(insecure, usePlans, null);
+	}
+
+	/**
+	 * @param insecure specifies whether HTTPS server certificates should not be verified
+	 * @param usePlans specifies whether login plans should be learned and replayed
+	 * @param proxy is the address of the proxy through which the requests are sent, or null to connect directly
+	 */
+	public HttpLoginDriver(boolean insecure, boolean usePlans, InetSocketAddress proxy) {
+		this.usePlans = usePlans;
+		HttpClient.Builder builder = HttpClient.newBuilder()
+				.followRedirects(HttpClient.Redirect.NEVER)
+				.connectTimeout(Duration.ofSeconds(30));
+		if (insecure) {
+			builder.sslContext(insecureSSLContext());
+		}
+		if (proxy != null) {
+			builder.proxy(ProxySelector.of(proxy));
+		}
+		client = builder.build();
+	}
+
+	/**
+	 * Log in on the target IdP by retrieving the login page and executing the interactions on it.
+	 *
+	 * The IdP's response is delivered to the mock SP by following redirects and submitting forms that carry a
+	 * SAML message, so it will be set on the session by the mock SP.
+	 *
+	 * @param session is the session of the simulated user that should log in
+	 * @param loginURI is the URI of the page where the login should start
+	 * @param interactions are the interactions that should be executed on the retrieved pages
+	 * @return the last page that was retrieved
+	 * @throws IOException if a page could not be retrieved
+	 * @throws InterruptedException if the thread was interrupted while retrieving a page
+	 * @throws IllegalStateException if an interaction could not be executed on the retrieved page
+	 */
+	public ParsedPage login(SSOSession session, URI loginURI, List<Interaction> interactions) throws IOException, InterruptedException {
+		if (!usePlans) {
+			return resolve(session, loginURI, interactions, null);
+		}
+
+		// the session ID may be passed on in the login URI as RelayState, so it is left out to share the plan between sessions
+		String planKey = loginURI.toString().replace(session.getId(), "") + " " + gson.toJson(interactions);
+		LoginPlan plan = plans.get(planKey);
+		if (plan != null) {
+			try {
+				ParsedPage page = plan.replay(this, session, loginURI);
+				if (session.isResponseReceived()) {
+					return page;
+				}
+				logger.info("The login plan did not cause the IdP to send a SAML Response, so the interactions will be resolved again");
+			} catch (IOException e) {
+				logger.info("The login plan could not be replayed, so the interactions will be resolved again", e);
+			} catch (IllegalStateException e) {
+				logger.info("The login plan could not be replayed, so the interactions will be resolved again", e);
+			}
+			plans.remove(planKey, plan);
+		}
+
+		Recorder recorder = new Recorder();
+		ParsedPage page = resolve(session, loginURI, interactions, recorder);
+		if (session.isResponseReceived()) {
+			LoginPlan learned = recorder.toPlan();
+			if (plans.putIfAbsent(planKey, learned) == null) {
+				logger.debug("Learned login plan:\n" + learned);
+			}
+		}
+		return page;
+	}
+
+	/**
+	 * Log in by looking up the forms and links for each interaction on the retrieved pages
+	 */
+	private ParsedPage resolve(SSOSession session, URI loginURI, List<Interaction> interactions, Recorder recorder) throws IOException, InterruptedException {
+		ParsedPage page = autoSubmit(session, get(session, loginURI, recorder), recorder);
+		for (Interaction interaction : interactions) {
+			page = autoSubmit(session, execute(session, page, interaction, recorder), recorder);
+		}
+		return page;
+	}
+
+	/**
+	 * Execute a single interaction on the page
+	 *
+	 * @param session is the session of the simulated user
+	 * @param page is the page the interaction should be executed on
+	 * @param interaction is the interaction that should be executed
+	 * @param recorder records the request that the interaction resolved to, may be null
+	 * @return the page that was retrieved as a result of the interaction
+	 * @throws IOException if the resulting page could not be retrieved
+	 * @throws InterruptedException if the thread was interrupted while retrieving the resulting page
+	 */
+	ParsedPage execute(SSOSession session, ParsedPage page, Interaction interaction, Recorder recorder) throws IOException, InterruptedException {
+		JsonObject description = gson.toJsonTree(interaction).getAsJsonObject();
+		String lookupAttribute = getString(description, "lookupAttribute");
+		String lookupValue = getString(description, "lookupValue");
+		if (lookupAttribute == null || lookupValue == null) {
+			throw new IllegalStateException("The interaction does not specify a lookupAttribute and lookupValue");
+		}
+
+		if (interaction instanceof FormInteraction) {
+			Form form = page.findForm(lookupAttribute, lookupValue);
+			if (form == null) {
+				throw new IllegalStateException("The form with " + lookupAttribute + " '" + lookupValue + "' could not be found on " + page.getURI());
+			}
+			return submit(session, page, form, getInputs(description), getString(description, "submitName"), recorder);
+		}
+		Link link = page.findLink(lookupAttribute, lookupValue);
+		if (link != null) {
+			return get(session, page.resolve(link.getHref()), recorder);
+		}
+		if (!(interaction instanceof LinkInteraction)) {
+			// an element can only be clicked without JavaScript if it is a link or a submit button
+			for (Form form : page.getForms()) {
+				for (Field field : form.getFields()) {
+					if (field.isSubmit() && lookupAttribute.equalsIgnoreCase("name") && lookupValue.equals(field.getName())) {
+						return submit(session, page, form, Collections.<String, String>emptyMap(), field.getName(), recorder);
+					}
+				}
+			}
+		}
+		throw new IllegalStateException("The element with " + lookupAttribute + " '" + lookupValue + "' could not be found on " + page.getURI() + " or can not be clicked without JavaScript");
+	}
+
+	/**
+	 * Submit a form on the page
+	 *
+	 * @param session is the session of the simulated user
+	 * @param page is the page containing the form
+	 * @param form is the form that should be submitted
+	 * @param inputs are the values that should be filled in, by the name of their field
+	 * @param submitName is the name of the submit button that should be used, may be null
+	 * @param recorder records the request that submitting the form resolved to, may be null
+	 * @return the page that was retrieved by submitting the form
+	 * @throws IOException if the resulting page could not be retrieved
+	 * @throws InterruptedException if the thread was interrupted while retrieving the resulting page
+	 */
+	ParsedPage submit(SSOSession session, ParsedPage page, Form form, Map<String, String> inputs, String submitName, Recorder recorder) throws IOException, InterruptedException {
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		Map<String, String> fixedValues = new LinkedHashMap<String, String>();
+		List<String> carried = new ArrayList<String>();
+		for (Field field : form.getFields()) {
+			if (field.isSuccessful()) {
+				values.put(field.getName(), field.getValue());
+				// the values of hidden inputs may be different for each login, so they are carried over when replaying
+				if (field.getType().equals("hidden") && !inputs.containsKey(field.getName())) {
+					carried.add(field.getName());
+				}
+				else {
+					fixedValues.put(field.getName(), field.getValue());
+				}
+			}
+			else if (field.isSubmit() && submitName != null && submitName.equals(field.getName())) {
+				values.put(field.getName(), field.getValue());
+				fixedValues.put(field.getName(), field.getValue());
+			}
+		}
+		values.putAll(inputs);
+		fixedValues.putAll(inputs);
+		URI action = page.resolve(form.getAction());
+		Step step = (recorder != null) ? recorder.record(form.getMethod(), action, fixedValues, carried) : null;
+		return send(session, form.getMethod(), action, values, step);
+	}
+
+	/**
+	 * Retrieve a page
+	 *
+	 * @param session is the session of the simulated user
+	 * @param uri is the URI of the page
+	 * @param recorder records the request for the page, may be null
+	 * @return the retrieved page
+	 * @throws IOException if the page could not be retrieved
+	 * @throws InterruptedException if the thread was interrupted while retrieving the page
+	 */
+	ParsedPage get(SSOSession session, URI uri, Recorder recorder) throws IOException, InterruptedException {
+		Map<String, String> noValues = Collections.<String, String>emptyMap();
+		Step step = (recorder != null) ? recorder.record("GET", uri, noValues, Collections.<String>emptyList()) : null;
+		return send(session, "GET", uri, noValues, step);
+	}
+
+	/**
+	 * Submit the forms carrying a SAML message, as the JavaScript on the page would normally do
+	 */
+	private ParsedPage autoSubmit(SSOSession session, ParsedPage page, Recorder recorder) throws IOException, InterruptedException {
+		for (int i = 0; i < maxAutoSubmits; i++) {
+			Form samlForm = page.getSamlForm();
+			if (samlForm == null) {
+				break;
+			}
+			logger.debug("Automatically submitting the form carrying a SAML message on " + page.getURI());
+			page = submit(session, page, samlForm, Collections.<String, String>emptyMap(), null, recorder);
+		}
+		return page;
+	}
+
+	/**
+	 * Send a request and follow its redirects, keeping the cookies for the session
+	 * 
+	 * @param session is the session of the simulated user
+	 * @param method is the HTTP method, either GET or POST
+	 * @param uri is the URI the request is sent to
+	 * @param values are the values that are sent in the query or body of the request
+	 * @param step is the step of a login plan that is being learned, to which the followed redirects are added, may be null
+	 * @return the page that was retrieved
+	 * @throws IOException if the page could not be retrieved
+	 * @throws InterruptedException if the thread was interrupted while retrieving the page
+	 */
+	ParsedPage send(SSOSession session, String method, URI uri, Map<String, String> values, Step step) throws IOException, InterruptedException {
+		CookieManager cookies = session.getCookies();
+		String encodedValues = encode(values);
+		if (method.equals("GET") && !encodedValues.isEmpty()) {
+			String query = uri.getRawQuery();
+			uri = URI.create(uri.toString().replaceFirst("[?#].*$", "") + "?" + (query == null || query.isEmpty() ? "" : query + "&") + encodedValues);
+		}
+
+		for (int redirects = 0; redirects <= maxRedirects; redirects++) {
+			HttpRequest.Builder request = HttpRequest.newBuilder(uri);
+			for (Entry<String, List<String>> header : cookies.get(uri, Collections.<String, List<String>>emptyMap()).entrySet()) {
+				if (!header.getValue().isEmpty()) {
+					request.header(header.getKey(), String.join("; ", header.getValue()));
+				}
+			}
+			if (method.equals("POST")) {
+				request.header("Content-Type", "application/x-www-form-urlencoded");
+				request.POST(HttpRequest.BodyPublishers.ofString(encodedValues));
+			}
+			else {
+				request.GET();
+			}
+
+			HttpResponse<InputStream> response = client.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+			cookies.put(uri, response.headers().map());
+			int status = response.statusCode();
+			String location = response.headers().firstValue("Location").orElse(null);
+			if (status >= 300 && status < 400 && location != null) {
+				response.body().close();
+				uri = uri.resolve(location);
+				if (step != null) {
+					step.addRedirect(uri);
+				}
+				if (status != 307 && status != 308) {
+					method = "GET";
+				}
+				logger.trace("Following redirect to " + uri);
+				continue;
+			}
+			return read(response);
+		}
+		throw new IOException("Too many redirects while retrieving " + uri);
+	}
+
+	/**
+	 * Read the page from the response while parsing it
+	 */
+	private ParsedPage read(HttpResponse<InputStream> response) throws IOException {
+		URI uri = response.uri();
+		try (InputStream body = response.body()) {
+			String contentType = response.headers().firstValue("Content-Type").orElse("");
+			if (response.statusCode() >= 400) {
+				throw new IOException("The page " + uri + " returned HTTP status code " + response.statusCode());
+			}
+			if (!contentType.toLowerCase().contains("html")) {
+				logger.debug("The page " + uri + " is not an HTML page, so it can not be interacted with");
+				return ParsedPage.empty(uri);
+			}
+			return ParsedPage.parse(new InputStreamReader(body, getCharset(contentType)), uri);
+		}
+	}
+
+	private static Charset getCharset(String contentType) {
+		for (String parameter : contentType.split(";")) {
+			String[] pair = parameter.trim().split("=", 2);
+			if (pair.length == 2 && pair[0].trim().equalsIgnoreCase("charset")) {
+				try {
+					return Charset.forName(pair[1].trim().replace("\"", ""));
+				} catch (IllegalArgumentException e) {
+					break;
+				}
+			}
+		}
+		return StandardCharsets.UTF_8;
+	}
+
+	private static String encode(Map<String, String> values) throws UnsupportedEncodingException {
+		StringBuilder encoded = new StringBuilder();
+		for (Entry<String, String> value : values.entrySet()) {
+			if (encoded.length() > 0) {
+				encoded.append('&');
+			}
+			encoded.append(URLEncoder.encode(value.getKey(), "UTF-8"));
+			encoded.append('=');
+			encoded.append(URLEncoder.encode(value.getValue(), "UTF-8"));
+		}
+		return encoded.toString();
+	}
+
+	private static String getString(JsonObject description, String member) {
+		JsonElement element = description.get(member);
+		return (element == null || element.isJsonNull()) ? null : element.getAsString();
+	}
+
+	/**
+	 * Retrieve the inputs of a form interaction, which are a list of name and value pairs
+	 */
+	private static Map<String, String> getInputs(JsonObject description) {
+		Map<String, String> inputs = new LinkedHashMap<String, String>();
+		JsonElement inputsElement = description.get("inputs");
+		if (inputsElement == null || inputsElement.isJsonNull()) {
+			return inputs;
+		}
+		if (inputsElement.isJsonArray()) {
+			for (JsonElement input : inputsElement.getAsJsonArray()) {
+				JsonObject inputObject = input.getAsJsonObject();
+				String name = getString(inputObject, "name");
+				if (name != null) {
+					String value = getString(inputObject, "value");
+					inputs.put(name, value != null ? value : "");
+				}
+			}
+		}
+		else if (inputsElement.isJsonObject()) {
+			for (Entry<String, JsonElement> input : inputsElement.getAsJsonObject().entrySet()) {
+				inputs.put(input.getKey(), input.getValue().getAsString());
+			}
+		}
+		return inputs;
+	}
+
+	private static SSLContext insecureSSLContext() {
+		try {
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(null, new TrustManager[] { new X509TrustManager() {
+				@Override
+				public void checkClientTrusted(X509Certificate[] chain, String authType) {
+				}
+
+				@Override
+				public void checkServerTrusted(X509Certificate[] chain, String authType) {
+				}
+
+				@Override
+				public X509Certificate[] getAcceptedIssuers() {
+					return new X509Certificate[0];
+				}
+			} }, null);
+			return context;
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Could not create an SSL context that does not verify certificates", e);
+		}
+	}
+}
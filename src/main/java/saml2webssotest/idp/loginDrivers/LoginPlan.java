@@ -0,0 +1,149 @@
+package saml2webssotest.idp.loginDrivers;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import saml2webssotest.idp.SSOSession;
+
+/**
+ * A login plan that was learned from a successful login with the {@link HttpLoginDriver}.
+ *
+ * It records the HTTP requests that the interactions resolved to: the method and URI of each request, the values that
+ * were filled in and the names of the hidden inputs whose values need to be carried over from the previous page. It
+ * also records the redirects that were followed for each request. Replaying the plan sends the same requests without
+ * looking up any forms or links on the retrieved pages.
+ *
+ * @author RiaasM
+ *
+ */
+public class LoginPlan {
+	private final List<Step> steps;
+
+	private LoginPlan(List<Step> steps) {
+		this.steps = Collections.unmodifiableList(steps);
+	}
+
+	public List<Step> getSteps() {
+		return steps;
+	}
+
+	/**
+	 * Replay the plan for a session
+	 *
+	 * The first request is sent to the given login URI instead of the recorded one, since the login URI may contain
+	 * values that differ for each session, like the RelayState.
+	 *
+	 * @param driver is the driver that should send the requests
+	 * @param session is the session of the simulated user that should log in
+	 * @param loginURI is the URI of the page where the login of this session starts
+	 * @return the last page that was retrieved
+	 * @throws IOException if a page could not be retrieved
+	 * @throws InterruptedException if the thread was interrupted while retrieving a page
+	 * @throws IllegalStateException if a hidden input that should be carried over was not found on the previous page
+	 */
+	public ParsedPage replay(HttpLoginDriver driver, SSOSession session, URI loginURI) throws IOException, InterruptedException {
+		ParsedPage page = null;
+		for (Step step : steps) {
+			Map<String, String> values = new LinkedHashMap<String, String>();
+			for (String name : step.carried) {
+				String value = (page != null) ? page.getHiddenValue(name) : null;
+				if (value == null) {
+					throw new IllegalStateException("The hidden input '" + name + "' could not be found on " + (page != null ? page.getURI() : "the first page"));
+				}
+				values.put(name, value);
+			}
+			values.putAll(step.values);
+			page = driver.send(session, step.method, (page == null) ? loginURI : step.uri, values, null);
+		}
+		return page;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder description = new StringBuilder();
+		for (Step step : steps) {
+			description.append(step.method).append(' ').append(step.uri);
+			if (!step.carried.isEmpty()) {
+				description.append(" carrying ").append(step.carried);
+			}
+			for (URI redirect : step.redirects) {
+				description.append(" -> ").append(redirect);
+			}
+			description.append('\n');
+		}
+		return description.toString();
+	}
+
+	/**
+	 * A single HTTP request in the plan
+	 */
+	public static class Step {
+		private final String method;
+		private final URI uri;
+		private final Map<String, String> values;
+		private final List<String> carried;
+		private final List<URI> redirects = new ArrayList<URI>();
+
+		Step(String method, URI uri, Map<String, String> values, List<String> carried) {
+			this.method = method;
+			this.uri = uri;
+			this.values = Collections.unmodifiableMap(new LinkedHashMap<String, String>(values));
+			this.carried = Collections.unmodifiableList(new ArrayList<String>(carried));
+		}
+
+		public String getMethod() {
+			return method;
+		}
+
+		public URI getURI() {
+			return uri;
+		}
+
+		/**
+		 * @return the values that are sent with this request every time, by their name
+		 */
+		public Map<String, String> getValues() {
+			return values;
+		}
+
+		/**
+		 * @return the names of the hidden inputs whose values are carried over from the previous page
+		 */
+		public List<String> getCarried() {
+			return carried;
+		}
+
+		/**
+		 * @return the URIs the request was redirected to when the plan was learned
+		 */
+		public List<URI> getRedirects() {
+			return Collections.unmodifiableList(redirects);
+		}
+
+		void addRedirect(URI redirect) {
+			redirects.add(redirect);
+		}
+	}
+
+	/**
+	 * Records the steps of a login while it is resolved from the interactions
+	 */
+	static class Recorder {
+		private final List<Step> steps = new ArrayList<Step>();
+
+		Step record(String method, URI uri, Map<String, String> values, List<String> carried) {
+			Step step = new Step(method, uri, values, carried);
+			steps.add(step);
+			return step;
+		}
+
+		LoginPlan toPlan() {
+			return new LoginPlan(new ArrayList<Step>(steps));
+		}
+	}
+}
@@ -0,0 +1,371 @@
+package saml2webssotest.idp.loginDrivers;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import saml2webssotest.common.standardNames.SAMLmisc;
+import saml2webssotest.idp.loginDrivers.HtmlTokenizer.TokenType;
+
+/**
+ * Contains only the parts of an HTML page that are needed to log in on it: its forms and its links.
+ *
+ * @author RiaasM
+ *
+ */
+public class ParsedPage {
+	/**
+	 * The URI the page was retrieved from
+	 */
+	private final URI uri;
+	/**
+	 * The URI against which relative URIs on the page are resolved
+	 */
+	private URI base;
+	private final List<Form> forms = new ArrayList<Form>();
+	private final List<Link> links = new ArrayList<Link>();
+
+	private ParsedPage(URI uri) {
+		this.uri = uri;
+		this.base = uri;
+	}
+
+	/**
+	 * Create a page without any forms or links, e.g. for a response that was not HTML
+	 *
+	 * @param uri is the URI the page was retrieved from
+	 * @return the empty page
+	 */
+	public static ParsedPage empty(URI uri) {
+		return new ParsedPage(uri);
+	}
+
+	/**
+	 * Parse the forms and links from an HTML page while it is being read
+	 *
+	 * @param reader is the reader for the HTML page
+	 * @param uri is the URI the page was retrieved from
+	 * @return the parsed page
+	 * @throws IOException if the page could not be read
+	 */
+	public static ParsedPage parse(Reader reader, URI uri) throws IOException {
+		ParsedPage page = new ParsedPage(uri);
+		HtmlTokenizer tokenizer = new HtmlTokenizer(reader);
+		Form currentForm = null;
+		Link currentLink = null;
+		Field currentSelect = null;
+		Field currentTextarea = null;
+
+		TokenType token;
+		while ((token = tokenizer.next()) != TokenType.EOF) {
+			if (token == TokenType.START_TAG) {
+				String tag = tokenizer.getTagName();
+				if (tag.equals("base") && tokenizer.getAttribute("href") != null) {
+					page.base = uri.resolve(tokenizer.getAttribute("href").trim());
+				}
+				else if (tag.equals("form")) {
+					currentForm = new Form(
+							tokenizer.getAttribute("id"),
+							tokenizer.getAttribute("name"),
+							tokenizer.getAttribute("action"),
+							tokenizer.getAttribute("method"));
+					page.forms.add(currentForm);
+				}
+				else if (tag.equals("a")) {
+					currentLink = new Link(tokenizer.getAttribute("id"), tokenizer.getAttribute("name"), tokenizer.getAttribute("href"));
+					page.links.add(currentLink);
+				}
+				else if (currentForm != null && tag.equals("input")) {
+					String type = tokenizer.getAttribute("type");
+					currentForm.fields.add(new Field(
+							tokenizer.getAttribute("name"),
+							tokenizer.getAttribute("value") != null ? tokenizer.getAttribute("value") : "",
+							type != null ? type.toLowerCase() : "text",
+							tokenizer.getAttribute("checked") != null));
+				}
+				else if (currentForm != null && tag.equals("button")) {
+					String type = tokenizer.getAttribute("type");
+					currentForm.fields.add(new Field(
+							tokenizer.getAttribute("name"),
+							tokenizer.getAttribute("value") != null ? tokenizer.getAttribute("value") : "",
+							type != null ? type.toLowerCase() : "submit",
+							false));
+				}
+				else if (currentForm != null && tag.equals("select")) {
+					currentSelect = new Field(tokenizer.getAttribute("name"), null, "select", false);
+					currentForm.fields.add(currentSelect);
+				}
+				else if (currentSelect != null && tag.equals("option")) {
+					// use the selected option, or the first option if none is selected
+					String value = tokenizer.getAttribute("value");
+					if (currentSelect.value == null || tokenizer.getAttribute("selected") != null) {
+						currentSelect.value = value != null ? value : "";
+					}
+				}
+				else if (currentForm != null && tag.equals("textarea")) {
+					currentTextarea = new Field(tokenizer.getAttribute("name"), "", "textarea", false);
+					currentForm.fields.add(currentTextarea);
+				}
+			}
+			else if (token == TokenType.END_TAG) {
+				String tag = tokenizer.getTagName();
+				if (tag.equals("form")) {
+					currentForm = null;
+				}
+				else if (tag.equals("a")) {
+					currentLink = null;
+				}
+				else if (tag.equals("select")) {
+					currentSelect = null;
+				}
+				else if (tag.equals("textarea")) {
+					currentTextarea = null;
+				}
+			}
+			else if (token == TokenType.TEXT) {
+				if (currentTextarea != null) {
+					currentTextarea.value += tokenizer.getText();
+				}
+				if (currentLink != null) {
+					currentLink.text.append(tokenizer.getText());
+				}
+			}
+		}
+		return page;
+	}
+
+	public URI getURI() {
+		return uri;
+	}
+
+	public List<Form> getForms() {
+		return Collections.unmodifiableList(forms);
+	}
+
+	public List<Link> getLinks() {
+		return Collections.unmodifiableList(links);
+	}
+
+	/**
+	 * Resolve a URI found on the page
+	 *
+	 * @param reference is the (possibly relative) URI found on the page, may be null or empty
+	 * @return the absolute URI, which is the URI of the page itself when the reference is null or empty
+	 */
+	public URI resolve(String reference) {
+		if (reference == null || reference.trim().isEmpty()) {
+			return uri;
+		}
+		return base.resolve(reference.trim());
+	}
+
+	/**
+	 * Find the form on the page that carries a SAML message, as is used by the HTTP-POST binding. Such forms
+	 * are normally submitted automatically by JavaScript.
+	 *
+	 * @return the form carrying a SAML message, or null if there is none
+	 */
+	public Form getSamlForm() {
+		for (Form form : forms) {
+			for (Field field : form.fields) {
+				if (SAMLmisc.URLPARAM_SAMLRESPONSE_POST.equals(field.name) || "SAMLRequest".equals(field.name)) {
+					return form;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Find the value of a hidden input in any of the forms on the page
+	 *
+	 * @param name is the name of the hidden input
+	 * @return the value of the hidden input, or null if it is not found
+	 */
+	public String getHiddenValue(String name) {
+		for (Form form : forms) {
+			for (Field field : form.fields) {
+				if (field.type.equals("hidden") && name.equals(field.name)) {
+					return field.getValue();
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Find a form by the value of its "id" or "name" attribute
+	 *
+	 * @param lookupAttribute is either "id" or "name"
+	 * @param lookupValue is the value of that attribute
+	 * @return the form, or null if it is not found
+	 */
+	public Form findForm(String lookupAttribute, String lookupValue) {
+		for (Form form : forms) {
+			if (matches(lookupAttribute, lookupValue, form.id, form.name)) {
+				return form;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Find a link by its "id", "name" or "href" attribute or by its text
+	 *
+	 * @param lookupAttribute is either "id", "name", "href" or "text"
+	 * @param lookupValue is the value of that attribute, or the text of the link
+	 * @return the link, or null if it is not found
+	 */
+	public Link findLink(String lookupAttribute, String lookupValue) {
+		for (Link link : links) {
+			if (lookupAttribute.equalsIgnoreCase("href") && lookupValue.equals(link.href)) {
+				return link;
+			}
+			if (lookupAttribute.equalsIgnoreCase("text") && lookupValue.trim().equals(link.getText())) {
+				return link;
+			}
+			if (matches(lookupAttribute, lookupValue, link.id, link.name)) {
+				return link;
+			}
+		}
+		return null;
+	}
+
+	private static boolean matches(String lookupAttribute, String lookupValue, String id, String name) {
+		if (lookupAttribute.equalsIgnoreCase("id")) {
+			return lookupValue.equals(id);
+		}
+		if (lookupAttribute.equalsIgnoreCase("name")) {
+			return lookupValue.equals(name);
+		}
+		return false;
+	}
+
+	/**
+	 * A form on the page
+	 */
+	public static class Form {
+		private final String id;
+		private final String name;
+		private final String action;
+		private final String method;
+		private final List<Field> fields = new ArrayList<Field>();
+
+		private Form(String id, String name, String action, String method) {
+			this.id = id;
+			this.name = name;
+			this.action = action;
+			this.method = method;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getAction() {
+			return action;
+		}
+
+		/**
+		 * @return the upper-case HTTP method of the form, which is GET by default
+		 */
+		public String getMethod() {
+			return (method == null || method.isEmpty()) ? "GET" : method.toUpperCase();
+		}
+
+		public List<Field> getFields() {
+			return Collections.unmodifiableList(fields);
+		}
+	}
+
+	/**
+	 * A field in a form, which is an input, button, select or textarea element
+	 */
+	public static class Field {
+		private final String name;
+		private String value;
+		private final String type;
+		private final boolean checked;
+
+		private Field(String name, String value, String type, boolean checked) {
+			this.name = name;
+			this.value = value;
+			this.type = type;
+			this.checked = checked;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getValue() {
+			return value != null ? value : "";
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		/**
+		 * @return true if this field is a button that submits the form
+		 */
+		public boolean isSubmit() {
+			return type.equals("submit") || type.equals("image");
+		}
+
+		/**
+		 * @return true if this field is sent along when the form is submitted, not taking submit buttons into account
+		 */
+		public boolean isSuccessful() {
+			if (name == null || name.isEmpty() || isSubmit() || type.equals("button") || type.equals("reset") || type.equals("file")) {
+				return false;
+			}
+			if (type.equals("checkbox") || type.equals("radio")) {
+				return checked;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * A link on the page
+	 */
+	public static class Link {
+		private final String id;
+		private final String name;
+		private final String href;
+		private final StringBuilder text = new StringBuilder();
+
+		private Link(String id, String name, String href) {
+			this.id = id;
+			this.name = name;
+			this.href = href;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getHref() {
+			return href;
+		}
+
+		/**
+		 * @return the text of the link, with its whitespace normalized
+		 */
+		public String getText() {
+			return text.toString().replaceAll("\\s+", " ").trim();
+		}
+	}
+}
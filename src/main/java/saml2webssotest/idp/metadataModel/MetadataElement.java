@@ -0,0 +1,246 @@
+package saml2webssotest.idp.metadataModel;
+
+import java.io.ByteArrayInputStream;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.crypto.dsig.XMLSignature;
+
+/**
+ * An element in the compact metadata model.
+ *
+ * The model is much smaller than a DOM document of the same metadata. The names and namespaces of elements and
+ * attributes are interned through the {@link NameTable}, the attributes and children of an element are kept in arrays
+ * instead of linked nodes, whitespace between elements is not kept at all and the base64 content of certificates is
+ * only decoded when it is asked for. The text of an element is the text directly inside it, which is all the text there
+ * is in metadata, since metadata has no mixed content.
+ *
+ * An element can not be modified once the model is built, so the model can be read from multiple threads at the same
+ * time, unlike a DOM document. Use {@link MetadataModel#toDocument(MetadataElement)} for code that needs a DOM
+ * document.
+ *
+ * @author RiaasM
+ *
+ */
+public final class MetadataElement {
+	static final MetadataElement[] noChildren = new MetadataElement[0];
+	static final String[] noAttributes = new String[0];
+	private static final String certificateName = "X509Certificate";
+	private final String namespace;
+	private final String qualifiedName;
+	private final String localName;
+	/**
+	 * The namespace, qualified name and value of each attribute, one after the other
+	 */
+	private final String[] attributes;
+	private final String text;
+	private final MetadataElement[] children;
+
+	MetadataElement(String namespace, String qualifiedName, String localName, String[] attributes, String text, MetadataElement[] children) {
+		this.namespace = namespace;
+		this.qualifiedName = qualifiedName;
+		this.localName = localName;
+		this.attributes = attributes;
+		this.text = text;
+		this.children = children;
+	}
+
+	/**
+	 * @return the namespace of the element, or the empty string if it has none
+	 */
+	public String getNamespace() {
+		return namespace;
+	}
+
+	/**
+	 * @return the name of the element including its prefix, as it occurred in the metadata
+	 */
+	public String getQualifiedName() {
+		return qualifiedName;
+	}
+
+	public String getLocalName() {
+		return localName;
+	}
+
+	/**
+	 * Check the name of the element
+	 *
+	 * @param namespace is the namespace of the element
+	 * @param localName is the local name of the element
+	 * @return true if the element has the provided name
+	 */
+	public boolean is(String namespace, String localName) {
+		return this.localName.equals(localName) && this.namespace.equals(namespace);
+	}
+
+	/**
+	 * Retrieve an attribute that has no namespace, like most attributes in metadata
+	 *
+	 * @param localName is the name of the attribute
+	 * @return the value of the attribute, or null if the element does not have the attribute
+	 */
+	public String getAttribute(String localName) {
+		return getAttribute(XMLConstants.NULL_NS_URI, localName);
+	}
+
+	/**
+	 * Retrieve an attribute
+	 *
+	 * @param namespace is the namespace of the attribute
+	 * @param localName is the local name of the attribute
+	 * @return the value of the attribute, or null if the element does not have the attribute
+	 */
+	public String getAttribute(String namespace, String localName) {
+		for (int i = 0; i < attributes.length; i += 3) {
+			if (attributes[i].equals(namespace) && hasLocalName(attributes[i + 1], localName)) {
+				return attributes[i + 2];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the amount of attributes, including the namespace declarations
+	 */
+	public int getAttributeCount() {
+		return attributes.length / 3;
+	}
+
+	public String getAttributeNamespace(int index) {
+		return attributes[index * 3];
+	}
+
+	public String getAttributeQualifiedName(int index) {
+		return attributes[index * 3 + 1];
+	}
+
+	public String getAttributeLocalName(int index) {
+		return localNameOf(attributes[index * 3 + 1]);
+	}
+
+	public String getAttributeValue(int index) {
+		return attributes[index * 3 + 2];
+	}
+
+	/**
+	 * @return the text directly inside the element, or null if it only contains whitespace. For certificates, the
+	 * 			whitespace inside the base64 content is removed.
+	 */
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * @return the child elements, in document order
+	 */
+	public List<MetadataElement> getChildren() {
+		return Collections.unmodifiableList(Arrays.asList(children));
+	}
+
+	/**
+	 * Retrieve the child elements with the provided name
+	 *
+	 * @param namespace is the namespace of the child elements
+	 * @param localName is the local name of the child elements
+	 * @return the matching child elements, in document order
+	 */
+	public List<MetadataElement> getChildren(String namespace, String localName) {
+		List<MetadataElement> matching = new ArrayList<MetadataElement>();
+		for (MetadataElement child : children) {
+			if (child.is(namespace, localName)) {
+				matching.add(child);
+			}
+		}
+		return matching;
+	}
+
+	/**
+	 * Retrieve this element and its descendants with the provided name, like
+	 * {@link org.w3c.dom.Document#getElementsByTagNameNS(String, String)} on the document of this element
+	 *
+	 * @param namespace is the namespace of the elements
+	 * @param localName is the local name of the elements
+	 * @return the matching elements, in document order
+	 */
+	public List<MetadataElement> getDescendants(String namespace, String localName) {
+		List<MetadataElement> matching = new ArrayList<MetadataElement>();
+		collect(namespace, localName, matching);
+		return matching;
+	}
+
+	private void collect(String namespace, String localName, List<MetadataElement> matching) {
+		if (is(namespace, localName)) {
+			matching.add(this);
+		}
+		for (MetadataElement child : children) {
+			child.collect(namespace, localName, matching);
+		}
+	}
+
+	/**
+	 * Decode the certificate in a ds:X509Certificate element. The certificate is decoded each time this is called,
+	 * so certificates that are never asked for are never decoded.
+	 *
+	 * @return the certificate
+	 * @throws CertificateException if this is not a ds:X509Certificate element or its content is not a valid
+	 * 			certificate
+	 */
+	public X509Certificate getCertificate() throws CertificateException {
+		if (!isCertificate(namespace, localName)) {
+			throw new CertificateException("The element " + qualifiedName + " does not contain a certificate");
+		}
+		return decodeCertificate(text);
+	}
+
+	/**
+	 * Decode the base64 content of a ds:X509Certificate element. Whitespace in the content is ignored, so this can
+	 * also be used for the text that a {@link saml2webssotest.idp.metadataRules.MetadataRule} receives.
+	 *
+	 * @param text is the content of the ds:X509Certificate element, may be null
+	 * @return the certificate
+	 * @throws CertificateException if the content is empty or is not a valid certificate
+	 */
+	public static X509Certificate decodeCertificate(String text) throws CertificateException {
+		String content = text == null ? "" : text.replaceAll("\\s", "");
+		if (content.isEmpty()) {
+			throw new CertificateException("The certificate is empty");
+		}
+		byte[] encoded;
+		try {
+			encoded = Base64.getDecoder().decode(content);
+		} catch (IllegalArgumentException e) {
+			throw new CertificateException("The certificate is not valid base64", e);
+		}
+		return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(encoded));
+	}
+
+	static boolean isCertificate(String namespace, String localName) {
+		return certificateName.equals(localName) && XMLSignature.XMLNS.equals(namespace);
+	}
+
+	/**
+	 * Compare the local part of a qualified name, without creating a new string for it
+	 */
+	private static boolean hasLocalName(String qualifiedName, String localName) {
+		int prefixLength = qualifiedName.length() - localName.length();
+		return qualifiedName.endsWith(localName) && (prefixLength == 0 || (prefixLength > 1 && qualifiedName.charAt(prefixLength - 1) == ':'));
+	}
+
+	static String localNameOf(String qualifiedName) {
+		int colon = qualifiedName.indexOf(':');
+		return colon < 0 ? qualifiedName : qualifiedName.substring(colon + 1);
+	}
+
+	@Override
+	public String toString() {
+		return "<" + qualifiedName + "> with " + getAttributeCount() + " attributes and " + children.length + " children";
+	}
+}
@@ -0,0 +1,228 @@
+package saml2webssotest.idp.metadataModel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.SAXParser;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import saml2webssotest.idp.XMLParsers;
+
+/**
+ * Builds the compact metadata model, either directly from the serialized metadata or from a DOM document, and converts
+ * it back to a DOM document for code that needs one.
+ *
+ * Building the model from the serialized metadata never holds the metadata as a DOM document, so it is the way to read
+ * large metadata aggregates. Converting a part of the model to a DOM document only costs memory for that part, e.g. a
+ * single entity, for as long as the document is used.
+ *
+ * @author RiaasM
+ *
+ */
+public final class MetadataModel {
+	/**
+	 * Streams a DOM document as SAX events. A Transformer is not thread-safe, so each thread has its own.
+	 */
+	private static final ThreadLocal<Transformer> walkers = new ThreadLocal<Transformer>() {
+		@Override
+		protected Transformer initialValue() {
+			try {
+				return TransformerFactory.newInstance().newTransformer();
+			} catch (TransformerConfigurationException e) {
+				throw new IllegalStateException("Could not create a transformer for reading the metadata", e);
+			}
+		}
+	};
+
+	private MetadataModel() {
+	}
+
+	/**
+	 * Build the model from serialized metadata
+	 *
+	 * @param metadata is the serialized metadata, which is not closed
+	 * @return the root element of the metadata
+	 * @throws IOException if the metadata could not be read
+	 * @throws SAXException if the metadata is not well-formed XML
+	 */
+	public static MetadataElement parse(InputStream metadata) throws IOException, SAXException {
+		TreeBuilder builder = new TreeBuilder();
+		SAXParser parser = XMLParsers.borrowSAXParser();
+		try {
+			parser.parse(metadata, builder);
+		} finally {
+			XMLParsers.returnSAXParser(parser);
+		}
+		return builder.getRoot();
+	}
+
+	/**
+	 * Build the model from a DOM document
+	 *
+	 * @param metadata is the metadata document, may be null
+	 * @return the root element of the metadata, or null if there is no metadata
+	 */
+	public static MetadataElement fromDocument(Document metadata) {
+		if (metadata == null || metadata.getDocumentElement() == null) {
+			return null;
+		}
+		TreeBuilder builder = new TreeBuilder();
+		try {
+			walkers.get().transform(new DOMSource(metadata), new SAXResult(builder));
+		} catch (TransformerException e) {
+			throw new IllegalStateException("Could not read the metadata document", e);
+		}
+		return builder.getRoot();
+	}
+
+	/**
+	 * Convert an element and its descendants to a DOM document, for code that can only read DOM documents
+	 *
+	 * @param element is the element that becomes the document element
+	 * @return a new, namespace-aware DOM document
+	 */
+	public static Document toDocument(MetadataElement element) {
+		Document document = XMLParsers.newDocumentBuilder().newDocument();
+		document.appendChild(toElement(document, element));
+		return document;
+	}
+
+	private static Element toElement(Document document, MetadataElement element) {
+		Element domElement = document.createElementNS(nullIfEmpty(element.getNamespace()), element.getQualifiedName());
+		for (int i = 0; i < element.getAttributeCount(); i++) {
+			domElement.setAttributeNS(nullIfEmpty(element.getAttributeNamespace(i)), element.getAttributeQualifiedName(i), element.getAttributeValue(i));
+		}
+		if (element.getText() != null) {
+			domElement.appendChild(document.createTextNode(element.getText()));
+		}
+		for (MetadataElement child : element.getChildren()) {
+			domElement.appendChild(toElement(document, child));
+		}
+		return domElement;
+	}
+
+	private static String nullIfEmpty(String namespace) {
+		return namespace.isEmpty() ? null : namespace;
+	}
+
+	/**
+	 * Builds the elements from SAX events
+	 */
+	private static class TreeBuilder extends DefaultHandler {
+		/**
+		 * The namespace declarations for the next element, in the same layout as the attributes of an element
+		 */
+		private final List<String> declarations = new ArrayList<String>();
+		/**
+		 * The elements that are being built, innermost first
+		 */
+		private final Deque<OpenElement> open = new ArrayDeque<OpenElement>();
+		private MetadataElement root;
+
+		@Override
+		public void startPrefixMapping(String prefix, String uri) {
+			declarations.add(XMLConstants.XMLNS_ATTRIBUTE_NS_URI);
+			declarations.add(NameTable.intern(prefix.isEmpty() ? XMLConstants.XMLNS_ATTRIBUTE : XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix));
+			declarations.add(NameTable.intern(uri));
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes) {
+			List<String> flat = new ArrayList<String>(declarations);
+			declarations.clear();
+			for (int i = 0; i < attributes.getLength(); i++) {
+				String attrQName = attributes.getQName(i);
+				// declarations are reported as prefix mappings, and some sources also report them as attributes
+				if (attrQName.equals(XMLConstants.XMLNS_ATTRIBUTE) || attrQName.startsWith(XMLConstants.XMLNS_ATTRIBUTE + ":")) {
+					continue;
+				}
+				flat.add(NameTable.intern(attributes.getURI(i)));
+				flat.add(NameTable.intern(attrQName));
+				flat.add(NameTable.internValue(attributes.getValue(i)));
+			}
+			String name = (localName == null || localName.isEmpty()) ? MetadataElement.localNameOf(qName) : localName;
+			open.push(new OpenElement(NameTable.intern(uri == null ? XMLConstants.NULL_NS_URI : uri), NameTable.intern(qName), NameTable.intern(name),
+					flat.isEmpty() ? MetadataElement.noAttributes : flat.toArray(new String[flat.size()])));
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) {
+			OpenElement current = open.peek();
+			if (current != null) {
+				if (current.text == null) {
+					current.text = new StringBuilder(length);
+				}
+				current.text.append(ch, start, length);
+			}
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) {
+			OpenElement current = open.pop();
+			MetadataElement element = current.build();
+			if (open.isEmpty()) {
+				root = element;
+			}
+			else {
+				open.peek().children.add(element);
+			}
+		}
+
+		private MetadataElement getRoot() {
+			return root;
+		}
+	}
+
+	/**
+	 * An element whose end has not been reached yet
+	 */
+	private static class OpenElement {
+		private final String namespace;
+		private final String qualifiedName;
+		private final String localName;
+		private final String[] attributes;
+		private final List<MetadataElement> children = new ArrayList<MetadataElement>(4);
+		private StringBuilder text;
+
+		private OpenElement(String namespace, String qualifiedName, String localName, String[] attributes) {
+			this.namespace = namespace;
+			this.qualifiedName = qualifiedName;
+			this.localName = localName;
+			this.attributes = attributes;
+		}
+
+		private MetadataElement build() {
+			String content = null;
+			if (text != null) {
+				if (MetadataElement.isCertificate(namespace, localName)) {
+					// base64 content is often split over indented lines, which only takes up space
+					content = text.toString().replaceAll("\\s", "");
+				}
+				else if (!text.toString().trim().isEmpty()) {
+					content = NameTable.internValue(text.toString());
+				}
+				if (content != null && content.isEmpty()) {
+					content = null;
+				}
+			}
+			MetadataElement[] built = children.isEmpty() ? MetadataElement.noChildren : children.toArray(new MetadataElement[children.size()]);
+			return new MetadataElement(namespace, qualifiedName, localName, attributes, content, built);
+		}
+	}
+}
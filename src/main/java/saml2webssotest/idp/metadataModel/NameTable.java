@@ -0,0 +1,98 @@
+package saml2webssotest.idp.metadataModel;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.XMLConstants;
+import javax.xml.crypto.dsig.XMLSignature;
+
+import saml2webssotest.common.standardNames.MD;
+import saml2webssotest.common.standardNames.SAML;
+import saml2webssotest.common.standardNames.SAMLP;
+import saml2webssotest.common.standardNames.SAMLmisc;
+
+/**
+ * Interns the strings that occur many times in metadata, so each of them is only kept in memory once, no matter how
+ * many entities use it.
+ *
+ * Element names, attribute names and namespace URIs come from a small vocabulary, so they are always interned. Values
+ * are only interned when they are well-known (like the SAML bindings and name formats) or look like an identifier
+ * from such a vocabulary (a URN), since other values like entityIDs and locations are mostly unique and interning
+ * them would only add overhead. The table has a maximum size, so metadata with an unusual amount of distinct names
+ * can not make it grow without bounds.
+ *
+ * @author RiaasM
+ *
+ */
+public final class NameTable {
+	/**
+	 * The maximum amount of strings in the table, after which new strings are no longer interned
+	 */
+	private static final int maxSize = 50000;
+	/**
+	 * The maximum length of a value that is interned because it looks like an identifier
+	 */
+	private static final int maxValueLength = 256;
+	private static final ConcurrentHashMap<String, String> names = new ConcurrentHashMap<String, String>();
+
+	static {
+		String[] wellKnown = {
+			MD.NAMESPACE, SAML.NAMESPACE, SAMLP.NAMESPACE, XMLSignature.XMLNS,
+			XMLConstants.XML_NS_URI, XMLConstants.XMLNS_ATTRIBUTE_NS_URI, XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI,
+			"http://www.w3.org/2001/04/xmlenc#", XMLConstants.NULL_NS_URI,
+			SAMLmisc.BINDING_HTTP_POST, SAMLmisc.BINDING_HTTP_REDIRECT, SAMLmisc.BINDING_HTTP_ARTIFACT,
+			"urn:oasis:names:tc:SAML:2.0:bindings:SOAP", "urn:oasis:names:tc:SAML:2.0:bindings:PAOS",
+			SAMLmisc.NAMEID_FORMAT_PERSISTENT, SAMLmisc.NAMEID_FORMAT_TRANSIENT, SAMLmisc.NAMEFORMAT_URI,
+			"urn:oasis:names:tc:SAML:1.1:nameid-format:unspecified", "urn:oasis:names:tc:SAML:1.1:nameid-format:emailAddress",
+			"urn:oasis:names:tc:SAML:2.0:attrname-format:basic", "urn:oasis:names:tc:SAML:2.0:attrname-format:unspecified",
+			MD.KEYTYPE_ENCRYPTION, "signing", "support", "technical", "administrative", "billing", "other",
+			"en", "true", "false"
+		};
+		for (String name : wellKnown) {
+			names.put(name, name);
+		}
+	}
+
+	private NameTable() {
+	}
+
+	/**
+	 * Intern a name, like an element name, attribute name or namespace URI
+	 *
+	 * @param name is the name, may be null
+	 * @return the interned name, or the name itself if the table is full
+	 */
+	public static String intern(String name) {
+		if (name == null) {
+			return null;
+		}
+		String interned = names.get(name);
+		if (interned != null) {
+			return interned;
+		}
+		if (names.size() >= maxSize) {
+			return name;
+		}
+		interned = names.putIfAbsent(name, name);
+		return interned != null ? interned : name;
+	}
+
+	/**
+	 * Intern a value, if it is well-known or looks like an identifier from a vocabulary
+	 *
+	 * @param value is the value of an attribute or the text of an element, may be null
+	 * @return the interned value, or the value itself if it is not interned
+	 */
+	public static String internValue(String value) {
+		if (value == null) {
+			return null;
+		}
+		String interned = names.get(value);
+		if (interned != null) {
+			return interned;
+		}
+		if (value.length() <= maxValueLength && value.startsWith("urn:")) {
+			return intern(value);
+		}
+		return value;
+	}
+}
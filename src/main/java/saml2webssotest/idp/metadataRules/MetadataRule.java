@@ -0,0 +1,68 @@
+package saml2webssotest.idp.metadataRules;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.xml.namespace.QName;
+
+import org.xml.sax.Attributes;
+
+import saml2webssotest.idp.TestOutcome;
+
+/**
+ * A check on the metadata that is evaluated while the {@link MetadataRuleEngine} streams through the metadata.
+ *
+ * A rule listens to the elements it is interested in, which it registers with {@link #listen(String, String)} when
+ * it is created. It is then notified of the start and end of each of those elements, in document order, and keeps
+ * whatever it needs to determine its outcome. Since a rule keeps this state, a new rule is created for each pass.
+ *
+ * @author RiaasM
+ *
+ */
+public abstract class MetadataRule {
+	private final Set<QName> elements = new HashSet<QName>();
+
+	/**
+	 * Register interest in an element
+	 *
+	 * @param namespace is the namespace of the element
+	 * @param localName is the local name of the element
+	 */
+	protected void listen(String namespace, String localName) {
+		elements.add(new QName(namespace, localName));
+	}
+
+	/**
+	 * @return the elements this rule is interested in
+	 */
+	public Set<QName> getElements() {
+		return Collections.unmodifiableSet(elements);
+	}
+
+	/**
+	 * Called at the start of each element this rule is interested in
+	 *
+	 * @param element is the name of the element
+	 * @param attributes are the attributes of the element, which are only valid during this call
+	 * @param parent is the name of the parent element, or null for the root element
+	 */
+	public void startElement(QName element, Attributes attributes, QName parent) {
+	}
+
+	/**
+	 * Called at the end of each element this rule is interested in
+	 *
+	 * @param element is the name of the element
+	 * @param text is the text content of the element, including that of its descendants
+	 */
+	public void endElement(QName element, String text) {
+	}
+
+	/**
+	 * Determine the outcome once the entire metadata has been streamed
+	 *
+	 * @return the outcome of the check
+	 */
+	public abstract TestOutcome getOutcome();
+}
@@ -0,0 +1,287 @@
+package saml2webssotest.idp.metadataRules;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.SAXParser;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXResult;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+import saml2webssotest.common.TestStatus;
+import saml2webssotest.idp.TestOutcome;
+import saml2webssotest.idp.XMLParsers;
+import saml2webssotest.idp.metadataModel.MetadataElement;
+import saml2webssotest.idp.testsuites.IdPTestSuite.StreamingMetadataTestCase;
+
+/**
+ * Evaluates any amount of streaming metadata test cases in a single pass over the metadata.
+ *
+ * Each test case provides a {@link MetadataRule}, which listens to specific elements. The engine streams through the
+ * metadata once, either by parsing its bytes with SAX or by walking an already parsed document or compact metadata
+ * model, and notifies only the rules that listen to the current element. The time it takes therefore depends on the
+ * size of the metadata and the amount of matching elements, but not on the amount of rules. When parsing the bytes, the metadata is never held in
+ * memory as a whole.
+ *
+ * A rule that throws an exception is no longer notified and results in a CRITICAL outcome, without affecting the
+ * other rules.
+ *
+ * @author RiaasM
+ *
+ */
+public class MetadataRuleEngine {
+	/**
+	 * Logger for this class
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(MetadataRuleEngine.class);
+	/**
+	 * Streams a parsed metadata document as SAX events. A Transformer is not thread-safe, so each thread has its own.
+	 */
+	private static final ThreadLocal<Transformer> walkers = new ThreadLocal<Transformer>() {
+		@Override
+		protected Transformer initialValue() {
+			try {
+				return TransformerFactory.newInstance().newTransformer();
+			} catch (TransformerConfigurationException e) {
+				throw new IllegalStateException("Could not create a transformer for streaming the metadata", e);
+			}
+		}
+	};
+	private final List<StreamingMetadataTestCase> testcases;
+
+	/**
+	 * @param testcases are the test cases that should be evaluated
+	 */
+	public MetadataRuleEngine(List<? extends StreamingMetadataTestCase> testcases) {
+		this.testcases = new ArrayList<StreamingMetadataTestCase>(testcases);
+	}
+
+	/**
+	 * Evaluate the test cases on a parsed metadata document
+	 *
+	 * @param metadata is the metadata, may be null
+	 * @return the outcome of each test case, by the class of the test case
+	 */
+	public Map<Class<?>, TestOutcome> evaluate(Document metadata) {
+		if (metadata == null) {
+			Map<Class<?>, TestOutcome> outcomes = new LinkedHashMap<Class<?>, TestOutcome>();
+			for (StreamingMetadataTestCase testcase : testcases) {
+				outcomes.put(testcase.getClass(), testcase.evaluateMetadata(null));
+			}
+			return outcomes;
+		}
+		RuleDispatcher dispatcher = new RuleDispatcher();
+		try {
+			walkers.get().transform(new DOMSource(metadata), new SAXResult(dispatcher));
+		} catch (TransformerException e) {
+			logger.error("Could not stream the metadata", e);
+			return failAll("The metadata could not be read: " + e.getMessage());
+		}
+		return dispatcher.getOutcomes();
+	}
+
+	/**
+	 * Evaluate the test cases on the compact metadata model
+	 *
+	 * @param metadata is the element at which the evaluation starts, e.g. the root element or a single entity
+	 * @return the outcome of each test case, by the class of the test case
+	 */
+	public Map<Class<?>, TestOutcome> evaluate(MetadataElement metadata) {
+		RuleDispatcher dispatcher = new RuleDispatcher();
+		walk(metadata, dispatcher, new AttributesImpl());
+		return dispatcher.getOutcomes();
+	}
+
+	private static void walk(MetadataElement element, RuleDispatcher dispatcher, AttributesImpl attributes) {
+		attributes.clear();
+		for (int i = 0; i < element.getAttributeCount(); i++) {
+			if (!XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(element.getAttributeNamespace(i))) {
+				attributes.addAttribute(element.getAttributeNamespace(i), element.getAttributeLocalName(i), element.getAttributeQualifiedName(i), "CDATA", element.getAttributeValue(i));
+			}
+		}
+		dispatcher.startElement(element.getNamespace(), element.getLocalName(), element.getQualifiedName(), attributes);
+		if (element.getText() != null) {
+			dispatcher.characters(element.getText().toCharArray(), 0, element.getText().length());
+		}
+		for (MetadataElement child : element.getChildren()) {
+			walk(child, dispatcher, attributes);
+		}
+		dispatcher.endElement(element.getNamespace(), element.getLocalName(), element.getQualifiedName());
+	}
+
+	/**
+	 * Evaluate the test cases while parsing the metadata
+	 *
+	 * @param metadata is the serialized metadata, which is not closed
+	 * @return the outcome of each test case, by the class of the test case
+	 * @throws IOException if the metadata could not be read
+	 * @throws SAXException if the metadata is not well-formed XML
+	 */
+	public Map<Class<?>, TestOutcome> evaluate(InputStream metadata) throws IOException, SAXException {
+		RuleDispatcher dispatcher = new RuleDispatcher();
+		SAXParser parser = XMLParsers.borrowSAXParser();
+		try {
+			parser.parse(metadata, dispatcher);
+		} finally {
+			XMLParsers.returnSAXParser(parser);
+		}
+		return dispatcher.getOutcomes();
+	}
+
+	private Map<Class<?>, TestOutcome> failAll(String message) {
+		Map<Class<?>, TestOutcome> outcomes = new LinkedHashMap<Class<?>, TestOutcome>();
+		for (StreamingMetadataTestCase testcase : testcases) {
+			outcomes.put(testcase.getClass(), new TestOutcome(TestStatus.CRITICAL, message));
+		}
+		return outcomes;
+	}
+
+	/**
+	 * Notifies the rules of the elements they listen to, during a single pass
+	 */
+	private class RuleDispatcher extends DefaultHandler {
+		/**
+		 * The rule of each test case, in the order of the test cases
+		 */
+		private final Map<StreamingMetadataTestCase, MetadataRule> rules = new LinkedHashMap<StreamingMetadataTestCase, MetadataRule>();
+		/**
+		 * The rules that listen to each element
+		 */
+		private final Map<QName, List<MetadataRule>> listeners = new HashMap<QName, List<MetadataRule>>();
+		/**
+		 * The outcomes of the rules that threw an exception
+		 */
+		private final Map<MetadataRule, TestOutcome> failures = new HashMap<MetadataRule, TestOutcome>();
+		/**
+		 * The elements from the root to the current element
+		 */
+		private final Deque<QName> path = new ArrayDeque<QName>();
+		/**
+		 * The text content of the open elements that rules listen to, innermost first
+		 */
+		private final Deque<StringBuilder> texts = new ArrayDeque<StringBuilder>();
+
+		private RuleDispatcher() {
+			for (StreamingMetadataTestCase testcase : testcases) {
+				MetadataRule rule;
+				try {
+					rule = testcase.newRule();
+				} catch (RuntimeException e) {
+					logger.error("Could not create the rule for test case " + testcase.getClass().getSimpleName(), e);
+					rule = new FailedRule(new TestOutcome(TestStatus.CRITICAL, "The test case could not be performed: " + e));
+				}
+				rules.put(testcase, rule);
+				for (QName element : rule.getElements()) {
+					if (!listeners.containsKey(element)) {
+						listeners.put(element, new ArrayList<MetadataRule>());
+					}
+					listeners.get(element).add(rule);
+				}
+			}
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes) {
+			// documents that were parsed without namespace awareness only have qualified names
+			QName element = new QName(uri, (localName == null || localName.isEmpty()) ? qName : localName);
+			List<MetadataRule> interested = listeners.get(element);
+			if (interested != null) {
+				for (MetadataRule rule : interested) {
+					if (!failures.containsKey(rule)) {
+						try {
+							rule.startElement(element, attributes, path.peek());
+						} catch (RuntimeException e) {
+							fail(rule, e);
+						}
+					}
+				}
+				texts.push(new StringBuilder());
+			}
+			path.push(element);
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) {
+			for (StringBuilder text : texts) {
+				text.append(ch, start, length);
+			}
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) {
+			QName element = path.pop();
+			List<MetadataRule> interested = listeners.get(element);
+			if (interested != null) {
+				String text = texts.pop().toString();
+				for (MetadataRule rule : interested) {
+					if (!failures.containsKey(rule)) {
+						try {
+							rule.endElement(element, text);
+						} catch (RuntimeException e) {
+							fail(rule, e);
+						}
+					}
+				}
+			}
+		}
+
+		private void fail(MetadataRule rule, RuntimeException e) {
+			logger.error("A metadata rule failed while streaming the metadata", e);
+			failures.put(rule, new TestOutcome(TestStatus.CRITICAL, "The test case could not be performed: " + e));
+		}
+
+		private Map<Class<?>, TestOutcome> getOutcomes() {
+			Map<Class<?>, TestOutcome> outcomes = new LinkedHashMap<Class<?>, TestOutcome>();
+			for (Map.Entry<StreamingMetadataTestCase, MetadataRule> entry : rules.entrySet()) {
+				MetadataRule rule = entry.getValue();
+				TestOutcome outcome = failures.get(rule);
+				if (outcome == null) {
+					try {
+						outcome = rule.getOutcome();
+					} catch (RuntimeException e) {
+						logger.error("A metadata rule failed while determining its outcome", e);
+						outcome = new TestOutcome(TestStatus.CRITICAL, "The test case could not be performed: " + e);
+					}
+				}
+				outcomes.put(entry.getKey().getClass(), outcome);
+			}
+			return outcomes;
+		}
+	}
+
+	/**
+	 * Takes the place of a rule that could not be created
+	 */
+	private static class FailedRule extends MetadataRule {
+		private final TestOutcome outcome;
+
+		private FailedRule(TestOutcome outcome) {
+			this.outcome = outcome;
+		}
+
+		@Override
+		public TestOutcome getOutcome() {
+			return outcome;
+		}
+	}
+}
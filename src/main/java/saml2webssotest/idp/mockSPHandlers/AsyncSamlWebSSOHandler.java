@@ -0,0 +1,160 @@
+package saml2webssotest.idp.mockSPHandlers;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import saml2webssotest.common.SAMLUtil;
+import saml2webssotest.common.standardNames.SAMLmisc;
+import saml2webssotest.idp.SSOSession;
+import saml2webssotest.idp.bindings.RedirectBindingCodec;
+
+/**
+ * Handles the requests received by the mock SP without decoding them on the request thread.
+ *
+ * The IdP's POST or redirect is acknowledged immediately. The SAML Response is then decoded and handed to the session
+ * it belongs to on a separate, bounded executor. When the executor's queue is full, the request thread decodes the
+ * response itself, which slows down accepting new requests until the decoders have caught up.
+ *
+ * @author RiaasM
+ *
+ */
+public class AsyncSamlWebSSOHandler extends SamlWebSSOHandler {
+
+	private final Logger logger = LoggerFactory.getLogger(AsyncSamlWebSSOHandler.class);
+	/**
+	 * The amount of threads that decode the received SAML Responses
+	 */
+	private final int decoderThreads;
+	/**
+	 * The maximum amount of received SAML Responses that can wait to be decoded
+	 */
+	private final int queueCapacity;
+	/**
+	 * The executor that decodes the received SAML Responses
+	 */
+	private ThreadPoolExecutor decoders;
+
+	/**
+	 * Create the handler with a decoder thread for each available processor
+	 *
+	 * @param queueCapacity is the maximum amount of received SAML Responses that can wait to be decoded
+	 */
+	public AsyncSamlWebSSOHandler(int queueCapacity) {
+		this(Runtime.getRuntime().availableProcessors(), queueCapacity);
+	}
+
+	/**
+	 * @param decoderThreads is the amount of threads that decode the received SAML Responses
+	 * @param queueCapacity is the maximum amount of received SAML Responses that can wait to be decoded
+	 */
+	public AsyncSamlWebSSOHandler(int decoderThreads, int queueCapacity) {
+		this.decoderThreads = decoderThreads;
+		this.queueCapacity = queueCapacity;
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		decoders = new ThreadPoolExecutor(
+				decoderThreads,
+				decoderThreads,
+				0L,
+				TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		super.doStart();
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		super.doStop();
+		decoders.shutdown();
+		if (!decoders.awaitTermination(10, TimeUnit.SECONDS)) {
+			logger.warn("Not all received SAML Responses could be decoded before the mock SP was stopped");
+			decoders.shutdownNow();
+		}
+	}
+
+	/**
+	 * Handle a request received by the mock SP.
+	 *
+	 * It retrieves the encoded SAML Response and acknowledges the request immediately. The SAML Response is decoded
+	 * and sent to the test runner afterwards.
+	 *
+	 * @param target is the identifier for the resource that should handle the request, usually the URI from the HTTP Request
+	 * @param baseRequest is the original unwrapped request
+	 * @param request is the request that the handler received
+	 * @param response is the response that will be sent
+	 */
+	@Override
+	public void handle(String target, Request baseRequest, HttpServletRequest abstractRequest, HttpServletResponse response) throws IOException, ServletException {
+		Request request = (abstractRequest instanceof Request) ? (Request) abstractRequest : baseRequest;
+		final SSOSession session = findSession(request);
+		checkTenant(session, request);
+		String method = request.getMethod();
+		String binding = null;
+		String respParam = null;
+
+		if (method.equalsIgnoreCase("GET")) {
+			respParam = request.getParameter(SAMLmisc.URLPARAM_SAMLRESPONSE_REDIRECT);
+			binding = SAMLmisc.BINDING_HTTP_REDIRECT;
+		}
+		else if (method.equalsIgnoreCase("POST")) {
+			respParam = request.getParameter(SAMLmisc.URLPARAM_SAMLRESPONSE_POST);
+			binding = SAMLmisc.BINDING_HTTP_POST;
+		}
+
+		if (respParam != null) {
+			logger.debug("SAML Response received through " + method + " by the mock SP");
+			if (session != null) {
+				session.setResponseReceived();
+			}
+			final String encodedResponse = respParam;
+			final String responseBinding = binding;
+			decoders.execute(new Runnable() {
+				@Override
+				public void run() {
+					String samlResponse = null;
+					try {
+						if (responseBinding.equals(SAMLmisc.BINDING_HTTP_REDIRECT)) {
+							samlResponse = RedirectBindingCodec.decode(encodedResponse);
+						}
+						else {
+							samlResponse = SAMLUtil.decodeSamlMessageForPost(encodedResponse);
+						}
+					} catch (RuntimeException e) {
+						logger.error("The SAML Response received by the mock SP could not be decoded", e);
+					} finally {
+						setResponse(session, samlResponse, responseBinding);
+						if (samlResponse == null && session != null) {
+							// release the session, even though no response could be decoded
+							session.setSamlResponse(null);
+						}
+					}
+				}
+			});
+		}
+		else if (request.getParameter(SAMLmisc.URLPARAM_SAMLARTIFACT) != null) {
+			setResponse(session, null, SAMLmisc.BINDING_HTTP_ARTIFACT);
+			// TODO: implement for BINDING_HTTP_ARTIFACT
+		}
+		else {
+			logger.debug("No SAML response received (with " + method + ")");
+		}
+
+		// acknowledge the request without waiting for the SAML Response to be decoded
+		response.setContentType("text/html");
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.getWriter().println("<!DOCTYPE HTML PUBLIC \"-//W3C//DTD HTML 4.01 Transitional//EN\" \"http://www.w3.org/TR/html4/loose.dtd\"><html><head><title>SAML2Tester Mock SP</title></head><body><p>The request has been received by the mock SP</p></body></html>");
+		request.setHandled(true);
+	}
+}
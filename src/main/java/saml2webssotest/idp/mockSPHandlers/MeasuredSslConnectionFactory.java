@@ -0,0 +1,62 @@
+package saml2webssotest.idp.mockSPHandlers;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.io.ssl.SslConnection;
+import org.eclipse.jetty.io.ssl.SslHandshakeListener;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.SslConnectionFactory;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the TLS connections on an HTTPS connector of the mock SP and records their handshakes in a
+ * {@link TlsHandshakeStats}.
+ *
+ * JSSE does not tell whether a handshake resumed a cached TLS session, so a handshake is counted as resumed when the
+ * TLS session it ended up with was created before the connection was accepted.
+ *
+ * @author RiaasM
+ *
+ */
+public class MeasuredSslConnectionFactory extends SslConnectionFactory {
+	/**
+	 * Logger for this class
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(MeasuredSslConnectionFactory.class);
+	private final TlsHandshakeStats stats;
+
+	/**
+	 * @param sslContextFactory provides the certificate and TLS settings of the connector
+	 * @param nextProtocol is the protocol that is spoken inside the TLS connection, e.g. "http/1.1" or "alpn"
+	 * @param stats receives the handshakes
+	 */
+	public MeasuredSslConnectionFactory(SslContextFactory sslContextFactory, String nextProtocol, TlsHandshakeStats stats) {
+		super(sslContextFactory, nextProtocol);
+		this.stats = stats;
+	}
+
+	@Override
+	protected SslConnection newSslConnection(Connector connector, EndPoint endPoint, SSLEngine engine) {
+		final long acceptedNanos = System.nanoTime();
+		final long acceptedMillis = System.currentTimeMillis();
+		SslConnection connection = super.newSslConnection(connector, endPoint, engine);
+		connection.addHandshakeListener(new SslHandshakeListener() {
+			@Override
+			public void handshakeSucceeded(Event event) {
+				SSLSession session = event.getSSLEngine().getSession();
+				stats.succeeded(session.getCreationTime() < acceptedMillis, System.nanoTime() - acceptedNanos);
+			}
+
+			@Override
+			public void handshakeFailed(Event event, Throwable failure) {
+				stats.failed();
+				logger.debug("A TLS handshake on the mock SP failed", failure);
+			}
+		});
+		return connection;
+	}
+}
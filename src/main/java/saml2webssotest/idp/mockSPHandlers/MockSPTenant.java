@@ -0,0 +1,117 @@
+package saml2webssotest.idp.mockSPHandlers;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * A single SP entity that is hosted by the mock SP.
+ *
+ * The mock SP can host any amount of these entities on the same server. Each of them has its own entityID, its own URL
+ * (which can differ from the others in its host name, its path or both) and optionally its own certificate and private
+ * key, so each has its own metadata and can be registered with the target IdP separately. Requests are routed to the
+ * tenant whose URL they were sent to by the {@link TenantRoutingHandler}.
+ *
+ * @author RiaasM
+ *
+ */
+public class MockSPTenant {
+	/**
+	 * The name of the request attribute that contains the tenant that a request was routed to
+	 */
+	public static final String REQUEST_ATTRIBUTE = MockSPTenant.class.getName();
+	private String entityID;
+	/**
+	 * The URL on which this tenant receives the SAML Responses
+	 */
+	private URL url;
+	/**
+	 * The location of the certificate file for this tenant, or null to use the default certificate
+	 */
+	private String certificate;
+	/**
+	 * The location of the private key file for this tenant, or null to use the default private key
+	 */
+	private String privateKey;
+
+	/**
+	 * @param entityID is the entityID of the tenant
+	 * @param url is the URL on which the tenant receives the SAML Responses
+	 * @param certificate is the location of the certificate file for the tenant, or null to use the default certificate
+	 * @param privateKey is the location of the private key file for the tenant, or null to use the default private key
+	 */
+	public MockSPTenant(String entityID, URL url, String certificate, String privateKey) {
+		this.entityID = entityID;
+		this.url = url;
+		this.certificate = certificate;
+		this.privateKey = privateKey;
+	}
+
+	public String getEntityID() {
+		return entityID;
+	}
+
+	public URL getURL() {
+		return url;
+	}
+
+	public String getCertificate() {
+		return certificate;
+	}
+
+	public String getPrivateKey() {
+		return privateKey;
+	}
+
+	/**
+	 * @return the port on which this tenant is hosted, using the default port of its protocol if its URL has none
+	 */
+	public int getPort() {
+		return url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+	}
+
+	/**
+	 * @return the path below which this tenant receives its requests, which is "/" if its URL has no path
+	 */
+	public String getPath() {
+		return url.getPath().isEmpty() ? "/" : url.getPath();
+	}
+
+	/**
+	 * Create a copy of this tenant that is hosted on another port, e.g. so several test runners on the same machine can
+	 * each host it
+	 *
+	 * @param offset is the amount that is added to the port of this tenant
+	 * @return the copy, with the same entityID and credentials, or this tenant if the offset is 0
+	 */
+	public MockSPTenant withPortOffset(int offset) {
+		if (offset == 0) {
+			return this;
+		}
+		try {
+			return new MockSPTenant(entityID, new URL(url.getProtocol(), url.getHost(), getPort() + offset, url.getFile()), certificate, privateKey);
+		} catch (MalformedURLException e) {
+			throw new IllegalArgumentException("The URL of " + entityID + " can not be moved to another port", e);
+		}
+	}
+
+	/**
+	 * Check if a request was sent to this tenant
+	 *
+	 * @param port is the port on which the request was received
+	 * @param path is the path of the request
+	 * @return true if the request was received on the port of this tenant and its path is the path of this tenant or
+	 * 			below it
+	 */
+	public boolean accepts(int port, String path) {
+		if (port != getPort()) {
+			return false;
+		}
+		String tenantPath = getPath();
+		return tenantPath.equals("/") || path.equals(tenantPath) || path.startsWith(tenantPath.endsWith("/") ? tenantPath : tenantPath + "/");
+	}
+
+	@Override
+	public String toString() {
+		return entityID + " (" + url + ")";
+	}
+}
@@ -0,0 +1,528 @@
+package saml2webssotest.idp.mockSPHandlers;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.SAXParser;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import saml2webssotest.common.standardNames.SAML;
+import saml2webssotest.common.standardNames.SAMLP;
+import saml2webssotest.idp.XMLParsers;
+
+/**
+ * Detects IDs of Responses and Assertions that the mock SP received before, e.g. because the IdP replays its messages
+ * or generates IDs from a badly seeded random number generator under load.
+ *
+ * The IDs are remembered for a window of time in a fixed amount of memory outside of the heap, so a load run with
+ * millions of messages neither grows the heap nor slows down the garbage collector. The window is divided into slices
+ * of time, each with its own Bloom filter, hash index and log of the IDs it contains. A new ID is added to the newest
+ * slice, and when a slice has covered its part of the window, the oldest slice is cleared and reused. Each ID is
+ * remembered for at least the window, unless more IDs than the capacity were received during the window, in which case
+ * the oldest slice is reused early and the window is shortened.
+ *
+ * Each ID is first checked against the Bloom filters, which rule out almost all new IDs without looking at the index.
+ * A hit in a Bloom filter can be a false positive, so it is confirmed by looking up the ID itself in the index and
+ * log of the slice. Only confirmed duplicates are reported, and these are kept so the test cases can find them.
+ *
+ * The detector can be used from any thread. The IDs are extracted and hashed before the detector is locked, so only
+ * the lookups and updates of the slices are done under its single lock. The slices share their rotation and counters,
+ * so they are not locked separately: the lookups take far less time than receiving a message, and a single lock keeps
+ * the rotation and the statistics consistent.
+ *
+ * @author RiaasM
+ *
+ */
+public class ReplayDetector {
+	/**
+	 * Logger for this class
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(ReplayDetector.class);
+	/**
+	 * The amount of bits in each Bloom filter for each ID, which with 7 hash functions gives about 1% false positives
+	 */
+	private static final int bloomBitsPerID = 10;
+	private static final int bloomHashFunctions = 7;
+	/**
+	 * The average amount of bytes that is reserved in the log for each ID, which fits the usual IDs of 33 to 43
+	 * characters. When the IDs are longer, the slices fill up before their capacity is reached.
+	 */
+	private static final int logBytesPerID = 48;
+	/**
+	 * The maximum length of an ID in the log. Longer IDs are stored as their SHA-256 digest.
+	 */
+	private static final int maxIDBytes = 1024;
+	/**
+	 * Each entry in the hash index contains the hash of the ID (a long) and its position in the log (an int)
+	 */
+	private static final int indexEntryBytes = 12;
+	/**
+	 * The maximum amount of confirmed duplicates that are kept for the test cases
+	 */
+	private static final int maxKeptDuplicates = 10000;
+	private final Slice[] slices;
+	/**
+	 * The index of the slice that new IDs are added to
+	 */
+	private int current;
+	private final long windowMillis;
+	private final long sliceMillis;
+	/**
+	 * The confirmed duplicate IDs and how often each was received, of which only the most recent are kept
+	 */
+	private final LinkedHashMap<String, Integer> duplicates = new LinkedHashMap<String, Integer>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+			return size() > maxKeptDuplicates;
+		}
+	};
+	private long messageCount;
+	private long idCount;
+	private long bloomHitCount;
+	private long duplicateCount;
+	private long falsePositiveCount;
+	private long rotationCount;
+	private long earlyRotationCount;
+
+	/**
+	 * Create a detector that divides the window into 4 slices
+	 *
+	 * @param capacity is the amount of IDs that can be remembered during the window
+	 * @param window is how long an ID is remembered at least
+	 */
+	public ReplayDetector(int capacity, Duration window) {
+		this(capacity, window, 4);
+	}
+
+	/**
+	 * @param capacity is the amount of IDs that can be remembered during the window
+	 * @param window is how long an ID is remembered at least
+	 * @param sliceCount is the amount of slices, at least 2. With more slices, less IDs are remembered for longer than
+	 * 			the window, but each ID is checked against more Bloom filters.
+	 */
+	public ReplayDetector(int capacity, Duration window, int sliceCount) {
+		if (capacity < 1 || sliceCount < 2 || window.toMillis() < sliceCount) {
+			throw new IllegalArgumentException("The replay detector needs a capacity, a window and at least 2 slices");
+		}
+		this.windowMillis = window.toMillis();
+		// the window is always covered by the slices except the newest one
+		this.sliceMillis = windowMillis / (sliceCount - 1);
+		int sliceCapacity = (capacity + sliceCount - 2) / (sliceCount - 1);
+		long now = System.currentTimeMillis();
+		slices = new Slice[sliceCount];
+		for (int i = 0; i < sliceCount; i++) {
+			slices[i] = new Slice(sliceCapacity, now);
+		}
+		logger.debug("The replay detector remembers " + capacity + " IDs for " + window + " in " + getMemoryBytes() + " bytes");
+	}
+
+	/**
+	 * Retrieve the IDs of the Response and of the Assertions in a SAML message. The IDs of encrypted Assertions can
+	 * not be retrieved.
+	 *
+	 * @param samlMessage is the SAML message
+	 * @return the IDs, which is empty if the message is not well-formed XML
+	 */
+	public static List<String> extractIDs(String samlMessage) {
+		final List<String> ids = new ArrayList<String>();
+		SAXParser parser = XMLParsers.borrowSAXParser();
+		try {
+			parser.parse(new InputSource(new StringReader(samlMessage)), new DefaultHandler() {
+				@Override
+				public void startElement(String uri, String localName, String qName, Attributes attributes) {
+					if ((SAMLP.NAMESPACE.equals(uri) && localName.equals("Response")) || (SAML.NAMESPACE.equals(uri) && localName.equals("Assertion"))) {
+						String id = attributes.getValue("ID");
+						if (id != null) {
+							ids.add(id);
+						}
+					}
+				}
+			});
+		} catch (SAXException | IOException e) {
+			logger.debug("Could not retrieve the IDs from a SAML message", e);
+		} finally {
+			XMLParsers.returnSAXParser(parser);
+		}
+		return ids;
+	}
+
+	/**
+	 * Check the IDs of a received message against the IDs that were received before, and remember them
+	 *
+	 * @param ids are the IDs in the message
+	 * @return the IDs that were received before, which is empty if the message contains no duplicate IDs
+	 */
+	public List<String> observe(List<String> ids) {
+		// the keys and their hashes only depend on the IDs, so they are computed before taking the lock
+		byte[][] keys = new byte[ids.size()][];
+		long[] hashes = new long[ids.size()];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = keyOf(ids.get(i));
+			hashes[i] = hash(keys[i]);
+		}
+		synchronized (this) {
+			return observe(ids, keys, hashes);
+		}
+	}
+
+	private List<String> observe(List<String> ids, byte[][] keys, long[] hashes) {
+		long now = System.currentTimeMillis();
+		if (now - slices[current].start >= sliceMillis) {
+			rotate(now);
+		}
+		messageCount++;
+		List<String> found = new ArrayList<String>();
+		for (int i = 0; i < keys.length; i++) {
+			idCount++;
+			String id = ids.get(i);
+			byte[] key = keys[i];
+			long hash = hashes[i];
+			boolean bloomHit = false;
+			boolean duplicate = false;
+			for (Slice slice : slices) {
+				if (slice.isLive(now) && slice.mightContain(hash)) {
+					bloomHit = true;
+					if (slice.contains(hash, key)) {
+						duplicate = true;
+						break;
+					}
+				}
+			}
+			if (bloomHit) {
+				bloomHitCount++;
+			}
+			if (duplicate) {
+				duplicateCount++;
+				Integer received = duplicates.get(id);
+				duplicates.put(id, received == null ? 2 : received + 1);
+				found.add(id);
+				continue;
+			}
+			if (bloomHit) {
+				falsePositiveCount++;
+			}
+			if (!slices[current].add(hash, key)) {
+				// the capacity was reached before the slice covered its part of the window, so the IDs in the oldest
+				// slice are forgotten before the window has passed
+				if (slices[(current + 1) % slices.length].isLive(now)) {
+					earlyRotationCount++;
+				}
+				rotate(now);
+				slices[current].add(hash, key);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Start adding IDs to a new slice, clearing the oldest slice to reuse it
+	 */
+	private void rotate(long now) {
+		current = (current + 1) % slices.length;
+		slices[current].clear(now);
+		rotationCount++;
+	}
+
+	/**
+	 * @return the ID as it is stored in the log
+	 */
+	private static byte[] keyOf(String id) {
+		byte[] key = id.getBytes(StandardCharsets.UTF_8);
+		if (key.length <= maxIDBytes) {
+			return key;
+		}
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(key);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	/**
+	 * Hash the ID with 64-bit FNV-1a, mixed with the finalizer of MurmurHash3 so all bits depend on all bytes
+	 *
+	 * @return the hash, which is never 0 since that marks an empty entry in the index
+	 */
+	private static long hash(byte[] key) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : key) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		hash = mix(hash);
+		return hash != 0 ? hash : 1;
+	}
+
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	/**
+	 * @param id is an ID
+	 * @return true if the ID was confirmed to be received more than once, as far as the most recent duplicates go
+	 */
+	public synchronized boolean isDuplicate(String id) {
+		return duplicates.containsKey(id);
+	}
+
+	/**
+	 * @param id is an ID
+	 * @return how often the ID was received, if it was confirmed to be received more than once, or 1 otherwise
+	 */
+	public synchronized int getTimesReceived(String id) {
+		Integer received = duplicates.get(id);
+		return received != null ? received : 1;
+	}
+
+	/**
+	 * Start counting from zero again, e.g. at the start of a test run. The remembered IDs are kept, so replays across
+	 * runs are still detected.
+	 */
+	public synchronized void reset() {
+		messageCount = 0;
+		idCount = 0;
+		bloomHitCount = 0;
+		duplicateCount = 0;
+		falsePositiveCount = 0;
+		rotationCount = 0;
+		earlyRotationCount = 0;
+	}
+
+	public synchronized long getMessageCount() {
+		return messageCount;
+	}
+
+	public synchronized long getIDCount() {
+		return idCount;
+	}
+
+	/**
+	 * @return the amount of IDs that were found in a Bloom filter, i.e. the duplicates and the false positives
+	 */
+	public synchronized long getBloomHitCount() {
+		return bloomHitCount;
+	}
+
+	/**
+	 * @return the amount of IDs that were confirmed to be received before
+	 */
+	public synchronized long getDuplicateCount() {
+		return duplicateCount;
+	}
+
+	/**
+	 * @return the amount of IDs that were found in a Bloom filter but were not received before
+	 */
+	public synchronized long getFalsePositiveCount() {
+		return falsePositiveCount;
+	}
+
+	public synchronized long getRotationCount() {
+		return rotationCount;
+	}
+
+	/**
+	 * @return the amount of times the IDs in a slice were forgotten before the window had passed, because the capacity
+	 * 			was reached
+	 */
+	public synchronized long getEarlyRotationCount() {
+		return earlyRotationCount;
+	}
+
+	/**
+	 * @return the amount of IDs that are currently remembered
+	 */
+	public synchronized long getRememberedIDs() {
+		long now = System.currentTimeMillis();
+		long remembered = 0;
+		for (Slice slice : slices) {
+			if (slice.isLive(now)) {
+				remembered += slice.count;
+			}
+		}
+		return remembered;
+	}
+
+	/**
+	 * @return how long the oldest remembered ID has been remembered, in milliseconds, which is shorter than the window
+	 * 			when the capacity was reached
+	 */
+	public synchronized long getRememberedMillis() {
+		long now = System.currentTimeMillis();
+		long oldest = now;
+		for (Slice slice : slices) {
+			if (slice.isLive(now) && slice.count > 0) {
+				oldest = Math.min(oldest, slice.start);
+			}
+		}
+		return now - oldest;
+	}
+
+	public long getWindowMillis() {
+		return windowMillis;
+	}
+
+	/**
+	 * @return the amount of memory outside of the heap that the detector uses, in bytes, which does not change
+	 */
+	public long getMemoryBytes() {
+		long bytes = 0;
+		for (Slice slice : slices) {
+			bytes += slice.bloom.capacity() + slice.index.capacity() + slice.log.capacity();
+		}
+		return bytes;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d messages with %d IDs, %d duplicate IDs, %d Bloom filter hits of which %d false positives, %d IDs remembered for %d s (window %d s, %d early rotations), %.1f MB off-heap",
+				getMessageCount(), getIDCount(), getDuplicateCount(), getBloomHitCount(), getFalsePositiveCount(), getRememberedIDs(), getRememberedMillis() / 1000,
+				windowMillis / 1000, getEarlyRotationCount(), getMemoryBytes() / 1048576.0);
+	}
+
+	/**
+	 * The IDs received during a part of the window
+	 */
+	private class Slice {
+		private final int capacity;
+		/**
+		 * The bits of the Bloom filter
+		 */
+		private final ByteBuffer bloom;
+		private final long bloomMask;
+		/**
+		 * The hash index, using open addressing with linear probing
+		 */
+		private final ByteBuffer index;
+		private final int indexMask;
+		/**
+		 * The IDs, each preceded by its length as an unsigned short
+		 */
+		private final ByteBuffer log;
+		private int logPosition;
+		private int count;
+		/**
+		 * When the slice started receiving IDs, in milliseconds since the epoch
+		 */
+		private long start;
+
+		private Slice(int capacity, long start) {
+			this.capacity = capacity;
+			this.start = start;
+			long bloomBits = Math.max(64, Long.highestOneBit((long) capacity * bloomBitsPerID - 1) << 1);
+			bloom = ByteBuffer.allocateDirect((int) (bloomBits / 8));
+			bloomMask = bloomBits - 1;
+			// keep the index at most 75% full
+			int indexEntries = Math.max(4, Integer.highestOneBit(capacity + capacity / 3) << 1);
+			index = ByteBuffer.allocateDirect(indexEntries * indexEntryBytes);
+			indexMask = indexEntries - 1;
+			log = ByteBuffer.allocateDirect((int) Math.min(Integer.MAX_VALUE, Math.max((long) capacity * logBytesPerID, 2 + maxIDBytes)));
+		}
+
+		/**
+		 * @return false if the slice is empty or expired, i.e. its newest ID is older than the window
+		 */
+		private boolean isLive(long now) {
+			return count > 0 && now - start < sliceMillis * slices.length;
+		}
+
+		private boolean mightContain(long hash) {
+			long step = mix(hash ^ 0x9e3779b97f4a7c15L) | 1;
+			for (int i = 0; i < bloomHashFunctions; i++) {
+				long bit = (hash + i * step) & bloomMask;
+				if ((bloom.getLong((int) (bit >>> 6) << 3) & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private boolean contains(long hash, byte[] key) {
+			int entry = (int) hash & indexMask;
+			while (true) {
+				long entryHash = index.getLong(entry * indexEntryBytes);
+				if (entryHash == 0) {
+					return false;
+				}
+				if (entryHash == hash && logContains(index.getInt(entry * indexEntryBytes + 8), key)) {
+					return true;
+				}
+				entry = (entry + 1) & indexMask;
+			}
+		}
+
+		private boolean logContains(int position, byte[] key) {
+			if ((log.getShort(position) & 0xffff) != key.length) {
+				return false;
+			}
+			for (int i = 0; i < key.length; i++) {
+				if (log.get(position + 2 + i) != key[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Add an ID to the slice
+		 *
+		 * @return false if the slice is full
+		 */
+		private boolean add(long hash, byte[] key) {
+			if (count >= capacity || logPosition + 2 + key.length > log.capacity()) {
+				return false;
+			}
+			long step = mix(hash ^ 0x9e3779b97f4a7c15L) | 1;
+			for (int i = 0; i < bloomHashFunctions; i++) {
+				long bit = (hash + i * step) & bloomMask;
+				int word = (int) (bit >>> 6) << 3;
+				bloom.putLong(word, bloom.getLong(word) | (1L << bit));
+			}
+			int entry = (int) hash & indexMask;
+			while (index.getLong(entry * indexEntryBytes) != 0) {
+				entry = (entry + 1) & indexMask;
+			}
+			index.putLong(entry * indexEntryBytes, hash);
+			index.putInt(entry * indexEntryBytes + 8, logPosition);
+			log.putShort(logPosition, (short) key.length);
+			log.put(logPosition + 2, key);
+			logPosition += 2 + key.length;
+			count++;
+			return true;
+		}
+
+		private void clear(long now) {
+			for (int i = 0; i < bloom.capacity(); i += 8) {
+				bloom.putLong(i, 0);
+			}
+			for (int i = 0; i < index.capacity(); i += 8) {
+				index.putLong(i, 0);
+			}
+			logPosition = 0;
+			count = 0;
+			start = now;
+		}
+	}
+}
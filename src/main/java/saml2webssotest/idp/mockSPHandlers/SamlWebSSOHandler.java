@@ -1,12 +1,13 @@
 package saml2webssotest.idp.mockSPHandlers;
 
 import java.io.IOException;
+import java.util.List;
 
 import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.eclipse.jetty.server.HttpChannel;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.slf4j.Logger;
@@ -15,6 +16,8 @@ import org.slf4j.LoggerFactory;
 import saml2webssotest.common.SAMLUtil;
 import saml2webssotest.common.standardNames.SAMLmisc;
 import saml2webssotest.idp.IdPTestRunner;
+import saml2webssotest.idp.SSOSession;
+import saml2webssotest.idp.bindings.RedirectBindingCodec;
 
 public class SamlWebSSOHandler extends AbstractHandler{
 	
@@ -32,7 +35,9 @@ public class SamlWebSSOHandler extends AbstractHandler{
 	 */
 	@Override
 	public void handle(String target, Request baseRequest, HttpServletRequest abstractRequest, HttpServletResponse response) throws IOException, ServletException {
-		Request request = (abstractRequest instanceof Request) ? (Request) abstractRequest : HttpChannel.getCurrentHttpChannel().getRequest();
+		Request request = (abstractRequest instanceof Request) ? (Request) abstractRequest : baseRequest;
+		SSOSession session = findSession(request);
+		checkTenant(session, request);
 		String method = request.getMethod();
 		String samlResponse = null;
 
@@ -41,14 +46,21 @@ public class SamlWebSSOHandler extends AbstractHandler{
         	String respParam = request.getParameter(SAMLmisc.URLPARAM_SAMLRESPONSE_REDIRECT);
         	
             if (respParam != null) {
-            	IdPTestRunner.setSamlResponseBinding(SAMLmisc.BINDING_HTTP_REDIRECT);
-            	samlResponse = SAMLUtil.decodeSamlMessageForRedirect(respParam);
-                IdPTestRunner.setSamlResponse(samlResponse);
+            	try {
+            		samlResponse = RedirectBindingCodec.decode(respParam);
+            	} catch (IllegalArgumentException e) {
+            		logger.error("The SAML Response received by the mock SP could not be decoded", e);
+            	}
+            	setResponse(session, samlResponse, SAMLmisc.BINDING_HTTP_REDIRECT);
+            	if (samlResponse == null && session != null) {
+            		// release the session, even though no response could be decoded
+            		session.setSamlResponse(null);
+            	}
 
                 logger.debug("SAML Response received through GET by the mock SP");
             }
             else if (request.getParameter(SAMLmisc.URLPARAM_SAMLARTIFACT) != null){
-            	IdPTestRunner.setSamlResponseBinding(SAMLmisc.BINDING_HTTP_ARTIFACT);
+            	setResponse(session, null, SAMLmisc.BINDING_HTTP_ARTIFACT);
                 // TODO: implement for BINDING_HTTP_ARTIFACT
             }
             else{
@@ -60,15 +72,22 @@ public class SamlWebSSOHandler extends AbstractHandler{
         	String respParam = request.getParameter(SAMLmisc.URLPARAM_SAMLRESPONSE_POST);
             
             if (respParam != null){
-            	IdPTestRunner.setSamlResponseBinding(SAMLmisc.BINDING_HTTP_POST);
-            	samlResponse = SAMLUtil.decodeSamlMessageForPost(respParam);
-            	IdPTestRunner.setSamlResponse(samlResponse);
+            	try {
+            		samlResponse = SAMLUtil.decodeSamlMessageForPost(respParam);
+            	} catch (RuntimeException e) {
+            		logger.error("The SAML Response received by the mock SP could not be decoded", e);
+            	}
+            	setResponse(session, samlResponse, SAMLmisc.BINDING_HTTP_POST);
+            	if (samlResponse == null && session != null) {
+            		// release the session, even though no response could be decoded
+            		session.setSamlResponse(null);
+            	}
 
             	logger.debug("SAML Response received through POST by the mock SP");
             		
             }
             else if (request.getParameter(SAMLmisc.URLPARAM_SAMLARTIFACT) != null){
-            	IdPTestRunner.setSamlResponseBinding(SAMLmisc.BINDING_HTTP_ARTIFACT);
+            	setResponse(session, null, SAMLmisc.BINDING_HTTP_ARTIFACT);
                 // TODO: implement for BINDING_HTTP_ARTIFACT
             }
             else{
@@ -85,4 +104,82 @@ public class SamlWebSSOHandler extends AbstractHandler{
 		response.getWriter().println("<!DOCTYPE HTML PUBLIC \"-//W3C//DTD HTML 4.01 Transitional//EN\" \"http://www.w3.org/TR/html4/loose.dtd\"><html><head><title>SAML2Tester Mock SP</title></head><body><p>The request has been handled and the following SAML Response was received:</p><br><br>"+samlResponse+"</body></html>");
 		request.setHandled(true);
 	}
+
+	/**
+	 * Find the session that the request belongs to, using the session cookie that was sent along with it or else the
+	 * RelayState, which contains the session ID if the idpInitURL passes it on with the ${relayState} placeholder
+	 * 
+	 * @param request is the request that the handler received
+	 * @return the session the request belongs to, or null if it does not belong to a known session
+	 */
+	protected SSOSession findSession(HttpServletRequest request) {
+		Cookie[] cookies = request.getCookies();
+		if (cookies != null) {
+			for (Cookie cookie : cookies) {
+				if (cookie.getName().equals(SSOSession.SESSION_COOKIE)) {
+					SSOSession session = IdPTestRunner.getSession(cookie.getValue());
+					if (session != null) {
+						return session;
+					}
+				}
+			}
+		}
+		return IdPTestRunner.getSession(request.getParameter("RelayState"));
+	}
+
+	/**
+	 * Record which SP entity of the mock SP received the request for the session, warning when it is not the SP entity
+	 * the session logs in for (which means the IdP sent the response to the wrong SP)
+	 * 
+	 * @param session is the session the request belongs to, or null
+	 * @param request is the request, which contains the tenant it was routed to
+	 */
+	protected void checkTenant(SSOSession session, HttpServletRequest request) {
+		MockSPTenant tenant = (MockSPTenant) request.getAttribute(MockSPTenant.REQUEST_ATTRIBUTE);
+		if (session != null && tenant != null) {
+			session.setReceivedBy(tenant);
+			if (session.getTenant() != tenant) {
+				logger.warn("The mock SP received a request for session " + session.getId() + " at " + tenant + ", but the session logs in for " + session.getTenant());
+			}
+		}
+	}
+
+	/**
+	 * Check whether the IDs in the received SAML Response were received before, before it is handed to the test case
+	 * that checks them
+	 * 
+	 * @param samlResponse is the decoded SAML Response
+	 */
+	protected void checkReplay(String samlResponse) {
+		ReplayDetector detector = IdPTestRunner.getReplayDetector();
+		if (detector != null) {
+			List<String> duplicates = detector.observe(ReplayDetector.extractIDs(samlResponse));
+			if (!duplicates.isEmpty()) {
+				logger.warn("The mock SP received a SAML Response with IDs that it received before: " + duplicates);
+			}
+		}
+	}
+
+	/**
+	 * Hand the received SAML Response to the session it belongs to, or to the test runner if it does not
+	 * belong to a known session, which only passes it on if it can tell which session it belongs to.
+	 * 
+	 * @param session is the session the response belongs to, or null
+	 * @param samlResponse is the decoded SAML Response
+	 * @param binding is the binding through which the SAML Response was received
+	 */
+	protected void setResponse(SSOSession session, String samlResponse, String binding) {
+		if (samlResponse != null) {
+			checkReplay(samlResponse);
+		}
+		if (session != null) {
+			session.setSamlResponseBinding(binding);
+			if (samlResponse != null) {
+				session.setSamlResponse(samlResponse);
+			}
+		}
+		else {
+			IdPTestRunner.setUnmatchedResponse(samlResponse, binding);
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,43 @@
+package saml2webssotest.idp.mockSPHandlers;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import saml2webssotest.idp.IdPTestRunner;
+
+/**
+ * Routes each request received by the mock SP to the {@link MockSPTenant} it was sent to, before it is handled.
+ *
+ * The tenant is found by the port and path of the request and, when multiple tenants use the same path (virtual
+ * hosting), by the host name the request was sent to. The tenant is stored in the request attribute
+ * {@link MockSPTenant#REQUEST_ATTRIBUTE}, so the wrapped handler can hand the SAML Response to the right tenant.
+ * Requests that were not sent to any tenant are rejected.
+ *
+ * @author RiaasM
+ *
+ */
+public class TenantRoutingHandler extends HandlerWrapper {
+
+	private final Logger logger = LoggerFactory.getLogger(TenantRoutingHandler.class);
+
+	@Override
+	public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+		MockSPTenant tenant = IdPTestRunner.findTenant(request.getServerName(), baseRequest.getLocalPort(), baseRequest.getRequestURI());
+		if (tenant == null) {
+			logger.debug("The mock SP does not host an SP entity at " + request.getRequestURL());
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "The mock SP does not host an SP entity at this URL");
+			baseRequest.setHandled(true);
+			return;
+		}
+		request.setAttribute(MockSPTenant.REQUEST_ATTRIBUTE, tenant);
+		super.handle(target, baseRequest, request, response);
+	}
+}
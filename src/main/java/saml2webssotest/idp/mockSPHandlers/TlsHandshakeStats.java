@@ -0,0 +1,114 @@
+package saml2webssotest.idp.mockSPHandlers;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the TLS handshakes on the HTTPS connectors of the mock SP.
+ *
+ * Each handshake is counted as either a full handshake or a resumed one, since resuming a cached TLS session skips
+ * the expensive key exchange and only costs a fraction of the time. The duration of a handshake is the time from
+ * accepting the connection until the handshake completed, so it includes the network round trips of the handshake.
+ * The statistics can be updated from any thread.
+ *
+ * @author RiaasM
+ *
+ */
+public class TlsHandshakeStats {
+	private final AtomicLong fullCount = new AtomicLong();
+	private final AtomicLong fullNanos = new AtomicLong();
+	private final AtomicLong resumedCount = new AtomicLong();
+	private final AtomicLong resumedNanos = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	/**
+	 * Record a handshake that completed
+	 *
+	 * @param resumed is true if the handshake resumed a cached TLS session
+	 * @param nanos is the duration of the handshake in nanoseconds
+	 */
+	public void succeeded(boolean resumed, long nanos) {
+		if (resumed) {
+			resumedCount.incrementAndGet();
+			resumedNanos.addAndGet(nanos);
+		}
+		else {
+			fullCount.incrementAndGet();
+			fullNanos.addAndGet(nanos);
+		}
+		long max = maxNanos.get();
+		while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+			max = maxNanos.get();
+		}
+	}
+
+	/**
+	 * Record a handshake that failed, e.g. because the client did not trust the certificate of the mock SP
+	 */
+	public void failed() {
+		failedCount.incrementAndGet();
+	}
+
+	/**
+	 * Start counting from zero again, e.g. at the start of a test run
+	 */
+	public void reset() {
+		fullCount.set(0);
+		fullNanos.set(0);
+		resumedCount.set(0);
+		resumedNanos.set(0);
+		failedCount.set(0);
+		maxNanos.set(0);
+	}
+
+	public long getFullCount() {
+		return fullCount.get();
+	}
+
+	public long getResumedCount() {
+		return resumedCount.get();
+	}
+
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * @return the average duration of the full handshakes in milliseconds, or 0 if there were none
+	 */
+	public double getFullAverageMillis() {
+		return averageMillis(fullNanos.get(), fullCount.get());
+	}
+
+	/**
+	 * @return the average duration of the resumed handshakes in milliseconds, or 0 if there were none
+	 */
+	public double getResumedAverageMillis() {
+		return averageMillis(resumedNanos.get(), resumedCount.get());
+	}
+
+	/**
+	 * @return the duration of the slowest handshake in milliseconds
+	 */
+	public double getMaxMillis() {
+		return maxNanos.get() / 1000000.0;
+	}
+
+	/**
+	 * @return the fraction of the completed handshakes that resumed a cached TLS session
+	 */
+	public double getResumptionRate() {
+		long total = fullCount.get() + resumedCount.get();
+		return total == 0 ? 0 : (double) resumedCount.get() / total;
+	}
+
+	private static double averageMillis(long nanos, long count) {
+		return count == 0 ? 0 : nanos / 1000000.0 / count;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d full handshakes (average %.1f ms), %d resumed handshakes (average %.1f ms), %d failed handshakes, slowest %.1f ms",
+				getFullCount(), getFullAverageMillis(), getResumedCount(), getResumedAverageMillis(), getFailedCount(), getMaxMillis());
+	}
+}
@@ -0,0 +1,24 @@
+package saml2webssotest.idp.registry;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a test suite that should be added to the test case index.
+ *
+ * When the project is compiled, the {@link saml2webssotest.idp.registry.processor.TestCaseIndexProcessor} generates
+ * the index, containing the test suite and all the test cases that are declared in it. The test runner uses this
+ * index instead of looking up the test suites and test cases with reflection.
+ *
+ * The test suite must have a public constructor without parameters. Its test cases must be public, non-abstract
+ * member classes that implement one of the test case interfaces.
+ *
+ * @author RiaasM
+ *
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface IndexedTestSuite {
+}
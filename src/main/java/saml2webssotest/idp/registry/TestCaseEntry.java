@@ -0,0 +1,81 @@
+package saml2webssotest.idp.registry;
+
+import java.util.function.Function;
+
+import saml2webssotest.common.TestSuite.MetadataTestCase;
+import saml2webssotest.common.TestSuite.TestCase;
+import saml2webssotest.idp.testsuites.IdPTestSuite;
+import saml2webssotest.idp.testsuites.IdPTestSuite.ConfigTestCase;
+import saml2webssotest.idp.testsuites.IdPTestSuite.ResponseTestCase;
+
+/**
+ * A test case in the test case index, with its type and a factory for creating the test case.
+ *
+ * @author RiaasM
+ *
+ */
+public class TestCaseEntry {
+	/**
+	 * The types of test cases
+	 */
+	public enum Kind {
+		CONFIG, METADATA, RESPONSE;
+
+		/**
+		 * Determine the type of a test case class
+		 *
+		 * @param testcaseClass is the class of the test case
+		 * @return the type of the test case, or null if it is not a test case
+		 */
+		public static Kind of(Class<?> testcaseClass) {
+			if (ConfigTestCase.class.isAssignableFrom(testcaseClass)) {
+				return CONFIG;
+			}
+			else if (MetadataTestCase.class.isAssignableFrom(testcaseClass)) {
+				return METADATA;
+			}
+			else if (ResponseTestCase.class.isAssignableFrom(testcaseClass)) {
+				return RESPONSE;
+			}
+			return null;
+		}
+	}
+
+	private final String name;
+	private final Class<? extends TestCase> type;
+	private final Kind kind;
+	private final Function<IdPTestSuite, ? extends TestCase> factory;
+
+	/**
+	 * @param name is the simple name of the test case
+	 * @param type is the class of the test case
+	 * @param kind is the type of test case
+	 * @param factory creates a new instance of the test case for an instance of its test suite
+	 */
+	public TestCaseEntry(String name, Class<? extends TestCase> type, Kind kind, Function<IdPTestSuite, ? extends TestCase> factory) {
+		this.name = name;
+		this.type = type;
+		this.kind = kind;
+		this.factory = factory;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Class<? extends TestCase> getType() {
+		return type;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * @param testsuite is the test suite in which the test case is declared
+	 * @return a new instance of the test case
+	 */
+	public TestCase newTestCase(IdPTestSuite testsuite) {
+		return factory.apply(testsuite);
+	}
+}
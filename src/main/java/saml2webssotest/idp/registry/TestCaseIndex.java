@@ -0,0 +1,21 @@
+package saml2webssotest.idp.registry;
+
+import java.util.List;
+
+/**
+ * An index of the available test suites and their test cases.
+ *
+ * The implementation is generated at compile time by the
+ * {@link saml2webssotest.idp.registry.processor.TestCaseIndexProcessor} and registered as a service, so it can be
+ * found with a {@link java.util.ServiceLoader}.
+ *
+ * @author RiaasM
+ *
+ */
+public interface TestCaseIndex {
+
+	/**
+	 * @return all test suites in the index
+	 */
+	List<TestSuiteEntry> getTestSuites();
+}
@@ -0,0 +1,112 @@
+package saml2webssotest.idp.registry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import saml2webssotest.common.TestSuite.TestCase;
+import saml2webssotest.idp.testsuites.IdPTestSuite;
+
+/**
+ * Provides access to the test suites and test cases.
+ *
+ * The test suites are retrieved from the test case index that was generated at compile time. Test suites that are
+ * not in the index (e.g. because they were compiled without the annotation processor) are still looked up with
+ * reflection.
+ *
+ * @author RiaasM
+ *
+ */
+public class TestCaseRegistry {
+	/**
+	 * Logger for this class
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(TestCaseRegistry.class);
+	/**
+	 * The test suites from all generated indexes, loaded when the registry is first used
+	 */
+	private static volatile List<TestSuiteEntry> indexedSuites;
+
+	private TestCaseRegistry() {
+	}
+
+	/**
+	 * @return the test suites from all generated indexes on the classpath, which is empty if there are none
+	 */
+	public static List<TestSuiteEntry> getIndexedTestSuites() {
+		List<TestSuiteEntry> suites = indexedSuites;
+		if (suites == null) {
+			suites = new ArrayList<TestSuiteEntry>();
+			for (TestCaseIndex index : ServiceLoader.load(TestCaseIndex.class)) {
+				suites.addAll(index.getTestSuites());
+			}
+			suites = Collections.unmodifiableList(suites);
+			indexedSuites = suites;
+		}
+		return suites;
+	}
+
+	/**
+	 * Find a test suite, first in the generated index and then with reflection
+	 *
+	 * @param testsuitesPackage is the package in which the test suite can be found with reflection
+	 * @param name is the simple name of the test suite
+	 * @return the test suite
+	 * @throws ClassNotFoundException if the test suite could not be found
+	 */
+	public static TestSuiteEntry findTestSuite(String testsuitesPackage, String name) throws ClassNotFoundException {
+		for (TestSuiteEntry suite : getIndexedTestSuites()) {
+			if (suite.getType().getName().equals(testsuitesPackage + "." + name)) {
+				return suite;
+			}
+		}
+		logger.debug("Test suite " + name + " was not found in the test case index, looking it up with reflection");
+		Class<?> suiteClass = Class.forName(testsuitesPackage + "." + name);
+		if (!IdPTestSuite.class.isAssignableFrom(suiteClass)) {
+			throw new ClassCastException(suiteClass.getName() + " is not a TestSuite");
+		}
+		return reflect(suiteClass.asSubclass(IdPTestSuite.class));
+	}
+
+	/**
+	 * Create an entry for a test suite that is not in the index by looking up its test cases with reflection
+	 *
+	 * @param suiteClass is the class of the test suite
+	 * @return the entry for the test suite
+	 */
+	private static TestSuiteEntry reflect(final Class<? extends IdPTestSuite> suiteClass) {
+		List<TestCaseEntry> testcases = new ArrayList<TestCaseEntry>();
+		for (final Class<?> testcaseClass : suiteClass.getDeclaredClasses()) {
+			TestCaseEntry.Kind kind = TestCaseEntry.Kind.of(testcaseClass);
+			if (kind == null) {
+				continue;
+			}
+			testcases.add(new TestCaseEntry(testcaseClass.getSimpleName(), testcaseClass.asSubclass(TestCase.class), kind, new Function<IdPTestSuite, TestCase>() {
+				@Override
+				public TestCase apply(IdPTestSuite testsuite) {
+					try {
+						return (TestCase) testcaseClass.getConstructor(suiteClass).newInstance(testsuite);
+					} catch (ReflectiveOperationException e) {
+						throw new IllegalStateException("Could not create a new instance of the test case " + testcaseClass.getSimpleName(), e);
+					}
+				}
+			}));
+		}
+		return new TestSuiteEntry(suiteClass.getSimpleName(), suiteClass, new Supplier<IdPTestSuite>() {
+			@Override
+			public IdPTestSuite get() {
+				try {
+					return suiteClass.getConstructor().newInstance();
+				} catch (ReflectiveOperationException e) {
+					throw new IllegalStateException("Could not create a new instance of the test suite " + suiteClass.getSimpleName(), e);
+				}
+			}
+		}, testcases);
+	}
+}
@@ -0,0 +1,68 @@
+package saml2webssotest.idp.registry;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+import saml2webssotest.idp.testsuites.IdPTestSuite;
+
+/**
+ * A test suite in the test case index, with a factory for creating the test suite and an entry for each of its
+ * test cases.
+ *
+ * @author RiaasM
+ *
+ */
+public class TestSuiteEntry {
+	private final String name;
+	private final Class<? extends IdPTestSuite> type;
+	private final Supplier<? extends IdPTestSuite> factory;
+	private final List<TestCaseEntry> testcases;
+
+	/**
+	 * @param name is the simple name of the test suite
+	 * @param type is the class of the test suite
+	 * @param factory creates a new instance of the test suite
+	 * @param testcases are the test cases in the test suite, in the order in which they were declared
+	 */
+	public TestSuiteEntry(String name, Class<? extends IdPTestSuite> type, Supplier<? extends IdPTestSuite> factory, List<TestCaseEntry> testcases) {
+		this.name = name;
+		this.type = type;
+		this.factory = factory;
+		this.testcases = Collections.unmodifiableList(testcases);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Class<? extends IdPTestSuite> getType() {
+		return type;
+	}
+
+	public List<TestCaseEntry> getTestCases() {
+		return testcases;
+	}
+
+	/**
+	 * Find a test case in this test suite
+	 *
+	 * @param testcaseName is the simple name of the test case
+	 * @return the test case, or null if it is not found
+	 */
+	public TestCaseEntry getTestCase(String testcaseName) {
+		for (TestCaseEntry testcase : testcases) {
+			if (testcase.getName().equals(testcaseName)) {
+				return testcase;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return a new instance of the test suite
+	 */
+	public IdPTestSuite newTestSuite() {
+		return factory.get();
+	}
+}
@@ -0,0 +1,219 @@
+package saml2webssotest.idp.registry.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Generates the test case index for all test suites annotated with
+ * {@link saml2webssotest.idp.registry.IndexedTestSuite}.
+ *
+ * The generated index contains an entry for each test suite and each test case declared in it, with its type and a
+ * factory that creates it without reflection. The index is registered as a service in
+ * META-INF/services, so the test runner can find it with a {@link java.util.ServiceLoader}.
+ *
+ * This processor only depends on the JDK, so it can be compiled before the rest of the project.
+ *
+ * @author RiaasM
+ *
+ */
+@SupportedAnnotationTypes(TestCaseIndexProcessor.ANNOTATION)
+public class TestCaseIndexProcessor extends AbstractProcessor {
+	static final String ANNOTATION = "saml2webssotest.idp.registry.IndexedTestSuite";
+	private static final String INDEX_PACKAGE = "saml2webssotest.idp.registry";
+	private static final String INDEX_CLASS = "GeneratedTestCaseIndex";
+	private static final String INDEX_INTERFACE = INDEX_PACKAGE + ".TestCaseIndex";
+	private static final String TESTSUITE = "saml2webssotest.idp.testsuites.IdPTestSuite";
+	private static final String CONFIG_TESTCASE = "saml2webssotest.idp.testsuites.IdPTestSuite.ConfigTestCase";
+	private static final String METADATA_TESTCASE = "saml2webssotest.common.TestSuite.MetadataTestCase";
+	private static final String RESPONSE_TESTCASE = "saml2webssotest.idp.testsuites.IdPTestSuite.ResponseTestCase";
+	/**
+	 * Whether the index was already generated, since it can only be generated once per compilation
+	 */
+	private boolean generated = false;
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		if (roundEnv.processingOver() || annotations.isEmpty()) {
+			return false;
+		}
+		TypeElement annotation = processingEnv.getElementUtils().getTypeElement(ANNOTATION);
+		List<TypeElement> suites = new ArrayList<TypeElement>();
+		for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+			if (isValidSuite(element)) {
+				suites.add((TypeElement) element);
+			}
+		}
+		if (suites.isEmpty()) {
+			return true;
+		}
+		if (generated) {
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+					"The test case index was already generated, test suites can not be generated by other annotation processors", suites.get(0));
+			return true;
+		}
+		try {
+			writeIndex(suites);
+			writeServiceFile();
+			generated = true;
+		} catch (IOException e) {
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Could not write the test case index: " + e.getMessage());
+		}
+		return true;
+	}
+
+	/**
+	 * Check that the annotated element is a test suite that can be created without reflection
+	 *
+	 * @param element is the annotated element
+	 * @return true if the element is a valid test suite
+	 */
+	private boolean isValidSuite(Element element) {
+		if (element.getKind() != ElementKind.CLASS) {
+			error("Only classes can be annotated as test suite", element);
+			return false;
+		}
+		if (!isSubtype(element.asType(), TESTSUITE)) {
+			error("A test suite must extend " + TESTSUITE, element);
+			return false;
+		}
+		if (!element.getModifiers().contains(Modifier.PUBLIC) || element.getModifiers().contains(Modifier.ABSTRACT)
+				|| element.getEnclosingElement().getKind() != ElementKind.PACKAGE) {
+			error("A test suite must be a public, non-abstract top-level class", element);
+			return false;
+		}
+		if (!hasPublicNoArgConstructor((TypeElement) element)) {
+			error("A test suite must have a public constructor without parameters", element);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Find the type of test case the member class is
+	 *
+	 * @param member is the member class of the test suite
+	 * @return the name of the test case kind, or null if the class is not a test case that can be created
+	 */
+	private String kindOf(TypeElement member) {
+		if (!member.getModifiers().contains(Modifier.PUBLIC) || member.getModifiers().contains(Modifier.ABSTRACT)) {
+			return null;
+		}
+		String kind = null;
+		if (isSubtype(member.asType(), CONFIG_TESTCASE)) {
+			kind = "CONFIG";
+		}
+		else if (isSubtype(member.asType(), METADATA_TESTCASE)) {
+			kind = "METADATA";
+		}
+		else if (isSubtype(member.asType(), RESPONSE_TESTCASE)) {
+			kind = "RESPONSE";
+		}
+		if (kind != null && !hasPublicNoArgConstructor(member)) {
+			error("A test case must have a public constructor without parameters", member);
+			return null;
+		}
+		return kind;
+	}
+
+	private void writeIndex(List<TypeElement> suites) throws IOException {
+		Writer writer = processingEnv.getFiler().createSourceFile(INDEX_PACKAGE + "." + INDEX_CLASS, suites.toArray(new Element[0])).openWriter();
+		PrintWriter out = new PrintWriter(writer);
+		try {
+			out.println("package " + INDEX_PACKAGE + ";");
+			out.println();
+			out.println("import java.util.Arrays;");
+			out.println("import java.util.List;");
+			out.println();
+			out.println("/**");
+			out.println(" * The test case index, generated by " + getClass().getName() + ". Do not edit.");
+			out.println(" */");
+			out.println("public final class " + INDEX_CLASS + " implements TestCaseIndex {");
+			out.println("\tprivate final List<TestSuiteEntry> testSuites = Arrays.asList(");
+			for (int i = 0; i < suites.size(); i++) {
+				TypeElement suite = suites.get(i);
+				String suiteName = suite.getQualifiedName().toString();
+				out.println("\t\tnew TestSuiteEntry(\"" + suite.getSimpleName() + "\", " + suiteName + ".class, " + suiteName + "::new, Arrays.<TestCaseEntry>asList(");
+				List<String> testcases = new ArrayList<String>();
+				for (TypeElement member : ElementFilter.typesIn(suite.getEnclosedElements())) {
+					String kind = kindOf(member);
+					if (kind == null) {
+						continue;
+					}
+					String memberName = member.getQualifiedName().toString();
+					String factory = member.getModifiers().contains(Modifier.STATIC)
+							? "suite -> new " + memberName + "()"
+							: "suite -> ((" + suiteName + ") suite).new " + member.getSimpleName() + "()";
+					testcases.add("\t\t\tnew TestCaseEntry(\"" + member.getSimpleName() + "\", " + memberName + ".class, TestCaseEntry.Kind." + kind + ", " + factory + ")");
+				}
+				out.println(String.join(",\n", testcases));
+				out.println("\t\t))" + (i < suites.size() - 1 ? "," : ""));
+			}
+			out.println("\t);");
+			out.println();
+			out.println("\t@Override");
+			out.println("\tpublic List<TestSuiteEntry> getTestSuites() {");
+			out.println("\t\treturn testSuites;");
+			out.println("\t}");
+			out.println("}");
+		} finally {
+			out.close();
+		}
+	}
+
+	private void writeServiceFile() throws IOException {
+		FileObject serviceFile = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", "META-INF/services/" + INDEX_INTERFACE);
+		PrintWriter out = new PrintWriter(serviceFile.openWriter());
+		try {
+			out.println(INDEX_PACKAGE + "." + INDEX_CLASS);
+		} finally {
+			out.close();
+		}
+	}
+
+	private boolean isSubtype(TypeMirror type, String supertypeName) {
+		TypeElement supertype = processingEnv.getElementUtils().getTypeElement(supertypeName);
+		if (supertype == null) {
+			return false;
+		}
+		return processingEnv.getTypeUtils().isAssignable(
+				processingEnv.getTypeUtils().erasure(type),
+				processingEnv.getTypeUtils().erasure(supertype.asType()));
+	}
+
+	private boolean hasPublicNoArgConstructor(TypeElement type) {
+		for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+			if (constructor.getParameters().isEmpty() && constructor.getModifiers().contains(Modifier.PUBLIC)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void error(String message, Element element) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+	}
+}
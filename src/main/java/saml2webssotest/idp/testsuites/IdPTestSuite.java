@@ -4,6 +4,11 @@ import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.StringReader;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Repeatable;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
 import java.net.URL;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
@@ -15,7 +20,14 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.security.interfaces.RSAPrivateKey;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.xpath.XPathExpressionException;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.openssl.PEMReader;
@@ -42,12 +54,21 @@ import org.opensaml.xml.security.x509.BasicX509Credential;
 import org.opensaml.xml.security.x509.X509Credential;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+
 import saml2webssotest.common.TestStatus;
 import saml2webssotest.common.TestSuite;
 import saml2webssotest.common.standardNames.MD;
 import saml2webssotest.common.standardNames.SAMLmisc;
 import saml2webssotest.idp.IdPConfiguration;
 import saml2webssotest.idp.IdPTestRunner;
+import saml2webssotest.idp.ResultCache;
+import saml2webssotest.idp.TestOutcome;
+import saml2webssotest.idp.XMLParsers;
+import saml2webssotest.idp.metadataRules.MetadataRule;
+import saml2webssotest.idp.metadataRules.MetadataRuleEngine;
+import saml2webssotest.idp.mockSPHandlers.MockSPTenant;
+import saml2webssotest.idp.xpath.XPathCache;
 
 /**
  * This is the module containing the abstract base classes that are required in every test suite, as well as any methods that 
@@ -67,10 +88,36 @@ import saml2webssotest.idp.IdPTestRunner;
  * @author: Riaas Mokiem
  */
 public abstract class IdPTestSuite implements TestSuite {
+	/**
+	 * The certificate that the mock SP uses when no certificate location is provided, in PEM format
+	 */
+	public static final String DEFAULT_CERTIFICATE = "-----BEGIN CERTIFICATE-----\r\n" +
+			"MIIC8jCCAlugAwIBAgIJAJHg2V5J31I8MA0GCSqGSIb3DQEBBQUAMFoxCzAJBgNV\r\n" +
+			"BAYTAlNFMQ0wCwYDVQQHEwRVbWVhMRgwFgYDVQQKEw9VbWVhIFVuaXZlcnNpdHkx\r\n" +
+			"EDAOBgNVBAsTB0lUIFVuaXQxEDAOBgNVBAMTB1Rlc3QgU1AwHhcNMDkxMDI2MTMz\r\n" +
+			"MTE1WhcNMTAxMDI2MTMzMTE1WjBaMQswCQYDVQQGEwJTRTENMAsGA1UEBxMEVW1l\r\n" +
+			"YTEYMBYGA1UEChMPVW1lYSBVbml2ZXJzaXR5MRAwDgYDVQQLEwdJVCBVbml0MRAw\r\n" +
+			"DgYDVQQDEwdUZXN0IFNQMIGfMA0GCSqGSIb3DQEBAQUAA4GNADCBiQKBgQDkJWP7\r\n" +
+			"bwOxtH+E15VTaulNzVQ/0cSbM5G7abqeqSNSs0l0veHr6/ROgW96ZeQ57fzVy2MC\r\n" +
+			"FiQRw2fzBs0n7leEmDJyVVtBTavYlhAVXDNa3stgvh43qCfLx+clUlOvtnsoMiiR\r\n" +
+			"mo7qf0BoPKTj7c0uLKpDpEbAHQT4OF1HRYVxMwIDAQABo4G/MIG8MB0GA1UdDgQW\r\n" +
+			"BBQ7RgbMJFDGRBu9o3tDQDuSoBy7JjCBjAYDVR0jBIGEMIGBgBQ7RgbMJFDGRBu9\r\n" +
+			"o3tDQDuSoBy7JqFepFwwWjELMAkGA1UEBhMCU0UxDTALBgNVBAcTBFVtZWExGDAW\r\n" +
+			"BgNVBAoTD1VtZWEgVW5pdmVyc2l0eTEQMA4GA1UECxMHSVQgVW5pdDEQMA4GA1UE\r\n" +
+			"AxMHVGVzdCBTUIIJAJHg2V5J31I8MAwGA1UdEwQFMAMBAf8wDQYJKoZIhvcNAQEF\r\n" +
+			"BQADgYEAMuRwwXRnsiyWzmRikpwinnhTmbooKm5TINPE7A7gSQ710RxioQePPhZO\r\n" +
+			"zkM27NnHTrCe2rBVg0EGz7QTd1JIwLPvgoj4VTi/fSha/tXrYUaqc9AqU1kWI4WN\r\n" +
+			"+vffBGQ09mo+6CffuFTZYeOhzP/2stAPwCTU4kxEoiy0KpZMANI=\r\n" +
+			"-----END CERTIFICATE-----";
 	/**
 	 * Logger for this class
 	 */
 	private final Logger logger = LoggerFactory.getLogger(IdPTestRunner.class);
+	/**
+	 * The credentials that were already created, by the location of their certificate and private key ("" for the 
+	 * defaults)
+	 */
+	private final Map<String, X509Credential> credentialCache = new ConcurrentHashMap<String, X509Credential>();
 
 	/**
 	 * Retrieves the EntityID for the mock SP
@@ -85,15 +132,80 @@ public abstract class IdPTestSuite implements TestSuite {
 	 * @return the URL for the mock SP
 	 */
 	public abstract URL getMockSPURL();
+
+	/**
+	 * Retrieve the SP entity that the mock SP hosts for this test suite when the target IdP's configuration does not 
+	 * define any
+	 * 
+	 * @return the SP entity with the EntityID and URL of the mock SP and the default credentials
+	 */
+	public MockSPTenant getDefaultTenant() {
+		return new MockSPTenant(getmockSPEntityID(), getMockSPURL(), null, null);
+	}
+
+	/**
+	 * Retrieve the metadata for one of the SP entities hosted by the mock SP, using the EntityID, URL and 
+	 * credentials of that SP entity.
+	 * 
+	 * By default, this only supports the SP entity from {@link #getDefaultTenant()}, whose metadata is provided by 
+	 * {@link #getMockedMetadata()}, so test suites that were written before the mock SP could host multiple SP 
+	 * entities keep working. Test suites that support the other SP entities override this.
+	 * 
+	 * @param tenant is the SP entity
+	 * @return the metadata for the SP entity, or null if this test suite can not provide it
+	 */
+	public String getMockedMetadata(MockSPTenant tenant) {
+		MockSPTenant defaultTenant = getDefaultTenant();
+		if (Objects.equals(tenant.getEntityID(), defaultTenant.getEntityID()) 
+				&& Objects.equals(String.valueOf(tenant.getURL()), String.valueOf(defaultTenant.getURL())) 
+				&& tenant.getCertificate() == null && tenant.getPrivateKey() == null) {
+			return getMockedMetadata();
+		}
+		logger.error("The test suite " + getClass().getSimpleName() + " can only provide the metadata for the default SP entity, not for " + tenant);
+		return null;
+	}
+
+	/**
+	 * Retrieve the version of this test suite, which is part of the key for the cached test results.
+	 * 
+	 * By default, this is a hash of the compiled test suite class, so the cached results are not used anymore 
+	 * when the test suite is changed. 
+	 * 
+	 * @return the version of the test suite
+	 */
+	public String getVersion() {
+		return ResultCache.hashClass(getClass());
+	}
 	
 	/**
-	 * Retrieve the X.509 Certificate that should be used by the mock SP.
+	 * Retrieve the X.509 Certificate that should be used by the mock SP, with the default private key.
 	 * 
 	 * @param certLocation contains the location of the certificate file that should be used (e.g. "keys/mycert.pem")
 	 * 			Can be null or empty, in which case a default certificate is used
 	 * @return: the X.509 Certificate credentials
 	 */
 	public X509Credential getX509Credentials(String certLocation){
+		return getX509Credentials(certLocation, null);
+	}
+
+	/**
+	 * Retrieve the X.509 Certificate that should be used by the mock SP.
+	 * 
+	 * The credentials are only created once for each certificate and private key location, so the files are only read 
+	 * once for each instance of the test suite.
+	 * 
+	 * @param certLocation contains the location of the certificate file that should be used (e.g. "keys/mycert.pem")
+	 * 			Can be null or empty, in which case a default certificate is used
+	 * @param keyLocation contains the location of the private key file that belongs to the certificate. Can be null or
+	 * 			empty, in which case a default private key is used
+	 * @return: the X.509 Certificate credentials
+	 */
+	public X509Credential getX509Credentials(String certLocation, String keyLocation){
+		String cacheKey = (certLocation != null ? certLocation : "") + "\n" + (keyLocation != null ? keyLocation : "");
+		X509Credential cached = credentialCache.get(cacheKey);
+		if (cached != null){
+			return cached;
+		}
 		BasicX509Credential credentials = new BasicX509Credential();
 		String cert = "";
 		
@@ -112,24 +224,7 @@ public abstract class IdPTestSuite implements TestSuite {
 		}
 		else {
 			// use the default certificate
-			cert = 	"-----BEGIN CERTIFICATE-----\r\n" + 
-					"MIIC8jCCAlugAwIBAgIJAJHg2V5J31I8MA0GCSqGSIb3DQEBBQUAMFoxCzAJBgNV\r\n" + 
-					"BAYTAlNFMQ0wCwYDVQQHEwRVbWVhMRgwFgYDVQQKEw9VbWVhIFVuaXZlcnNpdHkx\r\n" + 
-					"EDAOBgNVBAsTB0lUIFVuaXQxEDAOBgNVBAMTB1Rlc3QgU1AwHhcNMDkxMDI2MTMz\r\n" + 
-					"MTE1WhcNMTAxMDI2MTMzMTE1WjBaMQswCQYDVQQGEwJTRTENMAsGA1UEBxMEVW1l\r\n" + 
-					"YTEYMBYGA1UEChMPVW1lYSBVbml2ZXJzaXR5MRAwDgYDVQQLEwdJVCBVbml0MRAw\r\n" + 
-					"DgYDVQQDEwdUZXN0IFNQMIGfMA0GCSqGSIb3DQEBAQUAA4GNADCBiQKBgQDkJWP7\r\n" + 
-					"bwOxtH+E15VTaulNzVQ/0cSbM5G7abqeqSNSs0l0veHr6/ROgW96ZeQ57fzVy2MC\r\n" + 
-					"FiQRw2fzBs0n7leEmDJyVVtBTavYlhAVXDNa3stgvh43qCfLx+clUlOvtnsoMiiR\r\n" + 
-					"mo7qf0BoPKTj7c0uLKpDpEbAHQT4OF1HRYVxMwIDAQABo4G/MIG8MB0GA1UdDgQW\r\n" + 
-					"BBQ7RgbMJFDGRBu9o3tDQDuSoBy7JjCBjAYDVR0jBIGEMIGBgBQ7RgbMJFDGRBu9\r\n" + 
-					"o3tDQDuSoBy7JqFepFwwWjELMAkGA1UEBhMCU0UxDTALBgNVBAcTBFVtZWExGDAW\r\n" + 
-					"BgNVBAoTD1VtZWEgVW5pdmVyc2l0eTEQMA4GA1UECxMHSVQgVW5pdDEQMA4GA1UE\r\n" + 
-					"AxMHVGVzdCBTUIIJAJHg2V5J31I8MAwGA1UdEwQFMAMBAf8wDQYJKoZIhvcNAQEF\r\n" + 
-					"BQADgYEAMuRwwXRnsiyWzmRikpwinnhTmbooKm5TINPE7A7gSQ710RxioQePPhZO\r\n" + 
-					"zkM27NnHTrCe2rBVg0EGz7QTd1JIwLPvgoj4VTi/fSha/tXrYUaqc9AqU1kWI4WN\r\n" + 
-					"+vffBGQ09mo+6CffuFTZYeOhzP/2stAPwCTU4kxEoiy0KpZMANI=\r\n" + 
-					"-----END CERTIFICATE-----";
+			cert = DEFAULT_CERTIFICATE;
 		}
 		// retrieve the certificate
 		X509Certificate idpCert = null;
@@ -144,7 +239,8 @@ public abstract class IdPTestSuite implements TestSuite {
 		else{
 			credentials.setEntityCertificate(idpCert);
 			credentials.setPublicKey(idpCert.getPublicKey());
-			credentials.setPrivateKey(getIdPPrivateKey(null));
+			credentials.setPrivateKey(getIdPPrivateKey(keyLocation));
+			credentialCache.put(cacheKey, credentials);
 			
 			return credentials;
 		}
@@ -287,6 +383,80 @@ public abstract class IdPTestSuite implements TestSuite {
 		return response;
 	}
 	
+	/**
+	 * Marks a config or metadata test case whose result should not be cached, because it depends on more than the 
+	 * configuration or metadata of the target IdP (e.g. because it retrieves something from the network). 
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	public @interface Uncacheable {
+	}
+
+	/**
+	 * Declares the prerequisites of a test case. A prerequisite is either one of the conditions below or the simple
+	 * name of another test case in the same test suite. The test runner runs the prerequisites first and, when one of
+	 * them fails, reports the test case as skipped instead of running it.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	public @interface Requires {
+		/**
+		 * The metadata of the target IdP was provided and contains at least one EntityDescriptor
+		 */
+		String METADATA_PARSED = "metadataParsed";
+		/**
+		 * The login page of the target IdP can be retrieved and logging in on it has not failed yet
+		 */
+		String LOGIN_REACHABLE = "loginReachable";
+		/**
+		 * Prefix for the name of a SAML Binding that the target IdP must support for single sign-on according to its
+		 * metadata, e.g. BINDING_SUPPORTED + SAMLmisc.BINDING_HTTP_POST
+		 */
+		String BINDING_SUPPORTED = "binding:";
+
+		String[] value();
+	}
+
+	/**
+	 * Declares a rule of an {@link XPathMetadataTestCase}. The rules of a test case are evaluated in the order in which
+	 * they are declared and the first rule whose condition holds determines the outcome, so the last rule is usually
+	 * a fallback with the condition "true()".
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	@Repeatable(XPathRules.class)
+	public @interface XPathRule {
+		/**
+		 * The condition, as an XPath expression that is evaluated on the metadata document and converted to a boolean. 
+		 * The namespace prefixes md, saml, samlp, ds and xml can be used.
+		 */
+		String when();
+
+		/**
+		 * The status of the outcome when the condition holds
+		 */
+		TestStatus status();
+
+		/**
+		 * The message of the outcome when the condition holds
+		 */
+		String message();
+
+		/**
+		 * An optional XPath expression that selects the nodes that are added as evidence to the outcome
+		 */
+		String evidence() default "";
+	}
+
+	/**
+	 * Contains the {@link XPathRule}s of a test case, in the order in which they are declared
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	public @interface XPathRules {
+		XPathRule[] value();
+	}
+
 	public interface ConfigTestCase extends TestCase {
 		
 		/**
@@ -313,4 +483,161 @@ public abstract class IdPTestSuite implements TestSuite {
 		 */
 		TestStatus checkResponse(String response, String binding);
 	}
+
+	/**
+	 * Contains the messages for the legacy TestCase methods, which only reflect the most recent time the test case was run.
+	 * 
+	 * The test runner does not use these, it uses the TestOutcome that is returned instead.
+	 */
+	static abstract class LegacyMessages {
+		private volatile TestOutcome lastOutcome;
+
+		TestStatus remember(TestOutcome outcome) {
+			lastOutcome = outcome;
+			return outcome.getStatus();
+		}
+
+		public String getSuccessMessage() {
+			TestOutcome outcome = lastOutcome;
+			return outcome != null && outcome.getStatus() == TestStatus.OK ? outcome.getMessage() : "";
+		}
+
+		public String getFailedMessage() {
+			TestOutcome outcome = lastOutcome;
+			return outcome != null && outcome.getStatus() != TestStatus.OK ? outcome.getMessage() : "";
+		}
+	}
+
+	/**
+	 * A metadata test case that returns its outcome instead of storing it, so a single instance can be run concurrently.
+	 */
+	public static abstract class StatelessMetadataTestCase extends LegacyMessages implements MetadataTestCase {
+
+		/**
+		 * Check the provided metadata.
+		 * 
+		 * This must not modify the test case, so it can be called concurrently. The metadata is shared by all test cases
+		 * that run concurrently, so it must not be modified either and its child nodes must be read with getFirstChild()
+		 * and getNextSibling() instead of getChildNodes(), as described in {@link XMLParsers}.
+		 * 
+		 * @param metadata is the metadata of the target IdP
+		 * @return the outcome of the test
+		 */
+		public abstract TestOutcome evaluateMetadata(Document metadata);
+
+		@Override
+		public final TestStatus checkMetadata(Document metadata) {
+			return remember(evaluateMetadata(metadata));
+		}
+	}
+
+	/**
+	 * A metadata test case that is evaluated as a {@link MetadataRule} while streaming through the metadata. When 
+	 * multiple of these test cases are run, the test runner evaluates all of them in a single pass over the metadata.
+	 */
+	public static abstract class StreamingMetadataTestCase extends StatelessMetadataTestCase {
+
+		/**
+		 * Create the rule that checks the metadata. A new rule is created for each pass over the metadata.
+		 * 
+		 * @return the rule
+		 */
+		public abstract MetadataRule newRule();
+
+		/**
+		 * Check the provided metadata in a pass of its own
+		 */
+		@Override
+		public TestOutcome evaluateMetadata(Document metadata) {
+			if (metadata == null) {
+				return new TestOutcome(TestStatus.CRITICAL, "The test case could not be performed because there was no metadata available");
+			}
+			return new MetadataRuleEngine(Collections.singletonList(this)).evaluate(metadata).get(getClass());
+		}
+	}
+
+	/**
+	 * A metadata test case that is declared with {@link XPathRule} annotations instead of code that walks the metadata.
+	 * The XPath expressions are compiled once and reused by all instances of the test case, through {@link XPathCache}.
+	 */
+	public static abstract class XPathMetadataTestCase extends StatelessMetadataTestCase {
+		/**
+		 * Logger for this class
+		 */
+		private static final Logger logger = LoggerFactory.getLogger(XPathMetadataTestCase.class);
+		private final XPathRule[] rules;
+
+		public XPathMetadataTestCase() {
+			rules = getClass().getAnnotationsByType(XPathRule.class);
+			if (rules.length == 0) {
+				throw new IllegalStateException("The test case " + getClass().getSimpleName() + " does not declare any XPath rules");
+			}
+		}
+
+		@Override
+		public TestOutcome evaluateMetadata(Document metadata) {
+			if (metadata == null) {
+				return new TestOutcome(TestStatus.CRITICAL, "The test case could not be performed because there was no metadata available");
+			}
+			try {
+				for (XPathRule rule : rules) {
+					if (XPathCache.evaluateBoolean(rule.when(), metadata)) {
+						TestOutcome outcome = new TestOutcome(rule.status(), rule.message());
+						if (!rule.evidence().isEmpty()) {
+							List<String> evidence = XPathCache.evaluateValues(rule.evidence(), metadata);
+							outcome = outcome.withEvidence(evidence.toArray(new String[evidence.size()]));
+						}
+						return outcome;
+					}
+				}
+			} catch (XPathExpressionException e) {
+				logger.error("Could not evaluate the XPath rules of test case " + getClass().getSimpleName(), e);
+				return new TestOutcome(TestStatus.CRITICAL, "The test case could not be performed: " + e.getMessage());
+			}
+			return new TestOutcome(TestStatus.CRITICAL, "None of the XPath rules of the test case applied to the metadata");
+		}
+	}
+
+	/**
+	 * A config test case that returns its outcome instead of storing it, so a single instance can be run concurrently.
+	 */
+	public static abstract class StatelessConfigTestCase extends LegacyMessages implements ConfigTestCase {
+
+		/**
+		 * Check the provided configuration.
+		 * 
+		 * This must not modify the test case, so it can be called concurrently.
+		 * 
+		 * @param config is the configuration of the target IdP
+		 * @return the outcome of the test
+		 */
+		public abstract TestOutcome evaluateConfig(IdPConfiguration config);
+
+		@Override
+		public final TestStatus checkConfig(IdPConfiguration config) {
+			return remember(evaluateConfig(config));
+		}
+	}
+
+	/**
+	 * A response test case that returns its outcome instead of storing it, so a single instance can be run concurrently.
+	 */
+	public static abstract class StatelessResponseTestCase extends LegacyMessages implements ResponseTestCase {
+
+		/**
+		 * Check the provided response retrieved through the provided binding.
+		 * 
+		 * This must not modify the test case, so it can be called concurrently.
+		 * 
+		 * @param response is the SAML Response that was received by the mock SP
+		 * @param binding is the binding through which the SAML Response was received
+		 * @return the outcome of the test
+		 */
+		public abstract TestOutcome evaluateResponse(String response, String binding);
+
+		@Override
+		public final TestStatus checkResponse(String response, String binding) {
+			return remember(evaluateResponse(response, binding));
+		}
+	}
 }
\ No newline at end of file
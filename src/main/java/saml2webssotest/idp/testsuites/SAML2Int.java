@@ -3,8 +3,10 @@ package saml2webssotest.idp.testsuites;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.namespace.QName;
 
 import org.opensaml.Configuration;
 import org.opensaml.DefaultBootstrap;
@@ -23,6 +25,7 @@ import org.w3c.dom.Document;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 
 import saml2webssotest.common.SAMLUtil;
@@ -33,9 +36,16 @@ import saml2webssotest.common.standardNames.SAMLP;
 import saml2webssotest.common.standardNames.SAMLmisc;
 import saml2webssotest.idp.IdPConfiguration;
 import saml2webssotest.idp.IdPTestRunner;
+import saml2webssotest.idp.TestOutcome;
+import saml2webssotest.idp.XMLParsers;
+import saml2webssotest.idp.metadataRules.MetadataRule;
+import saml2webssotest.idp.mockSPHandlers.MockSPTenant;
+import saml2webssotest.idp.mockSPHandlers.ReplayDetector;
+import saml2webssotest.idp.registry.IndexedTestSuite;
 
 // TODO: rewrite for IdP
 
+@IndexedTestSuite
 public class SAML2Int extends IdPTestSuite {
 	/**
 	 * Logger for this class
@@ -58,6 +68,11 @@ public class SAML2Int extends IdPTestSuite {
 
 	@Override
 	public String getMockedMetadata() {
+		return getMockedMetadata(getDefaultTenant());
+	}
+
+	@Override
+	public String getMockedMetadata(MockSPTenant tenant) {
 		try {
 			DefaultBootstrap.bootstrap();
 		} catch (ConfigurationException e) {
@@ -70,16 +85,16 @@ public class SAML2Int extends IdPTestSuite {
 		KeyDescriptor keydescriptor = (KeyDescriptor) xmlbuilderfac.getBuilder(KeyDescriptor.DEFAULT_ELEMENT_NAME).buildObject(KeyDescriptor.DEFAULT_ELEMENT_NAME);
 		
 		ssos.setBinding(SAMLmisc.BINDING_HTTP_REDIRECT);
-		if (getMockSPURL() == null)
+		if (tenant.getURL() == null)
 			return null;
 
-		ssos.setLocation(getMockSPURL().toString());
+		ssos.setLocation(tenant.getURL().toString());
 
 		X509KeyInfoGeneratorFactory keyInfoGeneratorFactory = new X509KeyInfoGeneratorFactory();
 		keyInfoGeneratorFactory.setEmitEntityCertificate(true);
 		KeyInfoGenerator keyInfoGenerator = keyInfoGeneratorFactory.newInstance();
 		try {
-			keydescriptor.setKeyInfo(keyInfoGenerator.generate(getX509Credentials(null)));
+			keydescriptor.setKeyInfo(keyInfoGenerator.generate(getX509Credentials(tenant.getCertificate(), tenant.getPrivateKey())));
 		} catch (org.opensaml.xml.security.SecurityException e) {
 			e.printStackTrace();
 		}
@@ -89,7 +104,7 @@ public class SAML2Int extends IdPTestSuite {
 		idpssod.getSingleSignOnServices().add(ssos);
 		idpssod.getKeyDescriptors().add(keydescriptor);
 		
-		ed.setEntityID(getmockSPEntityID());
+		ed.setEntityID(tenant.getEntityID());
 		ed.getRoleDescriptors().add(idpssod);
 		
 		// return the metadata as a string
@@ -104,8 +119,7 @@ public class SAML2Int extends IdPTestSuite {
 	 * @author RiaasM
 	 *
 	 */
-	public class MetadataAvailable implements MetadataTestCase {
-		private String failedMessage;
+	public class MetadataAvailable extends StatelessMetadataTestCase {
 		
 		@Override
 		public String getDescription() {
@@ -113,42 +127,28 @@ public class SAML2Int extends IdPTestSuite {
 		}
 
 		@Override
-		public String getSuccessMessage() {
-			return "The Service Provider's metadata is available";
-		}
-
-		@Override
-		public String getFailedMessage() {
-			return failedMessage;
-		}
-
-		@Override
-		public TestStatus checkMetadata(Document metadata) {
+		public TestOutcome evaluateMetadata(Document metadata) {
 			if(metadata != null){
 				NodeList mdEDs = metadata.getElementsByTagNameNS(MD.NAMESPACE, MD.ENTITYDESCRIPTOR);
 				// there should be only one entity descriptor
 				if(mdEDs.getLength() > 1){
-					failedMessage = "The provided metadata contained metadata for multiple SAML entities";
-					return TestStatus.CRITICAL;
+					return new TestOutcome(TestStatus.CRITICAL, "The provided metadata contained metadata for multiple SAML entities");
 				}
 				else if(mdEDs.getLength() == 0){
-					failedMessage = "The provided metadata contained no metadata for a SAML entity";
-					return TestStatus.CRITICAL;
+					return new TestOutcome(TestStatus.CRITICAL, "The provided metadata contained no metadata for a SAML entity");
 				}
 				Node mdED = mdEDs.item(0);
 				String curNS = mdED.getNamespaceURI();
 				// check if the provided document is indeed SAML Metadata (or at least uses the SAML Metadata namespace)
 				if(curNS != null && curNS.equalsIgnoreCase(MD.NAMESPACE)){
-					return TestStatus.OK;
+					return new TestOutcome(TestStatus.OK, "The Service Provider's metadata is available");
 				}
 				else{
-					failedMessage = "The Service Provider's metadata did not use the SAML Metadata namespace";
-					return TestStatus.ERROR;
+					return new TestOutcome(TestStatus.ERROR, "The Service Provider's metadata did not use the SAML Metadata namespace");
 				}
 			}
 			else{
-				failedMessage = "The Service Provider's metadata was not available";
-				return TestStatus.ERROR;
+				return new TestOutcome(TestStatus.ERROR, "The Service Provider's metadata was not available");
 			}
 		}
 		
@@ -161,30 +161,20 @@ public class SAML2Int extends IdPTestSuite {
 	 * @author RiaasM
 	 *
 	 */
-	public class MetadataElementsAvailable implements MetadataTestCase{
-		private String failedMessage;
+	@Requires("MetadataAvailable")
+	public class MetadataElementsAvailable extends StatelessMetadataTestCase {
 	
 		@Override
 		public String getDescription() {
 			return "Test if the Service Provider's metadata contains all minimally required elements (MUST requirement)";
 		}
 	
-		@Override
-		public String getSuccessMessage() {
-			return "The Service Provider's metadata contains all minimally required elements";
-		}
-	
-		@Override
-		public String getFailedMessage() {
-			return failedMessage;
-		}
-	
 		/**
 		 * Check that the metadata contains at least one SPSSODescriptor containing at least one KeyDescriptor and 
 		 * at least one AssertionConsumerService element.
 		 */
 		@Override
-		public TestStatus checkMetadata(Document metadata) {
+		public TestOutcome evaluateMetadata(Document metadata) {
 			if (metadata != null){
 				NodeList spssodList = metadata.getElementsByTagNameNS(MD.NAMESPACE, MD.SPSSODESCRIPTOR);
 				
@@ -194,13 +184,11 @@ public class SAML2Int extends IdPTestSuite {
 					for (int i = 0 ; i < spssodList.getLength() ; i++){
 						Node spssod = spssodList.item(i);
 						// the elements must both be children of this node
-						NodeList children = spssod.getChildNodes();
 						
 						// check all child nodes for the elements we need
 						boolean kdFound = false;
 						boolean acsFound = false;
-						for (int j = 0 ; j < children.getLength() ; j++){
-							Node curNode = children.item(j);
+						for (Node curNode = spssod.getFirstChild() ; curNode != null ; curNode = curNode.getNextSibling()){
 							if (curNode.getLocalName().equalsIgnoreCase(MD.KEYDESCRIPTOR)){
 								kdFound = true;
 							}
@@ -210,20 +198,17 @@ public class SAML2Int extends IdPTestSuite {
 						}
 						// check if both elements were found
 						if (kdFound && acsFound){
-							return TestStatus.OK;
+							return new TestOutcome(TestStatus.OK, "The Service Provider's metadata contains all minimally required elements");
 						}
 					}
-					failedMessage = "None of the SPSSODescriptor elements in the Service Provider's metadata contained both the KeyDescriptor and the AssertionConsumerService element";
-					return TestStatus.ERROR;
+					return new TestOutcome(TestStatus.ERROR, "None of the SPSSODescriptor elements in the Service Provider's metadata contained both the KeyDescriptor and the AssertionConsumerService element");
 				}
 				else{
-					failedMessage = "The Service Provider's metadata did not contain an SPSSODescriptor";
-					return TestStatus.ERROR;
+					return new TestOutcome(TestStatus.ERROR, "The Service Provider's metadata did not contain an SPSSODescriptor");
 				}
 			}
 			else {
-				failedMessage = "The test case could not be performed because there was no metadata available";
-				return TestStatus.CRITICAL;
+				return new TestOutcome(TestStatus.CRITICAL, "The test case could not be performed because there was no metadata available");
 			}
 		}
 	}
@@ -236,8 +221,8 @@ public class SAML2Int extends IdPTestSuite {
 	 * @author RiaasM
 	 *
 	 */
-	public class RequestByRedirect implements ResponseTestCase{
-		private String failedMessage; 
+	@Requires(Requires.LOGIN_REACHABLE)
+	public class RequestByRedirect extends StatelessResponseTestCase {
 
 		@Override
 		public String getDescription() {
@@ -245,23 +230,12 @@ public class SAML2Int extends IdPTestSuite {
 		}
 
 		@Override
-		public String getSuccessMessage() {
-			return "The Service Provider sent its Authentication Request using the HTTP-Redirect binding";
-		}
-
-		@Override
-		public String getFailedMessage() {
-			return failedMessage;
-		}
-
-		@Override
-		public TestStatus checkResponse(String request, String binding) {
+		public TestOutcome evaluateResponse(String request, String binding) {
 			if (binding.equalsIgnoreCase(SAMLmisc.BINDING_HTTP_REDIRECT)){
-				return TestStatus.OK;
+				return new TestOutcome(TestStatus.OK, "The Service Provider sent its Authentication Request using the HTTP-Redirect binding");
 			}
 			else {
-				failedMessage = "The Service Provider did not send its Authentication request using the HTTP-Redirect Binding. Instead, it used: "+binding;
-				return TestStatus.ERROR;
+				return new TestOutcome(TestStatus.ERROR, "The Service Provider did not send its Authentication request using the HTTP-Redirect Binding. Instead, it used: "+binding);
 			}
 		}
 
@@ -280,8 +254,8 @@ public class SAML2Int extends IdPTestSuite {
 	 * @author RiaasM
 	 *
 	 */
-	public class RequestContainsACSURL implements ResponseTestCase{
-		private String failedMessage; 
+	@Requires(Requires.LOGIN_REACHABLE)
+	public class RequestContainsACSURL extends StatelessResponseTestCase {
 
 		@Override
 		public String getDescription() {
@@ -289,24 +263,13 @@ public class SAML2Int extends IdPTestSuite {
 		}
 
 		@Override
-		public String getSuccessMessage() {
-			return "The Service Provider's Authentication Request contains an AssertionConsumerServiceURL attribute";
-		}
-
-		@Override
-		public String getFailedMessage() {
-			return failedMessage;
-		}
-
-		@Override
-		public TestStatus checkResponse(String request, String binding) {
+		public TestOutcome evaluateResponse(String request, String binding) {
 			Node acsURL = SAMLUtil.fromXML(request).getDocumentElement().getAttributes().getNamedItem(SAMLP.ASSERTIONCONSUMERSERVICEURL);
 			if (acsURL != null){
-				return TestStatus.OK;
+				return new TestOutcome(TestStatus.OK, "The Service Provider's Authentication Request contains an AssertionConsumerServiceURL attribute");
 			}
 			else{
-				failedMessage = "The Service Provider's Authentication Request did not contain an AssertionConsumerServiceURL attribute";
-				return TestStatus.ERROR;
+				return new TestOutcome(TestStatus.ERROR, "The Service Provider's Authentication Request did not contain an AssertionConsumerServiceURL attribute");
 			}
 		}
 
@@ -323,9 +286,8 @@ public class SAML2Int extends IdPTestSuite {
 	 * @author RiaasM
 	 *
 	 */
-	public class RequestProtocolBinding implements ResponseTestCase{
-		private String successMessage;
-		private String failedMessage; 
+	@Requires(Requires.LOGIN_REACHABLE)
+	public class RequestProtocolBinding extends StatelessResponseTestCase {
 	
 		@Override
 		public String getDescription() {
@@ -333,31 +295,18 @@ public class SAML2Int extends IdPTestSuite {
 		}
 	
 		@Override
-		public String getSuccessMessage() {
-			return successMessage;
-		}
-	
-		@Override
-		public String getFailedMessage() {
-			return failedMessage;
-		}
-	
-		@Override
-		public TestStatus checkResponse(String request, String binding) {
+		public TestOutcome evaluateResponse(String request, String binding) {
 			Node protBind = SAMLUtil.fromXML(request).getDocumentElement().getAttributes().getNamedItem(SAMLP.PROTOCOLBINDING);
 			if (protBind == null){
-				successMessage = "The Service Provider's Authentication Request does not contain a ProtocolBinding attribute";
-				return TestStatus.OK;
+				return new TestOutcome(TestStatus.OK, "The Service Provider's Authentication Request does not contain a ProtocolBinding attribute");
 			}
 			else{
 				if (protBind.getNodeValue().equals(SAMLmisc.BINDING_HTTP_POST)){
-					successMessage = "The Service Provider's Authentication Request contained a ProtocolBinding attribute set to HTTP POST";
-					return TestStatus.OK;
+					return new TestOutcome(TestStatus.OK, "The Service Provider's Authentication Request contained a ProtocolBinding attribute set to HTTP POST");
 				}
 				else{
 					// be more specific in the failed test's message, so it's easier to know what went wrong
-					failedMessage = "The Service Provider's Authentication Request contained a ProtocolBinding attribute that was not set to '"+SAMLmisc.BINDING_HTTP_POST+"'";
-					return TestStatus.ERROR;
+					return new TestOutcome(TestStatus.ERROR, "The Service Provider's Authentication Request contained a ProtocolBinding attribute that was not set to '"+SAMLmisc.BINDING_HTTP_POST+"'");
 				}
 			}
 		}
@@ -375,30 +324,21 @@ public class SAML2Int extends IdPTestSuite {
 	 * @author RiaasM
 	 *
 	 */
-	public class RequestNoSubject implements ResponseTestCase{	
+	@Requires(Requires.LOGIN_REACHABLE)
+	public class RequestNoSubject extends StatelessResponseTestCase {	
 		@Override
 		public String getDescription() {
 			return "Test if the Service Provider's Authentication Request contains no Subject node (MUST requirement)";
 		}
 	
 		@Override
-		public String getSuccessMessage() {
-			return "The Service Provider's Authentication Request contains no Subject node";
-		}
-	
-		@Override
-		public String getFailedMessage() {
-			return "The Service Provider's Authentication Request contained a Subject node";
-		}
-	
-		@Override
-		public TestStatus checkResponse(String request, String binding) {
+		public TestOutcome evaluateResponse(String request, String binding) {
 			NodeList subjects = SAMLUtil.fromXML(request).getElementsByTagNameNS(SAML.NAMESPACE, SAML.SUBJECT);
 			if (subjects.getLength() == 0){
-				return TestStatus.OK;
+				return new TestOutcome(TestStatus.OK, "The Service Provider's Authentication Request contains no Subject node");
 			}
 			else{
-				return TestStatus.ERROR;
+				return new TestOutcome(TestStatus.ERROR, "The Service Provider's Authentication Request contained a Subject node");
 			}
 		}
 
@@ -417,9 +357,7 @@ public class SAML2Int extends IdPTestSuite {
 	 * @author RiaasM
 	 *
 	 */
-	public class ConfigAttrNameFormatURI implements ConfigTestCase{
-		private String successMessage;
-		private String failedMessage;
+	public class ConfigAttrNameFormatURI extends StatelessConfigTestCase {
 	
 		@Override
 		public String getDescription() {
@@ -427,19 +365,8 @@ public class SAML2Int extends IdPTestSuite {
 		}
 	
 		@Override
-		public String getSuccessMessage() {
-			return successMessage;
-		}
-	
-		@Override
-		public String getFailedMessage() {
-			return failedMessage;
-		}
-	
-		@Override
-		public TestStatus checkConfig(IdPConfiguration config) {
-			successMessage = "All attributes were configured with the correct NameFormat";
-			return TestStatus.OK;	
+		public TestOutcome evaluateConfig(IdPConfiguration config) {
+			return new TestOutcome(TestStatus.OK, "All attributes were configured with the correct NameFormat");	
 		}
 		
 	}
@@ -451,8 +378,9 @@ public class SAML2Int extends IdPTestSuite {
 	 * @author RiaasM
 	 *
 	 */
-	public class MetadataWellKnownLocation implements MetadataTestCase {
-		private String failedMessage = "The metadata was not found at the Well-Known Location (the URL represented by the Entity ID)";
+	@Uncacheable
+	@Requires("MetadataAvailable")
+	public class MetadataWellKnownLocation extends StatelessMetadataTestCase {
 		
 		@Override
 		public String getDescription() {
@@ -460,64 +388,48 @@ public class SAML2Int extends IdPTestSuite {
 		}
 	
 		@Override
-		public String getSuccessMessage() {
-			return "The Service Provider's metadata is available at the Well-Known Location";
-		}
-	
-		@Override
-		public String getFailedMessage() {
-			return failedMessage;
-		}
-	
-		@Override
-		public TestStatus checkMetadata(Document metadata) {
+		public TestOutcome evaluateMetadata(Document metadata) {
 			if(metadata != null){
 				NodeList mdEDs = metadata.getElementsByTagNameNS(MD.NAMESPACE, MD.ENTITYDESCRIPTOR);
 				// there should be only one entity descriptor
 				if(mdEDs.getLength() > 1){
-					failedMessage = "The provided metadata contained metadata for multiple SAML entities";
-					return TestStatus.CRITICAL;
+					return new TestOutcome(TestStatus.CRITICAL, "The provided metadata contained metadata for multiple SAML entities");
 				}
 				else if(mdEDs.getLength() == 0){
-					failedMessage = "The provided metadata contained no metadata for a SAML entity";
-					return TestStatus.CRITICAL;
+					return new TestOutcome(TestStatus.CRITICAL, "The provided metadata contained no metadata for a SAML entity");
 				}
 				Node mdED = mdEDs.item(0);
 				String entityID = mdED.getAttributes().getNamedItem(MD.ENTITYID).getNodeValue();
 				// try to access the URL represented by the Entity ID and try to retrieve the metadata XML from it
 				try{
-					DocumentBuilderFactory docBuilderFac = DocumentBuilderFactory.newInstance();
-					docBuilderFac.setNamespaceAware(true);
-					docBuilderFac.setValidating(false);
-					Document mdFromURL = docBuilderFac.newDocumentBuilder().parse(entityID);
-					// normalize both XML documents before comparison
-					metadata.normalizeDocument();
+					Document mdFromURL = XMLParsers.newDocumentBuilder().parse(entityID);
+					// normalize both XML documents before comparison, using a copy of the provided metadata since it is
+					// shared with the other test cases
+					Document provided = (Document) metadata.cloneNode(true);
+					provided.normalizeDocument();
 					mdFromURL.normalizeDocument();
 					// check if the document is actually XML
 					if(mdFromURL.getXmlVersion() == null){
-						return TestStatus.WARNING;
+						return new TestOutcome(TestStatus.WARNING, "The metadata was not found at the Well-Known Location (the URL represented by the Entity ID)");
 					}
 					// chec if the retrieved XML document is the same as the provided metadata
-					else if (mdFromURL.isEqualNode(metadata)){
-						return TestStatus.OK;
+					else if (mdFromURL.isEqualNode(provided)){
+						return new TestOutcome(TestStatus.OK, "The Service Provider's metadata is available at the Well-Known Location");
 					}
 					else{
-						return TestStatus.WARNING;
+						return new TestOutcome(TestStatus.WARNING, "The metadata was not found at the Well-Known Location (the URL represented by the Entity ID)");
 					}
 				}
 				catch(MalformedURLException malf){
-					return TestStatus.WARNING;
-				} catch (ParserConfigurationException e) {
-					return TestStatus.WARNING;
+					return new TestOutcome(TestStatus.WARNING, "The metadata was not found at the Well-Known Location (the URL represented by the Entity ID)");
 				} catch (SAXException e) {
-					return TestStatus.WARNING;
+					return new TestOutcome(TestStatus.WARNING, "The metadata was not found at the Well-Known Location (the URL represented by the Entity ID)");
 				} catch (IOException e) {
-					return TestStatus.WARNING;
+					return new TestOutcome(TestStatus.WARNING, "The metadata was not found at the Well-Known Location (the URL represented by the Entity ID)");
 				}
 			}
 			else {
-				failedMessage = "The test case could not be performed because there was no metadata available";
-				return TestStatus.CRITICAL;
+				return new TestOutcome(TestStatus.CRITICAL, "The test case could not be performed because there was no metadata available");
 			}
 		}
 		
@@ -531,8 +443,8 @@ public class SAML2Int extends IdPTestSuite {
 	 * @author RiaasM
 	 *
 	 */
-	public class MetadataNameIDFormat implements MetadataTestCase {
-		private String failedMessage = "The Service Provider's metadata does not contain a NameIDFormat element";
+	@Requires("MetadataAvailable")
+	public class MetadataNameIDFormat extends StreamingMetadataTestCase {
 		
 		@Override
 		public String getDescription() {
@@ -540,31 +452,29 @@ public class SAML2Int extends IdPTestSuite {
 		}
 	
 		@Override
-		public String getSuccessMessage() {
-			return "The Service Provider's metadata contains a NameIDFormat element";
-		}
-	
-		@Override
-		public String getFailedMessage() {
-			return failedMessage;
-		}
-	
-		@Override
-		public TestStatus checkMetadata(Document metadata) {
-			if(metadata != null){
-				NodeList nameidformats = metadata.getElementsByTagNameNS(MD.NAMESPACE, MD.NAMEIDFORMAT);
-				// check if there is at least one NameIDFormat
-				if(nameidformats.getLength() > 0){
-					return TestStatus.OK;
+		public MetadataRule newRule() {
+			return new MetadataRule() {
+				private boolean found = false;
+				{
+					listen(MD.NAMESPACE, MD.NAMEIDFORMAT);
 				}
-				else {
-					return TestStatus.WARNING;
+
+				@Override
+				public void startElement(QName element, Attributes attributes, QName parent) {
+					found = true;
 				}
-			}
-			else {
-				failedMessage = "The test case could not be performed because there was no metadata available";
-				return TestStatus.CRITICAL;
-			}
+
+				@Override
+				public TestOutcome getOutcome() {
+					// check if there is at least one NameIDFormat
+					if (found) {
+						return new TestOutcome(TestStatus.OK, "The Service Provider's metadata contains a NameIDFormat element");
+					}
+					else {
+						return new TestOutcome(TestStatus.WARNING, "The Service Provider's metadata does not contain a NameIDFormat element");
+					}
+				}
+			};
 		}
 		
 	}
@@ -577,9 +487,8 @@ public class SAML2Int extends IdPTestSuite {
 	 * @author RiaasM
 	 *
 	 */
-	public class MetadataAttrNameFormatURI implements MetadataTestCase {
-		private String successMessage = "The Service Provider's metadata contains only attributes with NameFormat value of '"+SAMLmisc.NAMEFORMAT_URI+"'";
-		private String failedMessage = "The Service Provider's metadata contains attributes with a NameFormat value other than '"+SAMLmisc.NAMEFORMAT_URI+"'";
+	@Requires("MetadataAvailable")
+	public class MetadataAttrNameFormatURI extends StatelessMetadataTestCase {
 		
 		@Override
 		public String getDescription() {
@@ -587,27 +496,15 @@ public class SAML2Int extends IdPTestSuite {
 		}
 	
 		@Override
-		public String getSuccessMessage() {
-			return successMessage;
-		}
-	
-		@Override
-		public String getFailedMessage() {
-			return failedMessage;
-		}
-	
-		@Override
-		public TestStatus checkMetadata(Document metadata) {
+		public TestOutcome evaluateMetadata(Document metadata) {
 			if(metadata == null){
-				failedMessage = "The test case could not be performed because there was no metadata available";
-				return TestStatus.CRITICAL;
+				return new TestOutcome(TestStatus.CRITICAL, "The test case could not be performed because there was no metadata available");
 			}
 			
 			NodeList attrs = metadata.getElementsByTagNameNS(MD.NAMESPACE, SAML.ATTRIBUTE);
 			
 			if (attrs.getLength() == 0){
-				successMessage = "The Service Provider's metadata contains no attributes, so the requirement does not apply";
-				return TestStatus.OK;
+				return new TestOutcome(TestStatus.OK, "The Service Provider's metadata contains no attributes, so the requirement does not apply");
 			}
 
 			// make sure all attributes use the correct NameFormat
@@ -618,12 +515,10 @@ public class SAML2Int extends IdPTestSuite {
 				// check if the nameformat value is URI
 				if(nameformat == null || !nameformat.getNodeValue().equals(SAMLmisc.NAMEFORMAT_URI)){
 					// be more specific in the failed test's message, so it's easier to know what went wrong
-					failedMessage = "The Service Provider's metadata contain an attribute with a NameFormat value other than '"+SAMLmisc.NAMEFORMAT_URI+"'";
-					return TestStatus.WARNING;
+					return new TestOutcome(TestStatus.WARNING, "The Service Provider's metadata contain an attribute with a NameFormat value other than '"+SAMLmisc.NAMEFORMAT_URI+"'");
 				}
 			}
-			successMessage = "All attributes were configured with the correct NameFormat";
-			return TestStatus.OK;
+			return new TestOutcome(TestStatus.OK, "All attributes were configured with the correct NameFormat");
 		}
 		
 	}
@@ -636,8 +531,8 @@ public class SAML2Int extends IdPTestSuite {
 	 * @author RiaasM
 	 *
 	 */
-	public class MetadataAttrConsumingService implements MetadataTestCase {
-		private String failedMessage = "The Service Provider's metadata does not contain a AttributeConsumingService element";
+	@Requires("MetadataAvailable")
+	public class MetadataAttrConsumingService extends StreamingMetadataTestCase {
 		
 		@Override
 		public String getDescription() {
@@ -645,31 +540,29 @@ public class SAML2Int extends IdPTestSuite {
 		}
 	
 		@Override
-		public String getSuccessMessage() {
-			return "The Service Provider's metadata contains a AttributeConsumingService element";
-		}
-	
-		@Override
-		public String getFailedMessage() {
-			return failedMessage;
-		}
-	
-		@Override
-		public TestStatus checkMetadata(Document metadata) {
-			if(metadata != null){
-				NodeList attrConsServs = metadata.getElementsByTagNameNS(MD.NAMESPACE, MD.ATTRIBUTECONSUMINGSERVICE);
-				// check if there is at least one AttributeConsumingService
-				if(attrConsServs.getLength() > 1){
-					return TestStatus.OK;
+		public MetadataRule newRule() {
+			return new MetadataRule() {
+				private int attrConsServs = 0;
+				{
+					listen(MD.NAMESPACE, MD.ATTRIBUTECONSUMINGSERVICE);
 				}
-				else {
-					return TestStatus.WARNING;
+
+				@Override
+				public void startElement(QName element, Attributes attributes, QName parent) {
+					attrConsServs++;
 				}
-			}
-			else {
-				failedMessage = "The test case could not be performed because there was no metadata available";
-				return TestStatus.CRITICAL;
-			}
+
+				@Override
+				public TestOutcome getOutcome() {
+					// check if there is at least one AttributeConsumingService
+					if (attrConsServs > 1) {
+						return new TestOutcome(TestStatus.OK, "The Service Provider's metadata contains a AttributeConsumingService element");
+					}
+					else {
+						return new TestOutcome(TestStatus.WARNING, "The Service Provider's metadata does not contain a AttributeConsumingService element");
+					}
+				}
+			};
 		}
 		
 	}
@@ -683,8 +576,8 @@ public class SAML2Int extends IdPTestSuite {
 	 * @author RiaasM
 	 *
 	 */
-	public class MetadataServiceNameAvailable implements MetadataTestCase {
-		private String failedMessage;
+	@Requires("MetadataAvailable")
+	public class MetadataServiceNameAvailable extends StreamingMetadataTestCase {
 		
 		@Override
 		public String getDescription() {
@@ -692,32 +585,29 @@ public class SAML2Int extends IdPTestSuite {
 		}
 	
 		@Override
-		public String getSuccessMessage() {
-			return "The Service Provider's metadata contains at least one ServiceName element";
-		}
-	
-		@Override
-		public String getFailedMessage() {
-			return failedMessage;
-		}
-	
-		@Override
-		public TestStatus checkMetadata(Document metadata) {
-			if(metadata != null){
-				NodeList servNames = metadata.getElementsByTagNameNS(MD.NAMESPACE, MD.SERVICENAME);
-				// check if there is at least one ServiceName
-				if(servNames.getLength() > 1){
-					return TestStatus.OK;
+		public MetadataRule newRule() {
+			return new MetadataRule() {
+				private int servNames = 0;
+				{
+					listen(MD.NAMESPACE, MD.SERVICENAME);
 				}
-				else {
-					failedMessage = "The Service Provider's metadata does not contain any ServiceName elements";
-					return TestStatus.WARNING;
+
+				@Override
+				public void startElement(QName element, Attributes attributes, QName parent) {
+					servNames++;
 				}
-			}
-			else {
-				failedMessage = "The test case could not be performed because there was no metadata available";
-				return TestStatus.CRITICAL;
-			}
+
+				@Override
+				public TestOutcome getOutcome() {
+					// check if there is at least one ServiceName
+					if (servNames > 1) {
+						return new TestOutcome(TestStatus.OK, "The Service Provider's metadata contains at least one ServiceName element");
+					}
+					else {
+						return new TestOutcome(TestStatus.WARNING, "The Service Provider's metadata does not contain any ServiceName elements");
+					}
+				}
+			};
 		}
 		
 	}
@@ -731,51 +621,16 @@ public class SAML2Int extends IdPTestSuite {
 	 * @author RiaasM
 	 *
 	 */
-	public class MetadataServiceNameEnglish implements MetadataTestCase {
-		private String failedMessage;
+	@Requires("MetadataAvailable")
+	@XPathRule(when = "count(//md:ServiceName) <= 1", status = TestStatus.WARNING, message = "The Service Provider's metadata does not contain any ServiceName elements")
+	@XPathRule(when = "//md:ServiceName[contains(@xml:lang, 'en')]", status = TestStatus.OK, message = "The Service Provider's metadata contains at least one English ServiceName with language set to English")
+	@XPathRule(when = "true()", status = TestStatus.WARNING, message = "The Service Provider's metadata does not contain any ServiceName elements with language set to English", evidence = "//md:ServiceName/@xml:lang")
+	public class MetadataServiceNameEnglish extends XPathMetadataTestCase {
 		
 		@Override
 		public String getDescription() {
 			return "Test if the Service Provider's metadata contains at least one ServiceName with language set to English (SHOULD requirement)";
 		}
-	
-		@Override
-		public String getSuccessMessage() {
-			return "The Service Provider's metadata contains at least one English ServiceName with language set to English";
-		}
-	
-		@Override
-		public String getFailedMessage() {
-			return failedMessage;
-		}
-	
-		@Override
-		public TestStatus checkMetadata(Document metadata) {
-			if(metadata != null){
-				NodeList servNames = metadata.getElementsByTagNameNS(MD.NAMESPACE, MD.SERVICENAME);
-				// check if there is at least one AttributeConsumingService
-				if(servNames.getLength() > 1){
-					// check for service name element in each AttributeConsumingService
-					for (int i = 0; i < servNames.getLength(); i++){
-						Node servName = servNames.item(i);
-						String lang = servName.getAttributes().getNamedItemNS(MD.NAMESPACE_XML, MD.LANG).getNodeValue();
-						if (lang.contains(SAMLmisc.LANG_ENGLISH)){
-							return TestStatus.OK;
-						}
-					}
-					failedMessage = "The Service Provider's metadata does not contain any ServiceName elements with language set to English";
-					return TestStatus.WARNING;
-				}
-				else {
-					failedMessage = "The Service Provider's metadata does not contain any ServiceName elements";
-					return TestStatus.WARNING;
-				}
-			}
-			else {
-				failedMessage = "The test case could not be performed because there was no metadata available";
-				return TestStatus.CRITICAL;
-			}
-		}
 		
 	}
 
@@ -787,8 +642,8 @@ public class SAML2Int extends IdPTestSuite {
 	 * @author RiaasM
 	 *
 	 */
-	public class MetadataHTTPS implements MetadataTestCase {
-		private String failedMessage;
+	@Requires("MetadataAvailable")
+	public class MetadataHTTPS extends StreamingMetadataTestCase {
 		
 		@Override
 		public String getDescription() {
@@ -796,63 +651,57 @@ public class SAML2Int extends IdPTestSuite {
 		}
 	
 		@Override
-		public String getSuccessMessage() {
-			return "The Service Provider uses TLS/SSL for all its Assertion Consumer Service endpoints";
-		}
-	
-		@Override
-		public String getFailedMessage() {
-			return failedMessage;
-		}
-	
-		@Override
-		public TestStatus checkMetadata(Document metadata) {
-			if(metadata != null){
-				NodeList ACSs = metadata.getElementsByTagNameNS(MD.NAMESPACE, MD.ASSERTIONCONSUMERSERVICE);
-				// check if there is at least one ACS
-				if(ACSs.getLength() > 0){
-					// check for each ACS if they are using TLS/SSL
-					int HTTPScount = 0;
-					for (int i = 0; i < ACSs.getLength(); i++){
-						Node ACS = ACSs.item(i);
-						String ACSLoc = ACS.getAttributes().getNamedItem(MD.LOCATION).getNodeValue();
-						try {
-							URL ACSLocURL = new URL(ACSLoc);
-							if (ACSLocURL.getProtocol().equalsIgnoreCase("https")){
-								HTTPScount++;
-							}
-						} catch (MalformedURLException e) {
-							failedMessage = "The Service Provider's metadata contains at least one malformed Assertion Consumer Service Locations URL";
-							return TestStatus.CRITICAL;
+		public MetadataRule newRule() {
+			return new MetadataRule() {
+				private int ACScount = 0;
+				private int HTTPScount = 0;
+				// the locations that do not use TLS/SSL
+				private final List<String> plainLocs = new ArrayList<String>();
+				// the first location that is not a valid URL
+				private String malformedLoc = null;
+				{
+					listen(MD.NAMESPACE, MD.ASSERTIONCONSUMERSERVICE);
+				}
+
+				@Override
+				public void startElement(QName element, Attributes attributes, QName parent) {
+					ACScount++;
+					String ACSLoc = attributes.getValue(MD.LOCATION);
+					try {
+						URL ACSLocURL = new URL(ACSLoc);
+						if (ACSLocURL.getProtocol().equalsIgnoreCase("https")){
+							HTTPScount++;
+						}
+						else {
+							plainLocs.add(ACSLoc);
+						}
+					} catch (MalformedURLException e) {
+						if (malformedLoc == null) {
+							malformedLoc = String.valueOf(ACSLoc);
 						}
 					}
-					if (HTTPScount == 0){
-						failedMessage = "The Service Provider neglects using TLS/SSL on all of its Assertion Consumer Service endpoints";
-						return TestStatus.WARNING;
+				}
+
+				@Override
+				public TestOutcome getOutcome() {
+					// check if there is at least one ACS
+					if (ACScount == 0) {
+						return new TestOutcome(TestStatus.WARNING, "The Service Provider's metadata does not contain any Assertion Consumer Service elements");
 					}
-					else if (HTTPScount < ACSs.getLength()){
-						failedMessage = "The Service Provider neglect using TLS/SSL on some of its Assertion Consumer Service endpoints";
-						return TestStatus.WARNING;
+					if (malformedLoc != null) {
+						return new TestOutcome(TestStatus.CRITICAL, "The Service Provider's metadata contains at least one malformed Assertion Consumer Service Locations URL").withEvidence(malformedLoc);
 					}
-					else if (HTTPScount == ACSs.getLength()){
-						return TestStatus.OK;
+					if (HTTPScount == 0){
+						return new TestOutcome(TestStatus.WARNING, "The Service Provider neglects using TLS/SSL on all of its Assertion Consumer Service endpoints").withEvidence(plainLocs.toArray(new String[0]));
 					}
-					else{
-						// HTTPScount is larger than the the length of the ACSs Nodelist, which should never be possible
-						failedMessage = "Error occurred in the MetadataHTTPS test case while checking the ACS URLs";
-						return TestStatus.CRITICAL;
+					else if (HTTPScount < ACScount){
+						return new TestOutcome(TestStatus.WARNING, "The Service Provider neglect using TLS/SSL on some of its Assertion Consumer Service endpoints").withEvidence(plainLocs.toArray(new String[0]));
+					}
+					else {
+						return new TestOutcome(TestStatus.OK, "The Service Provider uses TLS/SSL for all its Assertion Consumer Service endpoints");
 					}
-					
-				}
-				else {
-					failedMessage = "The Service Provider's metadata does not contain any Assertion Consumer Service elements";
-					return TestStatus.WARNING;
 				}
-			}
-			else {
-				failedMessage = "The test case could not be performed because there was no metadata available";
-				return TestStatus.CRITICAL;
-			}
+			};
 		}
 		
 	}
@@ -865,9 +714,8 @@ public class SAML2Int extends IdPTestSuite {
 	 * @author RiaasM
 	 *
 	 */
-	public class MetadataEncryptionKey implements MetadataTestCase {
-		private String failedMessage;
-		private String successMessage;
+	@Requires("MetadataAvailable")
+	public class MetadataEncryptionKey extends StatelessMetadataTestCase {
 		
 		@Override
 		public String getDescription() {
@@ -875,17 +723,7 @@ public class SAML2Int extends IdPTestSuite {
 		}
 	
 		@Override
-		public String getSuccessMessage() {
-			return successMessage;
-		}
-	
-		@Override
-		public String getFailedMessage() {
-			return failedMessage;
-		}
-	
-		@Override
-		public TestStatus checkMetadata(Document metadata) {
+		public TestOutcome evaluateMetadata(Document metadata) {
 			if(metadata != null){
 				NodeList ACSs = metadata.getElementsByTagNameNS(MD.NAMESPACE, MD.ASSERTIONCONSUMERSERVICE);
 				// check if there is at least one ACS
@@ -901,8 +739,7 @@ public class SAML2Int extends IdPTestSuite {
 								HTTPScount++;
 							}
 						} catch (MalformedURLException e) {
-							failedMessage = "The Service Provider's metadata contains at least one malformed Assertion Consumer Service Locations URL";
-							return TestStatus.CRITICAL;
+							return new TestOutcome(TestStatus.CRITICAL, "The Service Provider's metadata contains at least one malformed Assertion Consumer Service Locations URL");
 						}
 					}
 					// check if all ACSs are using TLS/SSL
@@ -917,56 +754,46 @@ public class SAML2Int extends IdPTestSuite {
 									// no attributes found, so no "use" attribute found
 									// without use attribute, key is used for both signing and encryption,
 									// so we have found an encryption key
-									successMessage = "The Service Provider's metadata contains an encryption key";
-									return TestStatus.OK;
+									return new TestOutcome(TestStatus.OK, "The Service Provider's metadata contains an encryption key");
 								}
 								else {
 									Node KDuse = KDattr.getNamedItem(MD.USE);
 									if (KDuse == null){
 										// value should only be "signing" or "encryption" so metadata is invalid
-										failedMessage = "The Service Provider's metadata contains an empty 'use' attribute, which makes the metadata invalid";
-										return TestStatus.CRITICAL;
+										return new TestOutcome(TestStatus.CRITICAL, "The Service Provider's metadata contains an empty 'use' attribute, which makes the metadata invalid");
 									}
 									else{
 										String use = KDuse.getNodeValue();
 										if (use.isEmpty()){
 											// value should only be "signing" or "encryption" so metadata is invalid
-											failedMessage = "The Service Provider's metadata contains an empty 'use' attribute, which makes the metadata invalid";
-											return TestStatus.CRITICAL;
+											return new TestOutcome(TestStatus.CRITICAL, "The Service Provider's metadata contains an empty 'use' attribute, which makes the metadata invalid");
 										}
 										else if (use.equals(MD.KEYTYPE_ENCRYPTION)){
-											successMessage = "The Service Provider's metadata contains an encryption key";
-											return TestStatus.OK;
+											return new TestOutcome(TestStatus.OK, "The Service Provider's metadata contains an encryption key");
 										}
 									}
 								}
 							}
-							failedMessage = "The Service Provider's metadata does not contain an encryption key and neglects to use TLS/SSL for all of its Assertion Consumer Service endpoints";
-							return TestStatus.WARNING;
+							return new TestOutcome(TestStatus.WARNING, "The Service Provider's metadata does not contain an encryption key and neglects to use TLS/SSL for all of its Assertion Consumer Service endpoints");
 						}
 						else{
-							failedMessage = "The Service Provider's metadata does not contain any keys and neglects to use TLS/SSL for all of its Assertion Consumer Service endpoints";
-							return TestStatus.WARNING;
+							return new TestOutcome(TestStatus.WARNING, "The Service Provider's metadata does not contain any keys and neglects to use TLS/SSL for all of its Assertion Consumer Service endpoints");
 						}
 					}
 					else if (HTTPScount == ACSs.getLength()){
-						successMessage = "The Service Provider uses TLS/SSL on all of its Assertion Consumer Service endpoints, so this requirement does not apply";
-						return TestStatus.OK;
+						return new TestOutcome(TestStatus.OK, "The Service Provider uses TLS/SSL on all of its Assertion Consumer Service endpoints, so this requirement does not apply");
 					}
 					else{
 						// HTTPScount is larger than the the length of the ACSs Nodelist, which should never be possible
-						failedMessage = "Error occurred in the MetadataHTTPS test case while checking the ACS URLs";
-						return TestStatus.CRITICAL;
+						return new TestOutcome(TestStatus.CRITICAL, "Error occurred in the MetadataHTTPS test case while checking the ACS URLs");
 					}
 				}
 				else {
-					failedMessage = "The Service Provider's metadata does not contain any Assertion Consumer Service elements";
-					return TestStatus.WARNING;
+					return new TestOutcome(TestStatus.WARNING, "The Service Provider's metadata does not contain any Assertion Consumer Service elements");
 				}
 			}
 			else {
-				failedMessage = "The test case could not be performed because there was no metadata available";
-				return TestStatus.CRITICAL;
+				return new TestOutcome(TestStatus.CRITICAL, "The test case could not be performed because there was no metadata available");
 			}
 		}
 		
@@ -984,75 +811,19 @@ public class SAML2Int extends IdPTestSuite {
 	 * @author LaurentB, RiaasM
 	 * 
 	 */
-	public class MetadataContactInfo implements MetadataTestCase {
-		private String failedMessage;
+	@Requires("MetadataAvailable")
+	@XPathRule(when = "count(//md:ContactPerson) = 0", status = TestStatus.WARNING, message = "The Service Provider's metadata contains no Contact Persons")
+	@XPathRule(when = "count(//md:ContactPerson) = 1", status = TestStatus.WARNING, message = "The Service Provider's metadata contains only one Contact Person")
+	@XPathRule(when = "//md:ContactPerson[@contactType='support'] and //md:ContactPerson[@contactType='technical']", status = TestStatus.OK, message = "The Service Provider's metadata contains contact information for both a support and a technical contact")
+	@XPathRule(when = "//md:ContactPerson[@contactType='support']", status = TestStatus.WARNING, message = "The Service Provider's metadata contains only support Contact Persons")
+	@XPathRule(when = "//md:ContactPerson[@contactType='technical']", status = TestStatus.WARNING, message = "The Service Provider's metadata contains only technical Contact Persons")
+	@XPathRule(when = "true()", status = TestStatus.WARNING, message = "The Service Provider's metadata contains no support or technical Contact Persons", evidence = "//md:ContactPerson/@contactType")
+	public class MetadataContactInfo extends XPathMetadataTestCase {
 		
 		@Override
 		public String getDescription() {
 			return "Test if the Service Provider's metadata contains contact information for a support and a technical contact (SHOULD requirement)";
 		}
-	
-		@Override
-		public String getSuccessMessage() {
-			return "The Service Provider's metadata contains contact information for both a support and a technical contact";
-		}
-	
-		@Override
-		public String getFailedMessage() {
-			return failedMessage;
-		}
-	
-		@Override
-		public TestStatus checkMetadata(Document metadata) {
-			if(metadata == null){
-				failedMessage = "The test case could not be performed because there was no metadata available";
-				return TestStatus.CRITICAL;
-			}
-			
-			NodeList contactPersons = metadata.getElementsByTagNameNS(MD.NAMESPACE, MD.CONTACTPERSON);
-			
-			// check if there is not none contact persons
-			if(contactPersons.getLength() == 0){
-				failedMessage = "The Service Provider's metadata contains no Contact Persons";
-				return TestStatus.WARNING;
-			}
-			
-			// check if there is not one contact persons
-			if(contactPersons.getLength() == 1){
-				failedMessage = "The Service Provider's metadata contains only one Contact Person";
-				return TestStatus.WARNING;
-			}
-			
-			// check if there is at least one support and one technical contact person
-			boolean supportFound = false;
-			boolean technicalFound = false;
-			for (int i = 0; i < contactPersons.getLength(); i++){
-				Node contactPerson = contactPersons.item(i);
-				String contactType = contactPerson.getAttributes().getNamedItem(MD.CONTACTTYPE).getNodeValue();
-				if (contactType.equals(MD.CONTACTTYPE_SUPPORT)) {
-					supportFound = true;
-				}
-				else if (contactType.equals(MD.CONTACTTYPE_TECHNICAL)){
-					technicalFound = true;
-				}
-			}
-			
-			if (supportFound && technicalFound){
-				return TestStatus.OK;
-			}
-			else if (supportFound){
-				failedMessage = "The Service Provider's metadata contains only support Contact Persons";
-				return TestStatus.WARNING;
-			}
-			else if (technicalFound){
-				failedMessage = "The Service Provider's metadata contains only technical Contact Persons";
-				return TestStatus.WARNING;
-			}
-			else {
-				failedMessage = "The Service Provider's metadata contains no support or technical Contact Persons";
-				return TestStatus.WARNING;
-			}
-		}
 		
 	}
 
@@ -1063,8 +834,8 @@ public class SAML2Int extends IdPTestSuite {
 	 * @author RiaasM
 	 * 
 	 */
-	public class MetadataContactEmail implements MetadataTestCase {
-		private String failedMessage;
+	@Requires("MetadataAvailable")
+	public class MetadataContactEmail extends StreamingMetadataTestCase {
 		
 		@Override
 		public String getDescription() {
@@ -1072,60 +843,48 @@ public class SAML2Int extends IdPTestSuite {
 		}
 	
 		@Override
-		public String getSuccessMessage() {
-			return "The Service Provider's metadata contains EmailAddress elements for all its ContactPerson elements";
-		}
-	
-		@Override
-		public String getFailedMessage() {
-			return failedMessage;
-		}
-	
-		@Override
-		public TestStatus checkMetadata(Document metadata) {
-			if(metadata == null){
-				failedMessage = "The test case could not be performed because there was no metadata available";
-				return TestStatus.CRITICAL;
-			}
-			
-			NodeList contactPersons = metadata.getElementsByTagNameNS(MD.NAMESPACE, MD.CONTACTPERSON);
-			
-			// check if there are contactpersons found
-			if(contactPersons.getLength() == 0){
-				failedMessage = "The Service Provider's metadata contains no Contact Persons";
-				return TestStatus.WARNING;
-			}
-			
-			// check if each contactperson has at least one emailaddress
-			int emailCount = 0;
-			for (int i = 0; i < contactPersons.getLength(); i++){
-				Node contactPerson = contactPersons.item(i);
-				NodeList emailaddresses = contactPerson.getChildNodes();
-				for (int j = 0; j < emailaddresses.getLength(); j++){
-					if (emailaddresses.item(j).getNodeName().equals(MD.EMAILADDRESS)){
-						// found an emailaddress element for this contactperson 
+		public MetadataRule newRule() {
+			return new MetadataRule() {
+				private final QName contactPerson = new QName(MD.NAMESPACE, MD.CONTACTPERSON);
+				private int contactPersons = 0;
+				private int emailCount = 0;
+				// whether an emailaddress was found for the current contactperson
+				private boolean hasEmail = false;
+				{
+					listen(MD.NAMESPACE, MD.CONTACTPERSON);
+					listen(MD.NAMESPACE, MD.EMAILADDRESS);
+				}
+
+				@Override
+				public void startElement(QName element, Attributes attributes, QName parent) {
+					if (element.equals(contactPerson)) {
+						contactPersons++;
+						hasEmail = false;
+					}
+					else if (contactPerson.equals(parent) && !hasEmail) {
+						// found an emailaddress element for this contactperson
+						hasEmail = true;
 						emailCount++;
-						break;
 					}
 				}
-			}
-			
-			if (emailCount == 0){
-				failedMessage = "The Service Provider's metadata contains no EmailAddress elements for any of its ContactPerson elements";
-				return TestStatus.WARNING;
-			}
-			else if (emailCount < contactPersons.getLength()){
-				failedMessage = "The Service Provider's metadata contains EmailAddress elements for some, but not all, of its ContactPerson elements";
-				return TestStatus.WARNING;
-			}
-			else if (emailCount == contactPersons.getLength()){
-				return TestStatus.OK;
-			}
-			else {
-				// emailCount is larger than the the length of the contactPersons Nodelist, which should never be possible
-				failedMessage = "Error occurred in the MetadataContactEmail test case while checking the ContactPerson elements";
-				return TestStatus.CRITICAL;
-			}
+
+				@Override
+				public TestOutcome getOutcome() {
+					// check if there are contactpersons found
+					if(contactPersons == 0){
+						return new TestOutcome(TestStatus.WARNING, "The Service Provider's metadata contains no Contact Persons");
+					}
+					if (emailCount == 0){
+						return new TestOutcome(TestStatus.WARNING, "The Service Provider's metadata contains no EmailAddress elements for any of its ContactPerson elements");
+					}
+					else if (emailCount < contactPersons){
+						return new TestOutcome(TestStatus.WARNING, "The Service Provider's metadata contains EmailAddress elements for some, but not all, of its ContactPerson elements");
+					}
+					else {
+						return new TestOutcome(TestStatus.OK, "The Service Provider's metadata contains EmailAddress elements for all its ContactPerson elements");
+					}
+				}
+			};
 		}
 		
 	}
@@ -1138,8 +897,8 @@ public class SAML2Int extends IdPTestSuite {
 	 * @author RiaasM
 	 *
 	 */
-	public class MetadataNameIDFormatOther implements MetadataTestCase {
-		private String failedMessage;
+	@Requires("MetadataAvailable")
+	public class MetadataNameIDFormatOther extends StreamingMetadataTestCase {
 		
 		@Override
 		public String getDescription() {
@@ -1147,45 +906,40 @@ public class SAML2Int extends IdPTestSuite {
 		}
 	
 		@Override
-		public String getSuccessMessage() {
-			return "The Service Provider's metadata contains only NameIDFormat values of other than '"+SAMLmisc.NAMEID_FORMAT_TRANSIENT+"' or '"+SAMLmisc.NAMEID_FORMAT_PERSISTENT+"' (RECOMMENDATION)";
-		}
-	
-		@Override
-		public String getFailedMessage() {
-			return failedMessage;
-		}
-	
-		@Override
-		public TestStatus checkMetadata(Document metadata) {
-			if(metadata == null){
-				failedMessage = "The test case could not be performed because there was no metadata available";
-				return TestStatus.CRITICAL;
-			}
-					
-			NodeList nameidformats = metadata.getElementsByTagNameNS(MD.NAMESPACE, MD.NAMEIDFORMAT);
-			
-			// check if there is at least one NameIDFormat
-			if(nameidformats.getLength() == 0){
-				failedMessage = "The Service Provider's metadata does not contain a NameIDFormat element";
-				return TestStatus.WARNING;
-			}
-			
-			// check the value of all NameIDFormats
-			for (int i = 0; i < nameidformats.getLength(); i++){
-				String nameidformatValue = nameidformats.item(i).getTextContent();
-				if (nameidformatValue == null){
-					failedMessage = "The Service Provider's metadata contains an empty 'NameIDFormat' element, which makes the metadata invalid";
-					return TestStatus.CRITICAL;
+		public MetadataRule newRule() {
+			return new MetadataRule() {
+				private int nameidformats = 0;
+				// the outcome for the first NameIDFormat value that does not comply
+				private TestOutcome failure = null;
+				{
+					listen(MD.NAMESPACE, MD.NAMEIDFORMAT);
 				}
-				else if(!nameidformatValue.equals(SAMLmisc.NAMEID_FORMAT_TRANSIENT) && !nameidformatValue.equals(SAMLmisc.NAMEID_FORMAT_PERSISTENT)){
-					// SP uses a NameIDFormat other than transient and persistent
-					failedMessage = "The Service Provider's metadata contains at least one NameIDFormat value other than '"+SAMLmisc.NAMEID_FORMAT_TRANSIENT+"' or '"+SAMLmisc.NAMEID_FORMAT_PERSISTENT+"'";
-					return TestStatus.WARNING;
+
+				@Override
+				public void endElement(QName element, String nameidformatValue) {
+					nameidformats++;
+					if (failure != null) {
+						return;
+					}
+					if(!nameidformatValue.equals(SAMLmisc.NAMEID_FORMAT_TRANSIENT) && !nameidformatValue.equals(SAMLmisc.NAMEID_FORMAT_PERSISTENT)){
+						// SP uses a NameIDFormat other than transient and persistent (which includes an empty one)
+						failure = new TestOutcome(TestStatus.WARNING, "The Service Provider's metadata contains at least one NameIDFormat value other than '"+SAMLmisc.NAMEID_FORMAT_TRANSIENT+"' or '"+SAMLmisc.NAMEID_FORMAT_PERSISTENT+"'");
+					}
 				}
-			}
-			return TestStatus.OK;
-		}	
+
+				@Override
+				public TestOutcome getOutcome() {
+					// check if there is at least one NameIDFormat
+					if(nameidformats == 0){
+						return new TestOutcome(TestStatus.WARNING, "The Service Provider's metadata does not contain a NameIDFormat element");
+					}
+					if (failure != null) {
+						return failure;
+					}
+					return new TestOutcome(TestStatus.OK, "The Service Provider's metadata contains only NameIDFormat values of other than '"+SAMLmisc.NAMEID_FORMAT_TRANSIENT+"' or '"+SAMLmisc.NAMEID_FORMAT_PERSISTENT+"' (RECOMMENDATION)");
+				}
+			};
+		}
 	}
 
 	/**
@@ -1195,9 +949,7 @@ public class SAML2Int extends IdPTestSuite {
 	 * @author RiaasM
 	 *
 	 */
-	public class ConfigAttrLDAP implements ConfigTestCase{
-		private String successMessage;
-		private String failedMessage;
+	public class ConfigAttrLDAP extends StatelessConfigTestCase {
 
 		@Override
 		public String getDescription() {
@@ -1205,19 +957,8 @@ public class SAML2Int extends IdPTestSuite {
 		}
 
 		@Override
-		public String getSuccessMessage() {
-			return successMessage;
-		}
-	
-		@Override
-		public String getFailedMessage() {
-			return failedMessage;
-		}
-	
-		@Override
-		public TestStatus checkConfig(IdPConfiguration config) {
-			successMessage = "The attributes that are configured are using the LDAP/X.500 profile";
-			return TestStatus.OK;
+		public TestOutcome evaluateConfig(IdPConfiguration config) {
+			return new TestOutcome(TestStatus.OK, "The attributes that are configured are using the LDAP/X.500 profile");
 		}
 	}
 
@@ -1228,9 +969,8 @@ public class SAML2Int extends IdPTestSuite {
 	 * @author RiaasM
 	 *
 	 */
-	public class MetadataAttrLDAP implements MetadataTestCase {
-		private String successMessage;
-		private String failedMessage;
+	@Requires("MetadataAvailable")
+	public class MetadataAttrLDAP extends StatelessMetadataTestCase {
 		
 		@Override
 		public String getDescription() {
@@ -1238,27 +978,15 @@ public class SAML2Int extends IdPTestSuite {
 		}
 	
 		@Override
-		public String getSuccessMessage() {
-			return successMessage;
-		}
-	
-		@Override
-		public String getFailedMessage() {
-			return failedMessage;
-		}
-
-		@Override
-		public TestStatus checkMetadata(Document metadata) {
+		public TestOutcome evaluateMetadata(Document metadata) {
 			if(metadata == null){
-				failedMessage = "The test case could not be performed because there was no metadata available";
-				return TestStatus.CRITICAL;
+				return new TestOutcome(TestStatus.CRITICAL, "The test case could not be performed because there was no metadata available");
 			}
 			
 			NodeList attrs = metadata.getElementsByTagNameNS(MD.NAMESPACE, SAML.ATTRIBUTE);
 			
 			if (attrs.getLength() == 0){
-				successMessage = "The Service Provider's metadata contains no attributes, so the test case does not apply";
-				return TestStatus.OK;
+				return new TestOutcome(TestStatus.OK, "The Service Provider's metadata contains no attributes, so the test case does not apply");
 			}
 			
 			// make sure all attributes use the LDAP/X.500 profile
@@ -1268,20 +996,17 @@ public class SAML2Int extends IdPTestSuite {
 				// check if the LDAP/X.500 namespace is used
 				if(!attr.getNamespaceURI().equals(SAMLmisc.NAMESPACE_ATTR_X500)){
 					// be more specific in the failed test's message, so it's easier to know what went wrong
-					failedMessage = "A configured SAML attribute does not use the LDAP/X.500 attribute profile";
-					return TestStatus.WARNING;
+					return new TestOutcome(TestStatus.WARNING, "A configured SAML attribute does not use the LDAP/X.500 attribute profile");
 				}
 				// check if the LDAP/X.500 Encoding attribute is supplied, and if so, if the correct value is filled in
 				Node x500Enc = attr.getAttributes().getNamedItemNS(SAMLmisc.NAMESPACE_ATTR_X500, SAMLmisc.X500_ENCODING);
 				if (x500Enc != null){
 					if (!x500Enc.getNodeValue().equals(SAMLmisc.X500_ENCODING_LDAP)){
-						failedMessage = "A configured SAML attribute has an x500:Encoding attribute with a value other than 'LDAP'";
-						return TestStatus.WARNING;
+						return new TestOutcome(TestStatus.WARNING, "A configured SAML attribute has an x500:Encoding attribute with a value other than 'LDAP'");
 					}
 				}
 			}
-			successMessage = "The attributes that are configured are using the LDAP/X.500 profile";
-			return TestStatus.OK;
+			return new TestOutcome(TestStatus.OK, "The attributes that are configured are using the LDAP/X.500 profile");
 		}
 		
 	}
@@ -1294,9 +1019,7 @@ public class SAML2Int extends IdPTestSuite {
 	 * @author RiaasM
 	 *
 	 */
-	public class ConfigAttrValueSimple implements ConfigTestCase{
-		private String successMessage;
-		private String failedMessage;
+	public class ConfigAttrValueSimple extends StatelessConfigTestCase {
 	
 		@Override
 		public String getDescription() {
@@ -1304,19 +1027,8 @@ public class SAML2Int extends IdPTestSuite {
 		}
 	
 		@Override
-		public String getSuccessMessage() {
-			return successMessage;
-		}
-	
-		@Override
-		public String getFailedMessage() {
-			return failedMessage;
-		}
-	
-		@Override
-		public TestStatus checkConfig(IdPConfiguration config) {
-			successMessage = "The attributes that are configured have simple string values";
-			return TestStatus.OK;
+		public TestOutcome evaluateConfig(IdPConfiguration config) {
+			return new TestOutcome(TestStatus.OK, "The attributes that are configured have simple string values");
 		}
 	}
 
@@ -1328,9 +1040,8 @@ public class SAML2Int extends IdPTestSuite {
 	 * @author RiaasM
 	 *
 	 */
-	public class MetadataAttrValueSimple implements MetadataTestCase {
-		private String successMessage;
-		private String failedMessage;
+	@Requires("MetadataAvailable")
+	public class MetadataAttrValueSimple extends StatelessMetadataTestCase {
 		
 		@Override
 		public String getDescription() {
@@ -1338,27 +1049,15 @@ public class SAML2Int extends IdPTestSuite {
 		}
 	
 		@Override
-		public String getSuccessMessage() {
-			return successMessage;
-		}
-	
-		@Override
-		public String getFailedMessage() {
-			return failedMessage;
-		}
-	
-		@Override
-		public TestStatus checkMetadata(Document metadata) {
+		public TestOutcome evaluateMetadata(Document metadata) {
 			if(metadata == null){
-				failedMessage = "The test case could not be performed because there was no metadata available";
-				return TestStatus.CRITICAL;
+				return new TestOutcome(TestStatus.CRITICAL, "The test case could not be performed because there was no metadata available");
 			}
 			
 			NodeList attrvals = metadata.getElementsByTagNameNS(MD.NAMESPACE, SAML.ATTRIBUTEVALUE);
 			
 			if (attrvals.getLength() == 0){
-				successMessage = "The Service Provider's metadata contains no attributes, so the test case does not apply";
-				return TestStatus.OK;
+				return new TestOutcome(TestStatus.OK, "The Service Provider's metadata contains no attributes, so the test case does not apply");
 			}
 			
 			// make sure all attributes use the LDAP/X.500 profile
@@ -1366,14 +1065,13 @@ public class SAML2Int extends IdPTestSuite {
 				Node attrval = attrvals.item(i);
 				
 				// check if the AttributeValue element has only a single child text node
-				if(attrval.getChildNodes().getLength() == 1 && attrval.getChildNodes().item(0).getNodeType() == Node.TEXT_NODE){
+				Node child = attrval.getFirstChild();
+				if(child != null && child.getNextSibling() == null && child.getNodeType() == Node.TEXT_NODE){
 					// be more specific in the failed test's message, so it's easier to know what went wrong
-					failedMessage = "A configured SAML attribute does not have simple string values";
-					return TestStatus.WARNING;
+					return new TestOutcome(TestStatus.WARNING, "A configured SAML attribute does not have simple string values");
 				}
 			}
-			successMessage = "The attributes that are configured have simple string values";
-			return TestStatus.OK;
+			return new TestOutcome(TestStatus.OK, "The attributes that are configured have simple string values");
 		}
 		
 	}
@@ -1387,8 +1085,8 @@ public class SAML2Int extends IdPTestSuite {
 	 * @author RiaasM
 	 *
 	 */
-	public class RequestACSURLCanonicalization implements ResponseTestCase{
-		private String failedMessage; 
+	@Requires(Requires.LOGIN_REACHABLE)
+	public class RequestACSURLCanonicalization extends StatelessResponseTestCase {
 	
 		@Override
 		public String getDescription() {
@@ -1396,17 +1094,7 @@ public class SAML2Int extends IdPTestSuite {
 		}
 
 		@Override
-		public String getSuccessMessage() {
-			return "The Service Provider's Authentication Request's AssertionConsumerServiceURL attribute uses the same canonicalization as in the Service Provider's metadata";
-		}
-
-		@Override
-		public String getFailedMessage() {
-			return failedMessage;
-		}
-	
-		@Override
-		public TestStatus checkResponse(String request, String binding) {
+		public TestOutcome evaluateResponse(String request, String binding) {
 			Node acsURL = SAMLUtil.fromXML(request).getDocumentElement().getAttributes().getNamedItem(SAMLP.ASSERTIONCONSUMERSERVICEURL);
 			if (acsURL != null){
 				NodeList acss = IdPTestRunner.getIdPConfig().getMetadata().getElementsByTagNameNS(MD.NAMESPACE, MD.ASSERTIONCONSUMERSERVICE);
@@ -1414,14 +1102,12 @@ public class SAML2Int extends IdPTestSuite {
 				// when comparing the URL's directly as strings without compensating for canonicalization 
 				for (int i = 0; i < acss.getLength(); i++){
 					if (acss.item(i).getAttributes().getNamedItem(MD.LOCATION).getNodeValue().equals(acsURL.getNodeValue()))
-						return TestStatus.OK;
+						return new TestOutcome(TestStatus.OK, "The Service Provider's Authentication Request's AssertionConsumerServiceURL attribute uses the same canonicalization as in the Service Provider's metadata");
 				}
-				failedMessage = "The Service Provider's Authentication Request's AssertionConsumerServiceURL attribute did not use the same canonicalization as in the Service Provider's metadata";
-				return TestStatus.WARNING;
+				return new TestOutcome(TestStatus.WARNING, "The Service Provider's Authentication Request's AssertionConsumerServiceURL attribute did not use the same canonicalization as in the Service Provider's metadata");
 			}
 			else{
-				failedMessage = "The Service Provider's Authentication Request's AssertionConsumerServiceURL attribute was not available";
-				return TestStatus.CRITICAL;
+				return new TestOutcome(TestStatus.CRITICAL, "The Service Provider's Authentication Request's AssertionConsumerServiceURL attribute was not available");
 			}
 		}
 
@@ -1438,8 +1124,8 @@ public class SAML2Int extends IdPTestSuite {
 	 * @author RiaasM
 	 *
 	 */
-	public class RequestNameIDPolicy implements ResponseTestCase{
-		private String failedMessage; 
+	@Requires(Requires.LOGIN_REACHABLE)
+	public class RequestNameIDPolicy extends StatelessResponseTestCase {
 	
 		@Override
 		public String getDescription() {
@@ -1447,22 +1133,11 @@ public class SAML2Int extends IdPTestSuite {
 		}
 	
 		@Override
-		public String getSuccessMessage() {
-			return "The Service Provider's Authentication Request contains a NameIDPolicy with an AllowCreate attribute of true";
-		}
-	
-		@Override
-		public String getFailedMessage() {
-			return failedMessage;
-		}
-	
-		@Override
-		public TestStatus checkResponse(String request, String binding) {
+		public TestOutcome evaluateResponse(String request, String binding) {
 			NodeList nameIDPolicies = SAMLUtil.fromXML(request).getElementsByTagNameNS(SAMLP.NAMESPACE, SAMLP.NAMEIDPOLICY);
 			// check if the request has any NameIDPolicy elements
 			if (nameIDPolicies.getLength() == 0){
-				failedMessage = "The Service Provider's Authentication Request does not contain a NameIDPolicy";
-				return TestStatus.WARNING;
+				return new TestOutcome(TestStatus.WARNING, "The Service Provider's Authentication Request does not contain a NameIDPolicy");
 			}
 			// check if at least one of the NameIDPolicy elements has an AllowCreate attribute of true
 			boolean found = false;
@@ -1472,11 +1147,10 @@ public class SAML2Int extends IdPTestSuite {
 					found = true;
 			}
 			if (found){
-				return TestStatus.OK;
+				return new TestOutcome(TestStatus.OK, "The Service Provider's Authentication Request contains a NameIDPolicy with an AllowCreate attribute of true");
 			}
 			else{
-				failedMessage = "The Service Provider's Authentication Request does not contain a NameIDPolicy with an AllowCreate attribute of true";
-				return TestStatus.WARNING;
+				return new TestOutcome(TestStatus.WARNING, "The Service Provider's Authentication Request does not contain a NameIDPolicy with an AllowCreate attribute of true");
 			}
 			
 		}
@@ -1496,8 +1170,8 @@ public class SAML2Int extends IdPTestSuite {
 	 * @author RiaasM
 	 *
 	 */
-	public class RequestNameIDPolicyFormat implements ResponseTestCase{
-		private String failedMessage; 
+	@Requires(Requires.LOGIN_REACHABLE)
+	public class RequestNameIDPolicyFormat extends StatelessResponseTestCase {
 	
 		@Override
 		public String getDescription() {
@@ -1505,34 +1179,22 @@ public class SAML2Int extends IdPTestSuite {
 		}
 	
 		@Override
-		public String getSuccessMessage() {
-			return "The Service Provider's Authentication Request's NameIDPolicy elements have a valid Format attribute value";
-		}
-	
-		@Override
-		public String getFailedMessage() {
-			return failedMessage;
-		}
-	
-		@Override
-		public TestStatus checkResponse(String request, String binding) {
+		public TestOutcome evaluateResponse(String request, String binding) {
 			NodeList nameIDPolicies = SAMLUtil.fromXML(request).getElementsByTagNameNS(SAMLP.NAMESPACE, SAMLP.NAMEIDPOLICY);
 			// check if the request has any NameIDPolicy elements
 			if (nameIDPolicies.getLength() == 0){
-				failedMessage = "The Service Provider's Authentication Request does not contain a NameIDPolicy";
-				return TestStatus.WARNING;
+				return new TestOutcome(TestStatus.WARNING, "The Service Provider's Authentication Request does not contain a NameIDPolicy");
 			}
 			// check if all NameIDPolicy elements either have a transient or persistent format attribute, or no format attribute at all
 			for (int i = 0; i < nameIDPolicies.getLength(); i++){
 				Node format = nameIDPolicies.item(i).getAttributes().getNamedItem(SAMLmisc.FORMAT);
 				if (format != null){
 					if (!format.getNodeValue().equalsIgnoreCase(SAMLmisc.NAMEID_FORMAT_TRANSIENT) && !format.getNodeValue().equalsIgnoreCase(SAMLmisc.NAMEID_FORMAT_PERSISTENT)){
-						failedMessage = "The Service Provider's Authentication Request contains a NameIDPolicy with a Format attribute that is neither "+SAMLmisc.NAMEID_FORMAT_TRANSIENT+" nor "+SAMLmisc.NAMEID_FORMAT_PERSISTENT;
-						return TestStatus.WARNING;
+						return new TestOutcome(TestStatus.WARNING, "The Service Provider's Authentication Request contains a NameIDPolicy with a Format attribute that is neither "+SAMLmisc.NAMEID_FORMAT_TRANSIENT+" nor "+SAMLmisc.NAMEID_FORMAT_PERSISTENT);
 					}
 				}
 			}	
-			return TestStatus.OK;
+			return new TestOutcome(TestStatus.OK, "The Service Provider's Authentication Request's NameIDPolicy elements have a valid Format attribute value");
 		}
 
 		@Override
@@ -1549,8 +1211,8 @@ public class SAML2Int extends IdPTestSuite {
 	 * @author RiaasM
 	 *
 	 */
-	public class RequestRequestedAuthnContext implements ResponseTestCase{
-		private String successMessage = "The Service Provider's Authentication Request contains a RequestedAuthnContext with a Comparison attribute that is set to exact or omitted";
+	@Requires(Requires.LOGIN_REACHABLE)
+	public class RequestRequestedAuthnContext extends StatelessResponseTestCase {
 		
 		@Override
 		public String getDescription() {
@@ -1558,32 +1220,21 @@ public class SAML2Int extends IdPTestSuite {
 		}
 	
 		@Override
-		public String getSuccessMessage() {
-			return successMessage;
-		}
-	
-		@Override
-		public String getFailedMessage() {
-			return "The Service Provider's Authentication Request contains a RequestedAuthnContext with a Comparison attribute that is not set to exact";
-		}
-	
-		@Override
-		public TestStatus checkResponse(String request, String binding) {
+		public TestOutcome evaluateResponse(String request, String binding) {
 			NodeList requestedAuthnContexts = SAMLUtil.fromXML(request).getElementsByTagNameNS(SAMLP.NAMESPACE, SAMLP.REQUESTEDAUTHNCONTEXT);
 			if (requestedAuthnContexts.getLength() == 0){
-				successMessage = "There are no RequestedAuthnContext elements in the request so this test case does not apply";
-				return TestStatus.OK;
+				return new TestOutcome(TestStatus.OK, "There are no RequestedAuthnContext elements in the request so this test case does not apply");
 			}
 			// check if all RequestedAuthnContext elements have an exact Comparison attribute, or no Comparison attribute at all
 			for (int i = 0; i < requestedAuthnContexts.getLength(); i++){
 				Node comparison = requestedAuthnContexts.item(i).getAttributes().getNamedItem(SAMLP.COMPARISON);
 				if (comparison != null){
 					if (!comparison.getNodeValue().equals(SAMLP.COMPARISON_EXACT)){
-						return TestStatus.WARNING;
+						return new TestOutcome(TestStatus.WARNING, "The Service Provider's Authentication Request contains a RequestedAuthnContext with a Comparison attribute that is not set to exact");
 					}
 				}
 			}
-			return TestStatus.OK;
+			return new TestOutcome(TestStatus.OK, "The Service Provider's Authentication Request contains a RequestedAuthnContext with a Comparison attribute that is set to exact or omitted");
 		}
 
 		@Override
@@ -1592,4 +1243,52 @@ public class SAML2Int extends IdPTestSuite {
 			return true;
 		}
 	}
+
+	/**
+	 * Tests the following part of the SAML 2.0 Core specification (section 1.3.4):
+	 * 		Any party that assigns an identifier MUST ensure that there is negligible probability that that party or any
+	 * 		other party will accidentally assign the same identifier to a different data object.
+	 * 
+	 * The IDs of the Response and its Assertions are compared with the IDs of all messages that the mock SP received
+	 * recently (see {@link ReplayDetector}), including those of the other simulated users, so an IdP that reuses IDs
+	 * under load is noticed.
+	 * 
+	 * @author RiaasM
+	 *
+	 */
+	@Requires(Requires.LOGIN_REACHABLE)
+	public class ResponseIDsUnique extends StatelessResponseTestCase {
+
+		@Override
+		public String getDescription() {
+			return "Test if the IDs of the Identity Provider's Response and Assertions were not used in any other message received by the mock SP (MUST requirement)";
+		}
+
+		@Override
+		public TestOutcome evaluateResponse(String response, String binding) {
+			ReplayDetector detector = IdPTestRunner.getReplayDetector();
+			if (detector == null) {
+				return new TestOutcome(TestStatus.CRITICAL, "The test case could not be performed because the mock SP does not remember the IDs it received");
+			}
+			List<String> ids = ReplayDetector.extractIDs(response);
+			if (ids.isEmpty()) {
+				return new TestOutcome(TestStatus.CRITICAL, "The test case could not be performed because the Response does not contain any IDs");
+			}
+			List<String> reused = new ArrayList<String>();
+			for (String id : ids) {
+				if (detector.isDuplicate(id)) {
+					reused.add(id + " (received " + detector.getTimesReceived(id) + " times)");
+				}
+			}
+			if (!reused.isEmpty()) {
+				return new TestOutcome(TestStatus.ERROR, "The Identity Provider's Response contains IDs that were also used in other messages").withEvidence(reused.toArray(new String[0]));
+			}
+			return new TestOutcome(TestStatus.OK, "The IDs of the Identity Provider's Response and Assertions were not used in any other message received by the mock SP");
+		}
+
+		@Override
+		public boolean isSPInitiated() {
+			return true;
+		}
+	}
 }
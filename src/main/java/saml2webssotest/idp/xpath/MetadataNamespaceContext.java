@@ -0,0 +1,63 @@
+package saml2webssotest.idp.xpath;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.namespace.NamespaceContext;
+
+import saml2webssotest.common.standardNames.MD;
+import saml2webssotest.common.standardNames.SAML;
+import saml2webssotest.common.standardNames.SAMLP;
+
+/**
+ * The namespace prefixes that can be used in the XPath expressions of the test cases:
+ *
+ * - md: SAML 2.0 Metadata
+ * - saml: SAML 2.0 Assertions
+ * - samlp: SAML 2.0 Protocol
+ * - ds: XML Signature
+ * - xml: the XML namespace (e.g. for xml:lang)
+ *
+ * @author RiaasM
+ *
+ */
+public class MetadataNamespaceContext implements NamespaceContext {
+	private final Map<String, String> namespaces = new HashMap<String, String>();
+
+	public MetadataNamespaceContext() {
+		namespaces.put("md", MD.NAMESPACE);
+		namespaces.put("saml", SAML.NAMESPACE);
+		namespaces.put("samlp", SAMLP.NAMESPACE);
+		namespaces.put("ds", XMLSignature.XMLNS);
+		namespaces.put(XMLConstants.XML_NS_PREFIX, XMLConstants.XML_NS_URI);
+	}
+
+	@Override
+	public String getNamespaceURI(String prefix) {
+		if (prefix == null) {
+			throw new IllegalArgumentException("The prefix can not be null");
+		}
+		String namespace = namespaces.get(prefix);
+		return namespace != null ? namespace : XMLConstants.NULL_NS_URI;
+	}
+
+	@Override
+	public String getPrefix(String namespaceURI) {
+		for (Map.Entry<String, String> namespace : namespaces.entrySet()) {
+			if (namespace.getValue().equals(namespaceURI)) {
+				return namespace.getKey();
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Iterator<String> getPrefixes(String namespaceURI) {
+		String prefix = getPrefix(namespaceURI);
+		return prefix != null ? Collections.singletonList(prefix).iterator() : Collections.<String>emptyIterator();
+	}
+}
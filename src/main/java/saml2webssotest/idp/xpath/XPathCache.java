@@ -0,0 +1,124 @@
+package saml2webssotest.idp.xpath;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Evaluates XPath expressions, compiling each expression only once for all test cases and test runs.
+ *
+ * A compiled XPath expression can not be evaluated by multiple threads at the same time. Therefore, the compiled
+ * expressions are kept in a pool for each expression. An evaluation borrows a compiled expression from the pool, so it
+ * is confined to the evaluating thread, and returns it afterwards. An expression is only compiled again when all of
+ * its compiled instances are in use, so the amount of compilations is bounded by the amount of concurrent evaluations.
+ * Expressions that could not be compiled are remembered as well, so they are not compiled again either.
+ *
+ * The expressions can use the namespace prefixes from {@link MetadataNamespaceContext}.
+ *
+ * @author RiaasM
+ *
+ */
+public final class XPathCache {
+	/**
+	 * The compiled expressions that are not in use, by their source
+	 */
+	private static final ConcurrentHashMap<String, ConcurrentLinkedQueue<XPathExpression>> idle = new ConcurrentHashMap<String, ConcurrentLinkedQueue<XPathExpression>>();
+	/**
+	 * The expressions that could not be compiled, by their source
+	 */
+	private static final ConcurrentHashMap<String, String> invalid = new ConcurrentHashMap<String, String>();
+	/**
+	 * Compiles the expressions. An XPath object is not thread-safe, so each thread has its own.
+	 */
+	private static final ThreadLocal<XPath> compilers = new ThreadLocal<XPath>() {
+		@Override
+		protected XPath initialValue() {
+			XPath xpath = XPathFactory.newInstance().newXPath();
+			xpath.setNamespaceContext(new MetadataNamespaceContext());
+			return xpath;
+		}
+	};
+
+	private XPathCache() {
+	}
+
+	/**
+	 * Evaluate an XPath expression
+	 *
+	 * @param expression is the XPath expression
+	 * @param context is the node on which the expression is evaluated
+	 * @param returnType is the type of result, as defined in {@link XPathConstants}
+	 * @return the result of the expression
+	 * @throws XPathExpressionException if the expression is not valid or could not be evaluated
+	 */
+	public static Object evaluate(String expression, Node context, QName returnType) throws XPathExpressionException {
+		ConcurrentLinkedQueue<XPathExpression> pool = idle.get(expression);
+		if (pool == null) {
+			idle.putIfAbsent(expression, new ConcurrentLinkedQueue<XPathExpression>());
+			pool = idle.get(expression);
+		}
+		XPathExpression compiled = pool.poll();
+		if (compiled == null) {
+			compiled = compile(expression);
+		}
+		try {
+			return compiled.evaluate(context, returnType);
+		} finally {
+			pool.offer(compiled);
+		}
+	}
+
+	/**
+	 * Evaluate an XPath expression as a boolean
+	 *
+	 * @param expression is the XPath expression
+	 * @param context is the node on which the expression is evaluated
+	 * @return the result of the expression, converted to a boolean according to the XPath rules
+	 * @throws XPathExpressionException if the expression is not valid or could not be evaluated
+	 */
+	public static boolean evaluateBoolean(String expression, Node context) throws XPathExpressionException {
+		return (Boolean) evaluate(expression, context, XPathConstants.BOOLEAN);
+	}
+
+	/**
+	 * Evaluate an XPath expression that selects nodes
+	 *
+	 * @param expression is the XPath expression
+	 * @param context is the node on which the expression is evaluated
+	 * @return the text content of each selected node
+	 * @throws XPathExpressionException if the expression is not valid, could not be evaluated or does not select nodes
+	 */
+	public static List<String> evaluateValues(String expression, Node context) throws XPathExpressionException {
+		NodeList nodes = (NodeList) evaluate(expression, context, XPathConstants.NODESET);
+		List<String> values = new ArrayList<String>();
+		for (int i = 0; i < nodes.getLength(); i++) {
+			values.add(nodes.item(i).getTextContent());
+		}
+		return values;
+	}
+
+	private static XPathExpression compile(String expression) throws XPathExpressionException {
+		String error = invalid.get(expression);
+		if (error != null) {
+			throw new XPathExpressionException(error);
+		}
+		try {
+			return compilers.get().compile(expression);
+		} catch (XPathExpressionException e) {
+			error = "The XPath expression " + expression + " is not valid: " + (e.getMessage() != null ? e.getMessage() : e.getCause());
+			invalid.put(expression, error);
+			throw new XPathExpressionException(error);
+		}
+	}
+}
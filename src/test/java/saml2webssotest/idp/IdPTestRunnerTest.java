@@ -0,0 +1,82 @@
+package saml2webssotest.idp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import saml2webssotest.idp.registry.TestCaseEntry;
+
+public class IdPTestRunnerTest {
+	private static final TestCaseEntry first = new TestCaseEntry("First", TestSchedulerTest.First.class, TestCaseEntry.Kind.CONFIG, null);
+	private static final TestCaseEntry second = new TestCaseEntry("Second", TestSchedulerTest.Second.class, TestCaseEntry.Kind.CONFIG, null);
+	private static final TestCaseEntry third = new TestCaseEntry("Third", TestSchedulerTest.Third.class, TestCaseEntry.Kind.CONFIG, null);
+	private static final TestCaseEntry independent = new TestCaseEntry("Independent", TestSchedulerTest.Independent.class, TestCaseEntry.Kind.CONFIG, null);
+
+	@After
+	public void resetCancellation() {
+		IdPTestRunner.resetCancellation();
+	}
+
+	@Test(timeout = 10000)
+	public void runsEachTestCaseAfterItsPrerequisites() {
+		TestScheduler scheduler = new TestScheduler(new IdPConfiguration(), Arrays.asList(third, independent, second, first), false);
+		final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			IdPTestRunner.runWhenReady(scheduler, 2, executor, new Consumer<TestCaseEntry>() {
+				@Override
+				public void accept(TestCaseEntry tcEntry) {
+					started.add(tcEntry.getName());
+				}
+			});
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(4, started.size());
+		assertTrue(started.indexOf("First") < started.indexOf("Second"));
+		assertTrue(started.indexOf("Second") < started.indexOf("Third"));
+	}
+
+	@Test(timeout = 10000)
+	public void stopsACancelledRunWhileDependentsArePending() {
+		TestScheduler scheduler = new TestScheduler(new IdPConfiguration(), Arrays.asList(third, independent, second, first), false);
+		final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch independentDone = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			IdPTestRunner.runWhenReady(scheduler, 2, executor, new Consumer<TestCaseEntry>() {
+				@Override
+				public void accept(TestCaseEntry tcEntry) {
+					started.add(tcEntry.getName());
+					if (tcEntry == independent) {
+						independentDone.countDown();
+					}
+					else if (tcEntry == first) {
+						// First is the last test case to complete, while Second and Third still wait for it
+						try {
+							independentDone.await();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						IdPTestRunner.cancelRun();
+					}
+				}
+			});
+		} finally {
+			executor.shutdownNow();
+		}
+		Collections.sort(started);
+		assertEquals(Arrays.asList("First", "Independent"), started);
+	}
+}
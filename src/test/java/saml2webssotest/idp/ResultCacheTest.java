@@ -0,0 +1,99 @@
+package saml2webssotest.idp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import saml2webssotest.common.TestStatus;
+import saml2webssotest.idp.testsuites.SAML2Int;
+import saml2webssotest.idp.testsuites.SAML2Int.ConfigAttrLDAP;
+import saml2webssotest.idp.testsuites.SAML2Int.ConfigAttrNameFormatURI;
+import saml2webssotest.idp.testsuites.SAML2Int.MetadataNameIDFormat;
+import saml2webssotest.idp.testsuites.SAML2Int.MetadataWellKnownLocation;
+
+public class ResultCacheTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	private final SAML2Int testsuite = new SAML2Int();
+	private Path directory;
+
+	@Before
+	public void createDirectory() throws Exception {
+		directory = folder.newFolder("cache").toPath();
+	}
+
+	@Test
+	public void returnsTheStoredOutcome() {
+		ResultCache cache = new ResultCache(directory, false);
+		TestOutcome outcome = new TestOutcome(TestStatus.WARNING, "The metadata has no NameIDFormat").withEvidence("<md:EntityDescriptor/>", "line 3");
+		cache.put(testsuite, MetadataNameIDFormat.class, "input1", outcome);
+
+		TestOutcome cached = new ResultCache(directory, false).get(testsuite, MetadataNameIDFormat.class, "input1");
+		assertEquals(TestStatus.WARNING, cached.getStatus());
+		assertEquals("The metadata has no NameIDFormat", cached.getMessage());
+		assertEquals(Arrays.asList("<md:EntityDescriptor/>", "line 3"), cached.getEvidence());
+	}
+
+	@Test
+	public void missesWhenTheInputOrTestCaseChanged() {
+		ResultCache cache = new ResultCache(directory, false);
+		cache.put(testsuite, ConfigAttrLDAP.class, "input1", new TestOutcome(TestStatus.OK, "ok"));
+		assertNull(cache.get(testsuite, ConfigAttrLDAP.class, "input2"));
+		assertNull(cache.get(testsuite, ConfigAttrNameFormatURI.class, "input1"));
+		assertEquals(0, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void ignoresTheStoredOutcomesWhenRefreshing() {
+		new ResultCache(directory, false).put(testsuite, ConfigAttrLDAP.class, "input1", new TestOutcome(TestStatus.OK, "old"));
+		ResultCache refreshing = new ResultCache(directory, true);
+		assertNull(refreshing.get(testsuite, ConfigAttrLDAP.class, "input1"));
+		refreshing.put(testsuite, ConfigAttrLDAP.class, "input1", new TestOutcome(TestStatus.ERROR, "new"));
+		assertEquals("new", new ResultCache(directory, false).get(testsuite, ConfigAttrLDAP.class, "input1").getMessage());
+	}
+
+	@Test
+	public void onlyCachesConfigAndMetadataTestCases() {
+		assertTrue(ResultCache.isCacheable(ConfigAttrLDAP.class));
+		assertTrue(ResultCache.isCacheable(MetadataNameIDFormat.class));
+		assertFalse("test cases that use the network are annotated as uncacheable", ResultCache.isCacheable(MetadataWellKnownLocation.class));
+		assertFalse(ResultCache.isCacheable(SAML2Int.class));
+	}
+
+	@Test
+	public void hashesTheMetadataByContent() throws Exception {
+		String metadata = "<md:EntityDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" entityID=\"https://idp.example.org\"/>";
+		assertEquals(ResultCache.hash(parse(metadata)), ResultCache.hash(parse(metadata)));
+		assertNotEquals(ResultCache.hash(parse(metadata)), ResultCache.hash(parse(metadata.replace("idp.example", "idp2.example"))));
+	}
+
+	@Test
+	public void identifiesTheBuild() {
+		String identity = ResultCache.buildIdentity(ResultCache.class);
+		assertEquals(64, identity.length());
+		assertEquals(identity, ResultCache.buildIdentity(TestScheduler.class));
+		assertNotEquals(identity, ResultCache.buildIdentity(ResultCacheTest.class));
+	}
+
+	private static Document parse(String xml) throws Exception {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		return factory.newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+	}
+}
@@ -0,0 +1,76 @@
+package saml2webssotest.idp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import saml2webssotest.idp.TestCoordinator.WorkUnit;
+import saml2webssotest.idp.TestSchedulerTest.NoopTestCase;
+import saml2webssotest.idp.registry.TestCaseEntry;
+import saml2webssotest.idp.testsuites.IdPTestSuite.Requires;
+import saml2webssotest.idp.testsuites.IdPTestSuite.StatelessConfigTestCase;
+
+public class TestCoordinatorTest {
+	private static final TestCaseEntry available = entry("Available", Available.class);
+	private static final TestCaseEntry firstCheck = entry("FirstCheck", FirstCheck.class);
+	private static final TestCaseEntry secondCheck = entry("SecondCheck", SecondCheck.class);
+	private static final TestCaseEntry parsed = entry("Parsed", Parsed.class);
+	private static final TestCaseEntry chained = entry("Chained", Chained.class);
+
+	@Test
+	public void spreadsTheDependentsOfASharedPrerequisite() {
+		List<List<String>> units = divide(available, firstCheck, secondCheck);
+		// each check runs Available again on its worker, instead of all checks running in the unit of Available
+		assertEquals(Arrays.asList(Arrays.asList("Available"), Arrays.asList("FirstCheck"), Arrays.asList("SecondCheck")), units);
+	}
+
+	@Test
+	public void keepsAChainInOneUnit() {
+		List<List<String>> units = divide(available, firstCheck, secondCheck, parsed, chained);
+		// Chained is the only test case that requires Parsed, and their unit is expected to take the longest
+		assertEquals(Arrays.asList(Arrays.asList("Parsed", "Chained"), Arrays.asList("Available"), Arrays.asList("FirstCheck"), Arrays.asList("SecondCheck")), units);
+	}
+
+	/**
+	 * Divide the test cases and describe each unit by the names of its test cases, with the units that are expected to take the longest first
+	 */
+	private static List<List<String>> divide(TestCaseEntry... testcases) {
+		DurationStats durations = DurationStats.load(null, new IdPConfiguration());
+		List<List<String>> units = new ArrayList<List<String>>();
+		for (WorkUnit unit : TestCoordinator.divide(Arrays.asList(testcases), durations, false, 0)) {
+			List<String> names = new ArrayList<String>();
+			for (TestCaseEntry tcEntry : unit.getTestCases()) {
+				names.add(tcEntry.getName());
+			}
+			units.add(names);
+		}
+		return units;
+	}
+
+	private static TestCaseEntry entry(String name, Class<? extends StatelessConfigTestCase> type) {
+		return new TestCaseEntry(name, type, TestCaseEntry.Kind.CONFIG, null);
+	}
+
+	public static class Available extends NoopTestCase {
+	}
+
+	@Requires("Available")
+	public static class FirstCheck extends NoopTestCase {
+	}
+
+	@Requires("Available")
+	public static class SecondCheck extends NoopTestCase {
+	}
+
+	@Requires("Available")
+	public static class Parsed extends NoopTestCase {
+	}
+
+	@Requires("Parsed")
+	public static class Chained extends NoopTestCase {
+	}
+}
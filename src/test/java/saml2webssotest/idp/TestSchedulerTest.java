@@ -0,0 +1,159 @@
+package saml2webssotest.idp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import saml2webssotest.common.TestStatus;
+import saml2webssotest.idp.registry.TestCaseEntry;
+import saml2webssotest.idp.testsuites.IdPTestSuite.Requires;
+import saml2webssotest.idp.testsuites.IdPTestSuite.StatelessConfigTestCase;
+
+public class TestSchedulerTest {
+	private static final TestCaseEntry first = entry("First", First.class);
+	private static final TestCaseEntry second = entry("Second", Second.class);
+	private static final TestCaseEntry third = entry("Third", Third.class);
+	private static final TestCaseEntry independent = entry("Independent", Independent.class);
+	private static final TestCaseEntry cycleA = entry("CycleA", CycleA.class);
+	private static final TestCaseEntry cycleB = entry("CycleB", CycleB.class);
+	private static final TestCaseEntry unknown = entry("Unknown", Unknown.class);
+
+	@Test
+	public void runsTestCasesAfterTheirPrerequisites() {
+		TestScheduler scheduler = new TestScheduler(new IdPConfiguration(), Arrays.asList(third, independent, second, first), false);
+		assertEquals(Arrays.asList(independent, first, second, third), scheduler.getOrder());
+	}
+
+	@Test
+	public void addsTheRequiredTestCases() {
+		List<TestCaseEntry> available = Arrays.asList(first, second, third, independent);
+		assertEquals(Arrays.asList(third, second, first), TestScheduler.withPrerequisites(available, Collections.singletonList(third)));
+	}
+
+	@Test
+	public void waitsForScheduledPrerequisites() {
+		TestScheduler scheduler = new TestScheduler(new IdPConfiguration(), Arrays.asList(first, second), false);
+		Set<String> completed = new HashSet<String>();
+		assertFalse(scheduler.isReady(second, completed));
+		completed.add("First");
+		assertTrue(scheduler.isReady(second, completed));
+
+		// a prerequisite that is not run does not block the test case
+		scheduler = new TestScheduler(new IdPConfiguration(), Collections.singletonList(second), false);
+		assertTrue(scheduler.isReady(second, Collections.<String>emptySet()));
+	}
+
+	@Test
+	public void skipsTestCasesWhosePrerequisiteFailed() {
+		TestScheduler scheduler = new TestScheduler(new IdPConfiguration(), Arrays.asList(first, second, third), false);
+		scheduler.completed(first, new TestOutcome(TestStatus.ERROR, "The metadata is not valid"));
+
+		TestOutcome skipped = scheduler.checkPrerequisites(second);
+		assertNotNull(skipped);
+		assertTrue(skipped.isSkipped());
+		assertTrue(skipped.getMessage().contains("First"));
+		scheduler.completed(second, skipped);
+		// the test cases that require a skipped test case are skipped as well
+		assertTrue(scheduler.checkPrerequisites(third).isSkipped());
+	}
+
+	@Test
+	public void runsTestCasesWhosePrerequisitesOnlyWarned() {
+		TestScheduler scheduler = new TestScheduler(new IdPConfiguration(), Arrays.asList(first, second), false);
+		scheduler.completed(first, new TestOutcome(TestStatus.WARNING, "The metadata has no NameIDFormat"));
+		assertNull(scheduler.checkPrerequisites(second));
+	}
+
+	@Test
+	public void skipsCyclesAndUnknownPrerequisites() {
+		TestScheduler scheduler = new TestScheduler(new IdPConfiguration(), Arrays.asList(cycleA, cycleB, unknown, independent), false);
+		// the test cases in the cycle come last, since they can never be run
+		assertEquals(Arrays.asList(unknown, independent, cycleA, cycleB), scheduler.getOrder());
+		assertTrue(scheduler.isReady(cycleA, Collections.<String>emptySet()));
+		assertTrue(scheduler.checkPrerequisites(cycleA).isSkipped());
+		assertTrue(scheduler.checkPrerequisites(cycleB).isSkipped());
+		assertTrue(scheduler.checkPrerequisites(unknown).isSkipped());
+		assertNull(scheduler.checkPrerequisites(independent));
+	}
+
+	@Test
+	public void skipsWhenTheMetadataIsMissing() {
+		TestScheduler scheduler = new TestScheduler(new IdPConfiguration(), Collections.singletonList(first), false);
+		TestOutcome skipped = scheduler.checkPrerequisites(first);
+		assertNotNull(skipped);
+		assertTrue(skipped.getMessage().contains("no metadata"));
+	}
+
+	@Test
+	public void startsTheLongestCriticalPathFirst() {
+		DurationStats durations = DurationStats.load(null, new IdPConfiguration());
+		durations.record("First", Duration.ofMillis(100));
+		durations.record("Second", Duration.ofMillis(100));
+		durations.record("Third", Duration.ofMillis(1000));
+		durations.record("Independent", Duration.ofMillis(500));
+		TestScheduler scheduler = new TestScheduler(new IdPConfiguration(), Arrays.asList(independent, first, second, third), false);
+		scheduler.prioritize(durations);
+		assertEquals(Arrays.asList(first, second, third, independent), scheduler.getOrder());
+
+		// Independent runs next to the chain of First, Second and Third, which takes 1200 ms
+		assertEquals(Duration.ofMillis(1200), scheduler.predict(durations, 2));
+		assertEquals(Duration.ofMillis(1700), scheduler.predict(durations, 1));
+	}
+
+	private static TestCaseEntry entry(String name, Class<? extends StatelessConfigTestCase> type) {
+		return new TestCaseEntry(name, type, TestCaseEntry.Kind.CONFIG, null);
+	}
+
+	/**
+	 * A test case that does nothing, since the scheduler only looks at the prerequisites
+	 */
+	public static abstract class NoopTestCase extends StatelessConfigTestCase {
+		@Override
+		public String getDescription() {
+			return getClass().getSimpleName();
+		}
+
+		@Override
+		public TestOutcome evaluateConfig(IdPConfiguration config) {
+			return new TestOutcome(TestStatus.OK, "");
+		}
+	}
+
+	@Requires(Requires.METADATA_PARSED)
+	public static class First extends NoopTestCase {
+	}
+
+	@Requires("First")
+	public static class Second extends NoopTestCase {
+	}
+
+	@Requires({ "Second", "First" })
+	public static class Third extends NoopTestCase {
+	}
+
+	public static class Independent extends NoopTestCase {
+	}
+
+	@Requires("CycleB")
+	public static class CycleA extends NoopTestCase {
+	}
+
+	@Requires("CycleA")
+	public static class CycleB extends NoopTestCase {
+	}
+
+	@Requires("NoSuchTestCase")
+	public static class Unknown extends NoopTestCase {
+	}
+}
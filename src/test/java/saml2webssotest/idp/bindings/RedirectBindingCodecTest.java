@@ -0,0 +1,106 @@
+package saml2webssotest.idp.bindings;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+public class RedirectBindingCodecTest {
+	private static final String message = "<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" ID=\"_a75adf55-01d7-40cc-929f-dbd8372ebdfc\" Version=\"2.0\">"
+			+ "<saml:Issuer xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\">https://idp.example.org/idp/shibboleth</saml:Issuer>"
+			+ "<saml:AttributeValue xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\">Zoë Müller</saml:AttributeValue></samlp:Response>";
+
+	@Test
+	public void decodesWhatItEncodes() {
+		assertEquals(message, RedirectBindingCodec.decode(RedirectBindingCodec.encode(message)));
+	}
+
+	@Test
+	public void decodesMessagesLargerThanItsBuffers() {
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; large.length() < 300000; i++) {
+			large.append("<saml:AttributeValue>").append(i * 7919).append("</saml:AttributeValue>");
+		}
+		assertEquals(large.toString(), RedirectBindingCodec.decode(RedirectBindingCodec.encode(large.toString())));
+	}
+
+	@Test
+	public void decodesRawDeflate() {
+		assertEquals(message, RedirectBindingCodec.decode(Base64.getEncoder().encodeToString(deflate(message, true))));
+	}
+
+	@Test
+	public void decodesDeflateWithZlibHeader() {
+		assertEquals(message, RedirectBindingCodec.decode(Base64.getEncoder().encodeToString(deflate(message, false))));
+	}
+
+	@Test
+	public void decodesBase64WithLineBreaksAndDecodedPlus() {
+		String encoded = RedirectBindingCodec.encode(message);
+		String mangled = encoded.substring(0, 10) + "\r\n" + encoded.substring(10).replace('+', ' ');
+		assertEquals(message, RedirectBindingCodec.decode(mangled));
+	}
+
+	@Test
+	public void encodesRawDeflate() throws DataFormatException {
+		byte[] compressed = Base64.getDecoder().decode(RedirectBindingCodec.encode(message));
+		Inflater inflater = new Inflater(true);
+		inflater.setInput(compressed);
+		byte[] inflated = new byte[4096];
+		int length = inflater.inflate(inflated);
+		inflater.end();
+		assertEquals(message, new String(inflated, 0, length, StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void encodesForURL() {
+		assertEquals(URLEncoder.encode(RedirectBindingCodec.encode(message), StandardCharsets.UTF_8), RedirectBindingCodec.encodeForURL(message));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsInvalidBase64() {
+		RedirectBindingCodec.decode("fZJNb4MwDIb/Sj*invalid");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsInvalidDeflate() {
+		RedirectBindingCodec.decode(Base64.getEncoder().encodeToString("not compressed at all".getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test
+	public void rejectsMessagesLargerThanTheMaximum() {
+		StringBuilder large = new StringBuilder();
+		while (large.length() < 100000) {
+			large.append("aaaaaaaaaa");
+		}
+		String encoded = RedirectBindingCodec.encode(large.toString());
+		try {
+			RedirectBindingCodec.decode(encoded, 50000);
+			fail("A message larger than the maximum size was decoded");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals(large.toString(), RedirectBindingCodec.decode(encoded, 100000));
+	}
+
+	private static byte[] deflate(String value, boolean nowrap) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap);
+		deflater.setInput(value.getBytes(StandardCharsets.UTF_8));
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		while (!deflater.finished()) {
+			out.write(buffer, 0, deflater.deflate(buffer));
+		}
+		deflater.end();
+		return out.toByteArray();
+	}
+}
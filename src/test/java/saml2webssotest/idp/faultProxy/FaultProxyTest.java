@@ -0,0 +1,182 @@
+package saml2webssotest.idp.faultProxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class FaultProxyTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	/**
+	 * The host behind the proxy, which answers with the path and the Proxy-Authorization header it received
+	 */
+	private HttpServer host;
+	private FaultProxy proxy;
+
+	@Before
+	public void startHost() throws IOException {
+		host = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		host.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = (exchange.getRequestURI() + " " + exchange.getRequestHeaders().getFirst("Proxy-Authorization")).getBytes(StandardCharsets.UTF_8);
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			}
+		});
+		host.start();
+	}
+
+	@After
+	public void stop() {
+		if (proxy != null) {
+			proxy.stop();
+		}
+		host.stop(0);
+	}
+
+	private FaultProxy startProxy(String json) throws IOException {
+		Path file = folder.newFile("proxy.json").toPath();
+		Files.write(file, json.getBytes(StandardCharsets.UTF_8));
+		proxy = new FaultProxy(FaultProxy.loadConfig(file));
+		proxy.start();
+		return proxy;
+	}
+
+	private String hostURL(String path) {
+		return "http://127.0.0.1:" + host.getAddress().getPort() + path;
+	}
+
+	private String get(String url) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection(new Proxy(Proxy.Type.HTTP, proxy.getAddress()));
+		connection.setRequestProperty("Proxy-Authorization", "Basic c2VjcmV0");
+		connection.setReadTimeout(10000);
+		try (InputStream in = connection.getInputStream()) {
+			return new String(readAll(in), StandardCharsets.UTF_8);
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Send raw bytes to the proxy and read everything it answers
+	 */
+	private String sendRaw(String request) throws IOException {
+		try (Socket socket = new Socket()) {
+			socket.connect(proxy.getAddress());
+			socket.setSoTimeout(10000);
+			socket.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+			socket.getOutputStream().flush();
+			return new String(readAll(socket.getInputStream()), StandardCharsets.ISO_8859_1);
+		}
+	}
+
+	@Test
+	public void forwardsRequestsWithTheirLatency() throws Exception {
+		startProxy("{\"latency\": 200}");
+		long start = System.nanoTime();
+		// the host receives the path instead of the full URL and none of the headers for the proxy
+		assertEquals("/page?a=b null", get(hostURL("/page?a=b")));
+		assertTrue(System.nanoTime() - start >= 200000000L);
+
+		FaultProxyStats stats = proxy.getStats();
+		assertEquals(1, stats.getConnections());
+		assertEquals(0, stats.getFailedConnections());
+		assertEquals(1, stats.getRoundTrips());
+		assertEquals(200, Math.round(stats.getMaxDelayMillis()));
+		assertTrue(stats.getBytes() > 0);
+	}
+
+	@Test
+	public void tunnelsConnectRequests() throws Exception {
+		startProxy("{}");
+		int port = host.getAddress().getPort();
+		String answer = sendRaw("CONNECT 127.0.0.1:" + port + " HTTP/1.1\r\nHost: 127.0.0.1:" + port + "\r\n\r\n"
+				+ "GET /tunneled HTTP/1.1\r\nHost: 127.0.0.1:" + port + "\r\nConnection: close\r\n\r\n");
+		assertTrue(answer, answer.startsWith("HTTP/1.1 200 Connection Established\r\n\r\nHTTP/1.1 200"));
+		assertTrue(answer, answer.endsWith("/tunneled null"));
+	}
+
+	@Test
+	public void resetsRoundTrips() throws Exception {
+		startProxy("{\"resetRate\": 1}");
+		try {
+			get(hostURL("/reset"));
+			fail("the connection is reset");
+		} catch (IOException e) {
+			// expected
+		}
+		// the client may send a GET again once after a reset, which is reset as well
+		assertTrue(proxy.getStats().getResets() >= 1);
+		assertEquals(proxy.getStats().getRoundTrips(), proxy.getStats().getResets());
+	}
+
+	@Test
+	public void appliesTheProfileOfTheHost() throws Exception {
+		startProxy("{\"hosts\": {\"LOCALHOST\": {\"resetRate\": 1}}}");
+		// the profile of localhost does not apply to 127.0.0.1
+		assertEquals("/other null", get(hostURL("/other")));
+		assertEquals(0, proxy.getStats().getResets());
+	}
+
+	@Test
+	public void usesTheDefaultProfileForOtherHosts() throws Exception {
+		Path file = folder.newFile("hosts.json").toPath();
+		Files.write(file, "{\"latency\": 5, \"hosts\": {\"idp.example.org\": {\"latency\": 50, \"dropRate\": 0.5}}}".getBytes(StandardCharsets.UTF_8));
+		FaultProxyConfiguration config = FaultProxy.loadConfig(file);
+		assertEquals(50, config.getProfile("IdP.Example.org").getLatency());
+		assertEquals(0.5, config.getProfile("idp.example.org").getDropRate(), 0);
+		assertSame(config, config.getProfile("sp.example.org"));
+		assertEquals(5, config.getProfile("sp.example.org").getLatency());
+	}
+
+	@Test
+	public void answersBadRequestsAndUnreachableHosts() throws Exception {
+		startProxy("{}");
+		assertTrue(sendRaw("NONSENSE\r\n\r\n").startsWith("HTTP/1.1 400 Bad Request"));
+		assertTrue(sendRaw("GET https://127.0.0.1/ HTTP/1.1\r\n\r\n").startsWith("HTTP/1.1 400 Bad Request"));
+		int closedPort;
+		try (ServerSocket unused = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			closedPort = unused.getLocalPort();
+		}
+		assertTrue(sendRaw("GET http://127.0.0.1:" + closedPort + "/ HTTP/1.1\r\n\r\n").startsWith("HTTP/1.1 502 Bad Gateway"));
+		assertEquals(1, proxy.getStats().getFailedConnections());
+	}
+}
@@ -0,0 +1,107 @@
+package saml2webssotest.idp.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import saml2webssotest.common.TestStatus;
+import saml2webssotest.idp.TestOutcome;
+import saml2webssotest.idp.history.RegressionDetector.Regression;
+
+public class RegressionDetectorTest {
+	private final RegressionDetector detector = new RegressionDetector();
+
+	@Test
+	public void reportsASlowerLogin() {
+		List<StoredResult> history = new ArrayList<StoredResult>();
+		for (int i = 0; i < 30; i++) {
+			history.add(result(i, 1000 + i % 7 * 10, 800 + i % 7 * 10, false));
+		}
+		for (int i = 30; i < 33; i++) {
+			history.add(result(i, 1900 + i, 1700 + i, false));
+		}
+		List<Regression> regressions = detector.detect(history);
+		assertEquals(2, regressions.size());
+		assertNull("the duration of the whole test is checked first", regressions.get(0).getMetric());
+		assertEquals("login", regressions.get(1).getMetric());
+		assertEquals("ResponseSigned", regressions.get(1).getTestcase());
+		assertEquals(1731, regressions.get(1).getRecentMedianMillis());
+		assertTrue(regressions.get(1).getPValue() < 0.01);
+	}
+
+	@Test
+	public void ignoresASingleSlowRun() {
+		List<StoredResult> history = new ArrayList<StoredResult>();
+		for (int i = 0; i < 30; i++) {
+			history.add(result(i, 1000 + i % 7 * 10, 800, false));
+		}
+		history.add(result(30, 1010, 800, false));
+		history.add(result(31, 1020, 800, false));
+		history.add(result(32, 5000, 800, false));
+		assertTrue(detector.detect(history).isEmpty());
+	}
+
+	@Test
+	public void ignoresSmallIncreases() {
+		List<StoredResult> history = new ArrayList<StoredResult>();
+		for (int i = 0; i < 30; i++) {
+			history.add(result(i, 1000 + i % 3, 800, false));
+		}
+		for (int i = 30; i < 33; i++) {
+			// significant, since all recent runs are slower, but only 5%
+			history.add(result(i, 1050, 800, false));
+		}
+		assertTrue(detector.detect(history).isEmpty());
+	}
+
+	@Test
+	public void needsABaseline() {
+		List<StoredResult> history = new ArrayList<StoredResult>();
+		for (int i = 0; i < 5; i++) {
+			history.add(result(i, 1000, 800, false));
+		}
+		for (int i = 5; i < 8; i++) {
+			history.add(result(i, 9000, 8000, false));
+		}
+		assertTrue(detector.detect(history).isEmpty());
+	}
+
+	@Test
+	public void ignoresCachedResults() {
+		List<StoredResult> history = new ArrayList<StoredResult>();
+		for (int i = 0; i < 30; i++) {
+			history.add(result(i, 1000, 800, false));
+		}
+		for (int i = 30; i < 33; i++) {
+			history.add(result(i, 5, 0, true));
+		}
+		assertTrue(detector.detect(history).isEmpty());
+	}
+
+	@Test
+	public void comparesRanks() {
+		long[] slower = { 20, 21, 22, 23, 24 };
+		long[] faster = { 10, 11, 12, 13, 14 };
+		assertTrue(RegressionDetector.mannWhitneyGreater(slower, faster) < 0.01);
+		assertTrue(RegressionDetector.mannWhitneyGreater(faster, slower) > 0.99);
+		assertEquals(1, RegressionDetector.mannWhitneyGreater(new long[] { 5, 5 }, new long[] { 5, 5, 5 }), 0);
+	}
+
+	private static StoredResult result(int run, long durationMillis, long loginMillis, boolean cached) {
+		Map<String, Duration> phases = new LinkedHashMap<String, Duration>();
+		phases.put("login", Duration.ofMillis(loginMillis));
+		TestOutcome outcome = new TestOutcome(TestStatus.OK, "The Response was signed")
+				.withTiming(Instant.ofEpochSecond(1700000000L + run * 3600L), Duration.ofMillis(durationMillis))
+				.withPhases(phases);
+		return StoredResult.of("run" + run, "https://idp.example.org", "SAML2Int", "ResponseSigned", outcome, cached);
+	}
+}
@@ -0,0 +1,119 @@
+package saml2webssotest.idp.loginDrivers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import saml2webssotest.idp.SSOSession;
+import saml2webssotest.idp.loginDrivers.LoginPlan.Recorder;
+import saml2webssotest.idp.loginDrivers.LoginPlan.Step;
+
+public class LoginPlanTest {
+	private static final URI firstLogin = URI.create("https://idp.example.org/idp/profile/SAML2/Unsolicited/SSO?providerId=sp&target=session-1");
+	private static final URI secondLogin = URI.create("https://idp.example.org/idp/profile/SAML2/Unsolicited/SSO?providerId=sp&target=session-2");
+
+	@Test
+	public void recordsTheRequestsOfTheLogin() throws Exception {
+		LoginPlan plan = learn();
+		List<Step> steps = plan.getSteps();
+		assertEquals(2, steps.size());
+		assertEquals("GET", steps.get(0).getMethod());
+		assertEquals(firstLogin, steps.get(0).getURI());
+		assertEquals("POST", steps.get(1).getMethod());
+		assertEquals(URI.create("https://idp.example.org/idp/login?execution=e1s1"), steps.get(1).getURI());
+		// the hidden input differs for each login, so only its name is recorded
+		assertEquals(Collections.singletonList("csrf_token"), steps.get(1).getCarried());
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		values.put("username", "alice");
+		values.put("password", "secret");
+		assertEquals(values, steps.get(1).getValues());
+	}
+
+	@Test
+	public void replaysThePlanWithTheValuesOfTheNewPages() throws Exception {
+		LoginPlan plan = learn();
+		FakeDriver driver = new FakeDriver(loginPage("_second"), loggedIn());
+		ParsedPage last = plan.replay(driver, null, secondLogin);
+
+		assertEquals(URI.create("https://sp.example.org/acs"), last.getURI());
+		assertEquals(2, driver.requests.size());
+		// the first request goes to the login URI of this session instead of the recorded one
+		assertEquals("GET " + secondLogin + " {}", driver.requests.get(0));
+		assertEquals("POST https://idp.example.org/idp/login?execution=e1s1 {csrf_token=_second, username=alice, password=secret}", driver.requests.get(1));
+	}
+
+	@Test
+	public void failsWhenACarriedValueIsMissing() throws Exception {
+		LoginPlan plan = learn();
+		FakeDriver driver = new FakeDriver(page("<form action=\"/idp/login\"><input name=\"username\"></form>"));
+		try {
+			plan.replay(driver, null, secondLogin);
+			fail("the hidden input is not on the page");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage().contains("csrf_token"));
+		}
+		assertEquals(1, driver.requests.size());
+	}
+
+	/**
+	 * Learn a plan that retrieves the login page and submits its form
+	 */
+	private static LoginPlan learn() throws Exception {
+		FakeDriver driver = new FakeDriver(loginPage("_first"), loggedIn());
+		Recorder recorder = new Recorder();
+		ParsedPage page = driver.get(null, firstLogin, recorder);
+		Map<String, String> inputs = new LinkedHashMap<String, String>();
+		inputs.put("username", "alice");
+		inputs.put("password", "secret");
+		driver.submit(null, page, page.findForm("id", "login"), inputs, null, recorder);
+		assertEquals(Arrays.asList("GET " + firstLogin + " {}", "POST https://idp.example.org/idp/login?execution=e1s1 {csrf_token=_first, username=alice, password=secret}"), driver.requests);
+		return recorder.toPlan();
+	}
+
+	private static ParsedPage loginPage(String token) throws IOException {
+		return page("<form id=\"login\" action=\"/idp/login?execution=e1s1\" method=\"post\">"
+				+ "<input type=\"hidden\" name=\"csrf_token\" value=\"" + token + "\">"
+				+ "<input name=\"username\"><input type=\"password\" name=\"password\"></form>");
+	}
+
+	private static ParsedPage page(String html) throws IOException {
+		return ParsedPage.parse(new StringReader(html), URI.create("https://idp.example.org/idp/login"));
+	}
+
+	private static ParsedPage loggedIn() {
+		return ParsedPage.empty(URI.create("https://sp.example.org/acs"));
+	}
+
+	/**
+	 * Returns the given pages in order instead of sending the requests, and describes the requests it received
+	 */
+	private static class FakeDriver extends HttpLoginDriver {
+		private final Deque<ParsedPage> pages;
+		private final List<String> requests = new ArrayList<String>();
+
+		private FakeDriver(ParsedPage... pages) {
+			super(false, true);
+			this.pages = new ArrayDeque<ParsedPage>(Arrays.asList(pages));
+		}
+
+		@Override
+		ParsedPage send(SSOSession session, String method, URI uri, Map<String, String> values, Step step) {
+			requests.add(method + " " + uri + " " + values);
+			return pages.removeFirst();
+		}
+	}
+}
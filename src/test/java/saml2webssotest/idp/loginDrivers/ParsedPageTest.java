@@ -0,0 +1,140 @@
+package saml2webssotest.idp.loginDrivers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URI;
+import java.util.List;
+
+import org.junit.Test;
+
+import saml2webssotest.idp.loginDrivers.HtmlTokenizer.TokenType;
+import saml2webssotest.idp.loginDrivers.ParsedPage.Field;
+import saml2webssotest.idp.loginDrivers.ParsedPage.Form;
+
+public class ParsedPageTest {
+	private static final URI pageURI = URI.create("https://idp.example.org/idp/profile/SAML2/Unsolicited/SSO?providerId=sp");
+
+	@Test
+	public void tokenizesTagsAttributesAndText() throws IOException {
+		HtmlTokenizer tokenizer = new HtmlTokenizer(new StringReader("<!DOCTYPE html><P CLASS='intro' hidden>Fish &amp; chips &#233;&#x41;</p>"));
+		assertEquals(TokenType.START_TAG, tokenizer.next());
+		assertEquals("p", tokenizer.getTagName());
+		assertEquals("intro", tokenizer.getAttribute("class"));
+		assertEquals("", tokenizer.getAttribute("hidden"));
+		assertNull(tokenizer.getAttribute("id"));
+		assertEquals(TokenType.TEXT, tokenizer.next());
+		assertEquals("Fish & chips \u00E9A", tokenizer.getText());
+		assertEquals(TokenType.END_TAG, tokenizer.next());
+		assertEquals("p", tokenizer.getTagName());
+		assertEquals(TokenType.EOF, tokenizer.next());
+	}
+
+	@Test
+	public void skipsScriptsAndComments() throws IOException {
+		HtmlTokenizer tokenizer = new HtmlTokenizer(new StringReader("<script>if (a < b) { document.write('<form>'); }</script><!-- <a href=x> --><b>x</b>"));
+		assertEquals(TokenType.START_TAG, tokenizer.next());
+		assertEquals("script", tokenizer.getTagName());
+		assertEquals(TokenType.END_TAG, tokenizer.next());
+		assertEquals("script", tokenizer.getTagName());
+		assertEquals(TokenType.START_TAG, tokenizer.next());
+		assertEquals("b", tokenizer.getTagName());
+	}
+
+	@Test
+	public void treatsALoneLessThanAsText() throws IOException {
+		HtmlTokenizer tokenizer = new HtmlTokenizer(new StringReader("1 < 2"));
+		StringBuilder text = new StringBuilder();
+		while (tokenizer.next() == TokenType.TEXT) {
+			text.append(tokenizer.getText());
+		}
+		assertEquals("1 < 2", text.toString());
+	}
+
+	@Test
+	public void decodesANonBreakingSpace() throws IOException {
+		HtmlTokenizer tokenizer = new HtmlTokenizer(new StringReader("a&nbsp;b"));
+		assertEquals(TokenType.TEXT, tokenizer.next());
+		assertEquals("a\u00A0b", tokenizer.getText());
+	}
+
+	@Test
+	public void onlyEndsRawTextAtItsOwnEndTag() throws IOException {
+		ParsedPage page = parse("<form><textarea name=\"comment\">a</textareax>b</textarea ><input name=\"after\"></form>");
+		List<Field> fields = page.getForms().get(0).getFields();
+		assertEquals(2, fields.size());
+		assertEquals("a</textareax>b", fields.get(0).getValue());
+		assertEquals("after", fields.get(1).getName());
+	}
+
+	@Test
+	public void parsesTheLoginForm() throws IOException {
+		ParsedPage page = parse("<html><body><form id=\"login\" name=\"loginForm\" action=\"/idp/login?execution=e1s1\" method=\"POST\">"
+				+ "<input type=\"hidden\" name=\"csrf_token\" value=\"_7f3a\">"
+				+ "<input name=\"username\"><input type=\"password\" name=\"password\">"
+				+ "<input type=\"checkbox\" name=\"remember\" value=\"yes\">"
+				+ "<select name=\"lang\"><option value=\"en\">English</option><option value=\"nl\" selected>Nederlands</option></select>"
+				+ "<textarea name=\"comment\">a &lt;b&gt;</textarea>"
+				+ "<button type=\"submit\" name=\"_eventId_proceed\">Login</button>"
+				+ "</form></body></html>");
+		assertEquals(1, page.getForms().size());
+		Form form = page.findForm("id", "login");
+		assertNotNull(form);
+		assertEquals(form, page.findForm("name", "loginForm"));
+		assertNull(page.findForm("id", "loginForm"));
+		assertEquals("/idp/login?execution=e1s1", form.getAction());
+		assertEquals(URI.create("https://idp.example.org/idp/login?execution=e1s1"), page.resolve(form.getAction()));
+
+		List<Field> fields = form.getFields();
+		assertEquals(7, fields.size());
+		assertEquals("hidden", fields.get(0).getType());
+		assertEquals("_7f3a", page.getHiddenValue("csrf_token"));
+		assertEquals("text", fields.get(1).getType());
+		assertFalse("an unchecked checkbox is not submitted", fields.get(3).isSuccessful());
+		assertEquals("nl", fields.get(4).getValue());
+		assertEquals("a <b>", fields.get(5).getValue());
+		assertTrue(fields.get(6).isSubmit());
+		assertNull(page.getSamlForm());
+	}
+
+	@Test
+	public void findsTheSamlForm() throws IOException {
+		ParsedPage page = parse("<form action=\"https://sp.example.org/acs\" method=\"post\">"
+				+ "<input type=\"hidden\" name=\"RelayState\" value=\"session-1\"/>"
+				+ "<input type=\"hidden\" name=\"SAMLResponse\" value=\"PHNhbWxwOlJlc3BvbnNlLz4=\"/>"
+				+ "<noscript><input type=\"submit\" value=\"Continue\"/></noscript></form>"
+				+ "<script>document.forms[0].submit();</script>");
+		Form form = page.getSamlForm();
+		assertNotNull(form);
+		assertEquals("https://sp.example.org/acs", form.getAction());
+		assertEquals("session-1", page.getHiddenValue("RelayState"));
+	}
+
+	@Test
+	public void findsLinks() throws IOException {
+		ParsedPage page = parse("<base href=\"https://idp.example.org/other/\"><a id=\"next\" href=\"continue\">Go <b>on</b></a>");
+		assertEquals(1, page.getLinks().size());
+		assertNotNull(page.findLink("id", "next"));
+		assertNotNull(page.findLink("href", "continue"));
+		assertNotNull(page.findLink("text", "Go on"));
+		assertNull(page.findLink("name", "next"));
+		assertEquals(URI.create("https://idp.example.org/other/continue"), page.resolve(page.findLink("id", "next").getHref()));
+	}
+
+	@Test
+	public void resolvesAnEmptyReferenceToThePage() {
+		ParsedPage page = ParsedPage.empty(pageURI);
+		assertEquals(pageURI, page.resolve(null));
+		assertEquals(pageURI, page.resolve(" "));
+		assertTrue(page.getForms().isEmpty());
+	}
+
+	private static ParsedPage parse(String html) throws IOException {
+		return ParsedPage.parse(new StringReader(html), pageURI);
+	}
+}
@@ -0,0 +1,155 @@
+package saml2webssotest.idp.metadataModel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import saml2webssotest.common.standardNames.MD;
+import saml2webssotest.idp.XMLParsers;
+
+public class MetadataModelTest {
+	private static final String ds = "http://www.w3.org/2000/09/xmldsig#";
+	private static final String metadata = "<md:EntityDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\" entityID=\"https://sp.example.org\">\n"
+			+ "  <md:SPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">\n"
+			+ "    <md:KeyDescriptor use=\"signing\"><ds:KeyInfo><ds:X509Data><ds:X509Certificate>\n      TUlJ\n      Qw==\n    </ds:X509Certificate></ds:X509Data></ds:KeyInfo></md:KeyDescriptor>\n"
+			+ "    <md:AssertionConsumerService index=\"0\" Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\" Location=\"https://sp.example.org/acs\"/>\n"
+			+ "    <md:AttributeConsumingService index=\"0\"><md:ServiceName xml:lang=\"en\">Example SP</md:ServiceName></md:AttributeConsumingService>\n"
+			+ "  </md:SPSSODescriptor>\n"
+			+ "</md:EntityDescriptor>";
+
+	private static InputStream bytes(String xml) {
+		return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Describe an element and its descendants, so two models can be compared. The attributes are sorted, since a DOM
+	 * document does not keep their order.
+	 */
+	private static String describe(MetadataElement element) {
+		StringBuilder description = new StringBuilder("<{" + element.getNamespace() + "}" + element.getQualifiedName());
+		List<String> attributes = new ArrayList<String>();
+		for (int i = 0; i < element.getAttributeCount(); i++) {
+			attributes.add(" {" + element.getAttributeNamespace(i) + "}" + element.getAttributeQualifiedName(i) + "=" + element.getAttributeValue(i));
+		}
+		Collections.sort(attributes);
+		for (String attribute : attributes) {
+			description.append(attribute);
+		}
+		description.append(">");
+		if (element.getText() != null) {
+			description.append(element.getText());
+		}
+		for (MetadataElement child : element.getChildren()) {
+			description.append(describe(child));
+		}
+		return description.append("</" + element.getQualifiedName() + ">").toString();
+	}
+
+	@Test
+	public void readsElementsAttributesAndText() throws Exception {
+		MetadataElement root = MetadataModel.parse(bytes(metadata));
+		assertTrue(root.is(MD.NAMESPACE, "EntityDescriptor"));
+		assertEquals("md:EntityDescriptor", root.getQualifiedName());
+		assertEquals("https://sp.example.org", root.getAttribute("entityID"));
+		assertNull(root.getAttribute("ID"));
+		// the namespace declarations are kept as attributes
+		assertEquals(3, root.getAttributeCount());
+		assertEquals(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, root.getAttributeNamespace(0));
+		// whitespace between the elements is not kept
+		assertNull(root.getText());
+
+		MetadataElement spssod = root.getChildren().get(0);
+		assertEquals(3, spssod.getChildren().size());
+		assertEquals(1, spssod.getChildren(MD.NAMESPACE, "AssertionConsumerService").size());
+		assertEquals("https://sp.example.org/acs", spssod.getChildren(MD.NAMESPACE, "AssertionConsumerService").get(0).getAttribute("Location"));
+
+		List<MetadataElement> names = root.getDescendants(MD.NAMESPACE, "ServiceName");
+		assertEquals(1, names.size());
+		assertEquals("Example SP", names.get(0).getText());
+		assertEquals("en", names.get(0).getAttribute(XMLConstants.XML_NS_URI, "lang"));
+		assertNull(names.get(0).getAttribute("lang"));
+	}
+
+	@Test
+	public void removesTheWhitespaceFromCertificates() throws Exception {
+		MetadataElement certificate = MetadataModel.parse(bytes(metadata)).getDescendants(ds, "X509Certificate").get(0);
+		assertEquals("TUlJQw==", certificate.getText());
+		try {
+			// the content is valid base64, but not a certificate
+			certificate.getCertificate();
+			fail("the content is not a certificate");
+		} catch (CertificateException e) {
+			// expected
+		}
+		try {
+			MetadataModel.parse(bytes(metadata)).getDescendants(MD.NAMESPACE, "KeyDescriptor").get(0).getCertificate();
+			fail("a KeyDescriptor does not contain a certificate itself");
+		} catch (CertificateException e) {
+			assertTrue(e.getMessage().contains("md:KeyDescriptor"));
+		}
+	}
+
+	@Test
+	public void rejectsInvalidCertificateContent() {
+		for (String text : new String[] { null, " \n ", "not base64!" }) {
+			try {
+				MetadataElement.decodeCertificate(text);
+				fail("'" + text + "' is not a certificate");
+			} catch (CertificateException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void buildsTheSameModelFromADocument() throws Exception {
+		Document document = XMLParsers.newDocumentBuilder().parse(bytes(metadata));
+		assertEquals(describe(MetadataModel.parse(bytes(metadata))), describe(MetadataModel.fromDocument(document)));
+		assertNull(MetadataModel.fromDocument(null));
+	}
+
+	@Test
+	public void convertsBackToAnEquivalentDocument() throws Exception {
+		MetadataElement root = MetadataModel.parse(bytes(metadata));
+		Document document = MetadataModel.toDocument(root);
+		assertEquals(MD.NAMESPACE, document.getDocumentElement().getNamespaceURI());
+		assertEquals("https://sp.example.org", document.getDocumentElement().getAttribute("entityID"));
+		assertEquals(1, document.getElementsByTagNameNS(MD.NAMESPACE, "ServiceName").getLength());
+		assertEquals(describe(root), describe(MetadataModel.fromDocument(document)));
+	}
+
+	@Test
+	public void sharesTheNamesOfDifferentDocuments() throws Exception {
+		MetadataElement first = MetadataModel.parse(bytes(metadata));
+		MetadataElement second = MetadataModel.parse(bytes(metadata));
+		assertSame(first.getQualifiedName(), second.getQualifiedName());
+		assertSame(first.getAttributeQualifiedName(2), second.getAttributeQualifiedName(2));
+		// values that look like an identifier from a vocabulary are shared as well
+		MetadataElement firstACS = first.getDescendants(MD.NAMESPACE, "AssertionConsumerService").get(0);
+		MetadataElement secondACS = second.getDescendants(MD.NAMESPACE, "AssertionConsumerService").get(0);
+		assertSame(firstACS.getAttribute("Binding"), secondACS.getAttribute("Binding"));
+		assertSame(first.getChildren().get(0).getAttribute("protocolSupportEnumeration"), second.getChildren().get(0).getAttribute("protocolSupportEnumeration"));
+	}
+
+	@Test(expected = SAXException.class)
+	public void rejectsDoctypes() throws Exception {
+		MetadataModel.parse(bytes("<!DOCTYPE md:EntityDescriptor [<!ENTITY id \"https://sp.example.org\">]>"
+				+ "<md:EntityDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" entityID=\"&id;\"/>"));
+	}
+}
@@ -0,0 +1,192 @@
+package saml2webssotest.idp.metadataRules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.Attributes;
+
+import saml2webssotest.common.TestStatus;
+import saml2webssotest.common.standardNames.MD;
+import saml2webssotest.idp.TestOutcome;
+import saml2webssotest.idp.XMLParsers;
+import saml2webssotest.idp.metadataModel.MetadataModel;
+import saml2webssotest.idp.testsuites.IdPTestSuite.StreamingMetadataTestCase;
+
+public class MetadataRuleEngineTest {
+	private static final String metadata = "<md:EntityDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" entityID=\"https://sp.example.org\">"
+			+ "<md:SPSSODescriptor><md:AttributeConsumingService index=\"0\">"
+			+ "<md:ServiceName xml:lang=\"en\">Example SP</md:ServiceName><md:ServiceName xml:lang=\"nl\">Voorbeeld SP</md:ServiceName>"
+			+ "</md:AttributeConsumingService></md:SPSSODescriptor>"
+			+ "<md:Organization><md:OrganizationName xml:lang=\"en\">Example</md:OrganizationName><md:OrganizationURL xml:lang=\"en\">https://example.org</md:OrganizationURL></md:Organization>"
+			+ "<md:ContactPerson contactType=\"support\"/><md:ContactPerson contactType=\"technical\"/>"
+			+ "</md:EntityDescriptor>";
+
+	/**
+	 * Records the elements its rules are notified of, in its outcome
+	 */
+	public static class RecordingTestCase extends StreamingMetadataTestCase {
+		private final List<String> localNames;
+		int rulesCreated;
+
+		public RecordingTestCase(String... localNames) {
+			this.localNames = Arrays.asList(localNames);
+		}
+
+		@Override
+		public String getDescription() {
+			return "Records the elements";
+		}
+
+		@Override
+		public MetadataRule newRule() {
+			rulesCreated++;
+			return new MetadataRule() {
+				private final List<String> events = new ArrayList<String>();
+
+				{
+					for (String localName : localNames) {
+						listen(MD.NAMESPACE, localName);
+					}
+				}
+
+				@Override
+				public void startElement(QName element, Attributes attributes, QName parent) {
+					String attribute = attributes.getValue("contactType") != null ? attributes.getValue("contactType") : attributes.getValue("xml:lang");
+					events.add("start " + element.getLocalPart() + " in " + parent.getLocalPart() + (attribute != null ? " " + attribute : ""));
+				}
+
+				@Override
+				public void endElement(QName element, String text) {
+					events.add("end " + element.getLocalPart() + (text.isEmpty() ? "" : " " + text));
+				}
+
+				@Override
+				public TestOutcome getOutcome() {
+					return new TestOutcome(TestStatus.OK, events.toString());
+				}
+			};
+		}
+	}
+
+	public static class ContactTestCase extends RecordingTestCase {
+		public ContactTestCase() {
+			super("ContactPerson");
+		}
+	}
+
+	/**
+	 * Has a rule that fails at the first ContactPerson
+	 */
+	public static class FailingTestCase extends StreamingMetadataTestCase {
+		private int notified;
+
+		@Override
+		public String getDescription() {
+			return "Fails while streaming";
+		}
+
+		@Override
+		public MetadataRule newRule() {
+			return new MetadataRule() {
+				{
+					listen(MD.NAMESPACE, "ContactPerson");
+				}
+
+				@Override
+				public void startElement(QName element, Attributes attributes, QName parent) {
+					notified++;
+					throw new IllegalStateException("broken rule");
+				}
+
+				@Override
+				public TestOutcome getOutcome() {
+					return new TestOutcome(TestStatus.OK, "not reached");
+				}
+			};
+		}
+	}
+
+	/**
+	 * Can not create its rule
+	 */
+	public static class UncreatableTestCase extends StreamingMetadataTestCase {
+		@Override
+		public String getDescription() {
+			return "Can not create its rule";
+		}
+
+		@Override
+		public MetadataRule newRule() {
+			throw new IllegalStateException("no rule");
+		}
+	}
+
+	private static InputStream bytes() {
+		return new ByteArrayInputStream(metadata.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void notifiesEachRuleOfItsElementsInASinglePass() throws Exception {
+		RecordingTestCase names = new RecordingTestCase("ServiceName", "Organization");
+		ContactTestCase contacts = new ContactTestCase();
+		Map<Class<?>, TestOutcome> outcomes = new MetadataRuleEngine(Arrays.asList(names, contacts)).evaluate(bytes());
+
+		assertEquals(1, names.rulesCreated);
+		assertEquals(1, contacts.rulesCreated);
+		assertEquals(2, outcomes.size());
+		assertEquals("[start ContactPerson in EntityDescriptor support, end ContactPerson, start ContactPerson in EntityDescriptor technical, end ContactPerson]",
+				outcomes.get(ContactTestCase.class).getMessage());
+		// the text of an element includes that of its descendants
+		assertEquals("[start ServiceName in AttributeConsumingService en, end ServiceName Example SP, start ServiceName in AttributeConsumingService nl, end ServiceName Voorbeeld SP, "
+				+ "start Organization in EntityDescriptor, end Organization Examplehttps://example.org]", outcomes.get(RecordingTestCase.class).getMessage());
+	}
+
+	@Test
+	public void isolatesFailingRules() throws Exception {
+		FailingTestCase failing = new FailingTestCase();
+		MetadataRuleEngine engine = new MetadataRuleEngine(Arrays.asList(new UncreatableTestCase(), failing, new ContactTestCase()));
+		Map<Class<?>, TestOutcome> outcomes = engine.evaluate(bytes());
+
+		assertEquals(3, outcomes.size());
+		assertEquals(TestStatus.CRITICAL, outcomes.get(UncreatableTestCase.class).getStatus());
+		assertTrue(outcomes.get(UncreatableTestCase.class).getMessage().contains("no rule"));
+		assertEquals(TestStatus.CRITICAL, outcomes.get(FailingTestCase.class).getStatus());
+		assertTrue(outcomes.get(FailingTestCase.class).getMessage().contains("broken rule"));
+		// a failed rule is no longer notified
+		assertEquals(1, failing.notified);
+		assertEquals(TestStatus.OK, outcomes.get(ContactTestCase.class).getStatus());
+		assertTrue(outcomes.get(ContactTestCase.class).getMessage().contains("technical"));
+	}
+
+	@Test
+	public void hasTheSameOutcomesForEachRepresentation() throws Exception {
+		MetadataRuleEngine engine = new MetadataRuleEngine(Arrays.asList(new RecordingTestCase("ServiceName", "Organization", "OrganizationURL", "ContactPerson")));
+		Map<Class<?>, TestOutcome> fromBytes = engine.evaluate(bytes());
+		Map<Class<?>, TestOutcome> fromDocument = engine.evaluate(XMLParsers.newDocumentBuilder().parse(bytes()));
+		Map<Class<?>, TestOutcome> fromModel = engine.evaluate(MetadataModel.parse(bytes()));
+
+		String expected = fromBytes.get(RecordingTestCase.class).getMessage();
+		assertTrue(expected.contains("start OrganizationURL in Organization en, end OrganizationURL https://example.org"));
+		assertEquals(expected, fromDocument.get(RecordingTestCase.class).getMessage());
+		assertEquals(expected, fromModel.get(RecordingTestCase.class).getMessage());
+	}
+
+	@Test
+	public void reportsMissingMetadataForEachTestCase() {
+		Map<Class<?>, TestOutcome> outcomes = new MetadataRuleEngine(Arrays.asList(new ContactTestCase(), new FailingTestCase())).evaluate((Document) null);
+		assertEquals(TestStatus.CRITICAL, outcomes.get(ContactTestCase.class).getStatus());
+		assertEquals(TestStatus.CRITICAL, outcomes.get(FailingTestCase.class).getStatus());
+	}
+}
@@ -0,0 +1,111 @@
+package saml2webssotest.idp.mockSPHandlers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ReplayDetectorTest {
+
+	@Test
+	public void extractsTheResponseAndAssertionIDs() {
+		String response = "<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\" ID=\"_response\">"
+				+ "<saml:Issuer>https://idp.example.org</saml:Issuer>"
+				+ "<saml:Assertion ID=\"_assertion1\"><saml:Subject/></saml:Assertion>"
+				+ "<saml:Assertion ID=\"_assertion2\"/>"
+				+ "<saml:EncryptedAssertion><xenc:EncryptedData xmlns:xenc=\"http://www.w3.org/2001/04/xmlenc#\" Id=\"_encrypted\"/></saml:EncryptedAssertion>"
+				+ "</samlp:Response>";
+		assertEquals(Arrays.asList("_response", "_assertion1", "_assertion2"), ReplayDetector.extractIDs(response));
+	}
+
+	@Test
+	public void extractsNothingFromMalformedMessages() {
+		assertTrue(ReplayDetector.extractIDs("<samlp:Response ID=\"_a\"").isEmpty());
+		// the parser can be used again after a malformed message
+		assertEquals(Collections.singletonList("_b"), ReplayDetector.extractIDs("<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" ID=\"_b\"/>"));
+	}
+
+	@Test
+	public void rejectsDoctypes() {
+		String response = "<!DOCTYPE r [<!ENTITY id \"_entity\">]><samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" ID=\"&id;\"/>";
+		assertTrue(ReplayDetector.extractIDs(response).isEmpty());
+	}
+
+	@Test
+	public void detectsReusedIDs() {
+		ReplayDetector detector = new ReplayDetector(1000, Duration.ofMinutes(10));
+		assertTrue(detector.observe(Arrays.asList("_r1", "_a1")).isEmpty());
+		assertTrue(detector.observe(Arrays.asList("_r2", "_a2")).isEmpty());
+		assertEquals(Collections.singletonList("_a1"), detector.observe(Arrays.asList("_r3", "_a1")));
+		assertEquals(Collections.singletonList("_a1"), detector.observe(Arrays.asList("_a1")));
+
+		assertTrue(detector.isDuplicate("_a1"));
+		assertFalse(detector.isDuplicate("_r1"));
+		assertEquals(3, detector.getTimesReceived("_a1"));
+		assertEquals(1, detector.getTimesReceived("_r1"));
+		assertEquals(4, detector.getMessageCount());
+		assertEquals(7, detector.getIDCount());
+		assertEquals(2, detector.getDuplicateCount());
+		assertEquals(5, detector.getRememberedIDs());
+	}
+
+	@Test
+	public void hasNoFalseDuplicates() {
+		ReplayDetector detector = new ReplayDetector(100000, Duration.ofMinutes(10));
+		List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < 50000; i++) {
+			ids.add("_" + Integer.toHexString(i * 31 + 7) + "-0000-4000-8000-000000000000");
+		}
+		assertTrue(detector.observe(ids).isEmpty());
+		assertEquals(0, detector.getDuplicateCount());
+		// the Bloom filters are sized for about 1% false positives, which are all ruled out by the index
+		assertTrue(detector.getFalsePositiveCount() < ids.size() / 20);
+		assertEquals(ids.size(), detector.observe(ids).size());
+	}
+
+	@Test
+	public void comparesLongIDsByTheirDigest() {
+		ReplayDetector detector = new ReplayDetector(100, Duration.ofMinutes(10));
+		StringBuilder id = new StringBuilder("_");
+		while (id.length() < 2000) {
+			id.append("0123456789");
+		}
+		assertTrue(detector.observe(Collections.singletonList(id.toString())).isEmpty());
+		assertTrue(detector.observe(Collections.singletonList(id.toString() + "x")).isEmpty());
+		assertEquals(1, detector.observe(Collections.singletonList(id.toString())).size());
+	}
+
+	@Test
+	public void forgetsTheOldestIDsWhenTheCapacityIsReached() {
+		// each of the 4 slices holds 10 IDs, so the 41st ID reuses the slice with the first 10 IDs
+		ReplayDetector detector = new ReplayDetector(30, Duration.ofMinutes(10), 4);
+		for (int i = 0; i < 45; i++) {
+			detector.observe(Collections.singletonList("_id" + i));
+		}
+		assertEquals("the capacity was reached within the window", 1, detector.getEarlyRotationCount());
+		assertEquals(35, detector.getRememberedIDs());
+		assertTrue("the first IDs are forgotten", detector.observe(Collections.singletonList("_id0")).isEmpty());
+		assertEquals(1, detector.observe(Collections.singletonList("_id10")).size());
+	}
+
+	@Test
+	public void keepsTheIDsWhenTheCountsAreReset() {
+		ReplayDetector detector = new ReplayDetector(100, Duration.ofMinutes(10));
+		detector.observe(Collections.singletonList("_r1"));
+		detector.reset();
+		assertEquals(0, detector.getMessageCount());
+		assertEquals(1, detector.observe(Collections.singletonList("_r1")).size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void needsAtLeastTwoSlices() {
+		new ReplayDetector(100, Duration.ofMinutes(10), 1);
+	}
+}
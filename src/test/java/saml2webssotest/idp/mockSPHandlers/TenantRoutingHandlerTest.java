@@ -0,0 +1,99 @@
+package saml2webssotest.idp.mockSPHandlers;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import saml2webssotest.idp.IdPTestRunner;
+
+public class TenantRoutingHandlerTest {
+	private Server server;
+	private int port;
+
+	@Before
+	public void startServer() throws Exception {
+		server = new Server();
+		ServerConnector connector = new ServerConnector(server);
+		connector.setPort(0);
+		server.addConnector(connector);
+		TenantRoutingHandler routing = new TenantRoutingHandler();
+		// responds with the entityID of the tenant that the request was routed to
+		routing.setHandler(new AbstractHandler() {
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+				MockSPTenant tenant = (MockSPTenant) request.getAttribute(MockSPTenant.REQUEST_ATTRIBUTE);
+				response.setContentType("text/plain");
+				response.getWriter().print(tenant.getEntityID());
+				baseRequest.setHandled(true);
+			}
+		});
+		server.setHandler(routing);
+		server.start();
+		port = connector.getLocalPort();
+
+		IdPTestRunner.registerTenant(new MockSPTenant("https://localhost/sp/" + port, new URL("http://localhost:" + port + "/sp"), null, null));
+		IdPTestRunner.registerTenant(new MockSPTenant("https://127.0.0.1/sp/" + port, new URL("http://127.0.0.1:" + port + "/sp"), null, null));
+		IdPTestRunner.registerTenant(new MockSPTenant("https://localhost/sp/other/" + port, new URL("http://localhost:" + port + "/sp/other"), null, null));
+	}
+
+	@After
+	public void stopServer() throws Exception {
+		server.stop();
+	}
+
+	/**
+	 * @return the status code of the response and its body
+	 */
+	private static String get(String url) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		try {
+			int status = connection.getResponseCode();
+			if (status != HttpURLConnection.HTTP_OK) {
+				return Integer.toString(status);
+			}
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			try (InputStream in = connection.getInputStream()) {
+				byte[] buffer = new byte[1024];
+				for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+					body.write(buffer, 0, read);
+				}
+			}
+			return status + " " + new String(body.toByteArray(), StandardCharsets.UTF_8);
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	@Test
+	public void routesByPathAndHost() throws Exception {
+		assertEquals("200 https://localhost/sp/" + port, get("http://localhost:" + port + "/sp"));
+		assertEquals("200 https://localhost/sp/" + port, get("http://localhost:" + port + "/sp/acs"));
+		// both tenants have the same path, so the host name decides
+		assertEquals("200 https://127.0.0.1/sp/" + port, get("http://127.0.0.1:" + port + "/sp/acs"));
+		// the tenant with the longest matching path is used
+		assertEquals("200 https://localhost/sp/other/" + port, get("http://localhost:" + port + "/sp/other/acs"));
+		assertEquals("200 https://localhost/sp/" + port, get("http://localhost:" + port + "/sp/otherwise"));
+	}
+
+	@Test
+	public void rejectsRequestsForUnknownTenants() throws Exception {
+		assertEquals("404", get("http://localhost:" + port + "/unknown"));
+		assertEquals("404", get("http://localhost:" + port + "/"));
+	}
+}
@@ -0,0 +1,91 @@
+package saml2webssotest.idp.testsuites;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import saml2webssotest.common.TestStatus;
+import saml2webssotest.idp.TestOutcome;
+import saml2webssotest.idp.XMLParsers;
+import saml2webssotest.idp.testsuites.IdPTestSuite.XPathMetadataTestCase;
+import saml2webssotest.idp.testsuites.IdPTestSuite.XPathRule;
+
+public class XPathMetadataTestCaseTest {
+
+	@XPathRule(when = "count(//md:ContactPerson) = 0", status = TestStatus.WARNING, message = "no contacts")
+	@XPathRule(when = "//md:ContactPerson[@contactType='technical']", status = TestStatus.OK, message = "technical contact")
+	@XPathRule(when = "true()", status = TestStatus.WARNING, message = "no technical contact", evidence = "//md:ContactPerson/@contactType")
+	public static class ContactTestCase extends XPathMetadataTestCase {
+		@Override
+		public String getDescription() {
+			return "Test the contacts";
+		}
+	}
+
+	@XPathRule(when = "//md:ContactPerson[", status = TestStatus.OK, message = "never")
+	public static class InvalidTestCase extends XPathMetadataTestCase {
+		@Override
+		public String getDescription() {
+			return "Test with an invalid expression";
+		}
+	}
+
+	@XPathRule(when = "false()", status = TestStatus.OK, message = "never")
+	public static class NoFallbackTestCase extends XPathMetadataTestCase {
+		@Override
+		public String getDescription() {
+			return "Test without a fallback rule";
+		}
+	}
+
+	public static class NoRulesTestCase extends XPathMetadataTestCase {
+		@Override
+		public String getDescription() {
+			return "Test without rules";
+		}
+	}
+
+	private static Document metadata(String contacts) throws Exception {
+		String xml = "<md:EntityDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" entityID=\"https://sp.example.org\">" + contacts + "</md:EntityDescriptor>";
+		return XMLParsers.newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test
+	public void theFirstMatchingRuleDecides() throws Exception {
+		ContactTestCase testcase = new ContactTestCase();
+		TestOutcome outcome = testcase.evaluateMetadata(metadata(""));
+		assertEquals(TestStatus.WARNING, outcome.getStatus());
+		assertEquals("no contacts", outcome.getMessage());
+
+		outcome = testcase.evaluateMetadata(metadata("<md:ContactPerson contactType=\"support\"/><md:ContactPerson contactType=\"technical\"/>"));
+		assertEquals(TestStatus.OK, outcome.getStatus());
+		assertEquals("technical contact", outcome.getMessage());
+		assertEquals(Collections.emptyList(), outcome.getEvidence());
+	}
+
+	@Test
+	public void addsTheSelectedNodesAsEvidence() throws Exception {
+		TestOutcome outcome = new ContactTestCase().evaluateMetadata(metadata("<md:ContactPerson contactType=\"support\"/><md:ContactPerson contactType=\"billing\"/>"));
+		assertEquals(TestStatus.WARNING, outcome.getStatus());
+		assertEquals("no technical contact", outcome.getMessage());
+		assertEquals(Arrays.asList("support", "billing"), outcome.getEvidence());
+	}
+
+	@Test
+	public void isCriticalWithoutAnOutcome() throws Exception {
+		assertEquals(TestStatus.CRITICAL, new ContactTestCase().evaluateMetadata(null).getStatus());
+		assertEquals(TestStatus.CRITICAL, new InvalidTestCase().evaluateMetadata(metadata("")).getStatus());
+		assertEquals(TestStatus.CRITICAL, new NoFallbackTestCase().evaluateMetadata(metadata("")).getStatus());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void requiresRules() {
+		new NoRulesTestCase();
+	}
+}
@@ -0,0 +1,84 @@
+package saml2webssotest.idp.xpath;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.xpath.XPathExpressionException;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import saml2webssotest.idp.XMLParsers;
+
+public class XPathCacheTest {
+	private static final String metadata = "<md:EntityDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" entityID=\"https://sp.example.org\">"
+			+ "<md:SPSSODescriptor><md:AssertionConsumerService Location=\"https://sp.example.org/acs\"/></md:SPSSODescriptor>"
+			+ "<md:ContactPerson contactType=\"support\"/><md:ContactPerson contactType=\"technical\"/>"
+			+ "</md:EntityDescriptor>";
+
+	private static Document parse(String xml) throws Exception {
+		return XMLParsers.newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test
+	public void evaluatesWithTheMetadataPrefixes() throws Exception {
+		Document document = parse(metadata);
+		assertTrue(XPathCache.evaluateBoolean("count(//md:ContactPerson) = 2", document));
+		assertFalse(XPathCache.evaluateBoolean("//md:IDPSSODescriptor", document));
+		assertEquals(Arrays.asList("support", "technical"), XPathCache.evaluateValues("//md:ContactPerson/@contactType", document));
+		assertEquals(Arrays.asList("https://sp.example.org/acs"), XPathCache.evaluateValues("//md:AssertionConsumerService/@Location", document));
+	}
+
+	@Test
+	public void remembersInvalidExpressions() throws Exception {
+		Document document = parse(metadata);
+		String message = null;
+		for (int i = 0; i < 2; i++) {
+			try {
+				XPathCache.evaluateBoolean("//md:ContactPerson[", document);
+				fail("the expression is not valid");
+			} catch (XPathExpressionException e) {
+				assertTrue(e.getMessage().contains("//md:ContactPerson["));
+				if (message != null) {
+					assertEquals(message, e.getMessage());
+				}
+				message = e.getMessage();
+			}
+		}
+	}
+
+	@Test
+	public void evaluatesConcurrentlyOnASharedDocument() throws Exception {
+		final Document document = parse(metadata);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for (int i = 0; i < 200; i++) {
+				results.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						return XPathCache.evaluateBoolean("//md:ContactPerson[@contactType='support'] and count(//md:ContactPerson) = 2", document)
+								&& XPathCache.evaluateValues("//md:ContactPerson/@contactType", document).equals(Arrays.asList("support", "technical"));
+					}
+				}));
+			}
+			for (Future<Boolean> result : results) {
+				assertTrue(result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+}